@@ -1,6 +1,6 @@
 package com.minidb;
 
-import com.minidb.index.BPlusTree;
+import com.minidb.index.Index;
 import com.minidb.log.RecoveryManager;
 import com.minidb.log.WALManager;
 import com.minidb.replication.RaftReplicator;
@@ -9,20 +9,23 @@ import com.minidb.storage.*;
 import com.minidb.txn.LockManager;
 import com.minidb.txn.TxnManager;
 
+import java.util.concurrent.ForkJoinPool;
+
 public class DbComponents {
     public PageManager pageManager;
     public BufferPool bufferPool;
     public WALManager walManager;
-    public BPlusTree<Integer, RecordId> index;
+    public Index<?, ?> index;
     public LockManager lockManager;
     public TxnManager txnManager;
     public RecordsSerializer recordsSerializer;
-    public RecordStorage recordStorage;
+    public TableStorage<?> recordStorage;
     public RaftReplicator replicator;
     public RecoveryManager recoveryManager;
     public Executor executor;
+    public ForkJoinPool scanPool; // Null unless scans are partitioned
 
-    public DbComponents(PageManager pageManager, BufferPool bufferPool, WALManager walManager, BPlusTree<Integer, RecordId> index, LockManager lockManager, TxnManager txnManager, RecordsSerializer recordsSerializer, RecordStorage recordStorage, RaftReplicator replicator, RecoveryManager recoveryManager, Executor executor) {
+    public DbComponents(PageManager pageManager, BufferPool bufferPool, WALManager walManager, Index<?, ?> index, LockManager lockManager, TxnManager txnManager, RecordsSerializer recordsSerializer, TableStorage<?> recordStorage, RaftReplicator replicator, RecoveryManager recoveryManager, Executor executor, ForkJoinPool scanPool) {
         this.pageManager = pageManager;
         this.bufferPool = bufferPool;
         this.walManager = walManager;
@@ -34,5 +37,6 @@ public class DbComponents {
         this.replicator = replicator;
         this.recoveryManager = recoveryManager;
         this.executor = executor;
+        this.scanPool = scanPool;
     }
 }
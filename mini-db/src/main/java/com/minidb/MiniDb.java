@@ -1,14 +1,22 @@
 
 package com.minidb;
 
+import com.minidb.index.AdaptiveRadixTree;
 import com.minidb.index.BPlusTree;
+import com.minidb.index.ExtendibleHashIndex;
+import com.minidb.index.Index;
+import com.minidb.index.LearnedIndex;
 import com.minidb.index.Serializer;
 import com.minidb.log.RecoveryManager;
 import com.minidb.log.WALManager;
+import com.minidb.lsm.LsmStorage;
+import com.minidb.lsm.LsmTree;
+import com.minidb.monitoring.MetricsRegistry;
 import com.minidb.replication.RaftReplicator;
 import com.minidb.raft.InMemoryRaftProtocol;
 import com.minidb.serializers.IntegerSerializer;
 import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.serializers.RowSerializer;
 import com.minidb.sql.executor.Executor;
 import com.minidb.sql.executor.Result;
 import com.minidb.sql.parser.Parser;
@@ -17,15 +25,18 @@ import com.minidb.sql.parser.Tokenizer;
 import com.minidb.storage.*;
 import com.minidb.txn.LockManager;
 import com.minidb.txn.TxnManager;
+import io.micrometer.core.instrument.MeterRegistry;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import com.minidb.DbComponents;
 import com.minidb.MiniDbRepl;
 
 public class MiniDb {
+    private static final String LEARNED_DELTA_ROOT = "kv.primary.delta";
 
     public static void main(String[] args) throws Exception {
         if (args.length < 2) {
@@ -40,11 +51,14 @@ public class MiniDb {
         int bufferPoolSize = config.getBufferPoolSize();
         int pageSize = config.getPageSize();
 
-        DbComponents components = initializeDbComponents(nodeId, peerIds, bPlusTreeOrder, bufferPoolSize, pageSize);
+        KeyType<?> keyType = KeyType.of(config.getKeyType());
+
+        DbComponents components = initializeDbComponents(nodeId, peerIds, bPlusTreeOrder, bufferPoolSize, pageSize, config, keyType);
 
         try {
             startReplication(components.replicator);
             performRecovery(components.recoveryManager);
+            openStatistics(components.recordStorage, config.getAnalyzeSamplePercent());
 
             MiniDbRepl repl = new MiniDbRepl(components.executor, nodeId);
             repl.start();
@@ -53,25 +67,74 @@ public class MiniDb {
         }
     }
 
-    private static DbComponents initializeDbComponents(String nodeId, List<String> peerIds, int bPlusTreeOrder, int bufferPoolSize, int pageSize) throws IOException {
+    private static <K extends Comparable<K>> DbComponents initializeDbComponents(String nodeId, List<String> peerIds, int bPlusTreeOrder, int bufferPoolSize, int pageSize, MiniDbConfig config, KeyType<K> keyType) throws IOException {
         File dbDir = new File("minidb_data_" + nodeId);
         if (!dbDir.exists()) {
             dbDir.mkdir();
         }
 
-        PageManager pageManager = new PageManager(new File(dbDir, "minidb.db").getPath(), pageSize);
+        int pagesPerSegment = (int) ((long) config.getSegmentSizeMb() * 1024 * 1024 / pageSize);
+        PageManager pageManager = new PageManager(new File(dbDir, "minidb.db").getPath(), pageSize, pagesPerSegment, config.getSegmentDirs());
         BufferPool bufferPool = new BufferPool(pageManager, bufferPoolSize);
         WALManager walManager = new WALManager(dbDir);
-        Serializer<Integer> keySerializer = new IntegerSerializer();
-        Serializer<RecordId> valueSerializer = new RecordIdSerializer();
-        BPlusTree<Integer, RecordId> index = new BPlusTree<>(bPlusTreeOrder, keySerializer, valueSerializer, pageManager, bufferPool);
+        Serializer<K> keySerializer = keyType.getSerializer();
         LockManager lockManager = new LockManager();
         TxnManager txnManager = new TxnManager(lockManager, walManager);
         RecordsSerializer recordsSerializer = new RecordsSerializer(new RecordsSerializer.Column[]{
-                new RecordsSerializer.Column("id", RecordsSerializer.ColumnType.INT),
+                new RecordsSerializer.Column("id", keyType.getColumnType()),
                 new RecordsSerializer.Column("value", RecordsSerializer.ColumnType.STRING)
         });
-        RecordStorage recordStorage = new RecordStorage(bufferPool, recordsSerializer, walManager, index, pageManager);
+        Index<K, ?> index;
+        TableStorage<K> recordStorage;
+        // Partitioned scans get their own workers, which wait on slow consumers without starving other pool users
+        ForkJoinPool scanPool = config.getScanPartitions() > 1 ? new ForkJoinPool(config.getScanPartitions()) : null;
+        switch (config.getTableLayout()) {
+            case "heap":
+                Index<K, RecordId> primary = newPrimaryIndex(config, keySerializer, pageManager, bufferPool);
+                RecordStorage<K> heapStorage = new RecordStorage<>(bufferPool, recordsSerializer, walManager, primary, pageManager, keyType);
+                if (primary instanceof AdaptiveRadixTree) {
+                    heapStorage.loadIndexFromHeap();
+                }
+                for (String column : config.getSecondaryIndexes()) {
+                    heapStorage.addSecondaryIndex(column, bPlusTreeOrder);
+                }
+                if (config.getBloomFilterBitsPerKey() > 0) {
+                    heapStorage.enableBloomFilter(config.getBloomFilterBitsPerKey());
+                    heapStorage.startBloomFilterMaintenance(config.getBloomFilterMaintenanceMs());
+                }
+                heapStorage.setScanPartitions(config.getScanPartitions(), scanPool);
+                index = primary;
+                recordStorage = heapStorage;
+                break;
+            case "clustered":
+                if (!config.getPrimaryIndex().equals("btree") || !config.getSecondaryIndexes().isEmpty()) {
+                    throw new IllegalArgumentException("A clustered table needs the btree primary index and has no secondary indexes");
+                }
+                BPlusTree<K, RecordsSerializer.Row> tree = new BPlusTree<>(bPlusTreeOrder, keySerializer, new RowSerializer(recordsSerializer), pageManager, bufferPool);
+                index = tree;
+                ClusteredStorage<K> clusteredStorage = new ClusteredStorage<>(recordsSerializer, walManager, tree, keyType, pageManager, bufferPool);
+                clusteredStorage.setScanPartitions(config.getScanPartitions(), scanPool);
+                recordStorage = clusteredStorage;
+                break;
+            case "lsm":
+                if (!config.getSecondaryIndexes().isEmpty()) {
+                    throw new IllegalArgumentException("An LSM table has no secondary indexes");
+                }
+                LsmTree lsmTree = new LsmTree(new File(dbDir, "lsm"), config.getLsmMemTableKb() * 1024L);
+                index = null;
+                recordStorage = new LsmStorage<>(recordsSerializer, walManager, lsmTree, keyType);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown table layout: " + config.getTableLayout());
+        }
+
+        if (index instanceof BPlusTree) {
+            BPlusTree<?, ?> tree = (BPlusTree<?, ?>) index;
+            tree.setMergeThreshold(config.getBPlusTreeMergeFillPercent() / 100.0);
+            if (config.getBPlusTreeRebalanceMs() > 0) {
+                tree.startBackgroundRebalance(config.getBPlusTreeRebalanceMs());
+            }
+        }
 
         InMemoryRaftProtocol protocol = new InMemoryRaftProtocol();
         RaftReplicator replicator = new RaftReplicator(walManager, peerIds, nodeId, protocol);
@@ -80,7 +143,70 @@ public class MiniDb {
 
         Executor executor = new Executor(txnManager, walManager, lockManager, recordStorage);
 
-        return new DbComponents(pageManager, bufferPool, walManager, index, lockManager, txnManager, recordsSerializer, recordStorage, replicator, recoveryManager, executor);
+        return new DbComponents(pageManager, bufferPool, walManager, index, lockManager, txnManager, recordsSerializer, recordStorage, replicator, recoveryManager, executor, scanPool);
+    }
+
+    private static <K extends Comparable<K>> Index<K, RecordId> newPrimaryIndex(MiniDbConfig config, Serializer<K> keySerializer, PageManager pageManager, BufferPool bufferPool) throws IOException {
+        Serializer<RecordId> valueSerializer = new RecordIdSerializer();
+        switch (config.getPrimaryIndex()) {
+            case "btree":
+                BPlusTree<K, RecordId> tree = new BPlusTree<>(config.getBPlusTreeOrder(), keySerializer, valueSerializer, pageManager, bufferPool);
+                foldLearnedDelta(config, tree, keySerializer, pageManager, bufferPool);
+                return tree;
+            case "hash":
+                return new ExtendibleHashIndex<>(keySerializer, valueSerializer, pageManager, bufferPool, BPlusTree.DEFAULT_ROOT_PAGE_ID);
+            case "learned":
+                return newLearnedIndex(config, keySerializer, pageManager, bufferPool);
+            case "art":
+                return new AdaptiveRadixTree<>(keySerializer);
+            default:
+                throw new IllegalArgumentException("Unknown primary index: " + config.getPrimaryIndex());
+        }
+    }
+
+    /**
+     * Seals the int-keyed B+ tree on the primary root page under a LearnedIndex. Writes from then on
+     * go to a delta B+ tree registered as LEARNED_DELTA_ROOT, which foldLearnedDelta merges back when
+     * the database is next opened with the btree primary index.
+     */
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>> Index<K, RecordId> newLearnedIndex(MiniDbConfig config, Serializer<K> keySerializer, PageManager pageManager, BufferPool bufferPool) throws IOException {
+        if (!(keySerializer instanceof IntegerSerializer)) {
+            throw new IllegalArgumentException("The learned primary index needs minidb.keyType=int");
+        }
+        Serializer<Integer> intSerializer = (Serializer<Integer>) keySerializer;
+        BPlusTree<Integer, RecordId> sealed = new BPlusTree<>(config.getBPlusTreeOrder(), intSerializer, new RecordIdSerializer(), pageManager, bufferPool);
+        int deltaRootPageId = pageManager.getNamedRoot(LEARNED_DELTA_ROOT);
+        boolean created = deltaRootPageId < 0;
+        if (created) {
+            deltaRootPageId = pageManager.allocatePage();
+        }
+        BPlusTree<Integer, RecordId> delta = new BPlusTree<>(config.getBPlusTreeOrder(), intSerializer, new RecordIdSerializer(), pageManager, bufferPool, deltaRootPageId);
+        if (created) {
+            bufferPool.flushAllPages();
+            pageManager.registerRoot(LEARNED_DELTA_ROOT, deltaRootPageId);
+        }
+        return (Index<K, RecordId>) (Index<?, RecordId>) new LearnedIndex(sealed, delta, config.getLearnedIndexMaxError());
+    }
+
+    /**
+     * Writes what a learned primary index left in its delta tree into the B+ tree on the primary
+     * root page, which would otherwise miss every row written while the learned index was in use.
+     */
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<K>> void foldLearnedDelta(MiniDbConfig config, BPlusTree<K, RecordId> tree, Serializer<K> keySerializer, PageManager pageManager, BufferPool bufferPool) throws IOException {
+        int deltaRootPageId = pageManager.getNamedRoot(LEARNED_DELTA_ROOT);
+        if (deltaRootPageId < 0) {
+            return;
+        }
+        if (!(keySerializer instanceof IntegerSerializer)) {
+            throw new IllegalArgumentException("This database was written with the learned primary index, which needs minidb.keyType=int");
+        }
+        BPlusTree<Integer, RecordId> delta = new BPlusTree<>(config.getBPlusTreeOrder(), (Serializer<Integer>) keySerializer, new RecordIdSerializer(), pageManager, bufferPool, deltaRootPageId);
+        int folded = LearnedIndex.foldDelta((BPlusTree<Integer, RecordId>) (BPlusTree<?, RecordId>) tree, delta, bufferPool);
+        if (folded > 0) {
+            System.out.println("Folded " + folded + " learned index delta entries into the primary B+ tree");
+        }
     }
 
     private static void startReplication(RaftReplicator replicator) throws IOException {
@@ -91,9 +217,36 @@ public class MiniDb {
         recoveryManager.recover();
     }
 
+    /**
+     * Loads or computes the table statistics once recovery has replayed the WAL, and exports them.
+     * The gauges read whatever statistics the last ANALYZE left.
+     */
+    private static void openStatistics(TableStorage<?> storage, int samplePercent) throws IOException {
+        storage.openStatistics(samplePercent / 100.0);
+        MeterRegistry meterRegistry = MetricsRegistry.getInstance();
+        meterRegistry.gauge("minidb.table.rows", storage, s -> s.getStatistics().getRows());
+        meterRegistry.gauge("minidb.table.modifications", storage, s -> s.getStatistics().getModifications());
+        meterRegistry.gauge("minidb.index.height", storage, s -> s.getStatistics().getIndexHeight());
+        meterRegistry.gauge("minidb.index.leaf.pages", storage, s -> s.getStatistics().getIndexLeafPages());
+        meterRegistry.gauge("minidb.index.leaf.fill", storage, s -> s.getStatistics().getIndexLeafFill());
+    }
+
     private static void cleanupDb(DbComponents components) throws Exception {
         System.out.println("\nFlushing pages and closing DB...");
         components.replicator.close();
+        if (components.index instanceof BPlusTree) {
+            ((BPlusTree<?, ?>) components.index).stopBackgroundRebalance();
+        }
+        if (components.recordStorage instanceof RecordStorage) {
+            ((RecordStorage<?>) components.recordStorage).stopBloomFilterMaintenance();
+        }
+        if (components.scanPool != null) {
+            components.scanPool.shutdown();
+        }
+        components.recordStorage.saveStatistics();
+        if (components.recordStorage instanceof LsmStorage) {
+            ((LsmStorage<?>) components.recordStorage).close();
+        }
         components.bufferPool.flushAllPages();
         components.walManager.close();
         components.pageManager.close();
@@ -1,7 +1,10 @@
 package com.minidb;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 public class MiniDbConfig {
@@ -24,10 +27,31 @@ public class MiniDbConfig {
         return (value != null) ? Integer.parseInt(value) : defaultValue;
     }
 
+    public String getString(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
     public int getBPlusTreeOrder() {
         return getInt("minidb.bPlusTreeOrder", 5);
     }
 
+    /**
+     * Fill, in percent of a node, below which a delete merges or rebalances a B+ tree node right
+     * away; up to 50, which merges eagerly. Nodes left between this and half full are merged by the
+     * background pass.
+     */
+    public int getBPlusTreeMergeFillPercent() {
+        return getInt("minidb.bPlusTreeMergeFillPercent", 50);
+    }
+
+    /**
+     * How often the background pass merges B+ tree leaves that deletes left less than half full;
+     * 0 turns it off.
+     */
+    public int getBPlusTreeRebalanceMs() {
+        return getInt("minidb.bPlusTreeRebalanceMs", 0);
+    }
+
     public int getBufferPoolSize() {
         return getInt("minidb.bufferPoolSize", 10);
     }
@@ -35,4 +59,108 @@ public class MiniDbConfig {
     public int getPageSize() {
         return getInt("minidb.pageSize", 4096);
     }
+
+    /**
+     * Primary key type of the kv table: "int", "string", or a comma separated list of column types
+     * for a composite key (see KeyType).
+     */
+    public String getKeyType() {
+        return getString("minidb.keyType", "int");
+    }
+
+    /**
+     * Where the kv table keeps its rows: "heap" pages that the primary index points into,
+     * "clustered" in the leaves of a B+ tree on the primary key, or "lsm" in an LsmTree.
+     */
+    public String getTableLayout() {
+        return getString("minidb.tableLayout", "heap").trim().toLowerCase();
+    }
+
+    /**
+     * Primary index of the kv table: "btree", "hash" for an ExtendibleHashIndex when the table is
+     * only read by key, "learned" for a LearnedIndex over the int-keyed B+ tree built so far, or
+     * "art" for an in-memory AdaptiveRadixTree rebuilt from the heap at startup.
+     */
+    public String getPrimaryIndex() {
+        return getString("minidb.primaryIndex", "btree").trim().toLowerCase();
+    }
+
+    /**
+     * How many positions a LearnedIndex segment may mispredict a key by.
+     */
+    public int getLearnedIndexMaxError() {
+        return getInt("minidb.learnedIndexMaxError", 16);
+    }
+
+    /**
+     * Bits per key of the Bloom filter that lets heap tables skip the primary index for keys never
+     * inserted; 0 turns the filter off.
+     */
+    public int getBloomFilterBitsPerKey() {
+        return getInt("minidb.bloomFilterBitsPerKey", 0);
+    }
+
+    /**
+     * How often the background maintenance checks whether the Bloom filter needs a rebuild.
+     */
+    public int getBloomFilterMaintenanceMs() {
+        return getInt("minidb.bloomFilterMaintenanceMs", 60000);
+    }
+
+    /**
+     * Share of the index leaves, in percent, the startup ANALYZE reads when the database has no
+     * saved table statistics yet.
+     */
+    public int getAnalyzeSamplePercent() {
+        return getInt("minidb.analyzeSamplePercent", 10);
+    }
+
+    /**
+     * Subranges a BETWEEN scan of a B+ tree table is split into and read at once on the common
+     * ForkJoinPool; 1 scans with a single cursor.
+     */
+    public int getScanPartitions() {
+        return getInt("minidb.scanPartitions", 1);
+    }
+
+    /**
+     * Size in KB at which an LSM table's memtable is flushed into an SSTable.
+     */
+    public int getLsmMemTableKb() {
+        return getInt("minidb.lsmMemTableKb", 4096);
+    }
+
+    /**
+     * Comma separated non-key columns of the kv table that get a secondary index.
+     */
+    public List<String> getSecondaryIndexes() {
+        List<String> columns = new ArrayList<>();
+        for (String column : getString("minidb.secondaryIndexes", "").split(",")) {
+            if (!column.trim().isEmpty()) {
+                columns.add(column.trim());
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Size of one tablespace segment file in MB; 0 keeps the whole database in a single file.
+     */
+    public int getSegmentSizeMb() {
+        return getInt("minidb.segmentSizeMb", 0);
+    }
+
+    /**
+     * Comma separated directories that segment files are spread over round-robin.
+     * Empty means all segments live next to the main database file.
+     */
+    public List<File> getSegmentDirs() {
+        List<File> dirs = new ArrayList<>();
+        for (String dir : getString("minidb.segmentDirs", "").split(",")) {
+            if (!dir.trim().isEmpty()) {
+                dirs.add(new File(dir.trim()));
+            }
+        }
+        return dirs;
+    }
 }
@@ -0,0 +1,719 @@
+package com.minidb.index;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory primary index for tables whose keys fit in memory: an adaptive radix tree over the
+ * keys' memcmp-comparable encodings. Each inner node branches on one key byte and comes in four
+ * sizes, Node4, Node16, Node48 and Node256, so sparse nodes stay small and dense ones index their
+ * children directly. Path compression stores the bytes every key below a node shares as the node's
+ * prefix, so chains of single-child nodes never exist. A key that ends where a node's prefix ends
+ * (one key a prefix of another) is held in that node's terminal slot.
+ *
+ * Concurrency uses optimistic lock coupling: every inner node has a version word whose low bits
+ * mark it locked or obsolete. Readers take no locks; they read a node's version, read the node, and
+ * check the version again before trusting what they read, restarting from the root if it changed.
+ * Writers read the same way and then lock only the nodes they change by compare-and-set on the
+ * version they read: the node itself, plus its parent when the node is replaced by a larger one or
+ * split at its prefix. A writer that loses such a race restarts instead of waiting.
+ *
+ * Nothing is persisted: the tree is rebuilt from the table at startup (see
+ * RecordStorage.loadIndexFromHeap). Deletes remove leaves but never shrink nodes or merge paths.
+ * scan collects the entries in key order, resuming after the last one it has when it restarts.
+ */
+public class AdaptiveRadixTree<K, V> implements Index<K, V> {
+    private final Serializer<K> keySerializer;
+    private final Node256 root = new Node256(); // Never replaced and without a prefix, so it needs no parent
+
+    public AdaptiveRadixTree(Serializer<K> keySerializer) {
+        if (!(keySerializer instanceof BinaryComparableSerializer)) {
+            throw new IllegalArgumentException("An adaptive radix tree needs a binary comparable key serializer");
+        }
+        this.keySerializer = keySerializer;
+    }
+
+    @Override
+    public V search(K key) {
+        byte[] bytes = keySerializer.serialize(key);
+        while (true) {
+            try {
+                return search(bytes);
+            } catch (Restart restart) {
+                // A writer changed a node this lookup read; start over
+            }
+        }
+    }
+
+    @Override
+    public void insert(K key, V value) {
+        byte[] bytes = keySerializer.serialize(key);
+        while (true) {
+            try {
+                insert(bytes, value);
+                return;
+            } catch (Restart restart) {
+                // Lost a race with another writer; start over
+            }
+        }
+    }
+
+    @Override
+    public void delete(K key) {
+        byte[] bytes = keySerializer.serialize(key);
+        while (true) {
+            try {
+                delete(bytes);
+                return;
+            } catch (Restart restart) {
+                // Lost a race with another writer; start over
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> scan() {
+        return scan(null, null);
+    }
+
+    /**
+     * Snapshot of the entries with low <= key <= high in key order. A null bound leaves that end open.
+     * Each node's entries are read consistently; when a writer forces a restart, the scan keeps what
+     * it has and resumes just after the last key collected, so it finishes under steady writes.
+     */
+    public Iterator<Map.Entry<K, V>> scan(K low, K high) {
+        byte[] lowBytes = low == null ? null : keySerializer.serialize(low);
+        byte[] highBytes = high == null ? null : keySerializer.serialize(high);
+        List<Leaf<V>> leaves = new ArrayList<>();
+        byte[] from = lowBytes;
+        while (true) {
+            try {
+                collect(root, null, 0, 0, from, highBytes, from, highBytes, leaves);
+                break;
+            } catch (Restart restart) {
+                if (!leaves.isEmpty()) {
+                    // The smallest key above the last one collected is that key followed by a zero byte
+                    byte[] last = leaves.get(leaves.size() - 1).key;
+                    from = Arrays.copyOf(last, last.length + 1);
+                }
+            }
+        }
+        List<Map.Entry<K, V>> entries = new ArrayList<>(leaves.size());
+        for (Leaf<V> leaf : leaves) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(keySerializer.deserialize(leaf.key), leaf.value));
+        }
+        return entries.iterator();
+    }
+
+    private V search(byte[] key) {
+        Inner node = root;
+        long version = node.readLockOrRestart();
+        int depth = 0;
+        while (true) {
+            byte[] prefix = node.prefix;
+            if (matchPrefix(prefix, key, depth) < prefix.length) {
+                node.checkOrRestart(version);
+                return null;
+            }
+            depth += prefix.length;
+            if (depth == key.length) {
+                Leaf<V> terminal = node.terminal();
+                V value = terminal == null ? null : terminal.value;
+                node.checkOrRestart(version);
+                return value;
+            }
+            Node child = node.findChild(key[depth]);
+            node.checkOrRestart(version);
+            if (child == null) {
+                return null;
+            }
+            if (child instanceof Leaf) {
+                Leaf<V> leaf = (Leaf<V>) child;
+                V value = leaf.value;
+                node.checkOrRestart(version);
+                return Arrays.equals(leaf.key, key) ? value : null;
+            }
+            Inner parent = node;
+            long parentVersion = version;
+            node = (Inner) child;
+            version = node.readLockOrRestart();
+            parent.checkOrRestart(parentVersion); // A prefix split may have moved node below a new one
+            depth++;
+        }
+    }
+
+    private void insert(byte[] key, V value) {
+        Inner parent = null;
+        long parentVersion = 0;
+        byte parentByte = 0;
+        Inner node = root;
+        long version = node.readLockOrRestart();
+        int depth = 0;
+        while (true) {
+            byte[] prefix = node.prefix;
+            int matched = matchPrefix(prefix, key, depth);
+            if (matched < prefix.length) {
+                // A new Node4 takes over the shared part of the prefix; the node keeps what follows
+                parent.upgradeToWriteLockOrRestart(parentVersion);
+                node.upgradeToWriteLockOrRestart(version, parent);
+                Node4 split = new Node4();
+                split.prefix = Arrays.copyOf(prefix, matched);
+                place(split, new Leaf<>(key, value), depth + matched);
+                split.addChild(prefix[matched], node);
+                node.prefix = Arrays.copyOfRange(prefix, matched + 1, prefix.length);
+                parent.replaceChild(parentByte, split);
+                node.writeUnlock();
+                parent.writeUnlock();
+                return;
+            }
+            depth += prefix.length;
+            if (depth == key.length) {
+                node.upgradeToWriteLockOrRestart(version);
+                Leaf<V> terminal = node.terminal();
+                if (terminal != null) {
+                    terminal.value = value;
+                } else {
+                    node.terminal = new Leaf<>(key, value);
+                }
+                node.writeUnlock();
+                return;
+            }
+            byte b = key[depth];
+            Node child = node.findChild(b);
+            node.checkOrRestart(version);
+            if (child == null) {
+                if (node.isFull()) {
+                    parent.upgradeToWriteLockOrRestart(parentVersion);
+                    node.upgradeToWriteLockOrRestart(version, parent);
+                    Inner grown = node.grow();
+                    grown.addChild(b, new Leaf<>(key, value));
+                    parent.replaceChild(parentByte, grown);
+                    node.writeUnlockObsolete();
+                    parent.writeUnlock();
+                } else {
+                    node.upgradeToWriteLockOrRestart(version);
+                    node.addChild(b, new Leaf<>(key, value));
+                    node.writeUnlock();
+                }
+                return;
+            }
+            if (child instanceof Leaf) {
+                Leaf<V> leaf = (Leaf<V>) child;
+                node.upgradeToWriteLockOrRestart(version);
+                if (Arrays.equals(leaf.key, key)) {
+                    leaf.value = value;
+                } else {
+                    // Both keys go on past b: a Node4 holds the bytes they share next as its prefix
+                    int start = depth + 1;
+                    int end = start;
+                    while (end < key.length && end < leaf.key.length && key[end] == leaf.key[end]) {
+                        end++;
+                    }
+                    Node4 split = new Node4();
+                    split.prefix = Arrays.copyOfRange(key, start, end);
+                    place(split, leaf, end);
+                    place(split, new Leaf<>(key, value), end);
+                    node.replaceChild(b, split);
+                }
+                node.writeUnlock();
+                return;
+            }
+            parent = node;
+            parentVersion = version;
+            parentByte = b;
+            node = (Inner) child;
+            version = node.readLockOrRestart();
+            parent.checkOrRestart(parentVersion); // A prefix split may have moved node below a new one
+            depth++;
+        }
+    }
+
+    private void delete(byte[] key) {
+        Inner node = root;
+        long version = node.readLockOrRestart();
+        int depth = 0;
+        while (true) {
+            byte[] prefix = node.prefix;
+            if (matchPrefix(prefix, key, depth) < prefix.length) {
+                node.checkOrRestart(version);
+                return;
+            }
+            depth += prefix.length;
+            if (depth == key.length) {
+                node.upgradeToWriteLockOrRestart(version);
+                node.terminal = null;
+                node.writeUnlock();
+                return;
+            }
+            byte b = key[depth];
+            Node child = node.findChild(b);
+            node.checkOrRestart(version);
+            if (child == null) {
+                return;
+            }
+            if (child instanceof Leaf) {
+                if (Arrays.equals(((Leaf<?>) child).key, key)) {
+                    node.upgradeToWriteLockOrRestart(version);
+                    node.removeChild(b);
+                    node.writeUnlock();
+                }
+                return;
+            }
+            Inner parent = node;
+            long parentVersion = version;
+            node = (Inner) child;
+            version = node.readLockOrRestart();
+            parent.checkOrRestart(parentVersion); // A prefix split may have moved node below a new one
+            depth++;
+        }
+    }
+
+    /**
+     * Adds the leaves of node's subtree within the original bounds to out in key order. low and high
+     * are the original bounds while the path to node still equals their first depth bytes, and null
+     * once it has left them behind, so only the subtrees along the two bounds need comparisons.
+     */
+    private void collect(Inner node, Inner parent, long parentVersion, int depth, byte[] low, byte[] high, byte[] lowBound, byte[] highBound, List<Leaf<V>> out) {
+        long version = node.readLockOrRestart();
+        if (parent != null) {
+            parent.checkOrRestart(parentVersion);
+        }
+        byte[] prefix = node.prefix;
+        Leaf<V> terminal = node.terminal();
+        byte[] bytes = new byte[node.capacity()];
+        Node[] children = new Node[node.capacity()];
+        int count = node.children(bytes, children);
+        node.checkOrRestart(version);
+
+        for (int i = 0; i < prefix.length; i++) {
+            int at = depth + i;
+            if (low != null) {
+                int cmp = at < low.length ? Integer.compare(prefix[i] & 0xFF, low[at] & 0xFF) : 1;
+                if (cmp < 0) {
+                    return;
+                }
+                low = cmp == 0 ? low : null;
+            }
+            if (high != null) {
+                int cmp = at < high.length ? Integer.compare(prefix[i] & 0xFF, high[at] & 0xFF) : 1;
+                if (cmp > 0) {
+                    return;
+                }
+                high = cmp == 0 ? high : null;
+            }
+        }
+        depth += prefix.length;
+        if (terminal != null && inRange(terminal.key, lowBound, highBound)) {
+            out.add(terminal);
+        }
+        for (int i = 0; i < count; i++) {
+            int b = bytes[i] & 0xFF;
+            byte[] childLow = low;
+            if (low != null) {
+                int bound = depth < low.length ? low[depth] & 0xFF : -1;
+                if (b < bound) {
+                    continue;
+                }
+                childLow = b == bound ? low : null;
+            }
+            byte[] childHigh = high;
+            if (high != null) {
+                int bound = depth < high.length ? high[depth] & 0xFF : -1;
+                if (b > bound) {
+                    break;
+                }
+                childHigh = b == bound ? high : null;
+            }
+            if (children[i] instanceof Leaf) {
+                Leaf<V> leaf = (Leaf<V>) children[i];
+                if (inRange(leaf.key, lowBound, highBound)) {
+                    out.add(leaf);
+                }
+            } else {
+                collect((Inner) children[i], node, version, depth + 1, childLow, childHigh, lowBound, highBound, out);
+            }
+        }
+    }
+
+    private static boolean inRange(byte[] key, byte[] low, byte[] high) {
+        return (low == null || Arrays.compareUnsigned(key, low) >= 0) && (high == null || Arrays.compareUnsigned(key, high) <= 0);
+    }
+
+    /**
+     * How many bytes of prefix match key from depth on.
+     */
+    private static int matchPrefix(byte[] prefix, byte[] key, int depth) {
+        int matched = 0;
+        while (matched < prefix.length && depth + matched < key.length && prefix[matched] == key[depth + matched]) {
+            matched++;
+        }
+        return matched;
+    }
+
+    /**
+     * Puts a leaf into a new node whose prefix ends at depth.
+     */
+    private static void place(Node4 node, Leaf<?> leaf, int depth) {
+        if (leaf.key.length == depth) {
+            node.terminal = leaf;
+        } else {
+            node.addChild(leaf.key[depth], leaf);
+        }
+    }
+
+    /**
+     * Thrown when an optimistic read or a lock upgrade finds that a node changed; carries no stack
+     * trace, since restarts are routine under contention.
+     */
+    private static final class Restart extends RuntimeException {
+        static final Restart INSTANCE = new Restart();
+
+        private Restart() {
+            super(null, null, false, false);
+        }
+    }
+
+    private abstract static class Node {
+    }
+
+    private static final class Leaf<V> extends Node {
+        final byte[] key;
+        volatile V value; // Replaced under the lock of the node holding the leaf
+
+        Leaf(byte[] key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * An inner node. The version word counts changes in steps of 4: bit 1 is set while a writer
+     * holds the node and bit 0 once the node was replaced. Fields are read without locks and only
+     * trusted after checkOrRestart.
+     */
+    private abstract static class Inner extends Node {
+        private static final long LOCKED = 0b10;
+        private static final long OBSOLETE = 0b01;
+        private static final VarHandle VERSION;
+
+        static {
+            try {
+                VERSION = MethodHandles.lookup().findVarHandle(Inner.class, "version", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private volatile long version;
+        byte[] prefix = new byte[0];
+        Leaf<?> terminal;
+        int count;
+
+        long readLockOrRestart() {
+            long v = version;
+            if ((v & (LOCKED | OBSOLETE)) != 0) {
+                throw Restart.INSTANCE;
+            }
+            return v;
+        }
+
+        void checkOrRestart(long v) {
+            VarHandle.acquireFence(); // Keeps the reads of the node's fields before the version check
+            if (version != v) {
+                throw Restart.INSTANCE;
+            }
+        }
+
+        void upgradeToWriteLockOrRestart(long v) {
+            if (!VERSION.compareAndSet(this, v, v | LOCKED)) {
+                throw Restart.INSTANCE;
+            }
+        }
+
+        /**
+         * Like upgradeToWriteLockOrRestart, releasing locked (which the caller holds) on failure.
+         */
+        void upgradeToWriteLockOrRestart(long v, Inner locked) {
+            if (!VERSION.compareAndSet(this, v, v | LOCKED)) {
+                locked.writeUnlock();
+                throw Restart.INSTANCE;
+            }
+        }
+
+        void writeUnlock() {
+            VERSION.getAndAdd(this, LOCKED); // Clears the lock bit and carries into the count
+        }
+
+        void writeUnlockObsolete() {
+            VERSION.getAndAdd(this, LOCKED | OBSOLETE);
+        }
+
+        <V> Leaf<V> terminal() {
+            return (Leaf<V>) terminal;
+        }
+
+        /**
+         * Copies prefix and terminal into a node that replaces this one.
+         */
+        <N extends Inner> N copyHeaderTo(N node) {
+            node.prefix = prefix;
+            node.terminal = terminal;
+            return node;
+        }
+
+        abstract int capacity();
+
+        boolean isFull() {
+            return count == capacity();
+        }
+
+        abstract Node findChild(byte b);
+
+        /**
+         * Adds a child for a byte the node has none for; the node must not be full.
+         */
+        abstract void addChild(byte b, Node child);
+
+        abstract void replaceChild(byte b, Node child);
+
+        abstract void removeChild(byte b);
+
+        /**
+         * A copy of this node in the next larger node type.
+         */
+        abstract Inner grow();
+
+        /**
+         * Copies the child bytes and children in byte order and returns how many there are.
+         */
+        abstract int children(byte[] bytes, Node[] children);
+    }
+
+    /**
+     * Up to 4 (Node4) or 16 (Node16) children, with their bytes sorted in a parallel array.
+     */
+    private static class SortedNode extends Inner {
+        final byte[] keys;
+        final Node[] children;
+
+        SortedNode(int capacity) {
+            keys = new byte[capacity];
+            children = new Node[capacity];
+        }
+
+        @Override
+        int capacity() {
+            return keys.length;
+        }
+
+        @Override
+        Node findChild(byte b) {
+            int n = Math.min(count, keys.length);
+            for (int i = 0; i < n; i++) {
+                if (keys[i] == b) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        void addChild(byte b, Node child) {
+            int at = 0;
+            while (at < count && (keys[at] & 0xFF) < (b & 0xFF)) {
+                at++;
+            }
+            System.arraycopy(keys, at, keys, at + 1, count - at);
+            System.arraycopy(children, at, children, at + 1, count - at);
+            keys[at] = b;
+            children[at] = child;
+            count++;
+        }
+
+        @Override
+        void replaceChild(byte b, Node child) {
+            for (int i = 0; i < count; i++) {
+                if (keys[i] == b) {
+                    children[i] = child;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        void removeChild(byte b) {
+            for (int i = 0; i < count; i++) {
+                if (keys[i] == b) {
+                    System.arraycopy(keys, i + 1, keys, i, count - i - 1);
+                    System.arraycopy(children, i + 1, children, i, count - i - 1);
+                    count--;
+                    children[count] = null;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        Inner grow() {
+            Inner grown = keys.length == 4 ? new Node16() : new Node48();
+            for (int i = 0; i < count; i++) {
+                grown.addChild(keys[i], children[i]);
+            }
+            return copyHeaderTo(grown);
+        }
+
+        @Override
+        int children(byte[] bytes, Node[] out) {
+            int n = Math.min(count, keys.length);
+            System.arraycopy(keys, 0, bytes, 0, n);
+            System.arraycopy(children, 0, out, 0, n);
+            return n;
+        }
+    }
+
+    private static final class Node4 extends SortedNode {
+        Node4() {
+            super(4);
+        }
+    }
+
+    private static final class Node16 extends SortedNode {
+        Node16() {
+            super(16);
+        }
+    }
+
+    /**
+     * Up to 48 children in any order, found through a 256-entry table of child slot + 1 by byte.
+     */
+    private static final class Node48 extends Inner {
+        private final byte[] index = new byte[256];
+        private final Node[] children = new Node[48];
+
+        @Override
+        int capacity() {
+            return 48;
+        }
+
+        @Override
+        Node findChild(byte b) {
+            int slot = index[b & 0xFF];
+            return slot == 0 ? null : children[slot - 1];
+        }
+
+        @Override
+        void addChild(byte b, Node child) {
+            int slot = 0;
+            while (children[slot] != null) {
+                slot++;
+            }
+            children[slot] = child;
+            index[b & 0xFF] = (byte) (slot + 1);
+            count++;
+        }
+
+        @Override
+        void replaceChild(byte b, Node child) {
+            children[index[b & 0xFF] - 1] = child;
+        }
+
+        @Override
+        void removeChild(byte b) {
+            int slot = index[b & 0xFF];
+            if (slot != 0) {
+                children[slot - 1] = null;
+                index[b & 0xFF] = 0;
+                count--;
+            }
+        }
+
+        @Override
+        Inner grow() {
+            Node256 grown = new Node256();
+            for (int b = 0; b < 256; b++) {
+                if (index[b] != 0) {
+                    grown.addChild((byte) b, children[index[b] - 1]);
+                }
+            }
+            return copyHeaderTo(grown);
+        }
+
+        @Override
+        int children(byte[] bytes, Node[] out) {
+            int n = 0;
+            for (int b = 0; b < 256 && n < out.length; b++) {
+                int slot = index[b];
+                if (slot != 0) {
+                    bytes[n] = (byte) b;
+                    out[n++] = children[slot - 1];
+                }
+            }
+            return n;
+        }
+    }
+
+    /**
+     * A child pointer for every byte value.
+     */
+    private static final class Node256 extends Inner {
+        private final Node[] children = new Node[256];
+
+        @Override
+        int capacity() {
+            return 256;
+        }
+
+        @Override
+        boolean isFull() {
+            return false;
+        }
+
+        @Override
+        Node findChild(byte b) {
+            return children[b & 0xFF];
+        }
+
+        @Override
+        void addChild(byte b, Node child) {
+            children[b & 0xFF] = child;
+            count++;
+        }
+
+        @Override
+        void replaceChild(byte b, Node child) {
+            children[b & 0xFF] = child;
+        }
+
+        @Override
+        void removeChild(byte b) {
+            if (children[b & 0xFF] != null) {
+                children[b & 0xFF] = null;
+                count--;
+            }
+        }
+
+        @Override
+        Inner grow() {
+            throw new IllegalStateException("A Node256 never fills up");
+        }
+
+        @Override
+        int children(byte[] bytes, Node[] out) {
+            int n = 0;
+            for (int b = 0; b < 256; b++) {
+                Node child = children[b];
+                if (child != null) {
+                    bytes[n] = (byte) b;
+                    out[n++] = child;
+                }
+            }
+            return n;
+        }
+    }
+}
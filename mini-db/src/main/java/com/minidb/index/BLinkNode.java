@@ -0,0 +1,136 @@
+package com.minidb.index;
+
+import com.minidb.storage.Page;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Node of a BLinkTree. Leaves (level 0) hold values, internal nodes hold child pageIds. Every node
+ * knows its high key (exclusive upper bound of the keys it may hold, null on the rightmost node of
+ * a level) and its right sibling, which is what lets a search that raced with a split move right.
+ */
+public class BLinkNode<K extends Comparable<K>, V> {
+    public static final byte PAGE_TYPE = 3;
+    public static final int NO_PAGE = 0; // Page 0 is the metadata page, so it never holds a node
+
+    int pageId;
+    int level;
+    K highKey;
+    int rightPageId = NO_PAGE;
+    final List<K> keys = new ArrayList<>();
+    final List<V> values = new ArrayList<>();
+    final List<Integer> childPageIds = new ArrayList<>();
+    // Frame held while the node is latched exclusively by a writer
+    Page latchedPage;
+
+    BLinkNode(int pageId, int level) {
+        this.pageId = pageId;
+        this.level = level;
+    }
+
+    boolean isLeaf() {
+        return level == 0;
+    }
+
+    /**
+     * True if key lies beyond this node, i.e. a concurrent split moved it to a right sibling.
+     */
+    boolean mustMoveRight(K key) {
+        return highKey != null && rightPageId != NO_PAGE && key.compareTo(highKey) >= 0;
+    }
+
+    int findChildPosition(K key) {
+        int index = Collections.binarySearch(keys, key);
+        return (index >= 0) ? index + 1 : -index - 1;
+    }
+
+    V search(K key) {
+        int index = Collections.binarySearch(keys, key);
+        return index >= 0 ? values.get(index) : null;
+    }
+
+    byte[] serialize(Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        List<byte[]> keyBytes = new ArrayList<>(keys.size());
+        List<byte[]> valueBytes = new ArrayList<>(values.size());
+        byte[] highKeyBytes = highKey == null ? null : keySerializer.serialize(highKey);
+
+        int size = 1 + 4 + 4 + 4 + 1; // type, level, num_keys, right sibling, high key flag
+        if (highKeyBytes != null) {
+            size += 4 + highKeyBytes.length;
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            keyBytes.add(keySerializer.serialize(keys.get(i)));
+            size += 4 + keyBytes.get(i).length;
+            if (isLeaf()) {
+                valueBytes.add(valueSerializer.serialize(values.get(i)));
+                size += 4 + valueBytes.get(i).length;
+            }
+        }
+        if (!isLeaf()) {
+            size += 4 + 4 * childPageIds.size();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(PAGE_TYPE);
+        buffer.putInt(level);
+        buffer.putInt(keys.size());
+        buffer.putInt(rightPageId);
+        buffer.put((byte) (highKeyBytes == null ? 0 : 1));
+        if (highKeyBytes != null) {
+            buffer.putInt(highKeyBytes.length);
+            buffer.put(highKeyBytes);
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            buffer.putInt(keyBytes.get(i).length);
+            buffer.put(keyBytes.get(i));
+            if (isLeaf()) {
+                buffer.putInt(valueBytes.get(i).length);
+                buffer.put(valueBytes.get(i));
+            }
+        }
+        if (!isLeaf()) {
+            buffer.putInt(childPageIds.size());
+            for (int childPageId : childPageIds) {
+                buffer.putInt(childPageId);
+            }
+        }
+        return buffer.array();
+    }
+
+    static <K extends Comparable<K>, V> BLinkNode<K, V> deserialize(byte[] data, int offset, int pageId,
+                                                                      Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, data.length - offset);
+        byte type = buffer.get();
+        if (type != PAGE_TYPE) {
+            throw new IllegalStateException("Page " + pageId + " is not a B-link node: type " + type);
+        }
+        BLinkNode<K, V> node = new BLinkNode<>(pageId, buffer.getInt());
+        int numKeys = buffer.getInt();
+        node.rightPageId = buffer.getInt();
+        if (buffer.get() != 0) {
+            node.highKey = keySerializer.deserialize(readBytes(buffer));
+        }
+        for (int i = 0; i < numKeys; i++) {
+            node.keys.add(keySerializer.deserialize(readBytes(buffer)));
+            if (node.isLeaf()) {
+                node.values.add(valueSerializer.deserialize(readBytes(buffer)));
+            }
+        }
+        if (!node.isLeaf()) {
+            int numChildren = buffer.getInt();
+            for (int i = 0; i < numChildren; i++) {
+                node.childPageIds.add(buffer.getInt());
+            }
+        }
+        return node;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
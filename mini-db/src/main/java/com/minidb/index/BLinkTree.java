@@ -0,0 +1,339 @@
+package com.minidb.index;
+
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.Page;
+import com.minidb.storage.PageManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lehman-Yao B-link tree, an alternative to BPlusTree for read-heavy concurrent workloads.
+ *
+ * Every node carries a high key and a link to its right sibling. A split first writes the new right
+ * node and only then shrinks the left one, so at any moment a key is reachable by moving right from
+ * wherever a stale descent lands. Readers therefore never couple latches: they copy one page at a
+ * time under its latch and move right when the key is at or beyond the node's high key. Writers
+ * latch only the node they change; a split holds the child while it latches the parent (bottom-up,
+ * left to right), so at most three nodes are latched at once.
+ *
+ * The root pageId lives on an anchor page so the root can move up on a root split. Deletes only
+ * remove keys from leaves; nodes are never merged, as in the original design.
+ */
+public class BLinkTree<K extends Comparable<K>, V> {
+    public static final byte ANCHOR_PAGE_TYPE = 4;
+
+    private final int anchorPageId;
+    private final int order; // Maximum number of keys in a node
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final PageManager pageManager;
+    private final BufferPool bufferPool;
+
+    /**
+     * Opens the tree whose anchor is stored on anchorPageId, creating an empty tree if the page is unused.
+     */
+    public BLinkTree(int order, Serializer<K> keySerializer, Serializer<V> valueSerializer, PageManager pageManager, BufferPool bufferPool, int anchorPageId) throws IOException {
+        this.order = order;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.pageManager = pageManager;
+        this.bufferPool = bufferPool;
+        this.anchorPageId = anchorPageId;
+
+        pageManager.reservePage(anchorPageId);
+        Page anchor = pin(anchorPageId);
+        anchor.getLatch().writeLock().lock();
+        try {
+            if (anchor.getPageType() == 0) {
+                BLinkNode<K, V> root = new BLinkNode<>(pageManager.allocatePage(), 0);
+                write(root);
+                setRootPageId(anchor, root.pageId);
+            }
+        } finally {
+            anchor.getLatch().writeLock().unlock();
+            bufferPool.unpinPage(anchorPageId, anchor.isDirty());
+        }
+    }
+
+    public V search(K key) throws IOException {
+        BLinkNode<K, V> node = readNode(getRootPageId());
+        while (true) {
+            if (node.mustMoveRight(key)) {
+                node = readNode(node.rightPageId);
+            } else if (node.isLeaf()) {
+                return node.search(key);
+            } else {
+                node = readNode(node.childPageIds.get(node.findChildPosition(key)));
+            }
+        }
+    }
+
+    public List<Map.Entry<K, V>> rangeSearch(K startKey, K endKey) throws IOException {
+        List<Map.Entry<K, V>> results = new ArrayList<>();
+        BLinkNode<K, V> node = readNode(getRootPageId());
+        while (!node.isLeaf() || node.mustMoveRight(startKey)) {
+            node = node.mustMoveRight(startKey) ? readNode(node.rightPageId) : readNode(node.childPageIds.get(node.findChildPosition(startKey)));
+        }
+
+        // Each leaf copy is consistent on its own, and the right links cover every key once
+        while (true) {
+            for (int i = 0; i < node.keys.size(); i++) {
+                K key = node.keys.get(i);
+                if (key.compareTo(endKey) > 0) {
+                    return results;
+                }
+                if (key.compareTo(startKey) >= 0) {
+                    results.add(new AbstractMap.SimpleEntry<>(key, node.values.get(i)));
+                }
+            }
+            if (node.rightPageId == BLinkNode.NO_PAGE) {
+                return results;
+            }
+            node = readNode(node.rightPageId);
+        }
+    }
+
+    public void insert(K key, V value) throws IOException {
+        Deque<Integer> ancestors = new ArrayDeque<>();
+        BLinkNode<K, V> node = latchAtLevel(key, 0, ancestors);
+        try {
+            int index = Collections.binarySearch(node.keys, key);
+            if (index >= 0) { // Key exists, update value
+                node.values.set(index, value);
+                write(node);
+                return;
+            }
+            node.keys.add(-index - 1, key);
+            node.values.add(-index - 1, value);
+
+            while (node.keys.size() >= order) {
+                BLinkNode<K, V> right = split(node);
+                K separator = node.highKey;
+
+                BLinkNode<K, V> parent = latchParent(node, right, ancestors);
+                if (parent == null) {
+                    return; // node was the root; a new root now sits above the two halves
+                }
+                int position = parent.findChildPosition(separator);
+                parent.keys.add(position, separator);
+                parent.childPageIds.add(position + 1, right.pageId);
+
+                release(node);
+                node = parent;
+            }
+            write(node);
+        } finally {
+            release(node);
+        }
+    }
+
+    public void delete(K key) throws IOException {
+        BLinkNode<K, V> node = latchAtLevel(key, 0, new ArrayDeque<>());
+        try {
+            int index = Collections.binarySearch(node.keys, key);
+            if (index >= 0) {
+                node.keys.remove(index);
+                node.values.remove(index);
+                write(node);
+            }
+        } finally {
+            release(node);
+        }
+    }
+
+    public int getAnchorPageId() {
+        return anchorPageId;
+    }
+
+    /**
+     * Descends without latches to the node at the given level covering key and returns it latched
+     * exclusively. The pageIds of the internal nodes passed on the way are pushed onto ancestors,
+     * nearest on top; they are only hints, since those nodes may have split since.
+     */
+    private BLinkNode<K, V> latchAtLevel(K key, int level, Deque<Integer> ancestors) throws IOException {
+        BLinkNode<K, V> node = readNode(getRootPageId());
+        while (node.level > level) {
+            if (node.mustMoveRight(key)) {
+                node = readNode(node.rightPageId);
+            } else {
+                ancestors.push(node.pageId);
+                node = readNode(node.childPageIds.get(node.findChildPosition(key)));
+            }
+        }
+        return moveRight(latchNode(node.pageId), key);
+    }
+
+    /**
+     * Follows right links from a latched node until it covers key, latching the next node before
+     * releasing the current one.
+     */
+    private BLinkNode<K, V> moveRight(BLinkNode<K, V> node, K key) throws IOException {
+        while (node.mustMoveRight(key)) {
+            BLinkNode<K, V> next;
+            try {
+                next = latchNode(node.rightPageId);
+            } finally {
+                release(node);
+            }
+            node = next;
+        }
+        return node;
+    }
+
+    /**
+     * Splits an overflowing latched node. The new right node is written before the left one is
+     * shrunk and linked to it, so concurrent readers always find every key.
+     */
+    private BLinkNode<K, V> split(BLinkNode<K, V> node) throws IOException {
+        BLinkNode<K, V> right = new BLinkNode<>(pageManager.allocatePage(), node.level);
+        int mid = node.keys.size() / 2;
+        K separator;
+        if (node.isLeaf()) {
+            right.keys.addAll(node.keys.subList(mid, node.keys.size()));
+            right.values.addAll(node.values.subList(mid, node.values.size()));
+            node.keys.subList(mid, node.keys.size()).clear();
+            node.values.subList(mid, node.values.size()).clear();
+            separator = right.keys.get(0);
+        } else {
+            separator = node.keys.get(mid);
+            right.keys.addAll(node.keys.subList(mid + 1, node.keys.size()));
+            right.childPageIds.addAll(node.childPageIds.subList(mid + 1, node.childPageIds.size()));
+            node.keys.subList(mid, node.keys.size()).clear();
+            node.childPageIds.subList(mid + 1, node.childPageIds.size()).clear();
+        }
+        right.highKey = node.highKey;
+        right.rightPageId = node.rightPageId;
+        node.highKey = separator;
+        node.rightPageId = right.pageId;
+
+        write(right);
+        write(node);
+        return right;
+    }
+
+    /**
+     * Latches the parent that must receive the separator of a split node, while the node itself stays
+     * latched. Returns null if the node was the root, in which case a new root has been installed.
+     */
+    private BLinkNode<K, V> latchParent(BLinkNode<K, V> node, BLinkNode<K, V> right, Deque<Integer> ancestors) throws IOException {
+        K separator = node.highKey;
+        if (!ancestors.isEmpty()) {
+            return moveRight(latchNode(ancestors.pop()), separator);
+        }
+
+        Page anchor = pin(anchorPageId);
+        anchor.getLatch().writeLock().lock();
+        try {
+            if (readRootPageId(anchor) == node.pageId) {
+                BLinkNode<K, V> newRoot = new BLinkNode<>(pageManager.allocatePage(), node.level + 1);
+                newRoot.keys.add(separator);
+                newRoot.childPageIds.add(node.pageId);
+                newRoot.childPageIds.add(right.pageId);
+                write(newRoot);
+                setRootPageId(anchor, newRoot.pageId);
+                return null;
+            }
+        } finally {
+            anchor.getLatch().writeLock().unlock();
+            bufferPool.unpinPage(anchorPageId, anchor.isDirty());
+        }
+        // Another split raised the root after our descent: find our parent level from the new root
+        return latchAtLevel(separator, node.level + 1, ancestors);
+    }
+
+    private int getRootPageId() throws IOException {
+        Page anchor = pin(anchorPageId);
+        anchor.getLatch().readLock().lock();
+        try {
+            return readRootPageId(anchor);
+        } finally {
+            anchor.getLatch().readLock().unlock();
+            bufferPool.unpinPage(anchorPageId, false);
+        }
+    }
+
+    private static int readRootPageId(Page anchor) {
+        return ByteBuffer.wrap(anchor.getData()).getInt(Page.HEADER_SIZE);
+    }
+
+    private static void setRootPageId(Page anchor, int rootPageId) {
+        anchor.setPageType(ANCHOR_PAGE_TYPE);
+        ByteBuffer.wrap(anchor.getData()).putInt(Page.HEADER_SIZE, rootPageId);
+        anchor.setDirty(true);
+    }
+
+    /**
+     * Returns a private copy of the node; the page latch is only held while the bytes are decoded.
+     */
+    private BLinkNode<K, V> readNode(int pageId) throws IOException {
+        Page page = pin(pageId);
+        page.getLatch().readLock().lock();
+        try {
+            return BLinkNode.deserialize(page.getData(), Page.HEADER_SIZE, pageId, keySerializer, valueSerializer);
+        } finally {
+            page.getLatch().readLock().unlock();
+            bufferPool.unpinPage(pageId, false);
+        }
+    }
+
+    private BLinkNode<K, V> latchNode(int pageId) throws IOException {
+        Page page = pin(pageId);
+        page.getLatch().writeLock().lock();
+        try {
+            BLinkNode<K, V> node = BLinkNode.deserialize(page.getData(), Page.HEADER_SIZE, pageId, keySerializer, valueSerializer);
+            node.latchedPage = page;
+            return node;
+        } catch (RuntimeException e) {
+            page.getLatch().writeLock().unlock();
+            bufferPool.unpinPage(pageId, false);
+            throw e;
+        }
+    }
+
+    private void release(BLinkNode<K, V> node) {
+        if (node.latchedPage == null) {
+            return;
+        }
+        node.latchedPage.getLatch().writeLock().unlock();
+        bufferPool.unpinPage(node.pageId, false);
+        node.latchedPage = null;
+    }
+
+    /**
+     * Writes a node into its page: into the held frame if the node is latched, otherwise the page
+     * belongs to a node nobody can reach yet and is pinned just for the write.
+     */
+    private void write(BLinkNode<K, V> node) throws IOException {
+        byte[] data = node.serialize(keySerializer, valueSerializer);
+        if (data.length > Page.PAGE_SIZE - Page.HEADER_SIZE) {
+            throw new IOException("B-link node of " + data.length + " bytes does not fit in page " + node.pageId
+                    + "; lower the tree order or use smaller keys");
+        }
+        Page page = node.latchedPage != null ? node.latchedPage : pin(node.pageId);
+        try {
+            page.setPageType(BLinkNode.PAGE_TYPE);
+            System.arraycopy(data, 0, page.getData(), Page.HEADER_SIZE, data.length);
+            page.setDirty(true);
+        } finally {
+            if (node.latchedPage == null) {
+                bufferPool.unpinPage(node.pageId, true);
+            }
+        }
+    }
+
+    private Page pin(int pageId) throws IOException {
+        Page page = bufferPool.getPage(pageId);
+        if (page == null) {
+            throw new IOException("Could not read B-link tree page " + pageId);
+        }
+        return page;
+    }
+}
@@ -1,176 +1,994 @@
 package com.minidb.index;
 
+import com.minidb.monitoring.MetricsRegistry;
 import com.minidb.storage.BufferPool;
 import com.minidb.storage.Page;
 import com.minidb.storage.PageManager;
-import com.minidb.storage.RecordId;
+import io.micrometer.core.instrument.Counter;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.AbstractMap;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-public class BPlusTree<K extends Comparable<K>, V> {
-    private Node<K, V> root;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Disk-resident B+ tree. Nodes live on pages and are addressed by pageId; every operation loads the
+ * nodes it touches through the BufferPool and writes back the ones it modifies, so the tree is not
+ * bounded by the heap and reopens by reading its root page.
+ *
+ * The root always stays on rootPageId: a root split moves the old root's contents to a new page and
+ * a root that shrinks to a single child absorbs that child.
+ *
+ * Concurrency uses latch crabbing on the page latches instead of a tree-wide lock. Searches and
+ * scans take read latches hand over hand. Writers first descend the same way and latch only the
+ * leaf exclusively; if that leaf could split or underflow they restart from the root with write
+ * latches, releasing every ancestor once the child below it is safe. Latches are always taken
+ * top-down, and left to right among siblings, so crabbing threads cannot deadlock.
+ *
+ * A node splits when it reaches order keys or when its entries no longer fit in its page, so with
+ * long keys the page size rather than the order bounds the fan-out. Leaves store the prefix their
+ * keys share once, and internal nodes hold truncated separators (Serializer.separator), which both
+ * raise the number of keys a page holds.
+ *
+ * A delete rebalances a node right away only once it falls below the merge threshold, half full
+ * unless setMergeThreshold lowers it. Leaves that deletes bring below half full but not below the
+ * threshold are counted, and rebalance(), run by hand or on a background thread, merges them into
+ * their siblings later, so workloads that delete and re-insert around the same keys do not merge
+ * and split the same leaves over and over.
+ *
+ * Range scans go through a Cursor, which holds no latches between calls; structureVersion tells it
+ * whether the leaf chain may have changed since it last looked. parallelRangeScan,
+ * parallelRangeSearch and parallelForEach split a large range at separators from the upper levels
+ * and run one cursor per subrange on a ForkJoinPool.
+ */
+public class BPlusTree<K extends Comparable<K>, V> implements Index<K, V> {
+    public static final int DEFAULT_ROOT_PAGE_ID = 1;
+
+    private final int rootPageId;
     private final int order; // Maximum number of keys in a node
     private final Serializer<K> keySerializer;
     private final Serializer<V> valueSerializer;
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     private final PageManager pageManager;
     private final BufferPool bufferPool;
     private final NodeFactory<K, V> nodeFactory;
+    // Bumped by every write that may move entries between leaves (split, merge, borrow, root
+    // change), while it holds the latches on the nodes it changes but before it changes them
+    private final AtomicLong structureVersion = new AtomicLong();
+    // Leaves left below Node.TARGET_FILL by deletes since the last rebalance pass
+    private final AtomicLong deferredUnderflows = new AtomicLong();
+    private ScheduledExecutorService rebalancer;
+    private volatile Throwable lastRebalanceFailure;
 
     public BPlusTree(int order, Serializer<K> keySerializer, Serializer<V> valueSerializer, PageManager pageManager, BufferPool bufferPool) {
+        this(order, keySerializer, valueSerializer, pageManager, bufferPool, DEFAULT_ROOT_PAGE_ID);
+    }
+
+    public BPlusTree(int order, Serializer<K> keySerializer, Serializer<V> valueSerializer, PageManager pageManager, BufferPool bufferPool, int rootPageId) {
         this.order = order;
         this.keySerializer = keySerializer;
         this.valueSerializer = valueSerializer;
         this.pageManager = pageManager;
         this.bufferPool = bufferPool;
-        this.nodeFactory = new NodeFactory<>(keySerializer, valueSerializer, order, bufferPool);
+        this.rootPageId = rootPageId;
+        this.nodeFactory = new NodeFactory<>(keySerializer, valueSerializer, order, bufferPool, pageManager);
+
+        // Make sure the allocator never hands out the root page to anyone else
+        pageManager.reservePage(rootPageId);
+
+        Page page = bufferPool.getPage(rootPageId);
+        byte pageType = page.getPageType();
+        bufferPool.unpinPage(rootPageId, false);
+        if (pageType != 0 && pageType != NodeFactory.LEAF_NODE && pageType != NodeFactory.INTERNAL_NODE) {
+            throw new IllegalStateException("Page " + rootPageId + " holds no B+ tree root (page type " + pageType + ")");
+        }
+
+        // Check if the page is empty or valid via the header
+        if (pageType == 0) {
+            // No root page found, create a new LeafNode as root
+            try {
+                nodeFactory.createLeafNode(rootPageId).writeNode(); // Persist the new root
+            } catch (IOException e) {
+                System.err.println("Error creating BPlusTree root: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Read-latch crabbing down to the leaf covering key: the child is latched before the parent is
+     * released. Internal nodes are searched in place in their pages rather than decoded. The leaf
+     * page is returned latched (exclusively if exclusiveLeaf) and must be released. A null key
+     * descends to the leftmost leaf, or to the rightmost one if last is set.
+     */
+    private Page descendInPlace(SearchKey<K> key, boolean last, boolean exclusiveLeaf) throws IOException {
+        Page page = nodeFactory.latchPageForDescent(rootPageId, exclusiveLeaf);
+        while (page.getPageType() == NodeFactory.INTERNAL_NODE) {
+            try {
+                int childPageId = key != null ? InternalNode.childPageIdInPlace(page.getData(), Page.HEADER_SIZE, key)
+                        : InternalNode.edgeChildPageIdInPlace(page.getData(), Page.HEADER_SIZE, last);
+                Page child = nodeFactory.latchPageForDescent(childPageId, exclusiveLeaf);
+                nodeFactory.releasePage(page);
+                page = child;
+            } catch (IOException | RuntimeException e) {
+                nodeFactory.releasePage(page);
+                throw e;
+            }
+        }
+        return page;
+    }
+
+    private Page descendInPlace(SearchKey<K> key, boolean exclusiveLeaf) throws IOException {
+        return descendInPlace(key, false, exclusiveLeaf);
+    }
+
+    /**
+     * descendInPlace for a batch of keys, which also picks up the leaf's upper fence: the lowest
+     * separator on the path above key. A null key descends to the leftmost leaf. Entries only move out of a leaf, or into it from its right
+     * neighbour, while the leaf is latched, so as long as it stays latched every key from key up to
+     * the fence belongs to it.
+     */
+    private FencedLeaf descendWithFence(SearchKey<K> key, boolean exclusiveLeaf) throws IOException {
+        Page page = nodeFactory.latchPageForDescent(rootPageId, exclusiveLeaf);
+        byte[] fence = null;
+        while (page.getPageType() == NodeFactory.INTERNAL_NODE) {
+            try {
+                int position = key != null ? InternalNode.childPositionInPlace(page.getData(), Page.HEADER_SIZE, key) : 0;
+                byte[] separator = InternalNode.separatorAfterInPlace(page.getData(), Page.HEADER_SIZE, position);
+                if (separator != null) {
+                    fence = separator; // Keys under a child sort below its parent's fence, so this one is lower
+                }
+                Page child = nodeFactory.latchPageForDescent(InternalNode.childPageIdAtInPlace(page.getData(), Page.HEADER_SIZE, position), exclusiveLeaf);
+                nodeFactory.releasePage(page);
+                page = child;
+            } catch (IOException | RuntimeException e) {
+                nodeFactory.releasePage(page);
+                throw e;
+            }
+        }
+        return new FencedLeaf(page, fence);
+    }
+
+    private static final class FencedLeaf {
+        final Page page;
+        final byte[] fence; // null for the rightmost leaf
+
+        FencedLeaf(Page page, byte[] fence) {
+            this.page = page;
+            this.fence = fence;
+        }
+
+        boolean covers(SearchKey<?> key) {
+            return fence == null || key.compareStored(fence, 0, fence.length) > 0;
+        }
+    }
 
-        // Try to load the root node from page 1
+    /**
+     * Like descendInPlace, but returns the leaf decoded; the node holds the latch until released.
+     */
+    LeafNode<K, V> descendToLeaf(K key, boolean exclusiveLeaf) throws IOException {
+        Page leaf = descendInPlace(key == null ? null : new SearchKey<>(key, keySerializer), exclusiveLeaf);
+        return (LeafNode<K, V>) nodeFactory.decodeLatched(leaf);
+    }
+
+    /**
+     * The rightmost leaf, decoded and read-latched.
+     */
+    LeafNode<K, V> descendToLastLeaf() throws IOException {
+        return (LeafNode<K, V>) nodeFactory.decodeLatched(descendInPlace(null, true, false));
+    }
+
+    /**
+     * Write-latch crabbing from the root for an operation that may change the structure. Ancestors
+     * are released as soon as a child is safe, i.e. cannot split (insert) or underflow (delete); the
+     * nodes still latched are returned root-most first and linked through their parent pointers.
+     */
+    private Deque<Node<K, V>> latchPath(K key, V value, boolean forInsert) throws IOException {
+        return latchPath(key, value, forInsert, false);
+    }
+
+    /**
+     * latchPath that keeps the leaf's parent latched even when the leaf is safe, for a rebalance of
+     * a leaf that no delete has made underflow.
+     */
+    private Deque<Node<K, V>> latchPath(K key, V value, boolean forInsert, boolean keepLeafParent) throws IOException {
+        Deque<Node<K, V>> path = new ArrayDeque<>();
         try {
-            Page page = bufferPool.getPage(1);
-            byte[] data = page.toBytes();
-            
-            // Check if the page is empty or valid via the header
-            if (page.getPageType() != 0) {
-                // Determine node type from PageHeader pageType
-                byte nodeType = page.getPageType();
-                if (nodeType == 2) { // InternalNode
-                    this.root = nodeFactory.createInternalNode();
-                } else { // LeafNode
-                    this.root = nodeFactory.createLeafNode();
+            Node<K, V> node = nodeFactory.latchNode(rootPageId, true);
+            path.addLast(node);
+            while (!node.isLeaf()) {
+                InternalNode<K, V> internalNode = (InternalNode<K, V>) node;
+                Node<K, V> child = nodeFactory.latchNode(internalNode.childPageIds.get(internalNode.findChildPosition(key)), true);
+                boolean safe = forInsert ? child.isSafeForInsert(key, value) : child.isSafeForDelete(key);
+                if (safe && !(keepLeafParent && child.isLeaf())) {
+                    releaseAll(path);
+                } else {
+                    child.parent = internalNode;
                 }
-                this.root.pageId = 1;
-                byte[] nodeData = new byte[data.length - Page.HEADER_SIZE];
-                System.arraycopy(data, Page.HEADER_SIZE, nodeData, 0, nodeData.length);
-                this.root.deserialize(nodeData);
-                bufferPool.unpinPage(1, false);
-            } else {
-                // No root page found, create a new LeafNode as root
-                this.root = nodeFactory.createLeafNode();
-                this.root.pageId = 1;
-                this.root.writeNode(); // Persist the new root
-            }
-        } catch (IOException e) {
-            // Handle error, perhaps create a new root if loading fails
-            System.err.println("Error loading BPlusTree root: " + e.getMessage());
-            this.root = nodeFactory.createLeafNode();
-            this.root.pageId = 1;
-            try {
-                this.root.writeNode();
-            } catch (IOException ioException) {
-                ioException.printStackTrace();
+                path.addLast(child);
+                node = child;
             }
+            return path;
+        } catch (IOException | RuntimeException e) {
+            releaseAll(path);
+            throw e;
+        }
+    }
+
+    private void releaseAll(Deque<Node<K, V>> path) {
+        while (!path.isEmpty()) {
+            nodeFactory.release(path.removeFirst());
         }
-        System.out.println("BPlusTree constructor: Root initialized as: " + root.getClass().getSimpleName());
     }
 
+    private void checkEntrySize(K key, V value) {
+        if (keySerializer.getSerializedSize(key) > Node.MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Key of " + keySerializer.getSerializedSize(key) + " bytes is longer than the "
+                    + Node.MAX_KEY_SIZE + " bytes an index key may take");
+        }
+        if (valueSerializer.getSerializedSize(value) > Node.MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException("Value of " + valueSerializer.getSerializedSize(value) + " bytes is longer than the "
+                    + Node.MAX_VALUE_SIZE + " bytes an index value may take");
+        }
+    }
+
+    @Override
     public void insert(K key, V value) throws IOException {
-        lock.writeLock().lock();
+        checkEntrySize(key, value);
+        // Optimistic pass: read latches down to the leaf, which is enough unless the leaf splits
+        LeafNode<K, V> leaf = descendToLeaf(key, true);
+        try {
+            if (leaf.isSafeForInsert(key, value)) {
+                leaf.insert(key, value);
+                return;
+            }
+        } finally {
+            nodeFactory.release(leaf);
+        }
+        insertWithSplits(key, value);
+    }
+
+    /**
+     * Inserts entries given in ascending key order with one descent per leaf they land in rather
+     * than one per key. The leaf stays latched while the following keys sort below its fence and fit
+     * without a split, and is written to its page once, when the run ends; an entry that would split
+     * it goes through the pessimistic path of insert. Existing keys get the new value, as with insert.
+     * Entries are checked against the size limits before any is inserted.
+     */
+    public void insertAll(SortedMap<K, V> entries) throws IOException {
+        if (entries.comparator() != null && entries.comparator() != Comparator.naturalOrder()) {
+            throw new IllegalArgumentException("insertAll needs entries sorted in natural key order");
+        }
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            checkEntrySize(entry.getKey(), entry.getValue());
+        }
+        Iterator<Map.Entry<K, V>> iterator = entries.entrySet().iterator();
+        Map.Entry<K, V> entry = iterator.hasNext() ? iterator.next() : null;
+        while (entry != null) {
+            SearchKey<K> key = new SearchKey<>(entry.getKey(), keySerializer);
+            FencedLeaf fenced = descendWithFence(key, true);
+            LeafNode<K, V> leaf = (LeafNode<K, V>) nodeFactory.decodeLatched(fenced.page);
+            boolean full = false;
+            try {
+                do {
+                    if (!leaf.isSafeForInsert(entry.getKey(), entry.getValue())) {
+                        full = true;
+                        break;
+                    }
+                    leaf.insert(entry.getKey(), entry.getValue());
+                    entry = iterator.hasNext() ? iterator.next() : null;
+                } while (entry != null && fenced.covers(new SearchKey<>(entry.getKey(), keySerializer)));
+            } finally {
+                nodeFactory.release(leaf);
+            }
+            if (full) {
+                insertWithSplits(entry.getKey(), entry.getValue());
+                entry = iterator.hasNext() ? iterator.next() : null;
+            }
+        }
+    }
+
+    /**
+     * Pessimistic insert: latches the path down from the root and splits as far up as needed.
+     */
+    private void insertWithSplits(K key, V value) throws IOException {
+        Deque<Node<K, V>> path = latchPath(key, value, true);
+        structureVersion.incrementAndGet();
         try {
-            Node.SplitResult<K, ? extends Node<K, V>> result = root.insert(key, value);
-            root.writeNode(); // Write the (potentially modified) root node
+            Node<K, V> node = path.peekLast();
+            Node.SplitResult<K, ? extends Node<K, V>> result = ((LeafNode<K, V>) node).insert(key, value);
+            while (result != null && node.pageId != rootPageId) {
+                result = node.parent.insertChild(result);
+                node = node.parent;
+            }
 
             if (result != null) {
-                InternalNode<K, V> newRoot = nodeFactory.createInternalNode();
+                // Move the left half off the root page, then turn the root page into the new parent.
+                // The left half is written to its new page when the root latch is released.
+                node.pageId = nodeFactory.allocatePage();
+                if (node.isLeaf()) {
+                    LeafNode<K, V> right = (LeafNode<K, V>) result.getRightNode();
+                    right.prevPageId = node.pageId;
+                    right.writeNode();
+                }
+                InternalNode<K, V> newRoot = nodeFactory.createInternalNode(rootPageId);
                 newRoot.keys.add(result.getSplitKey());
-                newRoot.children.add(root);
-                newRoot.children.add(result.getRightNode());
-                root = newRoot;
-                root.writeNode(); // Write the new root node
-                result.getRightNode().writeNode(); // Write the new right node
+                newRoot.childPageIds.add(node.pageId);
+                newRoot.childPageIds.add(result.getRightNode().pageId);
+                newRoot.writeNode(); // Write the new root node
             }
         } finally {
-            lock.writeLock().unlock();
+            releaseAll(path);
         }
     }
 
-    
-
-        public void delete(K key) throws IOException {
+    @Override
+    public void delete(K key) throws IOException {
+        // Optimistic pass: only a leaf that would underflow needs its ancestors latched
+        LeafNode<K, V> leaf = descendToLeaf(key, true);
+        try {
+            if (!leaf.containsKey(key)) {
+                return;
+            }
+            if (leaf.isSafeForDelete(key) || leaf.pageId == rootPageId) {
+                leaf.delete(key);
+                if (leaf.pageId != rootPageId && leaf.isBelowFill(Node.TARGET_FILL)) {
+                    deferredUnderflows.incrementAndGet();
+                }
+                return;
+            }
+        } finally {
+            nodeFactory.release(leaf);
+        }
 
-            lock.writeLock().lock();
+        Deque<Node<K, V>> path = latchPath(key, null, false);
+        structureVersion.incrementAndGet();
+        try {
+            ((LeafNode<K, V>) path.peekLast()).delete(key);
+            collapseRoot(path);
+        } finally {
+            releaseAll(path);
+        }
+    }
 
+    /**
+     * Once merges below it have left the root with a single child, pulls that child up onto the root
+     * page. The child may still be on the path with its changes unwritten, so its latched copy must
+     * be used.
+     */
+    private void collapseRoot(Deque<Node<K, V>> path) throws IOException {
+        Node<K, V> root = path.peekFirst();
+        if (root.pageId == rootPageId && root instanceof InternalNode && root.keyCount() == 0) {
+            int childPageId = ((InternalNode<K, V>) root).childPageIds.get(0);
+            Node<K, V> child = null;
+            for (Node<K, V> node : path) {
+                if (node.pageId == childPageId) {
+                    child = node;
+                }
+            }
+            boolean onPath = child != null;
+            if (!onPath) {
+                child = nodeFactory.latchNode(childPageId, true);
+            }
             try {
+                child.pageId = rootPageId;
+                child.writeNode(); // Write the new root node
+                child.dirty = false;
+                root.dirty = false; // Its pending write would overwrite the child just pulled up
+                nodeFactory.freeNode(childPageId);
+            } finally {
+                if (!onPath) {
+                    nodeFactory.release(child);
+                }
+            }
+        }
+    }
 
-                root.delete(key);
-
-                root.writeNode(); // Write the (potentially modified) root node
+    /**
+     * Fill below which a delete rebalances its node right away, between 0 (exclusive) and 0.5, the
+     * fill merges aim for. Nodes left between the threshold and half full wait for rebalance().
+     */
+    public void setMergeThreshold(double mergeThreshold) {
+        if (mergeThreshold <= 0 || mergeThreshold > Node.TARGET_FILL) {
+            throw new IllegalArgumentException("mergeThreshold must be in (0, " + Node.TARGET_FILL + "], was " + mergeThreshold);
+        }
+        nodeFactory.setMergeThreshold(mergeThreshold);
+    }
 
-    
+    /**
+     * Number of times a delete has left a leaf less than half full without rebalancing it since the
+     * last rebalance pass.
+     */
+    public long getDeferredUnderflows() {
+        return deferredUnderflows.get();
+    }
 
-                if (root instanceof InternalNode && root.keyCount() == 0) {
+    /**
+     * Number of times a node has been serialized into its page since the tree was opened.
+     */
+    public long getNodeWrites() {
+        return nodeFactory.getNodeWrites();
+    }
 
-                    root = ((InternalNode<K, V>) root).children.get(0);
+    /**
+     * Walks the leaves left to right and merges every one that is less than half full into a sibling
+     * if the two fit in one node, cascading into the parents as a delete would. Each merge latches
+     * its own path from the root, so the pass runs alongside other operations. Returns the number of
+     * leaves merged.
+     */
+    public int rebalance() throws IOException {
+        deferredUnderflows.set(0);
+        int merged = 0;
+        SearchKey<K> key = null;
+        while (true) {
+            FencedLeaf fenced = descendWithFence(key, false);
+            LeafNode<K, V> leaf = (LeafNode<K, V>) nodeFactory.decodeLatched(fenced.page);
+            K first;
+            boolean underfull;
+            try {
+                first = leaf.getFirstKey();
+                underfull = leaf.pageId != rootPageId && first != null && leaf.isBelowFill(Node.TARGET_FILL);
+            } finally {
+                nodeFactory.release(leaf);
+            }
+            if (underfull && mergeLeaf(first)) {
+                merged++;
+            }
+            if (fenced.fence == null) {
+                return merged;
+            }
+            // Separators are keys themselves (Serializer.separator), so the fence decodes
+            key = new SearchKey<>(keySerializer.deserialize(fenced.fence), keySerializer);
+        }
+    }
 
-                    root.writeNode(); // Write the new root node
+    private boolean mergeLeaf(K key) throws IOException {
+        Deque<Node<K, V>> path = latchPath(key, null, false, true);
+        try {
+            LeafNode<K, V> leaf = (LeafNode<K, V>) path.peekLast();
+            if (leaf.parent == null || !leaf.isBelowFill(Node.TARGET_FILL)) {
+                return false; // The root, or filled up again since the pass looked at it
+            }
+            structureVersion.incrementAndGet();
+            boolean merged = leaf.parent.mergeChild(leaf);
+            collapseRoot(path);
+            return merged;
+        } finally {
+            releaseAll(path);
+        }
+    }
 
+    /**
+     * Runs rebalance every periodMillis on a daemon thread, when deletes have left leaves under-full
+     * since the last pass, until stopBackgroundRebalance.
+     */
+    public synchronized void startBackgroundRebalance(long periodMillis) {
+        if (rebalancer != null) {
+            return;
+        }
+        Counter failures = MetricsRegistry.getInstance().counter("minidb.btree.rebalance.failures");
+        rebalancer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "minidb-btree-rebalance");
+            t.setDaemon(true);
+            return t;
+        });
+        rebalancer.scheduleWithFixedDelay(() -> {
+            try {
+                if (deferredUnderflows.get() > 0) {
+                    rebalance();
                 }
+            } catch (IOException | RuntimeException e) {
+                // Under-full leaves stay as they are; the next run tries again
+                lastRebalanceFailure = e;
+                failures.increment();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The exception the latest failed background rebalance pass threw, or null if none failed.
+     * Failures are also counted by the minidb.btree.rebalance.failures meter.
+     */
+    public Throwable getLastRebalanceFailure() {
+        return lastRebalanceFailure;
+    }
+
+    /**
+     * Stops the rebalance thread, waiting for a pass in progress to finish.
+     */
+    public synchronized void stopBackgroundRebalance() throws InterruptedException {
+        if (rebalancer != null) {
+            rebalancer.shutdown();
+            rebalancer.awaitTermination(1, TimeUnit.MINUTES);
+            rebalancer = null;
+        }
+    }
+
+    /**
+     * Builds the tree bottom-up from entries in strictly increasing key order, which is far cheaper
+     * than inserting them one by one: every page is written once, in allocation order, and nothing is
+     * split. Nodes are packed to fillFactor of their capacity (but never below the minimum occupancy).
+     * The tree must be empty; it stays latched for the duration of the load.
+     */
+    public void bulkLoad(Iterator<Map.Entry<K, V>> sorted, double fillFactor) throws IOException {
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException("fillFactor must be in (0, 1], was " + fillFactor);
+        }
+        Node<K, V> root = nodeFactory.latchNode(rootPageId, true);
+        structureVersion.incrementAndGet();
+        try {
+            if (!root.isLeaf() || root.keyCount() > 0) {
+                throw new IllegalStateException("bulkLoad requires an empty tree");
+            }
+            BulkLoader<K, V> loader = new BulkLoader<>(nodeFactory, fillFactor, rootPageId);
+            while (sorted.hasNext()) {
+                Map.Entry<K, V> entry = sorted.next();
+                loader.add(entry.getKey(), entry.getValue());
+            }
+            loader.finish();
+        } finally {
+            nodeFactory.release(root);
+        }
+    }
 
+    @Override
+    public V search(K key) throws IOException {
+        // No node is decoded on the way: the leaf is binary-searched in its page as well
+        SearchKey<K> searchKey = new SearchKey<>(key, keySerializer);
+        Page leaf = descendInPlace(searchKey, false);
+        try {
+            return LeafNode.searchInPlace(leaf.getData(), Page.HEADER_SIZE, searchKey, valueSerializer);
+        } finally {
+            nodeFactory.releasePage(leaf);
+        }
+    }
+
+    /**
+     * Looks up keys given in ascending order with one descent per leaf they fall in rather than one
+     * per key; each run is searched in place while its leaf stays read-latched. The result holds the
+     * value of keys.get(i), or null, at index i.
+     */
+    public List<V> searchAll(List<K> keys) throws IOException {
+        for (int i = 1; i < keys.size(); i++) {
+            if (keys.get(i - 1).compareTo(keys.get(i)) > 0) {
+                throw new IllegalArgumentException("searchAll needs keys in ascending order: " + keys.get(i - 1) + " before " + keys.get(i));
+            }
+        }
+        List<V> values = new ArrayList<>(keys.size());
+        SearchKey<K> key = keys.isEmpty() ? null : new SearchKey<>(keys.get(0), keySerializer);
+        while (key != null) {
+            FencedLeaf fenced = descendWithFence(key, false);
+            try {
+                do {
+                    values.add(LeafNode.searchInPlace(fenced.page.getData(), Page.HEADER_SIZE, key, valueSerializer));
+                    key = values.size() < keys.size() ? new SearchKey<>(keys.get(values.size()), keySerializer) : null;
+                } while (key != null && fenced.covers(key));
             } finally {
+                nodeFactory.releasePage(fenced.page);
+            }
+        }
+        return values;
+    }
 
-                lock.writeLock().unlock();
+    /**
+     * Entries with startKey <= key <= endKey, in key order. Collects a cursor's output, so prefer
+     * cursor() for scans that need not be held in memory at once.
+     */
+    public List<Map.Entry<K, V>> rangeSearch(K startKey, K endKey) throws IOException {
+        List<Map.Entry<K, V>> results = new ArrayList<>();
+        try (Cursor<K, V> cursor = cursor(endKey, Long.MAX_VALUE)) {
+            cursor.seek(startKey);
+            while (cursor.hasNext()) {
+                results.add(cursor.next());
+            }
+        }
+        return results;
+    }
 
+    /**
+     * Up to parts - 1 keys that split [low, high] (null for an open end) into parts subranges of
+     * about as many leaves each: separators taken from the highest internal level that has enough of
+     * them inside the range, or from the leaves' parents if none has. Each subrange holds the keys
+     * from its split key up to, not including, the next. Fewer keys come back when the range spans
+     * fewer leaves. Nodes are read one at a time, so a concurrent split can make the subranges
+     * uneven but never leaves a key uncovered.
+     */
+    public List<K> splitRange(K low, K high, int parts) throws IOException {
+        List<K> separators = new ArrayList<>();
+        List<Integer> level = List.of(rootPageId);
+        descend:
+        while (parts > 1 && !level.isEmpty()) {
+            TreeSet<K> found = new TreeSet<>();
+            List<Integer> below = new ArrayList<>();
+            for (int pageId : level) {
+                Node<K, V> node = nodeFactory.readNode(pageId);
+                if (node.isLeaf()) {
+                    break descend;
+                }
+                InternalNode<K, V> internal = (InternalNode<K, V>) node;
+                int from = low == null ? 0 : internal.findChildPosition(low);
+                int to = high == null ? internal.childPageIds.size() - 1 : internal.findChildPosition(high);
+                below.addAll(internal.childPageIds.subList(from, to + 1));
+                for (K separator : internal.keys) {
+                    if ((low == null || separator.compareTo(low) > 0) && (high == null || separator.compareTo(high) <= 0)) {
+                        found.add(separator);
+                    }
+                }
+            }
+            separators = new ArrayList<>(found);
+            if (separators.size() >= parts - 1) {
+                break;
             }
+            level = below;
+        }
+        if (separators.size() < parts) {
+            return separators;
+        }
+        List<K> splits = new ArrayList<>(parts - 1);
+        for (int i = 1; i < parts; i++) {
+            splits.add(separators.get(i * separators.size() / parts));
+        }
+        return splits;
+    }
 
+    /**
+     * rangeSearch over parts subranges (splitRange) scanned at once on pool: the entries with
+     * low <= key <= high, passed through mapper on the worker threads and returned in key order.
+     * Entries mapper turns into null are left out.
+     */
+    public <R> List<R> parallelRangeSearch(K low, K high, int parts, ForkJoinPool pool, Function<Map.Entry<K, V>, R> mapper) throws IOException {
+        List<R> results = new ArrayList<>();
+        parallelRangeScan(low, high, parts, pool, mapper, results::add);
+        return results;
+    }
+
+    /**
+     * Like parallelRangeSearch, but the results are handed to consumer on the calling thread as they
+     * come in: the first subrange's while its worker finds them, each later one's once those before
+     * it are done. A worker queues at most SUBRANGE_QUEUE_CAPACITY results ahead of the consumer and
+     * then waits for it as a ForkJoinPool managed blocker, so the pool still starts the subrange the
+     * consumer is waiting on. If consumer throws, the workers stop at their next result.
+     */
+    public <R> void parallelRangeScan(K low, K high, int parts, ForkJoinPool pool, Function<Map.Entry<K, V>, R> mapper, Consumer<? super R> consumer) throws IOException {
+        List<SubrangeQueue<R>> queues = new ArrayList<>();
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+        try {
+            forEachSubrange(low, high, parts, (from, to, last) -> {
+                SubrangeQueue<R> queue = new SubrangeQueue<>();
+                queues.add(queue);
+                tasks.add(pool.submit(() -> {
+                    try {
+                        scanSubrange(from, to, last, entry -> {
+                            R result = mapper.apply(entry);
+                            if (result != null) {
+                                queue.put(result);
+                            }
+                        });
+                    } finally {
+                        queue.finish();
+                    }
+                    return null;
+                }));
+            });
+            for (int i = 0; i < queues.size(); i++) {
+                for (R result = queues.get(i).take(); result != null; result = queues.get(i).take()) {
+                    consumer.accept(result);
+                }
+                await(tasks.get(i)); // The subrange may have ended with a failure
+            }
+        } finally {
+            for (int i = 0; i < queues.size(); i++) {
+                tasks.get(i).cancel(false); // No-op for the subranges already consumed
+                queues.get(i).cancel();
+            }
         }
+    }
 
-    
+    /**
+     * Passes the entries with low <= key <= high to action from parts workers on pool at once, in no
+     * particular order, for scans that aggregate rather than list; action must be thread-safe.
+     */
+    public void parallelForEach(K low, K high, int parts, ForkJoinPool pool, Consumer<Map.Entry<K, V>> action) throws IOException {
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+        forEachSubrange(low, high, parts, (from, to, last) -> tasks.add(pool.submit(() -> {
+            scanSubrange(from, to, last, action);
+            return null;
+        })));
+        for (ForkJoinTask<Void> task : tasks) {
+            await(task);
+        }
+    }
 
-        public V search(K key) throws IOException {
+    private static final int SUBRANGE_QUEUE_CAPACITY = 256;
 
-            lock.readLock().lock();
+    /**
+     * Results of one subrange on their way from its worker to the consumer of parallelRangeScan.
+     */
+    private static final class SubrangeQueue<R> implements ForkJoinPool.ManagedBlocker {
+        private final ArrayDeque<R> results = new ArrayDeque<>();
+        private boolean finished;
+        private boolean cancelled;
 
+        /**
+         * Called by the worker; waits while the consumer is SUBRANGE_QUEUE_CAPACITY results behind.
+         */
+        void put(R result) {
             try {
+                ForkJoinPool.managedBlock(this);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while handing over range scan results");
+            }
+            synchronized (this) {
+                if (cancelled) {
+                    throw new CancellationException("Range scan abandoned by its consumer");
+                }
+                results.add(result);
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized boolean block() throws InterruptedException {
+            while (!isReleasable()) {
+                wait();
+            }
+            return true;
+        }
 
-                return root.search(key);
+        @Override
+        public synchronized boolean isReleasable() {
+            return cancelled || results.size() < SUBRANGE_QUEUE_CAPACITY;
+        }
 
-            } finally {
+        synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
 
-                lock.readLock().unlock();
+        synchronized void cancel() {
+            cancelled = true;
+            results.clear();
+            notifyAll();
+        }
 
+        /**
+         * The next result, or null once the worker has finished and everything was taken.
+         */
+        synchronized R take() throws InterruptedIOException {
+            while (results.isEmpty() && !finished) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a range scan");
+                }
             }
+            R result = results.poll();
+            notifyAll();
+            return result;
+        }
+    }
+
+    private interface SubrangeVisitor<K> {
+        void visit(K from, K to, boolean last);
+    }
+
+    private void forEachSubrange(K low, K high, int parts, SubrangeVisitor<K> visitor) throws IOException {
+        if (low != null && high != null && low.compareTo(high) > 0) {
+            return;
+        }
+        K from = low;
+        for (K split : splitRange(low, high, parts)) {
+            visitor.visit(from, split, false);
+            from = split;
+        }
+        visitor.visit(from, high, true);
+    }
 
+    /**
+     * Entries from from (inclusive) to to, which is inclusive only for the last subrange.
+     */
+    private void scanSubrange(K from, K to, boolean last, Consumer<Map.Entry<K, V>> action) throws IOException {
+        try (Cursor<K, V> cursor = cursor(to, Long.MAX_VALUE)) {
+            if (from == null) {
+                cursor.seekFirst();
+            } else {
+                cursor.seek(from);
+            }
+            while (cursor.hasNext()) {
+                Map.Entry<K, V> entry = cursor.next();
+                if (!last && entry.getKey().compareTo(to) >= 0) {
+                    return;
+                }
+                action.accept(entry);
+            }
         }
+    }
 
-    public List<Map.Entry<K, V>> rangeSearch(K startKey, K endKey) {
-        lock.readLock().lock();
+    private static <T> T await(ForkJoinTask<T> task) throws IOException {
         try {
-            List<Map.Entry<K, V>> results = new ArrayList<>();
-            Node<K, V> node = root;
-
-            // Step 1: descend to the correct leaf node
-            while (!node.isLeaf()) {
-                InternalNode<K, V> internalNode = (InternalNode<K, V>) node;
-                int pos = internalNode.findChildPosition(startKey);
-                node = internalNode.children.get(pos);
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a range scan");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Range scan failed", cause);
+        }
+    }
 
-            // Step 2: iterate through leaf nodes until we pass endKey
-            LeafNode<K, V> leafNode = (LeafNode<K, V>) node;
-            while (leafNode != null) {
-                for (int i = 0; i < leafNode.keys.size(); i++) {
-                    K key = leafNode.keys.get(i);
+    /**
+     * An unbounded cursor; position it with seek or seekFirst.
+     */
+    public Cursor<K, V> cursor() {
+        return cursor(null, Long.MAX_VALUE);
+    }
 
-                    if (key.compareTo(startKey) >= 0 && key.compareTo(endKey) <= 0) {
-                        results.add(new AbstractMap.SimpleEntry<>(key, leafNode.values.get(i)));
-                    }
+    /**
+     * A cursor that stops after endKey (inclusive; null for none) or after limit entries.
+     */
+    public Cursor<K, V> cursor(K endKey, long limit) {
+        return new Cursor<>(this, nodeFactory, endKey, limit, false);
+    }
+
+    /**
+     * A cursor that walks the tree in descending key order, following the leaves' back links, and
+     * stops before the first key below endKey (inclusive; null for none) or after limit entries.
+     */
+    public Cursor<K, V> descendingCursor(K endKey, long limit) {
+        return new Cursor<>(this, nodeFactory, endKey, limit, true);
+    }
+
+    /**
+     * Every entry in key order, through an unbounded cursor.
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> scan() throws IOException {
+        return cursor().seekFirst();
+    }
+
+    long structureVersion() {
+        return structureVersion.get();
+    }
+
+    public int getRootPageId() {
+        return rootPageId;
+    }
+
+    /**
+     * Walks every node, level by level, without holding latches across nodes; meant for tests and
+     * benchmarks on a quiescent tree.
+     */
+    public Stats stats() throws IOException {
+        Stats stats = new Stats();
+        List<Integer> level = List.of(rootPageId);
+        while (!level.isEmpty()) {
+            stats.height++;
+            List<Integer> below = new ArrayList<>();
+            for (int pageId : level) {
+                Node<K, V> node = nodeFactory.readNode(pageId);
+                if (node.isLeaf()) {
+                    stats.leafNodes++;
+                    stats.sampledLeaves++;
+                    stats.entries += node.keyCount();
+                    stats.leafBytes += node.serializedSize();
+                } else {
+                    stats.internalNodes++;
+                    stats.internalBytes += node.serializedSize();
+                    below.addAll(((InternalNode<K, V>) node).childPageIds);
+                }
+            }
+            level = below;
+        }
+        return stats;
+    }
 
-                    if (key.compareTo(endKey) > 0) {
-                        return results; // stop completely when endKey is exceeded
+    /**
+     * Like stats(), but reads only a sample of the leaves: each one with probability sampleRate, and
+     * always at least one. Entries and leaf fill are scaled up from the sampled leaves, whose keys
+     * go to leafKeys, one call per leaf in key order together with the leaf's position on its level,
+     * so callers can tell neighbouring leaves apart from leaves with a gap between them. Internal nodes are all read; they are a small
+     * share of the pages. Holds no latches across nodes, so with concurrent writers the result is
+     * an estimate, and a leaf freed by a merge while the walk is under way can make it fail with an
+     * IllegalStateException.
+     */
+    public Stats sampleStats(double sampleRate, Random random, BiConsumer<Integer, List<K>> leafKeys) throws IOException {
+        if (sampleRate <= 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sampleRate must be in (0, 1], got " + sampleRate);
+        }
+        Stats stats = new Stats();
+        List<Integer> level = List.of(rootPageId);
+        while (!level.isEmpty()) {
+            stats.height++;
+            Node<K, V> first = nodeFactory.readNode(level.get(0));
+            if (first.isLeaf()) {
+                int always = random.nextInt(level.size());
+                for (int i = 0; i < level.size(); i++) {
+                    if (i != always && random.nextDouble() >= sampleRate) {
+                        continue;
                     }
+                    Node<K, V> leaf = i == 0 ? first : nodeFactory.readNode(level.get(i));
+                    stats.sampledLeaves++;
+                    stats.entries += leaf.keyCount();
+                    stats.leafBytes += leaf.serializedSize();
+                    leafKeys.accept(i, Collections.unmodifiableList(leaf.keys));
                 }
-                leafNode = leafNode.nextNode;
+                stats.leafNodes = level.size();
+                double scale = (double) stats.leafNodes / stats.sampledLeaves;
+                stats.entries = Math.round(stats.entries * scale);
+                stats.leafBytes = Math.round(stats.leafBytes * scale);
+                break;
             }
-            return results;
-        } finally {
-            lock.readLock().unlock();
+            List<Integer> below = new ArrayList<>();
+            for (int pageId : level) {
+                Node<K, V> node = pageId == first.pageId ? first : nodeFactory.readNode(pageId);
+                stats.internalNodes++;
+                stats.internalBytes += node.serializedSize();
+                below.addAll(((InternalNode<K, V>) node).childPageIds);
+            }
+            level = below;
         }
+        return stats;
     }
 
-}
\ No newline at end of file
+    public static final class Stats {
+        private int height;
+        private int leafNodes;
+        private int sampledLeaves; // Leaves read by sampleStats
+        private int internalNodes;
+        private long entries;
+        private long leafBytes;
+        private long internalBytes;
+
+        public int getHeight() { return height; }
+        public int getLeafNodes() { return leafNodes; }
+        public int getInternalNodes() { return internalNodes; }
+        public long getEntries() { return entries; }
+        public int getSampledLeaves() { return sampledLeaves; }
+
+        /** Share of the leaf pages' usable bytes taken up by leaf nodes. */
+        public double getLeafFill() {
+            return leafNodes == 0 ? 0 : leafBytes / ((double) leafNodes * Node.CAPACITY);
+        }
+
+        /** Share of the internal pages' usable bytes taken up by internal nodes. */
+        public double getInternalFill() {
+            return internalNodes == 0 ? 0 : internalBytes / ((double) internalNodes * Node.CAPACITY);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("height=%d leaves=%d (%.0f%% full) internal=%d (%.0f%% full) entries=%d",
+                    height, leafNodes, 100 * getLeafFill(), internalNodes, 100 * getInternalFill(), entries);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.minidb.index;
+
+/**
+ * A serializer whose encoding is memcmp-comparable: comparing two encodings as unsigned bytes,
+ * with a shorter prefix ordering first, gives the same result as compareTo on the values. Trees can
+ * then compare a search key against keys stored in a page without deserializing them.
+ */
+public interface BinaryComparableSerializer<T> extends Serializer<T> {
+}
@@ -0,0 +1,201 @@
+package com.minidb.index;
+
+import com.minidb.storage.Page;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a B+ tree bottom-up from sorted entries for BPlusTree.bulkLoad.
+ *
+ * Leaves are packed left to right up to the fill target and each finished node hands its lowest key
+ * and pageId to the level above, so every level is built in one pass and only two nodes per level
+ * are in memory. A leaf's lowest key is truncated to a separator against the previous leaf's last
+ * key, as in a leaf split. The last node written at each level is held back one step, so a short
+ * tail can be merged into it or evened out with it instead of leaving an underflowing node.
+ */
+class BulkLoader<K extends Comparable<K>, V> {
+    private static final int PAGE_CAPACITY = Page.PAGE_SIZE - Page.HEADER_SIZE;
+
+    private final NodeFactory<K, V> nodeFactory;
+    private final int order;
+    private final int fillKeys; // Keys per node before a new node is started
+    private final int rootPageId;
+    private final List<Level> levels = new ArrayList<>();
+    private K lastKey;
+
+    /**
+     * Nodes under construction at one height of the tree (0 = leaves).
+     */
+    private class Level {
+        final int height;
+        Node<K, V> pending; // Full node, written once the next one is also full or the load ends
+        K pendingLow;
+        Node<K, V> current;
+        K currentLow;
+        int currentBytes;
+
+        Level(int height) {
+            this.height = height;
+        }
+    }
+
+    BulkLoader(NodeFactory<K, V> nodeFactory, double fillFactor, int rootPageId) {
+        this.nodeFactory = nodeFactory;
+        this.order = nodeFactory.getOrder();
+        this.rootPageId = rootPageId;
+        int maxKeys = order - 1;
+        // Never pack below the minimum occupancy, or the first deletes would start merging
+        this.fillKeys = Math.max(Math.max(1, maxKeys / 2), Math.min(maxKeys, (int) Math.round(maxKeys * fillFactor)));
+    }
+
+    void add(K key, V value) throws IOException {
+        if (nodeFactory.getKeySerializer().getSerializedSize(key) > Node.MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Key " + key + " is longer than the " + Node.MAX_KEY_SIZE + " bytes an index key may take");
+        }
+        if (lastKey != null && key.compareTo(lastKey) <= 0) {
+            throw new IllegalArgumentException("Bulk load input is not sorted by strictly increasing key at " + key);
+        }
+        K previousKey = lastKey;
+        lastKey = key;
+
+        Level leaves = level(0);
+        int entryBytes = 4 + 4 + nodeFactory.getKeySerializer().getSerializedSize(key)
+                + 4 + nodeFactory.getValueSerializer().getSerializedSize(value); // offset, key, value
+        if (leaves.current == null || leaves.current.keyCount() >= fillKeys || leaves.currentBytes + entryBytes > PAGE_CAPACITY) {
+            startNode(leaves, previousKey == null ? key : nodeFactory.getKeySerializer().separator(previousKey, key));
+        }
+        LeafNode<K, V> leaf = (LeafNode<K, V>) leaves.current;
+        leaf.keys.add(key);
+        leaf.values.add(value);
+        leaves.currentBytes += entryBytes;
+    }
+
+    /**
+     * Writes the remaining nodes and puts the top node on the root page.
+     */
+    void finish() throws IOException {
+        for (int height = 0; height < levels.size(); height++) {
+            Level level = levels.get(height);
+            boolean top = height == levels.size() - 1;
+            if (level.pending == null && top) {
+                // Only one node at this height and nothing above it: it is the root
+                writeRoot(level.current);
+                return;
+            }
+            balanceTail(level);
+            if (level.current == null && top) {
+                writeRoot(level.pending); // The tail was merged into the only other node
+                return;
+            }
+            finishNode(level.pending, level.pendingLow, height);
+            if (level.current != null) {
+                finishNode(level.current, level.currentLow, height);
+            }
+        }
+    }
+
+    private void writeRoot(Node<K, V> root) throws IOException {
+        int pageId = root.pageId;
+        root.pageId = rootPageId;
+        root.writeNode();
+        nodeFactory.freeNode(pageId);
+    }
+
+    private Level level(int height) {
+        if (height == levels.size()) {
+            levels.add(new Level(height));
+        }
+        return levels.get(height);
+    }
+
+    private void startNode(Level level, K lowKey) throws IOException {
+        Node<K, V> node = level.height == 0 ? nodeFactory.createLeafNode() : nodeFactory.createInternalNode();
+        if (level.current != null) {
+            if (level.height == 0) {
+                ((LeafNode<K, V>) level.current).nextPageId = node.pageId;
+                ((LeafNode<K, V>) node).prevPageId = level.current.pageId;
+            }
+            if (level.pending != null) {
+                finishNode(level.pending, level.pendingLow, level.height);
+            }
+            level.pending = level.current;
+            level.pendingLow = level.currentLow;
+        }
+        level.current = node;
+        level.currentLow = lowKey;
+        // type, num_keys, and the sibling leaves' pageIds and prefix length or num_children; leaves
+        // are measured without prefix compression, which only makes them smaller
+        level.currentBytes = level.height == 0 ? 1 + 4 + 4 + 4 + 4 : 1 + 4 + 4;
+    }
+
+    private void finishNode(Node<K, V> node, K lowKey, int height) throws IOException {
+        node.writeNode();
+        addChild(level(height + 1), lowKey, node.pageId);
+    }
+
+    private void addChild(Level level, K lowKey, int childPageId) throws IOException {
+        int entryBytes = 4 + 4 + nodeFactory.getKeySerializer().getSerializedSize(lowKey) + 4; // offset, key, child
+        if (level.current == null || level.current.keyCount() >= fillKeys || level.currentBytes + entryBytes > PAGE_CAPACITY) {
+            startNode(level, lowKey);
+            ((InternalNode<K, V>) level.current).childPageIds.add(childPageId);
+            level.currentBytes += 4;
+            return;
+        }
+        InternalNode<K, V> internal = (InternalNode<K, V>) level.current;
+        internal.keys.add(lowKey);
+        internal.childPageIds.add(childPageId);
+        level.currentBytes += entryBytes;
+    }
+
+    /**
+     * Fixes an underflowing last node by merging it into its left neighbour, or by moving entries
+     * over from the neighbour when both would not fit in one node, by key count or by bytes.
+     */
+    private void balanceTail(Level level) {
+        Node<K, V> left = level.pending;
+        Node<K, V> right = level.current;
+        if (right == null || !right.isBelowFill(Node.TARGET_FILL)) {
+            return;
+        }
+
+        if (level.height == 0) {
+            LeafNode<K, V> leftLeaf = (LeafNode<K, V>) left;
+            LeafNode<K, V> rightLeaf = (LeafNode<K, V>) right;
+            if (leftLeaf.keyCount() + rightLeaf.keyCount() <= order - 1 && leftLeaf.fitsMergedWith(rightLeaf)) {
+                leftLeaf.keys.addAll(rightLeaf.keys);
+                leftLeaf.values.addAll(rightLeaf.values);
+                leftLeaf.nextPageId = rightLeaf.nextPageId;
+                nodeFactory.freeNode(rightLeaf.pageId);
+                level.current = null;
+                return;
+            }
+            while (rightLeaf.keyCount() < leftLeaf.keyCount()) {
+                rightLeaf.keys.add(0, leftLeaf.keys.remove(leftLeaf.keyCount() - 1));
+                rightLeaf.values.add(0, leftLeaf.values.remove(leftLeaf.values.size() - 1));
+            }
+            level.currentLow = nodeFactory.getKeySerializer().separator(leftLeaf.keys.get(leftLeaf.keyCount() - 1), rightLeaf.getFirstKey());
+            return;
+        }
+
+        InternalNode<K, V> leftInternal = (InternalNode<K, V>) left;
+        InternalNode<K, V> rightInternal = (InternalNode<K, V>) right;
+        int mergedBytes = leftInternal.serializedSize() + rightInternal.serializedSize() - InternalNode.CHILDREN
+                + 4 + 4 + nodeFactory.getKeySerializer().getSerializedSize(level.currentLow); // offset, key
+        if (leftInternal.keyCount() + 1 + rightInternal.keyCount() <= order - 1 && mergedBytes <= PAGE_CAPACITY) {
+            leftInternal.keys.add(level.currentLow);
+            leftInternal.keys.addAll(rightInternal.keys);
+            leftInternal.childPageIds.addAll(rightInternal.childPageIds);
+            nodeFactory.freeNode(rightInternal.pageId);
+            level.current = null;
+            return;
+        }
+        while (rightInternal.keyCount() < leftInternal.keyCount()) {
+            // The left node's last child moves over; the separator in front of it becomes the new low key
+            rightInternal.keys.add(0, level.currentLow);
+            rightInternal.childPageIds.add(0, leftInternal.childPageIds.remove(leftInternal.childPageIds.size() - 1));
+            level.currentLow = leftInternal.keys.remove(leftInternal.keyCount() - 1);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.minidb.index;
+
+import java.util.Arrays;
+
+/**
+ * Multi-column key ordered column by column, then by length (a key sorts before its extensions).
+ * Columns are compared with their own compareTo, so the same column must always hold the same type.
+ */
+public final class CompositeKey implements Comparable<CompositeKey> {
+    private final Comparable<?>[] parts;
+
+    public CompositeKey(Comparable<?>... parts) {
+        this.parts = parts.clone();
+    }
+
+    public int size() {
+        return parts.length;
+    }
+
+    public Comparable<?> get(int index) {
+        return parts[index];
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public int compareTo(CompositeKey other) {
+        int common = Math.min(parts.length, other.parts.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = ((Comparable) parts[i]).compareTo(other.parts[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(parts.length, other.parts.length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CompositeKey && Arrays.equals(parts, ((CompositeKey) o).parts);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(parts);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(parts);
+    }
+}
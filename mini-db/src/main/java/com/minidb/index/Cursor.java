@@ -0,0 +1,213 @@
+package com.minidb.index;
+
+import com.minidb.storage.Page;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over a BPlusTree's entries in ascending or descending key order, from the key given to
+ * seek (or the first key in that order) up to an optional inclusive end key and at most limit
+ * entries.
+ *
+ * The cursor holds no latch between calls. It copies one leaf while that leaf is read-latched and
+ * hands out the copy's entries, so a scan of any length keeps a single leaf in memory and a writer
+ * waits at most for one leaf to be decoded. Only the first leaf is binary-searched; after that the
+ * cursor follows the leaves' next pointers. A next pointer is only trusted if no write has changed
+ * the tree's structure (BPlusTree.structureVersion) since the leaf was copied, otherwise the cursor
+ * looks up the key after the last one it returned from the root again. A descending cursor follows
+ * the back links the same way; since it never holds two latches at once it cannot deadlock with
+ * writers, which latch siblings left to right.
+ *
+ * Entries written while the scan runs may or may not be returned, but no entry that was in the tree
+ * for the whole scan is skipped or returned twice.
+ */
+public class Cursor<K extends Comparable<K>, V> implements Iterator<Map.Entry<K, V>>, AutoCloseable {
+    private final BPlusTree<K, V> tree;
+    private final NodeFactory<K, V> nodeFactory;
+    private final K endKey; // Inclusive; null for no bound
+    private final long limit;
+    private final boolean descending;
+
+    private List<K> keys = Collections.emptyList(); // Copy of the current leaf
+    private List<V> values = Collections.emptyList();
+    private int position;
+    private int linkPageId = LeafNode.NO_PAGE; // Next leaf in the cursor's direction
+    private long version; // Tree structure version when the current leaf was copied
+    private K resumeKey; // Where to search from the root if the leaf chain changed
+    private boolean resumeInclusive;
+    private long returned;
+    private boolean positioned;
+    private boolean closed;
+
+    Cursor(BPlusTree<K, V> tree, NodeFactory<K, V> nodeFactory, K endKey, long limit, boolean descending) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative, was " + limit);
+        }
+        this.tree = tree;
+        this.nodeFactory = nodeFactory;
+        this.endKey = endKey;
+        this.limit = limit;
+        this.descending = descending;
+    }
+
+    /**
+     * Positions the cursor before the first entry whose key is >= key, or <= key when descending.
+     */
+    public Cursor<K, V> seek(K key) throws IOException {
+        if (key == null) {
+            throw new IllegalArgumentException("seek key must not be null");
+        }
+        return position(key);
+    }
+
+    /**
+     * Positions the cursor before the tree's first entry, or its last when descending.
+     */
+    public Cursor<K, V> seekFirst() throws IOException {
+        return position(null);
+    }
+
+    private Cursor<K, V> position(K key) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Cursor is closed");
+        }
+        resumeKey = key;
+        resumeInclusive = true;
+        returned = 0;
+        load();
+        positioned = true;
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!positioned) {
+            throw new IllegalStateException("Call seek or seekFirst before iterating");
+        }
+        if (closed || returned >= limit) {
+            return false;
+        }
+        try {
+            while (position < 0 || position == keys.size()) {
+                if (linkPageId == LeafNode.NO_PAGE) {
+                    return false;
+                }
+                advance();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (endKey == null) {
+            return true;
+        }
+        int cmp = keys.get(position).compareTo(endKey);
+        return descending ? cmp >= 0 : cmp <= 0;
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        K key = keys.get(position);
+        V value = values.get(position);
+        position += descending ? -1 : 1;
+        returned++;
+        resumeKey = key;
+        resumeInclusive = false;
+        return new AbstractMap.SimpleEntry<>(key, value);
+    }
+
+    /**
+     * Drops the copied leaf. The cursor holds no latches or pins, so this only frees memory early.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        keys = Collections.emptyList();
+        values = Collections.emptyList();
+    }
+
+    /**
+     * Searches from the root for resumeKey and copies the leaf holding the first entry to return.
+     * Ascending, the next pointers are followed under latch crabbing if the key is past the end of
+     * its leaf. Descending, a key before the start of its leaf leaves the position at -1 and
+     * hasNext moves back with advance, because latching the previous leaf while holding this one
+     * would go against the latch order.
+     */
+    private void load() throws IOException {
+        if (descending) {
+            LeafNode<K, V> leaf = resumeKey == null ? tree.descendToLastLeaf() : tree.descendToLeaf(resumeKey, false);
+            try {
+                copy(leaf, resumeKey == null ? leaf.keyCount() - 1 : lastPosition(leaf.keys, resumeKey, resumeInclusive));
+            } finally {
+                nodeFactory.release(leaf);
+            }
+            return;
+        }
+        LeafNode<K, V> leaf = tree.descendToLeaf(resumeKey, false);
+        try {
+            int start = resumeKey == null ? 0 : firstPosition(leaf.keys, resumeKey, resumeInclusive);
+            while (start == leaf.keyCount() && leaf.nextPageId != LeafNode.NO_PAGE) {
+                LeafNode<K, V> next = (LeafNode<K, V>) nodeFactory.latchNode(leaf.nextPageId, false);
+                nodeFactory.release(leaf);
+                leaf = next;
+                start = 0;
+            }
+            copy(leaf, start);
+        } finally {
+            nodeFactory.release(leaf);
+        }
+    }
+
+    /**
+     * Moves to the next leaf in the cursor's direction. Its page is latched before the version
+     * check, so a write that has not bumped the version by then cannot change it (or free it) until
+     * it is copied.
+     */
+    private void advance() throws IOException {
+        Page page = nodeFactory.latchPageForDescent(linkPageId, false);
+        if (tree.structureVersion() != version) {
+            nodeFactory.releasePage(page);
+            load();
+            return;
+        }
+        LeafNode<K, V> leaf = (LeafNode<K, V>) nodeFactory.decodeLatched(page);
+        try {
+            copy(leaf, descending ? leaf.keyCount() - 1 : 0);
+        } finally {
+            nodeFactory.release(leaf);
+        }
+    }
+
+    private void copy(LeafNode<K, V> leaf, int start) {
+        keys = leaf.keys;
+        values = leaf.values;
+        position = start;
+        linkPageId = descending ? leaf.prevPageId : leaf.nextPageId;
+        version = tree.structureVersion();
+    }
+
+    private static <K extends Comparable<K>> int firstPosition(List<K> keys, K key, boolean inclusive) {
+        int index = Collections.binarySearch(keys, key);
+        if (index >= 0) {
+            return inclusive ? index : index + 1;
+        }
+        return -index - 1;
+    }
+
+    private static <K extends Comparable<K>> int lastPosition(List<K> keys, K key, boolean inclusive) {
+        int index = Collections.binarySearch(keys, key);
+        if (index >= 0) {
+            return inclusive ? index : index - 1;
+        }
+        return -index - 2;
+    }
+}
@@ -0,0 +1,615 @@
+package com.minidb.index;
+
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.Page;
+import com.minidb.storage.PageManager;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Disk-resident extendible hash index for point lookups: a search hashes the key, picks a bucket
+ * from the directory and reads that one page, independent of the number of entries.
+ *
+ * The directory has 2^globalDepth slots holding bucket pageIds, indexed by the low globalDepth bits
+ * of the key's hash. It is kept in memory and written through to its pages whenever it changes: the
+ * directory page (DIRECTORY_PAGE) holds the global depth, the number of chunk pages and their
+ * pageIds, and each chunk page holds 512 slots. A bucket page (BUCKET_PAGE) is laid out after the
+ * page header as local depth (4), number of entries (4), overflow pageId (4), bytes used by the
+ * entries (4), then the entries as hash (4), key size (4), value size (4), key, value. Keys are
+ * hashed and compared in their serialized form, and a lookup compares the stored hashes before any
+ * key bytes, so it only touches the key and value of the entry it returns.
+ *
+ * A bucket that has no room splits on the next hash bit, doubling the directory first if its local
+ * depth equals the global depth. Buckets at MAX_DEPTH no longer split; further entries go to
+ * overflow pages chained from the bucket. Deletes never merge buckets or shrink the directory, but
+ * overflow pages that become empty are unlinked and freed.
+ *
+ * Operations within one bucket hold the directory lock shared and latch the bucket's primary page,
+ * which guards its whole overflow chain: shared for searches, exclusive for inserts and deletes. A
+ * split holds the directory lock exclusively, so no bucket is in use while entries move.
+ */
+public class ExtendibleHashIndex<K, V> implements Index<K, V> {
+    public static final byte DIRECTORY_PAGE = 7;
+    public static final byte BUCKET_PAGE = 8;
+    public static final int MAX_DEPTH = 18;
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final int NO_PAGE = 0;
+
+    // Directory page and chunk pages
+    private static final int GLOBAL_DEPTH = Page.HEADER_SIZE;
+    private static final int NUM_CHUNKS = GLOBAL_DEPTH + 4;
+    private static final int CHUNKS = NUM_CHUNKS + 4;
+    private static final int CHUNK_BITS = 9;
+    private static final int CHUNK_SLOTS = 1 << CHUNK_BITS;
+
+    // Bucket pages
+    private static final int LOCAL_DEPTH = Page.HEADER_SIZE;
+    private static final int NUM_ENTRIES = LOCAL_DEPTH + 4;
+    private static final int OVERFLOW = NUM_ENTRIES + 4;
+    private static final int USED = OVERFLOW + 4;
+    private static final int ENTRIES = USED + 4;
+    private static final int ENTRY_HEADER = 12;
+    private static final int BUCKET_CAPACITY = Page.PAGE_SIZE - ENTRIES;
+
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final PageManager pageManager;
+    private final BufferPool bufferPool;
+    private final int directoryPageId;
+    private final ReentrantReadWriteLock directoryLock = new ReentrantReadWriteLock();
+    private int globalDepth;
+    private int[] directory; // Bucket pageId per slot
+    private final List<Integer> chunkPageIds = new ArrayList<>();
+
+    public ExtendibleHashIndex(Serializer<K> keySerializer, Serializer<V> valueSerializer, PageManager pageManager, BufferPool bufferPool, int directoryPageId) throws IOException {
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.pageManager = pageManager;
+        this.bufferPool = bufferPool;
+        this.directoryPageId = directoryPageId;
+
+        pageManager.reservePage(directoryPageId);
+        Page page = pin(directoryPageId);
+        byte pageType = page.getPageType();
+        try {
+            if (pageType == DIRECTORY_PAGE) {
+                readDirectory(page.getData());
+            } else if (pageType != 0) {
+                throw new IllegalStateException("Page " + directoryPageId + " holds no hash index directory (page type " + pageType + ")");
+            }
+        } finally {
+            bufferPool.unpinPage(directoryPageId, false);
+        }
+        if (pageType == 0) {
+            globalDepth = 0;
+            directory = new int[]{newBucket(0)};
+            writeDirectory(new TreeSet<>(List.of(0)));
+        }
+    }
+
+    public int getGlobalDepth() {
+        directoryLock.readLock().lock();
+        try {
+            return globalDepth;
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public V search(K key) throws IOException {
+        byte[] keyBytes = keySerializer.serialize(key);
+        int hash = hash(keyBytes);
+        directoryLock.readLock().lock();
+        try {
+            Page bucket = pin(directory[hash & mask()]);
+            bucket.getLatch().readLock().lock();
+            try {
+                Page page = bucket;
+                while (true) {
+                    byte[] data = page.getData();
+                    int at = find(data, hash, keyBytes);
+                    int next = (int) INT.get(data, OVERFLOW);
+                    if (page != bucket) {
+                        bufferPool.unpinPage(page.getPageId(), false);
+                    }
+                    if (at >= 0) {
+                        int valueAt = at + ENTRY_HEADER + keyBytes.length;
+                        return valueSerializer.read(ByteBuffer.wrap(data, valueAt, (int) INT.get(data, at + 8)));
+                    }
+                    if (next == NO_PAGE) {
+                        return null;
+                    }
+                    page = pin(next);
+                }
+            } finally {
+                bucket.getLatch().readLock().unlock();
+                bufferPool.unpinPage(bucket.getPageId(), false);
+            }
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void insert(K key, V value) throws IOException {
+        byte[] keyBytes = keySerializer.serialize(key);
+        byte[] valueBytes = valueSerializer.serialize(value);
+        int entrySize = ENTRY_HEADER + keyBytes.length + valueBytes.length;
+        if (entrySize > BUCKET_CAPACITY) {
+            throw new IllegalArgumentException("Entry of " + entrySize + " bytes does not fit in a hash bucket of " + BUCKET_CAPACITY + " bytes");
+        }
+        int hash = hash(keyBytes);
+        while (true) {
+            directoryLock.readLock().lock();
+            try {
+                if (tryInsert(keyBytes, valueBytes, hash)) {
+                    return;
+                }
+            } finally {
+                directoryLock.readLock().unlock();
+            }
+            split(hash, entrySize);
+        }
+    }
+
+    /**
+     * Inserts into the key's bucket unless that needs a split, in which case nothing is changed and
+     * false is returned. A replaced entry is only removed once its successor is known to fit.
+     */
+    private boolean tryInsert(byte[] keyBytes, byte[] valueBytes, int hash) throws IOException {
+        int entrySize = ENTRY_HEADER + keyBytes.length + valueBytes.length;
+        Page bucket = pin(directory[hash & mask()]);
+        bucket.getLatch().writeLock().lock();
+        List<Page> chain = new ArrayList<>();
+        try {
+            chain.add(bucket);
+            pinOverflowChain(chain);
+
+            Page existingPage = null;
+            int existingAt = -1;
+            for (Page page : chain) {
+                existingAt = find(page.getData(), hash, keyBytes);
+                if (existingAt >= 0) {
+                    existingPage = page;
+                    break;
+                }
+            }
+            Page target = null;
+            if (existingPage != null && used(existingPage) - entrySizeAt(existingPage.getData(), existingAt) + entrySize <= BUCKET_CAPACITY) {
+                target = existingPage;
+            }
+            for (int i = 0; target == null && i < chain.size(); i++) {
+                if (used(chain.get(i)) + entrySize <= BUCKET_CAPACITY) {
+                    target = chain.get(i);
+                }
+            }
+            if (target == null && (int) INT.get(bucket.getData(), LOCAL_DEPTH) < MAX_DEPTH) {
+                return false;
+            }
+
+            if (existingPage != null) {
+                removeEntry(existingPage, existingAt);
+            }
+            if (target == null) {
+                target = addOverflowPage(chain);
+            }
+            appendEntry(target, hash, keyBytes, valueBytes);
+            return true;
+        } finally {
+            unpinOverflowChain(chain);
+            bucket.getLatch().writeLock().unlock();
+            bufferPool.unpinPage(bucket.getPageId(), true);
+        }
+    }
+
+    /**
+     * Splits the bucket the hash maps to, unless a concurrent split already made room for an entry
+     * of entrySize or the bucket is at MAX_DEPTH (tryInsert then overflows instead).
+     */
+    private void split(int hash, int entrySize) throws IOException {
+        directoryLock.writeLock().lock();
+        List<Page> chain = new ArrayList<>();
+        try {
+            int slot = hash & mask();
+            int pageId = directory[slot];
+            Page bucket = pin(pageId);
+            chain.add(bucket);
+            pinOverflowChain(chain);
+            int depth = (int) INT.get(bucket.getData(), LOCAL_DEPTH);
+            for (Page page : chain) {
+                if (used(page) + entrySize <= BUCKET_CAPACITY) {
+                    return;
+                }
+            }
+            if (depth >= MAX_DEPTH) {
+                return;
+            }
+
+            List<byte[]> keys = new ArrayList<>();
+            List<byte[]> values = new ArrayList<>();
+            for (Page page : chain) {
+                collectEntries(page.getData(), keys, values);
+            }
+            // Empty the old bucket and drop its overflow pages; the entries are redistributed below
+            while (chain.size() > 1) {
+                freeOverflowPage(chain.remove(chain.size() - 1));
+            }
+            initBucket(bucket.getData(), depth + 1);
+
+            Set<Integer> dirtyChunks = new TreeSet<>();
+            if (depth == globalDepth) {
+                doubleDirectory(dirtyChunks);
+            }
+            int newPageId = newBucket(depth + 1);
+            for (int j = slot & ((1 << depth) - 1); j < directory.length; j += 1 << depth) {
+                if (((j >>> depth) & 1) == 1) {
+                    directory[j] = newPageId;
+                    dirtyChunks.add(j >>> CHUNK_BITS);
+                }
+            }
+
+            List<Page> low = chain;
+            List<Page> high = new ArrayList<>();
+            high.add(pin(newPageId));
+            try {
+                for (int i = 0; i < keys.size(); i++) {
+                    int entryHash = hash(keys.get(i));
+                    List<Page> target = ((entryHash >>> depth) & 1) == 1 ? high : low;
+                    Page page = target.get(target.size() - 1);
+                    if (used(page) + ENTRY_HEADER + keys.get(i).length + values.get(i).length > BUCKET_CAPACITY) {
+                        page = addOverflowPage(target);
+                    }
+                    appendEntry(page, entryHash, keys.get(i), values.get(i));
+                }
+            } finally {
+                unpinAll(high);
+            }
+            writeDirectory(dirtyChunks);
+        } finally {
+            unpinAll(chain);
+            directoryLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(K key) throws IOException {
+        byte[] keyBytes = keySerializer.serialize(key);
+        int hash = hash(keyBytes);
+        directoryLock.readLock().lock();
+        try {
+            Page bucket = pin(directory[hash & mask()]);
+            bucket.getLatch().writeLock().lock();
+            List<Page> chain = new ArrayList<>();
+            try {
+                chain.add(bucket);
+                pinOverflowChain(chain);
+                for (int i = 0; i < chain.size(); i++) {
+                    Page page = chain.get(i);
+                    int at = find(page.getData(), hash, keyBytes);
+                    if (at < 0) {
+                        continue;
+                    }
+                    removeEntry(page, at);
+                    if (i > 0 && (int) INT.get(page.getData(), NUM_ENTRIES) == 0) {
+                        // Unlink the emptied overflow page
+                        INT.set(chain.get(i - 1).getData(), OVERFLOW, (int) INT.get(page.getData(), OVERFLOW));
+                        freeOverflowPage(chain.remove(i));
+                    }
+                    return;
+                }
+            } finally {
+                unpinOverflowChain(chain);
+                bucket.getLatch().writeLock().unlock();
+                bufferPool.unpinPage(bucket.getPageId(), true);
+            }
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits the buckets one at a time, each read under its latch.
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> scan() {
+        Set<Integer> buckets = new LinkedHashSet<>();
+        directoryLock.readLock().lock();
+        try {
+            for (int pageId : directory) {
+                buckets.add(pageId);
+            }
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+        Iterator<Integer> bucketIds = buckets.iterator();
+
+        return new Iterator<Map.Entry<K, V>>() {
+            private final List<byte[]> keys = new ArrayList<>();
+            private final List<byte[]> values = new ArrayList<>();
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                while (position == keys.size() && bucketIds.hasNext()) {
+                    keys.clear();
+                    values.clear();
+                    position = 0;
+                    try {
+                        readBucket(bucketIds.next(), keys, values);
+                    } catch (IOException e) {
+                        throw new java.io.UncheckedIOException(e);
+                    }
+                }
+                return position < keys.size();
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<K, V> entry = new AbstractMap.SimpleEntry<>(keySerializer.deserialize(keys.get(position)),
+                        valueSerializer.deserialize(values.get(position)));
+                position++;
+                return entry;
+            }
+        };
+    }
+
+    private void readBucket(int pageId, List<byte[]> keys, List<byte[]> values) throws IOException {
+        directoryLock.readLock().lock();
+        List<Page> chain = new ArrayList<>();
+        try {
+            Page bucket = pin(pageId);
+            chain.add(bucket);
+            bucket.getLatch().readLock().lock();
+            try {
+                pinOverflowChain(chain);
+                for (Page page : chain) {
+                    collectEntries(page.getData(), keys, values);
+                }
+            } finally {
+                bucket.getLatch().readLock().unlock();
+            }
+        } finally {
+            unpinAll(chain);
+            directoryLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Spreads the key bits of the serialized key over the whole int (MurmurHash3's finalizer), so
+     * that the low bits used by the directory are well mixed. The layout on disk depends on this
+     * function, so it must never change.
+     */
+    static int hash(byte[] key) {
+        int h = Arrays.hashCode(key);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private int mask() {
+        return (1 << globalDepth) - 1;
+    }
+
+    private Page pin(int pageId) throws IOException {
+        Page page = bufferPool.getPage(pageId);
+        if (page == null) {
+            throw new IOException("Could not read hash index page " + pageId);
+        }
+        return page;
+    }
+
+    /**
+     * Pins the overflow pages following the last page of chain and appends them to it.
+     */
+    private void pinOverflowChain(List<Page> chain) throws IOException {
+        int next = (int) INT.get(chain.get(chain.size() - 1).getData(), OVERFLOW);
+        while (next != NO_PAGE) {
+            Page page = pin(next);
+            chain.add(page);
+            next = (int) INT.get(page.getData(), OVERFLOW);
+        }
+    }
+
+    /**
+     * Unpins (as dirty) every page of chain but the first and removes them from it.
+     */
+    private void unpinOverflowChain(List<Page> chain) {
+        while (chain.size() > 1) {
+            Page page = chain.remove(chain.size() - 1);
+            bufferPool.unpinPage(page.getPageId(), true);
+        }
+    }
+
+    private void unpinAll(List<Page> pages) {
+        for (Page page : pages) {
+            bufferPool.unpinPage(page.getPageId(), true);
+        }
+        pages.clear();
+    }
+
+    /**
+     * Frees a pinned overflow page that is no longer linked, clearing it first so that it is handed
+     * out again as an empty data page, and unpinning it before it goes back to the free list.
+     */
+    private void freeOverflowPage(Page page) {
+        page.clear();
+        bufferPool.unpinPage(page.getPageId(), true);
+        pageManager.freePage(page.getPageId());
+    }
+
+    private int newBucket(int localDepth) throws IOException {
+        int pageId = pageManager.allocatePage();
+        Page page = pin(pageId);
+        page.setPageType(BUCKET_PAGE);
+        initBucket(page.getData(), localDepth);
+        bufferPool.unpinPage(pageId, true);
+        return pageId;
+    }
+
+    /**
+     * Links a new, pinned overflow page after the last page of chain and returns it.
+     */
+    private Page addOverflowPage(List<Page> chain) throws IOException {
+        Page last = chain.get(chain.size() - 1);
+        int pageId = pageManager.allocatePage();
+        Page page = pin(pageId);
+        page.setPageType(BUCKET_PAGE);
+        initBucket(page.getData(), (int) INT.get(last.getData(), LOCAL_DEPTH));
+        INT.set(last.getData(), OVERFLOW, pageId);
+        chain.add(page);
+        return page;
+    }
+
+    private static void initBucket(byte[] data, int localDepth) {
+        INT.set(data, LOCAL_DEPTH, localDepth);
+        INT.set(data, NUM_ENTRIES, 0);
+        INT.set(data, OVERFLOW, NO_PAGE);
+        INT.set(data, USED, 0);
+    }
+
+    private static int used(Page page) {
+        return (int) INT.get(page.getData(), USED);
+    }
+
+    private static int entrySizeAt(byte[] data, int at) {
+        return ENTRY_HEADER + (int) INT.get(data, at + 4) + (int) INT.get(data, at + 8);
+    }
+
+    /**
+     * Offset of the entry with the given serialized key in a bucket page, or -1.
+     */
+    private static int find(byte[] data, int hash, byte[] keyBytes) {
+        int at = ENTRIES;
+        int count = (int) INT.get(data, NUM_ENTRIES);
+        for (int i = 0; i < count; i++) {
+            if ((int) INT.get(data, at) == hash && (int) INT.get(data, at + 4) == keyBytes.length
+                    && Arrays.equals(data, at + ENTRY_HEADER, at + ENTRY_HEADER + keyBytes.length, keyBytes, 0, keyBytes.length)) {
+                return at;
+            }
+            at += entrySizeAt(data, at);
+        }
+        return -1;
+    }
+
+    private static void collectEntries(byte[] data, List<byte[]> keys, List<byte[]> values) {
+        int at = ENTRIES;
+        int count = (int) INT.get(data, NUM_ENTRIES);
+        for (int i = 0; i < count; i++) {
+            int valueAt = at + ENTRY_HEADER + (int) INT.get(data, at + 4);
+            keys.add(Arrays.copyOfRange(data, at + ENTRY_HEADER, valueAt));
+            values.add(Arrays.copyOfRange(data, valueAt, valueAt + (int) INT.get(data, at + 8)));
+            at = valueAt + (int) INT.get(data, at + 8);
+        }
+    }
+
+    private static void appendEntry(Page page, int hash, byte[] keyBytes, byte[] valueBytes) {
+        byte[] data = page.getData();
+        int at = ENTRIES + (int) INT.get(data, USED);
+        INT.set(data, at, hash);
+        INT.set(data, at + 4, keyBytes.length);
+        INT.set(data, at + 8, valueBytes.length);
+        System.arraycopy(keyBytes, 0, data, at + ENTRY_HEADER, keyBytes.length);
+        System.arraycopy(valueBytes, 0, data, at + ENTRY_HEADER + keyBytes.length, valueBytes.length);
+        INT.set(data, USED, at + ENTRY_HEADER + keyBytes.length + valueBytes.length - ENTRIES);
+        INT.set(data, NUM_ENTRIES, (int) INT.get(data, NUM_ENTRIES) + 1);
+        page.setDirty(true);
+    }
+
+    private static void removeEntry(Page page, int at) {
+        byte[] data = page.getData();
+        int size = entrySizeAt(data, at);
+        int end = ENTRIES + (int) INT.get(data, USED);
+        System.arraycopy(data, at + size, data, at, end - at - size);
+        INT.set(data, USED, end - size - ENTRIES);
+        INT.set(data, NUM_ENTRIES, (int) INT.get(data, NUM_ENTRIES) - 1);
+        page.setDirty(true);
+    }
+
+    private void doubleDirectory(Set<Integer> dirtyChunks) throws IOException {
+        int size = directory.length;
+        directory = Arrays.copyOf(directory, 2 * size);
+        System.arraycopy(directory, 0, directory, size, size);
+        globalDepth++;
+        for (int chunk = size >>> CHUNK_BITS; chunk < (2 * size + CHUNK_SLOTS - 1) >>> CHUNK_BITS; chunk++) {
+            dirtyChunks.add(chunk);
+        }
+        if (size < CHUNK_SLOTS) {
+            dirtyChunks.add(0);
+        }
+    }
+
+    /**
+     * Writes the directory page and the given chunks, allocating chunk pages the directory has grown into.
+     */
+    private void writeDirectory(Set<Integer> dirtyChunks) throws IOException {
+        int chunks = (directory.length + CHUNK_SLOTS - 1) >>> CHUNK_BITS;
+        while (chunkPageIds.size() < chunks) {
+            chunkPageIds.add(pageManager.allocatePage());
+        }
+        for (int chunk : dirtyChunks) {
+            Page page = pin(chunkPageIds.get(chunk));
+            page.setPageType(DIRECTORY_PAGE);
+            byte[] data = page.getData();
+            int from = chunk << CHUNK_BITS;
+            int to = Math.min(directory.length, from + CHUNK_SLOTS);
+            for (int slot = from; slot < to; slot++) {
+                INT.set(data, Page.HEADER_SIZE + 4 * (slot - from), directory[slot]);
+            }
+            bufferPool.unpinPage(page.getPageId(), true);
+        }
+
+        Page page = pin(directoryPageId);
+        page.setPageType(DIRECTORY_PAGE);
+        byte[] data = page.getData();
+        INT.set(data, GLOBAL_DEPTH, globalDepth);
+        INT.set(data, NUM_CHUNKS, chunkPageIds.size());
+        for (int i = 0; i < chunkPageIds.size(); i++) {
+            INT.set(data, CHUNKS + 4 * i, chunkPageIds.get(i));
+        }
+        bufferPool.unpinPage(directoryPageId, true);
+    }
+
+    private void readDirectory(byte[] data) throws IOException {
+        globalDepth = (int) INT.get(data, GLOBAL_DEPTH);
+        int chunks = (int) INT.get(data, NUM_CHUNKS);
+        for (int i = 0; i < chunks; i++) {
+            chunkPageIds.add((int) INT.get(data, CHUNKS + 4 * i));
+        }
+        directory = new int[1 << globalDepth];
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            Page page = pin(chunkPageIds.get(chunk));
+            try {
+                int from = chunk << CHUNK_BITS;
+                int to = Math.min(directory.length, from + CHUNK_SLOTS);
+                for (int slot = from; slot < to; slot++) {
+                    directory[slot] = (int) INT.get(page.getData(), Page.HEADER_SIZE + 4 * (slot - from));
+                }
+            } finally {
+                bufferPool.unpinPage(page.getPageId(), false);
+            }
+        }
+    }
+}
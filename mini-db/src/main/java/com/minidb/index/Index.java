@@ -0,0 +1,29 @@
+package com.minidb.index;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Primary access path of a table: one value per key. BPlusTree also answers ordered range scans;
+ * ExtendibleHashIndex only answers point lookups, but does so with a single bucket page read.
+ */
+public interface Index<K, V> {
+    /**
+     * Adds the entry, replacing the value if the key is already present.
+     */
+    void insert(K key, V value) throws IOException;
+
+    void delete(K key) throws IOException;
+
+    /**
+     * The value stored for key, or null.
+     */
+    V search(K key) throws IOException;
+
+    /**
+     * Every entry: in key order for a B+ tree, in no particular order for a hash index. Meant for
+     * rebuilding derived structures; entries written during the scan may or may not be seen.
+     */
+    Iterator<Map.Entry<K, V>> scan() throws IOException;
+}
@@ -0,0 +1,432 @@
+package com.minidb.index;
+
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.Page;
+import com.minidb.storage.PageManager;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * B+ tree specialized for int keys and packed long values (pageId << 32 | slotId), the shape of
+ * the primary index.
+ *
+ * Unlike BPlusTree, nodes are never decoded into objects: keys, values and child pageIds are read
+ * and shifted in place in the page frame through array-view VarHandles, so searches and inserts
+ * create no garbage and compare primitive ints. Each node page is laid out after the page header as
+ * num_keys (4), next leaf pageId (4), then `order` int key slots followed by `order` long value slots
+ * (leaves) or `order + 1` int child slots (internal nodes). One slot more than the maximum number of
+ * keys lets a node overflow before it is split, as BPlusTree does.
+ *
+ * Concurrency uses the same latch crabbing as BPlusTree. Deletes remove keys from leaves without
+ * merging nodes.
+ */
+public class IntBPlusTree {
+    public static final byte LEAF_PAGE = 5;
+    public static final byte INTERNAL_PAGE = 6;
+    public static final long NOT_FOUND = -1L;
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final int NUM_KEYS = Page.HEADER_SIZE;
+    private static final int NEXT_PAGE = NUM_KEYS + 4;
+    private static final int KEYS = NEXT_PAGE + 4;
+    private static final int NO_PAGE = 0;
+    private static final int MAX_HEIGHT = 32;
+
+    private final int order; // Maximum number of keys in a node, plus one
+    private final int slots; // Offset of the value or child slots
+    private final int rootPageId;
+    private final PageManager pageManager;
+    private final BufferPool bufferPool;
+    // Pages write-latched by the current thread's pessimistic insert, reused to avoid allocation
+    private final ThreadLocal<Page[]> paths = ThreadLocal.withInitial(() -> new Page[MAX_HEIGHT]);
+
+    /**
+     * Receives the entries of a scan.
+     */
+    public interface EntryVisitor {
+        void visit(int key, long value);
+    }
+
+    public IntBPlusTree(int order, PageManager pageManager, BufferPool bufferPool, int rootPageId) throws IOException {
+        if (order < 3 || KEYS + order * (4 + 8) > Page.PAGE_SIZE) {
+            throw new IllegalArgumentException("order must be between 3 and " + (Page.PAGE_SIZE - KEYS) / 12 + ", was " + order);
+        }
+        this.order = order;
+        this.slots = KEYS + 4 * order;
+        this.rootPageId = rootPageId;
+        this.pageManager = pageManager;
+        this.bufferPool = bufferPool;
+
+        pageManager.reservePage(rootPageId);
+        Page root = pin(rootPageId);
+        try {
+            if (root.getPageType() == 0) {
+                root.setPageType(LEAF_PAGE);
+                setNumKeys(root.getData(), 0);
+                setNextPage(root.getData(), NO_PAGE);
+                root.setDirty(true);
+            }
+        } finally {
+            bufferPool.unpinPage(rootPageId, root.isDirty());
+        }
+    }
+
+    public static long pack(int pageId, int slotId) {
+        return ((long) pageId << 32) | (slotId & 0xFFFFFFFFL);
+    }
+
+    public static int pageIdOf(long value) {
+        return (int) (value >>> 32);
+    }
+
+    public static int slotIdOf(long value) {
+        return (int) value;
+    }
+
+    /**
+     * Returns the value stored for key, or NOT_FOUND.
+     */
+    public long search(int key) throws IOException {
+        Page leaf = descend(key, false);
+        try {
+            byte[] data = leaf.getData();
+            int index = find(data, key);
+            return index >= 0 ? value(data, index) : NOT_FOUND;
+        } finally {
+            release(leaf, false);
+        }
+    }
+
+    /**
+     * Visits the entries with from <= key <= to in key order and returns how many there were.
+     */
+    public int scan(int from, int to, EntryVisitor visitor) throws IOException {
+        int visited = 0;
+        Page leaf = descend(from, false);
+        try {
+            while (true) {
+                byte[] data = leaf.getData();
+                int count = numKeys(data);
+                int index = find(data, from);
+                for (int i = index >= 0 ? index : -index - 1; i < count; i++) {
+                    int key = key(data, i);
+                    if (key > to) {
+                        return visited;
+                    }
+                    visitor.visit(key, value(data, i));
+                    visited++;
+                }
+                int next = nextPage(data);
+                if (next == NO_PAGE) {
+                    return visited;
+                }
+                // Latch the next leaf before letting go of this one
+                Page nextLeaf = pin(next);
+                nextLeaf.getLatch().readLock().lock();
+                release(leaf, false);
+                leaf = nextLeaf;
+            }
+        } finally {
+            release(leaf, false);
+        }
+    }
+
+    public void insert(int key, long value) throws IOException {
+        // Optimistic pass: read latches down to the leaf, which is enough unless the leaf splits
+        Page leaf = descend(key, true);
+        try {
+            byte[] data = leaf.getData();
+            int index = find(data, key);
+            if (index >= 0) {
+                setValue(data, index, value);
+                leaf.setDirty(true);
+                return;
+            }
+            if (numKeys(data) < order - 1) {
+                insertIntoLeaf(data, -index - 1, key, value);
+                leaf.setDirty(true);
+                return;
+            }
+        } finally {
+            release(leaf, true);
+        }
+        insertWithSplits(key, value);
+    }
+
+    /**
+     * Removes key and returns whether it was present. Leaves are not merged when they empty.
+     */
+    public boolean delete(int key) throws IOException {
+        Page leaf = descend(key, true);
+        try {
+            byte[] data = leaf.getData();
+            int index = find(data, key);
+            if (index < 0) {
+                return false;
+            }
+            int count = numKeys(data);
+            System.arraycopy(data, KEYS + 4 * (index + 1), data, KEYS + 4 * index, 4 * (count - index - 1));
+            System.arraycopy(data, slots + 8 * (index + 1), data, slots + 8 * index, 8 * (count - index - 1));
+            setNumKeys(data, count - 1);
+            leaf.setDirty(true);
+            return true;
+        } finally {
+            release(leaf, true);
+        }
+    }
+
+    public int getRootPageId() {
+        return rootPageId;
+    }
+
+    /**
+     * Write-latch crabbing from the root, keeping only the ancestors that a split can reach.
+     */
+    private void insertWithSplits(int key, long value) throws IOException {
+        Page[] path = paths.get();
+        int depth = 0;
+        try {
+            Page page = latchExclusive(rootPageId);
+            path[depth++] = page;
+            while (page.getPageType() == INTERNAL_PAGE) {
+                byte[] data = page.getData();
+                Page child = latchExclusive(child(data, childPosition(data, key)));
+                if (numKeys(child.getData()) < order - 1) {
+                    // The child cannot split, so none of its ancestors will change
+                    for (int i = 0; i < depth; i++) {
+                        release(path[i], true);
+                        path[i] = null;
+                    }
+                    depth = 0;
+                }
+                path[depth++] = child;
+                page = child;
+            }
+
+            byte[] data = page.getData();
+            int index = find(data, key);
+            if (index >= 0) { // Inserted by another thread between the two passes
+                setValue(data, index, value);
+                page.setDirty(true);
+                return;
+            }
+            insertIntoLeaf(data, -index - 1, key, value);
+            page.setDirty(true);
+
+            for (int level = depth - 1; level >= 0 && numKeys(path[level].getData()) == order; level--) {
+                Page node = path[level];
+                if (node.getPageId() == rootPageId) {
+                    splitRoot(node);
+                    break;
+                }
+                long split = split(node);
+                Page parent = path[level - 1];
+                insertIntoInternal(parent.getData(), (int) (split >> 32), (int) split);
+                parent.setDirty(true);
+            }
+        } finally {
+            for (int i = 0; i < depth; i++) {
+                release(path[i], true);
+                path[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Moves the upper half of an overflowing node to a new page and returns the separator and the
+     * new page's id packed as (separator << 32 | pageId).
+     */
+    private long split(Page node) throws IOException {
+        int rightPageId = pageManager.allocatePage();
+        Page right = pin(rightPageId); // Not reachable by anyone else until the parent links it
+        try {
+            byte[] data = node.getData();
+            byte[] rightData = right.getData();
+            int count = numKeys(data);
+            int mid = count / 2;
+            int separator;
+            if (node.getPageType() == LEAF_PAGE) {
+                int moved = count - mid;
+                System.arraycopy(data, KEYS + 4 * mid, rightData, KEYS, 4 * moved);
+                System.arraycopy(data, slots + 8 * mid, rightData, slots, 8 * moved);
+                setNumKeys(rightData, moved);
+                setNextPage(rightData, nextPage(data));
+                setNextPage(data, rightPageId);
+                separator = key(rightData, 0);
+            } else {
+                // The middle key moves up; the right node gets the keys and children after it
+                separator = key(data, mid);
+                int moved = count - mid - 1;
+                System.arraycopy(data, KEYS + 4 * (mid + 1), rightData, KEYS, 4 * moved);
+                System.arraycopy(data, slots + 4 * (mid + 1), rightData, slots, 4 * (moved + 1));
+                setNumKeys(rightData, moved);
+            }
+            setNumKeys(data, mid);
+            right.setPageType(node.getPageType());
+            right.setDirty(true);
+            node.setDirty(true);
+            return ((long) separator << 32) | (rightPageId & 0xFFFFFFFFL);
+        } finally {
+            bufferPool.unpinPage(rightPageId, true);
+        }
+    }
+
+    /**
+     * The root keeps its page: its contents move to a new page, which is split, and the root page
+     * becomes an internal node over the two halves.
+     */
+    private void splitRoot(Page root) throws IOException {
+        int leftPageId = pageManager.allocatePage();
+        Page left = pin(leftPageId);
+        try {
+            System.arraycopy(root.getData(), Page.HEADER_SIZE, left.getData(), Page.HEADER_SIZE, Page.PAGE_SIZE - Page.HEADER_SIZE);
+            left.setPageType(root.getPageType());
+            long split = split(left);
+
+            byte[] data = root.getData();
+            root.setPageType(INTERNAL_PAGE);
+            setNumKeys(data, 1);
+            setNextPage(data, NO_PAGE);
+            INT.set(data, KEYS, (int) (split >> 32));
+            INT.set(data, slots, leftPageId);
+            INT.set(data, slots + 4, (int) split);
+            root.setDirty(true);
+        } finally {
+            bufferPool.unpinPage(leftPageId, true);
+        }
+    }
+
+    private void insertIntoLeaf(byte[] data, int position, int key, long value) {
+        int count = numKeys(data);
+        System.arraycopy(data, KEYS + 4 * position, data, KEYS + 4 * (position + 1), 4 * (count - position));
+        System.arraycopy(data, slots + 8 * position, data, slots + 8 * (position + 1), 8 * (count - position));
+        INT.set(data, KEYS + 4 * position, key);
+        LONG.set(data, slots + 8 * position, value);
+        setNumKeys(data, count + 1);
+    }
+
+    private void insertIntoInternal(byte[] data, int separator, int rightPageId) {
+        int count = numKeys(data);
+        int position = childPosition(data, separator);
+        System.arraycopy(data, KEYS + 4 * position, data, KEYS + 4 * (position + 1), 4 * (count - position));
+        System.arraycopy(data, slots + 4 * (position + 1), data, slots + 4 * (position + 2), 4 * (count - position));
+        INT.set(data, KEYS + 4 * position, separator);
+        INT.set(data, slots + 4 * (position + 1), rightPageId);
+        setNumKeys(data, count + 1);
+    }
+
+    /**
+     * Read-latch crabbing down to the leaf covering key; see BPlusTree.descendToLeaf.
+     */
+    private Page descend(int key, boolean exclusiveLeaf) throws IOException {
+        Page page = latchForDescent(rootPageId, exclusiveLeaf);
+        while (page.getPageType() == INTERNAL_PAGE) {
+            byte[] data = page.getData();
+            Page child;
+            try {
+                child = latchForDescent(child(data, childPosition(data, key)), exclusiveLeaf);
+            } finally {
+                release(page, false);
+            }
+            page = child;
+        }
+        return page;
+    }
+
+    /**
+     * Shared latch on internal pages, exclusive on the leaf if requested; the root may change type
+     * while unlatched, so the check repeats (see NodeFactory.latchPageForDescent).
+     */
+    private Page latchForDescent(int pageId, boolean exclusiveLeaf) throws IOException {
+        Page page = pin(pageId);
+        page.getLatch().readLock().lock();
+        boolean exclusive = false;
+        while (exclusiveLeaf && (page.getPageType() == LEAF_PAGE) != exclusive) {
+            if (exclusive) {
+                page.getLatch().writeLock().unlock();
+                page.getLatch().readLock().lock();
+            } else {
+                page.getLatch().readLock().unlock();
+                page.getLatch().writeLock().lock();
+            }
+            exclusive = !exclusive;
+        }
+        return page;
+    }
+
+    private Page latchExclusive(int pageId) throws IOException {
+        Page page = pin(pageId);
+        page.getLatch().writeLock().lock();
+        return page;
+    }
+
+    /**
+     * Unlatches and unpins a page. Pages are marked dirty by whoever changed them.
+     */
+    private void release(Page page, boolean exclusive) {
+        if (exclusive) {
+            page.getLatch().writeLock().unlock();
+        } else {
+            page.getLatch().readLock().unlock();
+        }
+        bufferPool.unpinPage(page.getPageId(), false);
+    }
+
+    private Page pin(int pageId) throws IOException {
+        Page page = bufferPool.getPage(pageId);
+        if (page == null) {
+            throw new IOException("Could not read int B+ tree page " + pageId);
+        }
+        return page;
+    }
+
+    /**
+     * Search over the keys of a node (vectorized where the JVM allows): the index of key, or
+     * -(insertion point) - 1.
+     */
+    private static int find(byte[] data, int key) {
+        return IntKeySearch.find(data, KEYS, numKeys(data), key);
+    }
+
+    private static int childPosition(byte[] data, int key) {
+        int index = find(data, key);
+        return (index >= 0) ? index + 1 : -index - 1;
+    }
+
+    private static int numKeys(byte[] data) {
+        return (int) INT.get(data, NUM_KEYS);
+    }
+
+    private static void setNumKeys(byte[] data, int numKeys) {
+        INT.set(data, NUM_KEYS, numKeys);
+    }
+
+    private static int nextPage(byte[] data) {
+        return (int) INT.get(data, NEXT_PAGE);
+    }
+
+    private static void setNextPage(byte[] data, int pageId) {
+        INT.set(data, NEXT_PAGE, pageId);
+    }
+
+    private static int key(byte[] data, int index) {
+        return (int) INT.get(data, KEYS + 4 * index);
+    }
+
+    private long value(byte[] data, int index) {
+        return (long) LONG.get(data, slots + 8 * index);
+    }
+
+    private void setValue(byte[] data, int index, long value) {
+        LONG.set(data, slots + 8 * index, value);
+    }
+
+    private int child(byte[] data, int index) {
+        return (int) INT.get(data, slots + 4 * index);
+    }
+}
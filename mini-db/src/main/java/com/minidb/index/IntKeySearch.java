@@ -0,0 +1,78 @@
+package com.minidb.index;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Search over the packed big-endian int keys of an IntBPlusTree node. When the JVM runs with the
+ * incubating Vector API (--add-modules jdk.incubator.vector), VectorIntKeySearch narrows the range
+ * by binary search to a few vectors and then compares the probe key against all their lanes at
+ * once. Without the module, or with -Dminidb.vectorSearch=false, a plain binary search runs.
+ *
+ * VectorIntKeySearch is only compiled on JDK 17 to 19 (the vector-search Maven profile), whose
+ * incubator API it is written against, so it is looked up by name and may be missing.
+ */
+public final class IntKeySearch {
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    // VectorIntKeySearch.find, or null to search with binarySearch
+    private static final MethodHandle VECTOR_FIND = vectorFind();
+    private static final boolean VECTORIZED = VECTOR_FIND != null;
+
+    private IntKeySearch() {
+    }
+
+    public static boolean isVectorized() {
+        return VECTORIZED;
+    }
+
+    /**
+     * The index of key among the count sorted keys stored from offset, or -(insertion point) - 1.
+     */
+    public static int find(byte[] data, int offset, int count, int key) {
+        if (!VECTORIZED) {
+            return binarySearch(data, offset, count, key);
+        }
+        try {
+            return (int) VECTOR_FIND.invokeExact(data, offset, count, key);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Vectorized key search failed", e);
+        }
+    }
+
+    /**
+     * The scalar search, with the same contract as find.
+     */
+    public static int binarySearch(byte[] data, int offset, int count, int key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midKey = (int) INT.get(data, offset + 4 * mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static MethodHandle vectorFind() {
+        if (!Boolean.parseBoolean(System.getProperty("minidb.vectorSearch", "true"))
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            // Loading VectorIntKeySearch loads the incubator module's classes too
+            Class<?> search = Class.forName("com.minidb.index.VectorIntKeySearch");
+            return MethodHandles.lookup().findStatic(search, "find", MethodType.methodType(int.class, byte[].class, int.class, int.class, int.class));
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null; // Not built for this JDK, or written against an incubator API it no longer has
+        }
+    }
+}
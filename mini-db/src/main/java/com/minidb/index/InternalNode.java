@@ -1,20 +1,21 @@
 package com.minidb.index;
 
-import com.minidb.storage.BufferPool;
-import com.minidb.storage.Page;
-
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 public class InternalNode<K extends Comparable<K>, V> extends Node<K, V> {
-    final List<Node<K, V>> children;
+    static final int CHILDREN = 1 + 4 + 4;
+
+    // Children are addressed by pageId and loaded through the buffer pool when a descent needs them.
+    final List<Integer> childPageIds;
 
-    public InternalNode(int order, Serializer<K> keySerializer, Serializer<V> valueSerializer, BufferPool bufferPool) {
-        super(order, new ArrayList<>(), keySerializer, valueSerializer, bufferPool);
-        this.children = new ArrayList<>();
+    public InternalNode(NodeFactory<K, V> nodeFactory) {
+        super(nodeFactory, new ArrayList<>());
+        this.childPageIds = new ArrayList<>();
     }
 
     @Override
@@ -22,50 +23,49 @@ public class InternalNode<K extends Comparable<K>, V> extends Node<K, V> {
         return false;
     }
 
-    @Override
-    public V search(K key) {
-        return children.get(findChildPosition(key)).search(key);
-    }
-
-    @Override
-    public SplitResult<K, InternalNode<K, V>> insert(K key, V value) throws IOException {
-        int childIndex = findChildPosition(key);
-        Node<K, V> child = children.get(childIndex);
-        SplitResult<K, ? extends Node<K, V>> result = child.insert(key, value);
-
-        if (result == null) {
-            return null; // No split occurred in child
-        }
-
-        // A split occurred, so we must insert the new key and child into this node
+    /**
+     * Adds the separator and right node produced by a child split. Returns the split of this node if
+     * it overflowed as a result, or null.
+     */
+    SplitResult<K, InternalNode<K, V>> insertChild(SplitResult<K, ? extends Node<K, V>> result) throws IOException {
         int keyIndex = Collections.binarySearch(keys, result.getSplitKey());
         int insertionPoint = (keyIndex >= 0) ? keyIndex : -keyIndex - 1;
         keys.add(insertionPoint, result.getSplitKey());
-        children.add(insertionPoint + 1, result.getRightNode());
-        result.getRightNode().parent = this;
+        childPageIds.add(insertionPoint + 1, result.getRightNode().pageId);
 
-        if (keys.size() < order) {
+        boolean overfull = serializedSize() > CAPACITY;
+        if (keys.size() < order && !overfull) {
+            markDirty();
             return null; // This node did not split
         }
 
-        // This node is full, split it
-        int mid = keys.size() / 2;
-        InternalNode<K, V> rightNode = new InternalNode<>(order, keySerializer, valueSerializer, bufferPool);
+        // This node is full, split it: in the middle, or where the bytes balance if the page overflowed
+        int mid = overfull ? byteBalancedSplitPoint() : keys.size() / 2;
+        InternalNode<K, V> rightNode = nodeFactory.createInternalNode();
         K splitKey = keys.remove(mid);
 
         rightNode.keys.addAll(keys.subList(mid, keys.size()));
-        rightNode.children.addAll(children.subList(mid + 1, children.size()));
-        rightNode.children.forEach(c -> c.parent = rightNode);
+        rightNode.childPageIds.addAll(childPageIds.subList(mid + 1, childPageIds.size()));
 
         keys.subList(mid, keys.size()).clear();
-        children.subList(mid + 1, children.size()).clear();
+        childPageIds.subList(mid + 1, childPageIds.size()).clear();
 
+        rightNode.writeNode();
+        markDirty();
         return new SplitResult<>(splitKey, rightNode);
     }
 
-    @Override
-    public void delete(K key) throws IOException {
-        children.get(findChildPosition(key)).delete(key);
+    private int byteBalancedSplitPoint() {
+        int[] keyBytes = new int[keys.size() + 1]; // keyBytes[i] = total size of keys [0, i) with offset and size
+        for (int i = 0; i < keys.size(); i++) {
+            keyBytes[i + 1] = keyBytes[i] + 4 + 4 + keySerializer.getSerializedSize(keys.get(i));
+        }
+        // Key mid moves up to the parent: the halves are the keys before and after it, and the right
+        // half must keep at least one key
+        int n = keys.size();
+        return balancedSplitPoint(n, (from, to) -> from == 0
+                ? CHILDREN + 4 * (to + 1) + keyBytes[to]
+                : from == n - 1 ? Integer.MAX_VALUE : CHILDREN + 4 * (n - from) + keyBytes[n] - keyBytes[from + 1]);
     }
 
     @Override
@@ -73,15 +73,25 @@ public class InternalNode<K extends Comparable<K>, V> extends Node<K, V> {
         return keys.get(0);
     }
 
+    @Override
+    int serializedSize() {
+        int size = CHILDREN + 4 * childPageIds.size();
+        for (K key : keys) {
+            size += 4 + 4 + keySerializer.getSerializedSize(key);
+        }
+        return size;
+    }
+
     int findChildPosition(K key) {
         int index = Collections.binarySearch(keys, key);
         return (index >= 0) ? index + 1 : -index - 1;
     }
 
-    void updateKey(K oldKey, K newKey) {
+    void updateKey(K oldKey, K newKey) throws IOException {
         int index = Collections.binarySearch(keys, oldKey);
         if (index >= 0) {
             keys.set(index, newKey);
+            markDirty();
         } else {
             // This can happen when the key is the implicit "less than all" key
             // and we need to update the first key in the parent.
@@ -91,181 +101,272 @@ public class InternalNode<K extends Comparable<K>, V> extends Node<K, V> {
         }
     }
 
-    void removeChild(K key, Node<K, V> child) {
+    void removeChild(K key, Node<K, V> child) throws IOException {
         int keyIndex = Collections.binarySearch(keys, key);
         if (keyIndex >= 0) {
             keys.remove(keyIndex);
-            children.remove(child);
+            childPageIds.remove(Integer.valueOf(child.pageId));
         } else {
             // Key not found, must be the rightmost child
-            int childIndex = children.indexOf(child);
+            int childIndex = childPageIds.indexOf(child.pageId);
             if (childIndex > 0) {
                 keys.remove(childIndex - 1);
-                children.remove(childIndex);
+                childPageIds.remove(childIndex);
             }
         }
+        markDirty();
 
         if (parent != null && isUnderflow()) {
             parent.handleUnderflow(this, key);
         }
     }
 
-    void handleUnderflow(Node<K, V> child, K key) {
-        int childIndex = children.indexOf(child);
+    /**
+     * Rebalances an underflowing child that is latched exclusively, as is this node. Siblings are
+     * latched for the duration of the rebalance, always left to right (the order scans walk the leaf
+     * chain in), so the child is briefly unlatched while its left sibling is latched. Only readers can
+     * reach the child in that window because this node stays latched, and they see it without the
+     * changes made so far, which are written once when the child is released.
+     */
+    void handleUnderflow(Node<K, V> child, K key) throws IOException {
+        rebalanceChild(child, true);
+    }
 
-        // Try to borrow from left sibling
-        if (childIndex > 0) {
-            Node<K, V> leftSibling = children.get(childIndex - 1);
-            if (leftSibling.keyCount() > (order - 1) / 2) {
-                // Redistribute
-                if (child.isLeaf()) {
-                    ((LeafNode<K, V>) child).borrowFromLeft((LeafNode<K, V>) leftSibling, keys.get(childIndex - 1));
-                } else {
-                    ((InternalNode<K, V>) child).borrowFromLeft((InternalNode<K, V>) leftSibling, keys.get(childIndex - 1));
+    /**
+     * Merges a child below the target fill into a sibling if the two fit in one page, without
+     * borrowing; for the deferred rebalancing pass, which only runs to free pages. Latching is as in
+     * handleUnderflow. Returns whether the child was merged.
+     */
+    boolean mergeChild(Node<K, V> child) throws IOException {
+        return rebalanceChild(child, false);
+    }
+
+    private boolean rebalanceChild(Node<K, V> child, boolean mayBorrow) throws IOException {
+        int childIndex = childPageIds.indexOf(child.pageId);
+        Node<K, V> leftSibling = null;
+        Node<K, V> rightSibling = null;
+        try {
+            // Try to borrow from left sibling
+            if (childIndex > 0) {
+                nodeFactory.unlatch(child);
+                leftSibling = nodeFactory.latchNode(childPageIds.get(childIndex - 1), true);
+                nodeFactory.relatch(child);
+                leftSibling.parent = this;
+                if (mayBorrow && canLend(leftSibling, child, childIndex - 1, true)) {
+                    // Redistribute
+                    if (child.isLeaf()) {
+                        ((LeafNode<K, V>) child).borrowFromLeft((LeafNode<K, V>) leftSibling, keys.get(childIndex - 1));
+                    } else {
+                        ((InternalNode<K, V>) child).borrowFromLeft((InternalNode<K, V>) leftSibling, keys.get(childIndex - 1));
+                    }
+                    return true;
                 }
-                return;
             }
-        }
 
-        // Try to borrow from right sibling
-        if (childIndex < children.size() - 1) {
-            Node<K, V> rightSibling = children.get(childIndex + 1);
-            if (rightSibling.keyCount() > (order - 1) / 2) {
-                // Redistribute
+            // Try to borrow from right sibling
+            if (childIndex < childPageIds.size() - 1) {
+                rightSibling = nodeFactory.latchNode(childPageIds.get(childIndex + 1), true);
+                rightSibling.parent = this;
+                if (mayBorrow && canLend(rightSibling, child, childIndex, false)) {
+                    // Redistribute
+                    if (child.isLeaf()) {
+                        ((LeafNode<K, V>) child).borrowFromRight((LeafNode<K, V>) rightSibling, keys.get(childIndex));
+                    } else {
+                        ((InternalNode<K, V>) child).borrowFromRight((InternalNode<K, V>) rightSibling, keys.get(childIndex));
+                    }
+                    return true;
+                }
+            }
+
+            // Cannot borrow, must merge. If neither sibling shares a page with the child, it stays
+            // under-full until a later delete or insert changes that.
+            if (leftSibling != null && fitsMerged(leftSibling, child, keys.get(childIndex - 1))) {
+                // Merge with left sibling
                 if (child.isLeaf()) {
-                    ((LeafNode<K, V>) child).borrowFromRight((LeafNode<K, V>) rightSibling, keys.get(childIndex));
+                    ((LeafNode<K, V>) child).mergeWithLeft((LeafNode<K, V>) leftSibling, keys.get(childIndex - 1));
                 } else {
-                    ((InternalNode<K, V>) child).borrowFromRight((InternalNode<K, V>) rightSibling, keys.get(childIndex));
+                    ((InternalNode<K, V>) child).mergeWithLeft((InternalNode<K, V>) leftSibling, keys.get(childIndex - 1));
                 }
-                return;
+                return true;
+            } else if (rightSibling != null && fitsMerged(child, rightSibling, keys.get(childIndex))) {
+                // Merge with right sibling
+                if (child.isLeaf()) {
+                    ((LeafNode<K, V>) child).mergeWithRight((LeafNode<K, V>) rightSibling, keys.get(childIndex));
+                } else {
+                    ((InternalNode<K, V>) child).mergeWithRight((InternalNode<K, V>) rightSibling, keys.get(childIndex));
+                }
+                return true;
+            }
+            return false;
+        } finally {
+            if (leftSibling != null) {
+                nodeFactory.release(leftSibling);
+            }
+            if (rightSibling != null) {
+                nodeFactory.release(rightSibling);
             }
         }
+    }
 
-        // Cannot borrow, must merge
-        if (childIndex > 0) {
-            // Merge with left sibling
-            Node<K, V> leftSibling = children.get(childIndex - 1);
-            if (child.isLeaf()) {
-                ((LeafNode<K, V>) child).mergeWithLeft((LeafNode<K, V>) leftSibling, keys.get(childIndex - 1));
-            } else {
-                ((InternalNode<K, V>) child).mergeWithLeft((InternalNode<K, V>) leftSibling, keys.get(childIndex - 1));
+    /**
+     * Whether sibling can give the underflowing child one entry: the sibling does not underflow
+     * itself, the entry fits in the child, and this node has room for the separator that replaces
+     * keys[parentIndex].
+     */
+    private boolean canLend(Node<K, V> sibling, Node<K, V> child, int parentIndex, boolean fromLeft) {
+        if (sibling.keyCount() < 2) {
+            return false;
+        }
+        int lent = fromLeft ? sibling.keyCount() - 1 : 0;
+        K lentKey = sibling.keys.get(lent);
+        if (!sibling.isSafeForDelete(lentKey)) {
+            return false;
+        }
+        K newSeparator;
+        if (child.isLeaf()) {
+            // The lent key may shorten the child's shared prefix, so check the child's size too
+            if (!child.isSafeForInsert(lentKey, ((LeafNode<K, V>) sibling).values.get(lent))) {
+                return false;
             }
+            newSeparator = fromLeft
+                    ? keySerializer.separator(sibling.keys.get(lent - 1), lentKey)
+                    : keySerializer.separator(lentKey, sibling.keys.get(1));
         } else {
-            // Merge with right sibling
-            Node<K, V> rightSibling = children.get(childIndex + 1);
-            if (child.isLeaf()) {
-                ((LeafNode<K, V>) child).mergeWithRight((LeafNode<K, V>) rightSibling, keys.get(childIndex));
-            } else {
-                ((InternalNode<K, V>) child).mergeWithRight((InternalNode<K, V>) rightSibling, keys.get(childIndex));
-            }
+            newSeparator = lentKey; // The child takes the old separator, which fits as it is under half full
         }
+        return serializedSize() - keySerializer.getSerializedSize(keys.get(parentIndex))
+                + keySerializer.getSerializedSize(newSeparator) <= CAPACITY;
+    }
+
+    private boolean fitsMerged(Node<K, V> left, Node<K, V> right, K separator) {
+        if (left.isLeaf()) {
+            return left.keyCount() + right.keyCount() <= order - 1 && ((LeafNode<K, V>) left).fitsMergedWith((LeafNode<K, V>) right);
+        }
+        // The separator comes down between the two halves
+        return left.keyCount() + 1 + right.keyCount() <= order - 1
+                && left.serializedSize() + right.serializedSize() - CHILDREN + 4 + 4 + keySerializer.getSerializedSize(separator) <= CAPACITY;
     }
 
     // Internal node redistribution/merge logic
-    void borrowFromLeft(InternalNode<K, V> leftSibling, K parentKey) {
+    void borrowFromLeft(InternalNode<K, V> leftSibling, K parentKey) throws IOException {
         K borrowedKey = leftSibling.keys.remove(leftSibling.keyCount() - 1);
-        Node<K, V> borrowedChild = leftSibling.children.remove(leftSibling.children.size() - 1);
+        int borrowedChild = leftSibling.childPageIds.remove(leftSibling.childPageIds.size() - 1);
         this.keys.add(0, parentKey);
-        this.children.add(0, borrowedChild);
-        borrowedChild.parent = this;
+        this.childPageIds.add(0, borrowedChild);
+        leftSibling.markDirty();
+        markDirty();
         parent.updateKey(parentKey, borrowedKey);
     }
 
-    void borrowFromRight(InternalNode<K, V> rightSibling, K parentKey) {
+    void borrowFromRight(InternalNode<K, V> rightSibling, K parentKey) throws IOException {
         K borrowedKey = rightSibling.keys.remove(0);
-        Node<K, V> borrowedChild = rightSibling.children.remove(0);
+        int borrowedChild = rightSibling.childPageIds.remove(0);
         this.keys.add(parentKey);
-        this.children.add(borrowedChild);
-        borrowedChild.parent = this;
+        this.childPageIds.add(borrowedChild);
+        rightSibling.markDirty();
+        markDirty();
         parent.updateKey(parentKey, borrowedKey);
     }
 
-    void mergeWithLeft(InternalNode<K, V> leftSibling, K parentKey) {
+    void mergeWithLeft(InternalNode<K, V> leftSibling, K parentKey) throws IOException {
         leftSibling.keys.add(parentKey);
         leftSibling.keys.addAll(this.keys);
-        leftSibling.children.addAll(this.children);
-        this.children.forEach(c -> c.parent = leftSibling);
+        leftSibling.childPageIds.addAll(this.childPageIds);
+        leftSibling.markDirty();
+        nodeFactory.freeNode(this);
         parent.removeChild(parentKey, this);
     }
 
-    void mergeWithRight(InternalNode<K, V> rightSibling, K parentKey) {
+    void mergeWithRight(InternalNode<K, V> rightSibling, K parentKey) throws IOException {
         this.keys.add(parentKey);
         this.keys.addAll(rightSibling.keys);
-        this.children.addAll(rightSibling.children);
-        rightSibling.children.forEach(c -> c.parent = this);
+        this.childPageIds.addAll(rightSibling.childPageIds);
+        markDirty();
+        nodeFactory.freeNode(rightSibling);
         parent.removeChild(parentKey, rightSibling);
     }
 
     @Override
     public void writeNode() throws IOException {
-        Page page = bufferPool.getPage(pageId);
-        page.setPageType((byte) 2);
-        byte[] serializedData = serialize();
-        System.arraycopy(serializedData, 0, page.toBytes(), Page.HEADER_SIZE, serializedData.length);
-        page.setDirty(true);
-        bufferPool.unpinPage(pageId, true);
+        writeToPage(NodeFactory.INTERNAL_NODE);
     }
 
-    @Override
-    public void readNode() throws IOException {
-        Page page = bufferPool.getPage(pageId);
-        byte[] data = page.toBytes();
-        byte[] nodeData = new byte[data.length - Page.HEADER_SIZE];
-        System.arraycopy(data, Page.HEADER_SIZE, nodeData, 0, nodeData.length);
-        deserialize(nodeData);
-        bufferPool.unpinPage(pageId, false);
+    /**
+     * Picks the child covering key in a serialized internal node without decoding it.
+     */
+    static <K extends Comparable<K>> int childPageIdInPlace(byte[] data, int base, SearchKey<K> key) {
+        return childPageIdAtInPlace(data, base, childPositionInPlace(data, base, key));
     }
 
-    @Override
-    public byte[] serialize() {
-        // Calculate total size needed
-        int size = 1 + 4; // 1 byte for node type, 4 bytes for num_keys
-        for (int i = 0; i < keys.size(); i++) {
-            int keySize = keySerializer.getSerializedSize(keys.get(i));
-            size += 4 + keySize; // 4 bytes for key size
+    static <K extends Comparable<K>> int childPositionInPlace(byte[] data, int base, SearchKey<K> key) {
+        int numChildren = readInt(data, base + 5);
+        int index = binarySearchInPlace(data, base, CHILDREN + 4 * numChildren, readInt(data, base + 1), key, 0);
+        return (index >= 0) ? index + 1 : -index - 1;
+    }
+
+    static int childPageIdAtInPlace(byte[] data, int base, int position) {
+        return readInt(data, base + CHILDREN + 4 * position);
+    }
+
+    /**
+     * The encoded separator right of the child at position, or null for the last child. Every key
+     * under that child sorts below it.
+     */
+    static byte[] separatorAfterInPlace(byte[] data, int base, int position) {
+        if (position == readInt(data, base + 1)) {
+            return null;
         }
-        size += 4 * children.size(); // 4 bytes for each child's pageId
+        int key = base + readInt(data, base + CHILDREN + 4 * readInt(data, base + 5) + 4 * position);
+        return Arrays.copyOfRange(data, key + 4, key + 4 + readInt(data, key));
+    }
 
-        ByteBuffer buffer = ByteBuffer.allocate(size);
-        buffer.put((byte) 0); // InternalNode type
-        buffer.putInt(keys.size());
+    /**
+     * The first or last child of a serialized internal node.
+     */
+    static int edgeChildPageIdInPlace(byte[] data, int base, boolean last) {
+        int position = last ? readInt(data, base + 5) - 1 : 0;
+        return readInt(data, base + CHILDREN + 4 * position);
+    }
 
-        for (int i = 0; i < keys.size(); i++) {
-            byte[] keyBytes = keySerializer.serialize(keys.get(i));
-            buffer.putInt(keyBytes.length);
-            buffer.put(keyBytes);
+    /**
+     * Layout: type (1), num_keys (4), num_children (4), the child pageIds, an offset table with the
+     * position of each key, then the keys as size (4) and bytes.
+     */
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        int base = buffer.position();
+        buffer.put(NodeFactory.INTERNAL_NODE);
+        buffer.putInt(keys.size());
+        buffer.putInt(childPageIds.size());
+        for (int childPageId : childPageIds) {
+            buffer.putInt(childPageId);
         }
 
-        for (Node<K, V> child : children) {
-            buffer.putInt(child.pageId);
+        int offsetTable = buffer.position();
+        buffer.position(offsetTable + 4 * keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            int keyAt = buffer.position();
+            buffer.putInt(offsetTable + 4 * i, keyAt - base);
+            buffer.position(keyAt + 4);
+            keySerializer.write(keys.get(i), buffer);
+            buffer.putInt(keyAt, buffer.position() - keyAt - 4);
         }
-        return buffer.array();
     }
 
     @Override
-    public void deserialize(byte[] data) {
-        ByteBuffer buffer = ByteBuffer.wrap(data);
+    public void deserialize(ByteBuffer buffer) {
         buffer.get(); // Skip node type byte
         int numKeys = buffer.getInt();
 
-        for (int i = 0; i < numKeys; i++) {
-            int keySize = buffer.getInt();
-            byte[] keyBytes = new byte[keySize];
-            buffer.get(keyBytes);
-            K key = keySerializer.deserialize(keyBytes);
-            keys.add(key);
+        // Only the pageIds are kept; the children themselves are loaded on demand.
+        int numChildren = buffer.getInt();
+        for (int i = 0; i < numChildren; i++) {
+            childPageIds.add(buffer.getInt());
         }
 
-        while (buffer.hasRemaining()) {
-            int childPageId = buffer.getInt();
-            // We don't know the type of the child yet, so we'll just store its pageId for now.
-            // The actual child node will be loaded when needed.
-            // For now, we'll create a placeholder node with just the pageId.
-            // This is a simplification and might need a more robust solution for a full B+ tree.
-            // For this exercise, we'll assume children are loaded on demand.
-            // This part needs careful consideration for a complete implementation.
-            // For now, we'll just add a null to represent the child, and load it when accessed.
-            children.add(null); // Placeholder
+        buffer.position(buffer.position() + 4 * numKeys); // Keys are stored in order after the offset table
+        for (int i = 0; i < numKeys; i++) {
+            keys.add(read(keySerializer, buffer, buffer.getInt()));
         }
     }
 }
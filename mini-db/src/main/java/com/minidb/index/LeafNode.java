@@ -1,48 +1,32 @@
 package com.minidb.index;
 
 import com.minidb.index.Node.SplitResult;
-import com.minidb.storage.BufferPool;
-import com.minidb.storage.Page;
-import com.minidb.storage.PageManager;
-import com.minidb.storage.RecordId;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Objects;
 
 public class LeafNode<K extends Comparable<K>, V> extends Node<K, V> {
+    public static final int NO_PAGE = 0; // Page 0 is the metadata page, so it never holds a node
+    static final int PREFIX = 1 + 4 + 4 + 4; // Position of the shared key prefix's length
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(2 * MAX_KEY_SIZE));
+
     final List<V> values;
-    LeafNode<K, V> nextNode;
+    int nextPageId = NO_PAGE;
+    int prevPageId = NO_PAGE;
 
-    public LeafNode(int order, Serializer<K> keySerializer, Serializer<V> valueSerializer, BufferPool bufferPool) {
-        super(order, new ArrayList<>(), keySerializer, valueSerializer, bufferPool);
+    public LeafNode(NodeFactory<K, V> nodeFactory) {
+        super(nodeFactory, new ArrayList<>());
         this.values = new ArrayList<>();
     }
 
     @Override
     public void writeNode() throws IOException {
-        Page page = bufferPool.getPage(pageId);
-        page.setPageType((byte) 1);
-        byte[] serializedData = serialize();
-        System.arraycopy(serializedData, 0, page.toBytes(), Page.HEADER_SIZE, serializedData.length);
-        page.setDirty(true);
-        bufferPool.unpinPage(pageId, true);
-    }
-
-    @Override
-    public void readNode() throws IOException {
-        Page page = bufferPool.getPage(pageId);
-        byte[] data = page.toBytes();
-        byte[] nodeData = new byte[data.length - Page.HEADER_SIZE];
-        System.arraycopy(data, Page.HEADER_SIZE, nodeData, 0, nodeData.length);
-        deserialize(nodeData);
-        bufferPool.unpinPage(pageId, false);
+        writeToPage(NodeFactory.LEAF_NODE);
     }
 
     @Override
@@ -50,14 +34,16 @@ public class LeafNode<K extends Comparable<K>, V> extends Node<K, V> {
         return true;
     }
 
-    @Override
     public V search(K key) {
         int index = Collections.binarySearch(keys, key, Comparator.naturalOrder());
         return index >= 0 ? values.get(index) : null;
     }
 
-    @Override
-    public SplitResult<K, LeafNode<K, V>> insert(K key, V value) {
+    boolean containsKey(K key) {
+        return Collections.binarySearch(keys, key, Comparator.naturalOrder()) >= 0;
+    }
+
+    public SplitResult<K, LeafNode<K, V>> insert(K key, V value) throws IOException {
         int index = Collections.binarySearch(keys, key, Comparator.naturalOrder());
         int insertionPoint = (index >= 0) ? index : -index - 1;
 
@@ -68,13 +54,15 @@ public class LeafNode<K extends Comparable<K>, V> extends Node<K, V> {
             values.add(insertionPoint, value);
         }
 
-        if (keys.size() < order) {
+        boolean overfull = serializedSize() > CAPACITY;
+        if (keys.size() < order && !overfull) {
+            markDirty();
             return null; // No split needed
         }
 
-        // Split the node
-        int mid = keys.size() / 2;
-        LeafNode<K, V> rightNode = new LeafNode<>(order, keySerializer, valueSerializer, bufferPool);
+        // Split the node: in the middle, or where the bytes balance if the page is what overflowed
+        int mid = overfull ? byteBalancedSplitPoint() : keys.size() / 2;
+        LeafNode<K, V> rightNode = nodeFactory.createLeafNode();
 
         rightNode.keys.addAll(keys.subList(mid, keys.size()));
         rightNode.values.addAll(values.subList(mid, values.size()));
@@ -84,14 +72,37 @@ public class LeafNode<K extends Comparable<K>, V> extends Node<K, V> {
         values.subList(mid, values.size()).clear();
 
         // Link the leaf nodes
-        rightNode.nextNode = this.nextNode;
-        this.nextNode = rightNode;
+        rightNode.nextPageId = this.nextPageId;
+        rightNode.prevPageId = this.pageId;
+        this.nextPageId = rightNode.pageId;
 
-        return new SplitResult<>(rightNode.getFirstKey(), rightNode);
+        rightNode.writeNode();
+        markDirty();
+        relinkPrev(rightNode.nextPageId, rightNode.pageId);
+        // The parent only needs a key between the two halves, which can be much shorter than a full key
+        return new SplitResult<>(keySerializer.separator(keys.get(mid - 1), rightNode.getFirstKey()), rightNode);
     }
 
-    @Override
-    public void delete(K key) {
+    private int byteBalancedSplitPoint() {
+        int n = keys.size();
+        byte[][] encoded = new byte[n][];
+        int[] entryBytes = new int[n + 1]; // entryBytes[i] = total size of entries [0, i) without prefix compression
+        for (int i = 0; i < n; i++) {
+            encoded[i] = keySerializer.serialize(keys.get(i));
+            entryBytes[i + 1] = entryBytes[i] + 4 + 4 + encoded[i].length + 4 + valueSerializer.getSerializedSize(values.get(i));
+        }
+        boolean compressed = keySerializer instanceof BinaryComparableSerializer;
+        return balancedSplitPoint(n, (from, to) -> {
+            int prefix = compressed && to - from > 1 ? commonPrefix(encoded[from], encoded[to - 1]) : 0;
+            return PREFIX + 4 + prefix + entryBytes[to] - entryBytes[from] - (to - from) * prefix;
+        });
+    }
+
+    /**
+     * Removes the key. The parent is only set (and latched) when the caller descended pessimistically,
+     * which is the only case in which the leaf may underflow.
+     */
+    public void delete(K key) throws IOException {
         int index = Collections.binarySearch(keys, key, Comparator.naturalOrder());
         if (index < 0) {
             return; // Key not found
@@ -99,6 +110,7 @@ public class LeafNode<K extends Comparable<K>, V> extends Node<K, V> {
 
         keys.remove(index);
         values.remove(index);
+        markDirty();
 
         if (parent != null && isUnderflow()) {
             parent.handleUnderflow(this, key);
@@ -110,81 +122,282 @@ public class LeafNode<K extends Comparable<K>, V> extends Node<K, V> {
         return keys.isEmpty() ? null : keys.get(0);
     }
 
+    K getLastKey() {
+        return keys.isEmpty() ? null : keys.get(keys.size() - 1);
+    }
+
+    /**
+     * Exact for the given entry: the key would neither push the leaf past order - 1 keys nor, with
+     * the shared prefix recomputed, past its page.
+     */
+    @Override
+    boolean isSafeForInsert(K key, V value) {
+        int index = Collections.binarySearch(keys, key, Comparator.naturalOrder());
+        int n = keys.size();
+        if (index >= 0) { // Only the value is replaced
+            int entryBytes = entryBytes() - entryBytes(key, values.get(index)) + entryBytes(key, value);
+            return sizeOf(keys.get(0), keys.get(n - 1), n, entryBytes) <= CAPACITY;
+        }
+        if (n >= order - 1) {
+            return false;
+        }
+        int position = -index - 1;
+        K first = position == 0 ? key : keys.get(0);
+        K last = position == n ? key : keys.get(n - 1);
+        return sizeOf(first, last, n + 1, entryBytes() + entryBytes(key, value)) <= CAPACITY;
+    }
+
+    @Override
+    boolean isSafeForDelete(K key) {
+        int index = Collections.binarySearch(keys, key, Comparator.naturalOrder());
+        int n = keys.size();
+        double threshold = nodeFactory.getMergeThreshold();
+        if (index < 0 || n - 1 >= minKeys(threshold)) {
+            return true;
+        }
+        if (n == 1) {
+            return false;
+        }
+        K first = keys.get(index == 0 ? 1 : 0);
+        K last = keys.get(index == n - 1 ? n - 2 : n - 1);
+        return sizeOf(first, last, n - 1, entryBytes() - entryBytes(key, values.get(index))) >= minBytes(threshold);
+    }
+
+    /**
+     * Whether this leaf and its right sibling fit in one page.
+     */
+    boolean fitsMergedWith(LeafNode<K, V> right) {
+        int count = keyCount() + right.keyCount();
+        if (count == 0) {
+            return true;
+        }
+        K first = keys.isEmpty() ? right.getFirstKey() : getFirstKey();
+        K last = right.keys.isEmpty() ? getLastKey() : right.getLastKey();
+        return sizeOf(first, last, count, entryBytes() + right.entryBytes()) <= CAPACITY;
+    }
+
+    @Override
+    int serializedSize() {
+        int n = keys.size();
+        return n == 0 ? PREFIX + 4 : sizeOf(keys.get(0), keys.get(n - 1), n, entryBytes());
+    }
+
+    /**
+     * Size of a leaf holding count entries from first to last whose entries, with full keys, take
+     * entryBytes: every key loses the prefix that first and last share, which is stored once.
+     */
+    private int sizeOf(K first, K last, int count, int entryBytes) {
+        int prefix = count > 1 && keySerializer instanceof BinaryComparableSerializer
+                ? commonPrefix(first, last) : 0;
+        return PREFIX + 4 + prefix + entryBytes - count * prefix;
+    }
+
+    private int entryBytes() {
+        int bytes = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            bytes += entryBytes(keys.get(i), values.get(i));
+        }
+        return bytes;
+    }
+
+    private int entryBytes(K key, V value) {
+        return 4 + 4 + keySerializer.getSerializedSize(key) + 4 + valueSerializer.getSerializedSize(value); // offset, key, value
+    }
+
+    /**
+     * Length of the prefix first and last share, comparing their encodings in the scratch buffer,
+     * which is left holding first's at its start.
+     */
+    private int commonPrefix(K first, K last) {
+        ByteBuffer scratch = scratch(keySerializer.getSerializedSize(first) + keySerializer.getSerializedSize(last));
+        keySerializer.write(first, scratch);
+        int firstSize = scratch.position();
+        keySerializer.write(last, scratch);
+        byte[] data = scratch.array();
+        int mismatch = Arrays.mismatch(data, 0, firstSize, data, firstSize, scratch.position());
+        return mismatch < 0 ? firstSize : mismatch;
+    }
+
+    private static int commonPrefix(byte[] a, byte[] b) {
+        int mismatch = Arrays.mismatch(a, b);
+        return mismatch < 0 ? a.length : mismatch;
+    }
+
+    /**
+     * The calling thread's buffer for encoding keys off the page, cleared and at least size bytes.
+     */
+    private static ByteBuffer scratch(int size) {
+        ByteBuffer scratch = SCRATCH.get();
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(Math.max(size, 2 * scratch.capacity()));
+            SCRATCH.set(scratch);
+        }
+        return scratch.clear();
+    }
+
     // Called by parent to give this node a key from a sibling
-    void borrowFromLeft(LeafNode<K, V> leftSibling, K parentKey) {
+    void borrowFromLeft(LeafNode<K, V> leftSibling, K parentKey) throws IOException {
         K borrowedKey = leftSibling.keys.remove(leftSibling.keyCount() - 1);
         V borrowedValue = leftSibling.values.remove(leftSibling.keyCount());
         this.keys.add(0, borrowedKey);
         this.values.add(0, borrowedValue);
-        parent.updateKey(parentKey, borrowedKey);
+        leftSibling.markDirty();
+        markDirty();
+        parent.updateKey(parentKey, keySerializer.separator(leftSibling.keys.get(leftSibling.keyCount() - 1), borrowedKey));
     }
 
-    void borrowFromRight(LeafNode<K, V> rightSibling, K parentKey) {
+    void borrowFromRight(LeafNode<K, V> rightSibling, K parentKey) throws IOException {
         K borrowedKey = rightSibling.keys.remove(0);
         V borrowedValue = rightSibling.values.remove(0);
         this.keys.add(borrowedKey);
         this.values.add(borrowedValue);
-        parent.updateKey(parentKey, rightSibling.getFirstKey());
+        rightSibling.markDirty();
+        markDirty();
+        parent.updateKey(parentKey, keySerializer.separator(borrowedKey, rightSibling.getFirstKey()));
     }
 
     // Called by parent to merge this node with a sibling
-    void mergeWithLeft(LeafNode<K, V> leftSibling, K parentKey) {
+    void mergeWithLeft(LeafNode<K, V> leftSibling, K parentKey) throws IOException {
         leftSibling.keys.addAll(this.keys);
         leftSibling.values.addAll(this.values);
-        leftSibling.nextNode = this.nextNode;
+        leftSibling.nextPageId = this.nextPageId;
+        leftSibling.markDirty();
+        relinkPrev(this.nextPageId, leftSibling.pageId);
+        nodeFactory.freeNode(this);
+        releaseBeforeRemoval(leftSibling);
         parent.removeChild(parentKey, this);
     }
 
-    public void mergeWithRight(LeafNode<K, V> rightSibling, K parentKey) {
+    public void mergeWithRight(LeafNode<K, V> rightSibling, K parentKey) throws IOException {
         this.keys.addAll(rightSibling.keys);
         this.values.addAll(rightSibling.values);
-        this.nextNode = rightSibling.nextNode;
+        this.nextPageId = rightSibling.nextPageId;
+        markDirty();
+        relinkPrev(rightSibling.nextPageId, pageId);
+        nodeFactory.freeNode(rightSibling);
+        releaseBeforeRemoval(rightSibling);
         parent.removeChild(parentKey, rightSibling);
     }
 
+    /**
+     * Lets go of the merged leaves before the parent drops a child, which may cascade into latching
+     * the parent's siblings. A writer that holds one of those while relinking a leaf further right
+     * would otherwise wait for these leaves in turn. The parent stays latched, so only cursors and
+     * relinkPrev can reach the leaves in the meantime.
+     */
+    private void releaseBeforeRemoval(LeafNode<K, V> sibling) {
+        nodeFactory.release(sibling);
+        nodeFactory.release(this);
+    }
+
+    /**
+     * Points the back link of the leaf on pageId (if any) at prevPageId. That leaf is to the right of
+     * every leaf the caller holds, so latching it keeps the left-to-right latch order.
+     */
+    void relinkPrev(int pageId, int prevPageId) throws IOException {
+        if (pageId == NO_PAGE) {
+            return;
+        }
+        LeafNode<K, V> leaf = (LeafNode<K, V>) nodeFactory.latchNode(pageId, true);
+        try {
+            leaf.prevPageId = prevPageId;
+            leaf.markDirty();
+        } finally {
+            nodeFactory.release(leaf);
+        }
+    }
+
+    /**
+     * Looks key up in a serialized leaf without decoding it; only the matching value is deserialized.
+     * A key that does not start with the leaf's shared prefix is rejected without a binary search.
+     */
+    static <K extends Comparable<K>, V> V searchInPlace(byte[] data, int base, SearchKey<K> key, Serializer<V> valueSerializer) {
+        int prefixLength = readInt(data, base + PREFIX);
+        if (prefixLength > 0 && key.comparePrefix(data, base + PREFIX + 4, prefixLength) != 0) {
+            return null;
+        }
+        int offsetTable = PREFIX + 4 + prefixLength;
+        int index = binarySearchInPlace(data, base, offsetTable, readInt(data, base + 1), key, prefixLength);
+        if (index < 0) {
+            return null;
+        }
+        int entry = base + readInt(data, base + offsetTable + 4 * index);
+        int valueAt = entry + 4 + readInt(data, entry);
+        int valueSize = readInt(data, valueAt);
+        return valueSerializer.read(ByteBuffer.wrap(data, valueAt + 4, valueSize));
+    }
+
+    /**
+     * Decodes the leaf at the buffer's position. Keys without a shared prefix and all values are read
+     * straight from the buffer through the serializers' read.
+     */
     @Override
-    public void deserialize(byte[] data) {
-        ByteBuffer buffer = ByteBuffer.wrap(data);
+    public void deserialize(ByteBuffer buffer) {
         buffer.get(); // Skip node type byte
         int numKeys = buffer.getInt();
+        nextPageId = buffer.getInt();
+        prevPageId = buffer.getInt();
+        byte[] prefix = new byte[buffer.getInt()];
+        buffer.get(prefix);
+        buffer.position(buffer.position() + 4 * numKeys); // Entries are stored in key order after the offset table
 
         for (int i = 0; i < numKeys; i++) {
-            int keySize = buffer.getInt();
-            byte[] keyBytes = new byte[keySize];
-            buffer.get(keyBytes);
-            K key = keySerializer.deserialize(keyBytes);
-            keys.add(key);
-
-            int valueSize = buffer.getInt();
-            byte[] valueBytes = new byte[valueSize];
-            buffer.get(valueBytes);
-            V value = valueSerializer.deserialize(valueBytes);
-            values.add(value);
+            int suffixSize = buffer.getInt();
+            if (prefix.length == 0) {
+                keys.add(read(keySerializer, buffer, suffixSize));
+            } else {
+                byte[] keyBytes = Arrays.copyOf(prefix, prefix.length + suffixSize);
+                buffer.get(keyBytes, prefix.length, suffixSize);
+                keys.add(keySerializer.deserialize(keyBytes));
+            }
+            values.add(read(valueSerializer, buffer, buffer.getInt()));
         }
     }
 
-    public byte[] serialize() {
-        // Calculate total size needed
-        int size = 1 + 4; // 1 byte for node type, 4 bytes for num_keys
-        for (int i = 0; i < keys.size(); i++) {
-            int keySize = keySerializer.getSerializedSize(keys.get(i));
-            int valueSize = valueSerializer.getSerializedSize(values.get(i));
-            size += 4 + keySize; // 4 bytes for key size
-            size += 4 + valueSize; // 4 bytes for value size
+    /**
+     * Layout: type (1), num_keys (4), next and previous leaf pageIds (4 each), the length (4) and
+     * bytes of the prefix all keys share, an offset table with the position of each entry, then the
+     * entries as key suffix size (4), key suffix, value size (4), value. The offset table lets
+     * searchInPlace binary-search the page bytes directly. Keys are only prefix-compressed with a
+     * binary-comparable serializer, for which the prefix of the first and last key is common to all.
+     *
+     * Entries are written in place and their sizes filled in behind them. A compressed key goes
+     * through the thread's scratch buffer so that only its suffix reaches the page.
+     */
+    @Override
+    public void serialize(ByteBuffer buffer) {
+        int n = keys.size();
+        int base = buffer.position();
+        int prefix = n > 1 && keySerializer instanceof BinaryComparableSerializer ? commonPrefix(keys.get(0), keys.get(n - 1)) : 0;
+        buffer.put(NodeFactory.LEAF_NODE);
+        buffer.putInt(n);
+        buffer.putInt(nextPageId);
+        buffer.putInt(prevPageId);
+        buffer.putInt(prefix);
+        if (prefix > 0) {
+            buffer.put(SCRATCH.get().array(), 0, prefix);
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(size);
-        buffer.put((byte) 1); // LeafNode type
-        buffer.putInt(keys.size());
+        int offsetTable = buffer.position();
+        buffer.position(offsetTable + 4 * n);
+        for (int i = 0; i < n; i++) {
+            int entry = buffer.position();
+            buffer.putInt(offsetTable + 4 * i, entry - base);
+            buffer.position(entry + 4);
+            if (prefix > 0) {
+                K key = keys.get(i);
+                ByteBuffer scratch = scratch(keySerializer.getSerializedSize(key));
+                keySerializer.write(key, scratch);
+                buffer.put(scratch.array(), prefix, scratch.position() - prefix);
+            } else {
+                keySerializer.write(keys.get(i), buffer);
+            }
+            buffer.putInt(entry, buffer.position() - entry - 4);
 
-        for (int i = 0; i < keys.size(); i++) {
-            byte[] keyBytes = keySerializer.serialize(keys.get(i));
-            byte[] valueBytes = valueSerializer.serialize(values.get(i));
-            buffer.putInt(keyBytes.length);
-            buffer.put(keyBytes);
-            buffer.putInt(valueBytes.length);
-            buffer.put(valueBytes);
+            int valueAt = buffer.position();
+            buffer.position(valueAt + 4);
+            valueSerializer.write(values.get(i), buffer);
+            buffer.putInt(valueAt, buffer.position() - valueAt - 4);
         }
-        return buffer.array();
     }
-}
\ No newline at end of file
+}
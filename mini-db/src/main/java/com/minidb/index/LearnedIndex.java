@@ -0,0 +1,271 @@
+package com.minidb.index;
+
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.RecordId;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-optimized primary index for int keys that are dense and roughly monotonic, such as an
+ * archival table that is loaded once and then mostly read. It is built from a sealed BPlusTree,
+ * whose entries are copied into a sorted key array and a parallel array of packed RecordIds. A
+ * piecewise-linear model maps every key to its position within maxError slots: a lookup finds the
+ * segment covering the key, evaluates that segment's line once and binary-searches only the few
+ * slots around the prediction.
+ *
+ * Segments are fitted greedily (the shrinking-cone method): a segment grows while some slope keeps
+ * every key it covers within maxError of its actual position, so dense keys need few segments and
+ * gaps in the keys start new ones.
+ *
+ * The sealed tree is never written again. Writes go to a delta BPlusTree that lookups consult
+ * first; deleting a sealed key stores TOMBSTONE there. The model is rebuilt from the sealed tree
+ * each time the index is opened. Only foldDelta, for going back to a plain B+ tree index, writes
+ * the delta's entries into the sealed tree.
+ */
+public class LearnedIndex implements Index<Integer, RecordId> {
+    // No record lives on page -1, so this never collides with a real RecordId
+    static final RecordId TOMBSTONE = new RecordId(-1, -1);
+
+    private final BPlusTree<Integer, RecordId> delta;
+    private final int maxError;
+    private final int[] keys;
+    private final long[] values; // IntBPlusTree.pack(pageId, slotId)
+    // Segment i covers positions segmentStarts[i] up to the next segment's start; the key at position
+    // p in it is predicted at segmentStarts[i] + slopes[i] * (key - segmentKeys[i])
+    private final int[] segmentKeys;
+    private final int[] segmentStarts;
+    private final double[] slopes;
+
+    public LearnedIndex(BPlusTree<Integer, RecordId> sealed, BPlusTree<Integer, RecordId> delta, int maxError) throws IOException {
+        if (maxError < 0) {
+            throw new IllegalArgumentException("maxError must not be negative, was " + maxError);
+        }
+        this.delta = delta;
+        this.maxError = maxError;
+
+        int[] sealedKeys = new int[1024];
+        long[] sealedValues = new long[1024];
+        int count = 0;
+        Iterator<Map.Entry<Integer, RecordId>> entries = sealed.scan();
+        while (entries.hasNext()) {
+            Map.Entry<Integer, RecordId> entry = entries.next();
+            if (count == sealedKeys.length) {
+                sealedKeys = Arrays.copyOf(sealedKeys, 2 * count);
+                sealedValues = Arrays.copyOf(sealedValues, 2 * count);
+            }
+            sealedKeys[count] = entry.getKey();
+            sealedValues[count] = IntBPlusTree.pack(entry.getValue().getPageId(), entry.getValue().getSlotId());
+            count++;
+        }
+        this.keys = Arrays.copyOf(sealedKeys, count);
+        this.values = Arrays.copyOf(sealedValues, count);
+
+        int[] starts = new int[16];
+        double[] fittedSlopes = new double[16];
+        int segments = 0;
+        int start = 0;
+        while (start < count) {
+            if (segments == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * segments);
+                fittedSlopes = Arrays.copyOf(fittedSlopes, 2 * segments);
+            }
+            // Narrow the range of slopes that keep every key so far within maxError until it is empty
+            double low = 0;
+            double high = Double.POSITIVE_INFINITY;
+            int end = start + 1;
+            for (; end < count; end++) {
+                double dx = (double) keys[end] - keys[start];
+                double lower = (end - start - maxError) / dx;
+                double upper = (end - start + maxError) / dx;
+                if (lower > high || upper < low) {
+                    break;
+                }
+                low = Math.max(low, lower);
+                high = Math.min(high, upper);
+            }
+            starts[segments] = start;
+            fittedSlopes[segments] = high == Double.POSITIVE_INFINITY ? 0 : (low + high) / 2;
+            segments++;
+            start = end;
+        }
+        this.segmentStarts = Arrays.copyOf(starts, segments);
+        this.slopes = Arrays.copyOf(fittedSlopes, segments);
+        this.segmentKeys = new int[segments];
+        for (int i = 0; i < segments; i++) {
+            segmentKeys[i] = keys[segmentStarts[i]];
+        }
+    }
+
+    /**
+     * Applies the writes collected in delta to sealed, which is then a complete B+ tree index again,
+     * and empties delta. sealed is flushed before delta is touched, and applying entries that are
+     * already in sealed changes nothing, so a crash in between is made good by folding again.
+     * @return The number of delta entries applied.
+     */
+    public static int foldDelta(BPlusTree<Integer, RecordId> sealed, BPlusTree<Integer, RecordId> delta, BufferPool bufferPool) throws IOException {
+        List<Map.Entry<Integer, RecordId>> entries = new ArrayList<>();
+        Iterator<Map.Entry<Integer, RecordId>> scan = delta.scan();
+        while (scan.hasNext()) {
+            entries.add(scan.next());
+        }
+        for (Map.Entry<Integer, RecordId> entry : entries) {
+            if (TOMBSTONE.equals(entry.getValue())) {
+                sealed.delete(entry.getKey());
+            } else {
+                sealed.insert(entry.getKey(), entry.getValue());
+            }
+        }
+        bufferPool.flushAllPages();
+        for (Map.Entry<Integer, RecordId> entry : entries) {
+            delta.delete(entry.getKey());
+        }
+        bufferPool.flushAllPages();
+        return entries.size();
+    }
+
+    @Override
+    public void insert(Integer key, RecordId value) throws IOException {
+        delta.insert(key, value);
+    }
+
+    @Override
+    public void delete(Integer key) throws IOException {
+        if (sealedPosition(key) >= 0) {
+            delta.insert(key, TOMBSTONE);
+        } else {
+            delta.delete(key);
+        }
+    }
+
+    @Override
+    public RecordId search(Integer key) throws IOException {
+        RecordId recent = delta.search(key);
+        if (recent != null) {
+            return TOMBSTONE.equals(recent) ? null : recent;
+        }
+        int position = sealedPosition(key);
+        return position >= 0 ? unpack(values[position]) : null;
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, RecordId>> scan() throws IOException {
+        return scan(null, null);
+    }
+
+    /**
+     * Entries with low <= key <= high in key order, the delta's shadowing the sealed ones. A null
+     * bound leaves that end open.
+     */
+    public Iterator<Map.Entry<Integer, RecordId>> scan(Integer low, Integer high) throws IOException {
+        Cursor<Integer, RecordId> deltaCursor = delta.cursor(high, Long.MAX_VALUE);
+        if (low == null) {
+            deltaCursor.seekFirst();
+        } else {
+            deltaCursor.seek(low);
+        }
+        int position = low == null ? 0 : sealedPosition(low);
+        return new MergedIterator(deltaCursor, position < 0 ? -position - 1 : position, high);
+    }
+
+    /**
+     * The key's position in the sealed arrays, or -(insertion point) - 1. Only the slots the
+     * covering segment predicts within maxError (plus one for rounding) are searched.
+     */
+    int sealedPosition(int key) {
+        int segment = Arrays.binarySearch(segmentKeys, key);
+        if (segment >= 0) {
+            return segmentStarts[segment];
+        }
+        segment = -segment - 2; // The segment starting below key
+        if (segment < 0) {
+            return -1;
+        }
+        int start = segmentStarts[segment];
+        int end = segment + 1 < segmentStarts.length ? segmentStarts[segment + 1] : keys.length;
+        long predicted = start + Math.round(slopes[segment] * ((double) key - segmentKeys[segment]));
+        int from = (int) Math.max(start, predicted - maxError - 1);
+        int to = (int) Math.min(end, predicted + maxError + 2);
+        if (from >= to) { // Predicted past every key of the segment, which only a larger key can be
+            return -end - 1;
+        }
+        return Arrays.binarySearch(keys, from, to, key);
+    }
+
+    public int getSegmentCount() {
+        return segmentStarts.length;
+    }
+
+    public int getSealedEntries() {
+        return keys.length;
+    }
+
+    private static RecordId unpack(long value) {
+        return new RecordId(IntBPlusTree.pageIdOf(value), IntBPlusTree.slotIdOf(value));
+    }
+
+    /**
+     * Merges the delta cursor with the sealed arrays; a delta entry hides the sealed entry with the
+     * same key, and tombstones hide both.
+     */
+    private final class MergedIterator implements Iterator<Map.Entry<Integer, RecordId>> {
+        private final Cursor<Integer, RecordId> deltaCursor;
+        private final Integer high;
+        private int position;
+        private Map.Entry<Integer, RecordId> deltaEntry;
+        private Map.Entry<Integer, RecordId> next;
+
+        MergedIterator(Cursor<Integer, RecordId> deltaCursor, int position, Integer high) {
+            this.deltaCursor = deltaCursor;
+            this.position = position;
+            this.high = high;
+            this.next = advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<Integer, RecordId> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<Integer, RecordId> entry = next;
+            next = advance();
+            return entry;
+        }
+
+        private Map.Entry<Integer, RecordId> advance() {
+            while (true) {
+                if (deltaEntry == null && deltaCursor.hasNext()) {
+                    deltaEntry = deltaCursor.next();
+                }
+                boolean sealedLeft = position < keys.length && (high == null || keys[position] <= high);
+                if (deltaEntry == null || (sealedLeft && keys[position] < deltaEntry.getKey())) {
+                    if (!sealedLeft) {
+                        return null;
+                    }
+                    Map.Entry<Integer, RecordId> entry = new AbstractMap.SimpleEntry<>(keys[position], unpack(values[position]));
+                    position++;
+                    return entry;
+                }
+                if (sealedLeft && keys[position] == deltaEntry.getKey()) {
+                    position++;
+                }
+                Map.Entry<Integer, RecordId> entry = deltaEntry;
+                deltaEntry = null;
+                if (!TOMBSTONE.equals(entry.getValue())) {
+                    return entry;
+                }
+            }
+        }
+    }
+}
@@ -4,28 +4,76 @@ import com.minidb.storage.BufferPool;
 import com.minidb.storage.Page;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.List;
+import java.util.function.IntBinaryOperator;
 
 public abstract class Node<K extends Comparable<K>, V> {
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    /** Bytes a node can take up in its page. */
+    static final int CAPACITY = Page.PAGE_SIZE - Page.HEADER_SIZE;
+    /**
+     * Longest encoded key the tree accepts. It keeps several entries in every node and bounds the
+     * separator an internal node may have to take in, which makes isSafeForInsert decidable.
+     */
+    public static final int MAX_KEY_SIZE = CAPACITY / 8;
+    /**
+     * Longest encoded value the tree accepts, so that a leaf entry stays well under half a page and
+     * a leaf split by bytes always yields two halves that fit.
+     */
+    public static final int MAX_VALUE_SIZE = CAPACITY / 4;
+    static final int MAX_INTERNAL_ENTRY = 4 + 4 + MAX_KEY_SIZE + 4; // offset, key size, key, child pageId
+    /** Share of a node that merging and borrowing aim for, and that bulk loading never goes below. */
+    static final double TARGET_FILL = 0.5;
+
     public int pageId;
     protected final int order;
     protected final List<K> keys;
     protected final Serializer<K> keySerializer;
     protected final Serializer<V> valueSerializer;
+    // Only valid for the duration of one tree operation: set when the node is loaded during the descent.
     protected InternalNode<K, V> parent;
     protected final BufferPool bufferPool;
+    protected final NodeFactory<K, V> nodeFactory;
+    // Frame held while the node is latched by the current operation (see NodeFactory.latchNode)
+    Page latchedPage;
+    int latchedPageId;
+    boolean latchedExclusive;
+    // Changed since it was latched. A node latched exclusively is written to its page once, when the
+    // latch is released (NodeFactory.release), however many steps of the operation changed it.
+    boolean dirty;
 
-    public abstract void deserialize(byte[] data);
-    public abstract byte[] serialize();
+    /**
+     * Decodes the node stored at the buffer's position; the buffer is not kept.
+     */
+    public abstract void deserialize(ByteBuffer buffer);
+
+    /**
+     * Encodes the node at the buffer's position, which must have room for serializedSize() bytes.
+     * Offsets inside the node are relative to that position.
+     */
+    public abstract void serialize(ByteBuffer buffer);
     public abstract void writeNode() throws IOException;
-    public abstract void readNode() throws IOException;
 
-    public Node(int order, List<K> keys, Serializer<K> keySerializer, Serializer<V> valueSerializer, BufferPool bufferPool) {
-        this.order = order;
+    /**
+     * Defers the write of a latched node to its release. New nodes, which nobody has latched, are
+     * written with writeNode before any node pointing at them is released.
+     */
+    void markDirty() {
+        dirty = true;
+    }
+
+    public Node(NodeFactory<K, V> nodeFactory, List<K> keys) {
+        this.nodeFactory = nodeFactory;
+        this.order = nodeFactory.getOrder();
         this.keys = keys;
-        this.keySerializer = keySerializer;
-        this.valueSerializer = valueSerializer;
-        this.bufferPool = bufferPool;
+        this.keySerializer = nodeFactory.getKeySerializer();
+        this.valueSerializer = nodeFactory.getValueSerializer();
+        this.bufferPool = nodeFactory.getBufferPool();
     }
 
     public int keyCount() {
@@ -34,19 +82,142 @@ public abstract class Node<K extends Comparable<K>, V> {
 
     public abstract boolean isLeaf();
 
-    public abstract V search(K key);
-
-    public abstract SplitResult<K, ? extends Node<K, V>> insert(K key, V value) throws IOException;
-        public abstract void delete(K key) throws IOException;
-
     public abstract K getFirstKey();
 
     /**
-     * A node is under-full if it has fewer than ceil(order/2) - 1 keys.
-     * For simplicity, we'll use (order-1)/2.
+     * A node is under-full, and is rebalanced by the delete that made it so, if it is below the
+     * tree's merge threshold (NodeFactory.getMergeThreshold).
      */
     protected boolean isUnderflow() {
-        return keys.size() < (order - 1) / 2;
+        return isBelowFill(nodeFactory.getMergeThreshold());
+    }
+
+    /**
+     * Whether the node has fewer than fill * (order - 1) keys and fills less than that share of its
+     * page. Nodes of long keys fill their page long before they reach order keys, so they are judged
+     * by bytes.
+     */
+    boolean isBelowFill(double fill) {
+        return keys.size() < minKeys(fill) && serializedSize() < minBytes(fill);
+    }
+
+    int minKeys(double fill) {
+        return (int) ((order - 1) * fill);
+    }
+
+    static int minBytes(double fill) {
+        return (int) (CAPACITY * fill);
+    }
+
+    /**
+     * A node is safe for an insert if one more key cannot make it split. For an internal node that
+     * key is a separator from a child split, of at most MAX_KEY_SIZE bytes.
+     */
+    boolean isSafeForInsert(K key, V value) {
+        return keys.size() < order - 1 && serializedSize() + MAX_INTERNAL_ENTRY <= CAPACITY;
+    }
+
+    /**
+     * A node is safe for a delete if losing one key cannot make it underflow. An internal node loses
+     * the separator of a merged child, of at most MAX_KEY_SIZE bytes.
+     */
+    boolean isSafeForDelete(K key) {
+        double threshold = nodeFactory.getMergeThreshold();
+        return keys.size() - 1 >= minKeys(threshold) || serializedSize() - MAX_INTERNAL_ENTRY >= minBytes(threshold);
+    }
+
+    /**
+     * Number of bytes serialize writes.
+     */
+    abstract int serializedSize();
+
+    /**
+     * Picks where to split entries [0, n) so that the larger of the two halves is as small as possible.
+     * The halves [0, m) and [m, n) have sizes sizeOfRange(0, m) and sizeOfRange(m, n).
+     */
+    static int balancedSplitPoint(int n, IntBinaryOperator sizeOfRange) {
+        int best = n / 2;
+        int bestSize = Integer.MAX_VALUE;
+        for (int m = 1; m < n; m++) {
+            int size = Math.max(sizeOfRange.applyAsInt(0, m), sizeOfRange.applyAsInt(m, n));
+            if (size < bestSize) {
+                best = m;
+                bestSize = size;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Serializes this node into its page, stamping the page type in the header.
+     * If the node holds its page latched exclusively the frame is written directly; otherwise the
+     * page is pinned for the write (new pages nobody else can reach yet, or pages whose latch is held
+     * through another node object, such as the root page during a root split).
+     */
+    protected void writeToPage(byte pageType) throws IOException {
+        int size = serializedSize();
+        if (size > CAPACITY) {
+            throw new IOException("B+ tree node of " + size + " bytes does not fit in page " + pageId);
+        }
+        boolean held = latchedPage != null && latchedExclusive && latchedPageId == pageId;
+        Page page = held ? latchedPage : bufferPool.getPage(pageId);
+        try {
+            page.setPageType(pageType);
+            serialize(ByteBuffer.wrap(page.getData(), Page.HEADER_SIZE, CAPACITY));
+            page.setDirty(true);
+            nodeFactory.countWrite();
+        } finally {
+            if (!held) {
+                bufferPool.unpinPage(pageId, true);
+            }
+        }
+    }
+
+    /**
+     * Reads a size-byte value at the buffer's position through the serializer, leaving the buffer
+     * just past it.
+     */
+    static <T> T read(Serializer<T> serializer, ByteBuffer buffer, int size) {
+        int limit = buffer.limit();
+        int end = buffer.position() + size;
+        buffer.limit(end);
+        T value = serializer.read(buffer);
+        buffer.limit(limit).position(end);
+        return value;
+    }
+
+    static int readInt(byte[] data, int offset) {
+        return (int) INT.get(data, offset);
+    }
+
+    /**
+     * Binary search over a serialized node's keys without decoding it. Each key is reached through
+     * the node's offset table and stored as length (4) followed by the key bytes.
+     *
+     * @param base          where the node starts in data
+     * @param offsetTable   position of the offset table relative to base
+     * @param prefixLength  length of the prefix stripped from every stored key, which the caller has
+     *                      already matched against key (see SearchKey.comparePrefix); 0 if none
+     * @return the index of the key, or -(insertion point) - 1
+     */
+    static <K extends Comparable<K>> int binarySearchInPlace(byte[] data, int base, int offsetTable, int numKeys, SearchKey<K> key, int prefixLength) {
+        int low = 0;
+        int high = numKeys - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = base + readInt(data, base + offsetTable + 4 * mid);
+            int cmp = prefixLength == 0
+                    ? key.compareStored(data, entry + 4, readInt(data, entry))
+                    : key.compareSuffix(data, entry + 4, readInt(data, entry), prefixLength);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
     }
 
     public static class SplitResult<K extends Comparable<K>, N extends Node<K, ?>> {
@@ -65,4 +236,4 @@ public abstract class Node<K extends Comparable<K>, V> {
     public void debugInsert(K key, V value) {
         System.out.println("Node.debugInsert: This should not be called directly.");
     }
-}
\ No newline at end of file
+}
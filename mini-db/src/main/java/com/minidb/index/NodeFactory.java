@@ -1,39 +1,55 @@
 package com.minidb.index;
 
 import com.minidb.storage.BufferPool;
+import com.minidb.storage.Page;
+import com.minidb.storage.PageManager;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class NodeFactory<K extends Comparable<K>, V> {
+    public static final byte LEAF_NODE = 1;
+    public static final byte INTERNAL_NODE = 2;
+
     private final Serializer<K> keySerializer;
     private final Serializer<V> valueSerializer;
     private final int order;
     private final BufferPool bufferPool;
+    private final PageManager pageManager;
+    private volatile double mergeThreshold = Node.TARGET_FILL;
+    private final LongAdder nodeWrites = new LongAdder();
 
-    public NodeFactory(Serializer<K> keySerializer, Serializer<V> valueSerializer, int order, BufferPool bufferPool) {
+    public NodeFactory(Serializer<K> keySerializer, Serializer<V> valueSerializer, int order, BufferPool bufferPool, PageManager pageManager) {
         this.keySerializer = keySerializer;
         this.valueSerializer = valueSerializer;
         this.order = order;
         this.bufferPool = bufferPool;
+        this.pageManager = pageManager;
     }
 
     /**
-     * Given raw bytes and pageId, reconstruct the right Node
+     * Given the raw bytes of a node starting at offset and its pageId, reconstruct the right Node
      * Leaf or Internal
      */
-    public Node<K,V> fromBytes(byte[] data, int pageId) {
-        byte flag = data[0];
+    public Node<K,V> fromBytes(byte[] data, int offset, int pageId) {
+        byte flag = data[offset];
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, data.length - offset);
         Node<K,V> node;
 
         switch (flag) {
-            case 1:
-                LeafNode<K,V> leaf = new LeafNode<>(order, keySerializer, valueSerializer, bufferPool);
+            case LEAF_NODE:
+                LeafNode<K,V> leaf = new LeafNode<>(this);
                 leaf.pageId = pageId;
-                leaf.deserialize(data);
+                leaf.deserialize(buffer);
                 node = leaf;
                 break;
-            case 2:
-                InternalNode<K,V> internal = new InternalNode<>(order, keySerializer, valueSerializer, bufferPool);
+            case INTERNAL_NODE:
+                InternalNode<K,V> internal = new InternalNode<>(this);
                 internal.pageId = pageId;
-                internal.deserialize(data);
+                internal.deserialize(buffer);
                 node = internal;
                 break;
             default:
@@ -42,11 +58,234 @@ public class NodeFactory<K extends Comparable<K>, V> {
         return node;
     }
 
+    /**
+     * Loads the node stored on the given page through the buffer pool.
+     * The page is only latched while it is being decoded.
+     */
+    public Node<K, V> readNode(int pageId) throws IOException {
+        Node<K, V> node = latchNode(pageId, false);
+        release(node);
+        return node;
+    }
+
+    /**
+     * Pins the node's page and holds its latch until release(), so the node can be used for
+     * latch crabbing. Writes of a node latched exclusively go straight into the held frame.
+     */
+    public Node<K, V> latchNode(int pageId, boolean exclusive) throws IOException {
+        Page page = pin(pageId);
+        if (exclusive) {
+            page.getLatch().writeLock().lock();
+        } else {
+            page.getLatch().readLock().lock();
+        }
+        return attach(page, pageId, exclusive);
+    }
+
+    /**
+     * Latch used while descending: shared for internal nodes, and exclusive for the leaf when
+     * exclusiveLeaf is set. The page type in the header decides which mode is needed before the
+     * node is looked at; only the root can change type while unlatched, so the check is repeated.
+     * The page is returned pinned and latched; release it with releasePage or decode it.
+     */
+    public Page latchPageForDescent(int pageId, boolean exclusiveLeaf) throws IOException {
+        Page page = pin(pageId);
+        ReentrantReadWriteLock latch = page.getLatch();
+        latch.readLock().lock();
+        boolean exclusive = false;
+        while (exclusiveLeaf && (page.getPageType() == LEAF_NODE) != exclusive) {
+            if (exclusive) {
+                latch.writeLock().unlock();
+                latch.readLock().lock();
+            } else {
+                latch.readLock().unlock();
+                latch.writeLock().lock();
+            }
+            exclusive = !exclusive;
+        }
+        return page;
+    }
+
+    /**
+     * Decodes a page latched by latchPageForDescent; the node takes over the latch and pin.
+     */
+    public Node<K, V> decodeLatched(Page page) {
+        return attach(page, page.getPageId(), page.getLatch().isWriteLockedByCurrentThread());
+    }
+
+    public void releasePage(Page page) {
+        if (page.getLatch().isWriteLockedByCurrentThread()) {
+            page.getLatch().writeLock().unlock();
+        } else {
+            page.getLatch().readLock().unlock();
+        }
+        bufferPool.unpinPage(page.getPageId(), false);
+    }
+
+    /**
+     * Drops the node's latch and pin, writing the node to its page first if it was changed. The
+     * decoded node stays usable as a private copy.
+     */
+    public void release(Node<K, V> node) {
+        if (node.latchedPage == null) {
+            return;
+        }
+        try {
+            if (node.dirty && node.latchedExclusive) {
+                node.writeNode();
+                node.dirty = false;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            unlatch(node);
+        }
+    }
+
+    /**
+     * Drops the node's latch and pin but keeps its changes unwritten, for a node that is relatched
+     * while the caller still holds its parent; until then readers see the page as it was before
+     * the operation.
+     */
+    void unlatch(Node<K, V> node) {
+        if (node.latchedPage == null) {
+            return;
+        }
+        if (node.latchedExclusive) {
+            node.latchedPage.getLatch().writeLock().unlock();
+        } else {
+            node.latchedPage.getLatch().readLock().unlock();
+        }
+        bufferPool.unpinPage(node.latchedPageId, false);
+        node.latchedPage = null;
+    }
+
+    /**
+     * Takes the exclusive latch again on a node that was released or unlatched while its parent
+     * stayed latched.
+     */
+    public void relatch(Node<K, V> node) throws IOException {
+        Page page = pin(node.latchedPageId);
+        page.getLatch().writeLock().lock();
+        node.latchedPage = page;
+        node.latchedExclusive = true;
+    }
+
+    private Page pin(int pageId) throws IOException {
+        Page page = bufferPool.getPage(pageId);
+        if (page == null) {
+            throw new IOException("Could not read B+ tree page " + pageId);
+        }
+        return page;
+    }
+
+    private Node<K, V> attach(Page page, int pageId, boolean exclusive) {
+        Node<K, V> node;
+        try {
+            node = fromBytes(page.getData(), Page.HEADER_SIZE, pageId); // Decoded from the latched frame
+        } catch (RuntimeException e) {
+            if (exclusive) {
+                page.getLatch().writeLock().unlock();
+            } else {
+                page.getLatch().readLock().unlock();
+            }
+            bufferPool.unpinPage(pageId, false);
+            throw e;
+        }
+        node.latchedPage = page;
+        node.latchedPageId = pageId;
+        node.latchedExclusive = exclusive;
+        return node;
+    }
+
+    /**
+     * Creates a new leaf on a freshly allocated page.
+     */
     public LeafNode<K, V> createLeafNode() {
-        return new LeafNode<>(order, keySerializer, valueSerializer, bufferPool);
+        return createLeafNode(pageManager.allocatePage());
+    }
+
+    public LeafNode<K, V> createLeafNode(int pageId) {
+        LeafNode<K, V> leaf = new LeafNode<>(this);
+        leaf.pageId = pageId;
+        leaf.latchedPageId = pageId;
+        return leaf;
     }
 
+    /**
+     * Creates a new internal node on a freshly allocated page.
+     */
     public InternalNode<K, V> createInternalNode() {
-        return new InternalNode<>(order, keySerializer, valueSerializer, bufferPool);
+        return createInternalNode(pageManager.allocatePage());
+    }
+
+    public InternalNode<K, V> createInternalNode(int pageId) {
+        InternalNode<K, V> internal = new InternalNode<>(this);
+        internal.pageId = pageId;
+        internal.latchedPageId = pageId;
+        return internal;
+    }
+
+    /**
+     * Returns the page of a node that was merged away to the free list, cleared to an empty data
+     * page so that neither the heap nor a new tree mistakes it for the node it held.
+     */
+    public void freeNode(int pageId) {
+        try {
+            Page page = pin(pageId);
+            page.clear();
+            bufferPool.unpinPage(pageId, true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        pageManager.freePage(pageId);
+    }
+
+    /**
+     * Frees the node's page and drops its pending write, which must not land on a page the
+     * allocator may already have handed out again.
+     */
+    public void freeNode(Node<K, V> node) {
+        node.dirty = false;
+        freeNode(node.pageId);
+    }
+
+    public int allocatePage() {
+        return pageManager.allocatePage();
+    }
+
+    public Serializer<K> getKeySerializer() {
+        return keySerializer;
+    }
+
+    public Serializer<V> getValueSerializer() {
+        return valueSerializer;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    /**
+     * Fill below which a delete rebalances its node right away (see Node.isUnderflow).
+     */
+    public double getMergeThreshold() {
+        return mergeThreshold;
+    }
+
+    void setMergeThreshold(double mergeThreshold) {
+        this.mergeThreshold = mergeThreshold;
+    }
+
+    void countWrite() {
+        nodeWrites.increment();
+    }
+
+    long getNodeWrites() {
+        return nodeWrites.sum();
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,52 @@
+package com.minidb.index;
+
+import java.util.Arrays;
+
+/**
+ * A key prepared for comparison against keys stored in page bytes. With a binary-comparable
+ * serializer the search key is encoded once and every comparison is a bytewise one over the page;
+ * otherwise only the probed keys are deserialized.
+ */
+final class SearchKey<K extends Comparable<K>> {
+    private final K key;
+    private final Serializer<K> serializer;
+    private final byte[] encoded;
+
+    SearchKey(K key, Serializer<K> serializer) {
+        this.key = key;
+        this.serializer = serializer;
+        this.encoded = serializer instanceof BinaryComparableSerializer ? serializer.serialize(key) : null;
+    }
+
+    K getKey() {
+        return key;
+    }
+
+    /**
+     * Compares the stored key in data[offset, offset + length) with this key, like storedKey.compareTo(key).
+     */
+    int compareStored(byte[] data, int offset, int length) {
+        if (encoded != null) {
+            return Arrays.compareUnsigned(data, offset, offset + length, encoded, 0, encoded.length);
+        }
+        return serializer.deserialize(Arrays.copyOfRange(data, offset, offset + length)).compareTo(key);
+    }
+
+    /**
+     * Compares the prefix that every key of a prefix-compressed node starts with against this key:
+     * negative or positive when all of the node's keys sort before or after this key, 0 when this key
+     * starts with the prefix too, and its remaining bytes decide (see compareSuffix). Only
+     * binary-comparable keys are prefix-compressed.
+     */
+    int comparePrefix(byte[] data, int offset, int length) {
+        return Arrays.compareUnsigned(data, offset, offset + length, encoded, 0, Math.min(length, encoded.length));
+    }
+
+    /**
+     * Like compareStored for a key stored as the node's prefix followed by data[offset, offset + length),
+     * once comparePrefix has returned 0.
+     */
+    int compareSuffix(byte[] data, int offset, int length, int prefixLength) {
+        return Arrays.compareUnsigned(data, offset, offset + length, encoded, prefixLength, encoded.length);
+    }
+}
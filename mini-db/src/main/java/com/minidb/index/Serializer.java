@@ -1,7 +1,36 @@
 package com.minidb.index;
 
+import java.nio.ByteBuffer;
+
 public interface Serializer<T> {
     public byte[] serialize(T obj);
     public T deserialize(byte[] data);
     int getSerializedSize(T obj);
-}
\ No newline at end of file
+
+    /**
+     * Writes obj at the buffer's position, advancing it by getSerializedSize(obj). Nodes are encoded
+     * this way straight into their page frame; fixed-size serializers override it to put their
+     * primitives without allocating.
+     */
+    default void write(T obj, ByteBuffer buffer) {
+        buffer.put(serialize(obj));
+    }
+
+    /**
+     * Reads a value written by write from all of the buffer's remaining bytes.
+     */
+    default T read(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return deserialize(data);
+    }
+
+    /**
+     * Returns a key s with left < s <= right to separate two neighbouring nodes in their parent.
+     * Serializers of variable length keys return the shortest such key, so internal nodes store
+     * truncated separators instead of whole keys; the default is right itself.
+     */
+    default T separator(T left, T right) {
+        return right;
+    }
+}
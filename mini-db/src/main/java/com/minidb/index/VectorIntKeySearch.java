@@ -0,0 +1,59 @@
+package com.minidb.index;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * IntKeySearch.find on the Vector API. Binary search stops once at most WINDOW keys are left; the
+ * keys are sorted, so the lanes below the probe key form a prefix of each vector and counting them
+ * gives the insertion point without a branch per key. Only loaded when the module is present.
+ */
+final class VectorIntKeySearch {
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+    private static final int WINDOW = 2 * LANES;
+
+    private VectorIntKeySearch() {
+    }
+
+    static int find(byte[] data, int offset, int count, int key) {
+        // The insertion point stays within [low, high]
+        int low = 0;
+        int high = count;
+        while (high - low > WINDOW) {
+            int mid = (low + high) >>> 1;
+            int midKey = (int) INT.get(data, offset + 4 * mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid;
+            } else {
+                return mid;
+            }
+        }
+
+        int position = low;
+        for (; position + LANES <= high; position += LANES) {
+            IntVector keys = IntVector.fromByteArray(SPECIES, data, offset + 4 * position, ByteOrder.BIG_ENDIAN);
+            int less = keys.compare(VectorOperators.LT, key).trueCount();
+            if (less < LANES) {
+                position += less;
+                return found(data, offset, count, position, key);
+            }
+        }
+        while (position < high && (int) INT.get(data, offset + 4 * position) < key) {
+            position++;
+        }
+        return found(data, offset, count, position, key);
+    }
+
+    private static int found(byte[] data, int offset, int count, int position, int key) {
+        return position < count && (int) INT.get(data, offset + 4 * position) == key ? position : -(position + 1);
+    }
+}
@@ -1,29 +1,29 @@
 package com.minidb.log;
 
-import com.minidb.storage.RecordId;
-import com.minidb.storage.RecordStorage;
+import com.minidb.storage.TableStorage;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 
 public class RecoveryManager {
 
     private final WALManager walManager;
-    private final RecordStorage recordStorage;
+    private final TableStorage<?> recordStorage;
 
-    public RecoveryManager(WALManager walManager, RecordStorage recordStorage) {
+    public RecoveryManager(WALManager walManager, TableStorage<?> recordStorage) {
         this.walManager = walManager;
         this.recordStorage = recordStorage;
     }
 
     public void recover() throws IOException {
         Map<Long, LogRecord> records = new HashMap<>();
-        Set<Long> doneLsns = new HashSet<>();
+        // LSNs of the records a DONE record completes, so they are redone in log order
+        NavigableSet<Long> doneLsns = new TreeSet<>();
 
         // 1. Read all records from WAL
         try (FileChannel channel = walManager.getChannelForRecovery()) {
@@ -46,27 +46,25 @@ public class RecoveryManager {
                 LogRecord record = LogRecord.deserialize(recordBuffer);
 
                 if (record != null && record.isValid()) {
-                    records.put(record.getLsn(), record);
                     if (record.getType() == LogRecord.OP_DONE) {
-                        doneLsns.add(record.getLsn());
+                        // The original LSN is stored in the DONE record's key field (8 bytes)
+                        byte[] lsnBytes = record.getKey();
+                        if (lsnBytes != null && lsnBytes.length == 8) {
+                            doneLsns.add(ByteBuffer.wrap(lsnBytes).getLong());
+                        }
+                    } else {
+                        records.put(record.getLsn(), record);
                     }
                 }
             }
         }
 
-        // 2. Redo completed operations
-        for (long lsn : doneLsns) {
-            LogRecord doneRecord = records.get(lsn);
-            if (doneRecord != null && doneRecord.getType() == LogRecord.OP_DONE) {
-                // The original LSN is stored in the DONE record's key field (8 bytes)
-                byte[] lsnBytes = doneRecord.getKey();
-                if (lsnBytes != null && lsnBytes.length == 8) {
-                    long originalLsn = ByteBuffer.wrap(lsnBytes).getLong();
-                    LogRecord originalRecord = records.get(originalLsn);
-                    if (originalRecord != null) {
-                        redo(originalRecord);
-                    }
-                }
+        // 2. Redo completed operations the storage has not made durable itself, oldest first: later
+        // writes to a key must land after earlier ones
+        for (long lsn : doneLsns.tailSet(recordStorage.getDurableLsn(), false)) {
+            LogRecord originalRecord = records.get(lsn);
+            if (originalRecord != null) {
+                redo(originalRecord);
             }
         }
     }
@@ -74,11 +72,10 @@ public class RecoveryManager {
     private void redo(LogRecord record) throws IOException {
         switch (record.getType()) {
             case LogRecord.OP_PUT:
-                recordStorage.insertRecordForRecovery(record.getValue());
+                recordStorage.insertRecordForRecovery(record.getLsn(), record.getValue());
                 break;
             case LogRecord.OP_DELETE:
-                RecordId rid = RecordId.deserialize(record.getKey());
-                recordStorage.deleteRecordForRecovery(rid);
+                recordStorage.deleteRecordForRecovery(record.getLsn(), record.getKey());
                 break;
         }
     }
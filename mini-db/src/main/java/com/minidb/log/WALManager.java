@@ -96,6 +96,23 @@ public class WALManager implements Closeable {
         return recordWithLsn.getLsn();
     }
 
+    /**
+     * Appends r and the DONE record for it, then flushes once. For storage that applies an operation
+     * only after it is logged and cannot fail to apply it, so the DONE record may precede the apply.
+     * Returns r's LSN.
+     */
+    public synchronized long appendWithDoneAndFlush(LogRecord r) throws IOException {
+        LogRecord recordWithLsn = append(r);
+        byte[] lsnBytes = ByteBuffer.allocate(8).putLong(recordWithLsn.getLsn()).array();
+        LogRecord doneRecord = append(new LogRecord(0, LogRecord.OP_DONE, r.getTxId(), lsnBytes, null));
+        flush();
+        for (WALListener listener : listeners) {
+            listener.onNewRecord(recordWithLsn);
+            listener.onNewRecord(doneRecord);
+        }
+        return recordWithLsn.getLsn();
+    }
+
     public synchronized void appendPredefined(LogRecord record) throws IOException {
         byte[] serialized = record.serialize();
         channel.write(ByteBuffer.wrap(serialized));
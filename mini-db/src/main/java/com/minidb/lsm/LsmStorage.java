@@ -0,0 +1,172 @@
+package com.minidb.lsm;
+
+import com.minidb.index.BinaryComparableSerializer;
+import com.minidb.index.Serializer;
+import com.minidb.log.LogRecord;
+import com.minidb.log.WALManager;
+import com.minidb.storage.KeyType;
+import com.minidb.storage.RecordsSerializer;
+import com.minidb.storage.RecordsSerializer.Row;
+import com.minidb.storage.TableStatistics;
+import com.minidb.storage.TableStorage;
+import com.minidb.txn.Transaction;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Write-optimized storage for the kv table in an LsmTree: the key is the serialized primary key and
+ * the value the serialized row. An insert logs the row and its DONE record with a single WAL flush
+ * and then only adds to the memtable, with no heap page or index page to update; files are written
+ * sequentially by flushes and compactions in the background. Lookups may check several files, and
+ * scans merge all levels.
+ *
+ * Writes are logged like ClusteredStorage's, with the DELETE record's key field holding the
+ * serialized primary key, and the tree runs the append so that its manifest can tell recovery which
+ * records its files already hold. Keys must be memcmp-comparable, which every KeyType's are, so the tree
+ * can order them without deserializing. The table has no secondary indexes. Its TableStatistics come
+ * from a full scan and are kept in memory only, since the table has no pages to put them on.
+ */
+public class LsmStorage<K extends Comparable<K>> implements TableStorage<K>, Closeable {
+    private final RecordsSerializer recordSerializer;
+    private final WALManager walManager;
+    private final LsmTree tree;
+    private final KeyType<K> keyType;
+    private final Serializer<K> keySerializer;
+    private volatile TableStatistics statistics;
+
+    public LsmStorage(RecordsSerializer recordSerializer, WALManager walManager, LsmTree tree, KeyType<K> keyType) {
+        if (!(keyType.getSerializer() instanceof BinaryComparableSerializer)) {
+            throw new IllegalArgumentException("An LSM table needs a binary comparable key serializer");
+        }
+        this.recordSerializer = recordSerializer;
+        this.walManager = walManager;
+        this.tree = tree;
+        this.keyType = keyType;
+        this.keySerializer = keyType.getSerializer();
+    }
+
+    public LsmTree getTree() {
+        return tree;
+    }
+
+    @Override
+    public KeyType<K> getKeyType() {
+        return keyType;
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        return recordSerializer.getColumnIndex(columnName);
+    }
+
+    @Override
+    public void insertRecord(Row row, Transaction txn) throws IOException {
+        byte[] recordBytes = recordSerializer.serialize(row);
+        byte[] keyBytes = keySerializer.serialize(keyType.fromColumn(row.values[0]));
+        tree.put(keyBytes, recordBytes,
+                () -> walManager.appendWithDoneAndFlush(new LogRecord(0, LogRecord.OP_PUT, txn.getTxnId(), null, recordBytes)));
+        TableStatistics current = statistics;
+        if (current != null) {
+            current.recordInsert(keyBytes);
+        }
+    }
+
+    @Override
+    public void deleteRecord(K key, Transaction txn) throws IOException {
+        byte[] keyBytes = keySerializer.serialize(key);
+        if (tree.get(keyBytes) == null) {
+            return; // Key not found
+        }
+        tree.delete(keyBytes, () -> walManager.appendWithDoneAndFlush(new LogRecord(0, LogRecord.OP_DELETE, txn.getTxnId(), keyBytes, null)));
+        TableStatistics current = statistics;
+        if (current != null) {
+            current.recordDelete(keyBytes);
+        }
+    }
+
+    @Override
+    public Row fetchRecord(K key) throws IOException {
+        byte[] recordBytes = tree.get(keySerializer.serialize(key));
+        return recordBytes == null ? null : recordSerializer.deserialize(recordBytes);
+    }
+
+    @Override
+    public void scanRecords(K low, K high, long limit, Consumer<Row> consumer) throws IOException {
+        if (limit <= 0) {
+            return;
+        }
+        long[] scanned = {0};
+        tree.scan(low == null ? null : keySerializer.serialize(low), high == null ? null : keySerializer.serialize(high), (key, value) -> {
+            consumer.accept(recordSerializer.deserialize(value));
+            return ++scanned[0] < limit;
+        });
+    }
+
+    @Override
+    public List<Row> fetchByColumn(String columnName, String literal) {
+        throw new IllegalArgumentException("No index on column " + columnName + " (LSM tables have no secondary indexes)");
+    }
+
+    /**
+     * Runs analyze; there are no saved statistics to load.
+     */
+    @Override
+    public void openStatistics(double sampleRate) throws IOException {
+        analyze(sampleRate);
+    }
+
+    /**
+     * Scans every key, whatever sampleRate asks for: the tree's files are not split into leaves
+     * that could be sampled.
+     */
+    @Override
+    public TableStatistics analyze(double sampleRate) throws IOException {
+        TableStatistics analyzed = TableStatistics.analyze(action -> tree.scan(null, null, (key, value) -> {
+            action.accept(key);
+            return true;
+        }), new Random(), new LinkedHashMap<>());
+        statistics = analyzed;
+        return analyzed;
+    }
+
+    @Override
+    public TableStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public void saveStatistics() {
+        // Kept in memory only
+    }
+
+    // This method is for recovery purposes and should not be logged.
+    @Override
+    public void insertRecordForRecovery(long lsn, byte[] recordBytes) throws IOException {
+        Row row = recordSerializer.deserialize(recordBytes);
+        tree.put(keySerializer.serialize(keyType.fromColumn(row.values[0])), recordBytes, lsn);
+    }
+
+    // This method is for recovery purposes and should not be logged. The log key is the primary key.
+    @Override
+    public void deleteRecordForRecovery(long lsn, byte[] logKey) throws IOException {
+        tree.delete(logKey, lsn);
+    }
+
+    /**
+     * Writes the tree has flushed are in its files, so only the memtable's need replaying.
+     */
+    @Override
+    public long getDurableLsn() {
+        return tree.getFlushedLsn();
+    }
+
+    @Override
+    public void close() throws IOException {
+        tree.close();
+    }
+}
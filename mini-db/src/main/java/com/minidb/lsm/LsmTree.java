@@ -0,0 +1,608 @@
+package com.minidb.lsm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Log-structured merge tree over serialized keys and values, ordered by the keys' unsigned bytes.
+ * Writes go to a MemTable; a full memtable becomes immutable and a background thread flushes it
+ * into an SSTable in level 0, so a write never touches a page on disk. Reads check the memtable,
+ * the memtable being flushed, the level 0 files from newest to oldest and then at most one file per
+ * deeper level, the first answer winning. A delete writes TOMBSTONE, which hides older values
+ * until compaction drops it.
+ *
+ * Compaction is leveled: once level 0 holds L0_COMPACTION_TRIGGER files, they are merged with the
+ * level 1 files they overlap into new level 1 files. Every deeper level holds files with disjoint
+ * key ranges and may grow to LEVEL_MULTIPLIER times the previous level's budget; a level over
+ * budget has one file, taken round-robin by key, merged into the next level. Tombstones are dropped
+ * once they are merged into the deepest level holding data.
+ *
+ * The MANIFEST file lists the live files per level and is replaced atomically after every flush and
+ * compaction, so a crash leaves either the old or the new set of files; files it does not list are
+ * deleted when the tree opens. The tree keeps no log of its own: the memtable is rebuilt by replaying
+ * the database WAL, whose records the caller applies through put and delete. A logged write hands
+ * its WAL append to put or delete, which runs it while holding the memtable against rotation, so
+ * every record up to a flushed memtable's highest LSN is in that memtable or an older one. The
+ * manifest records that LSN (getFlushedLsn), and replay only needs the records after it.
+ */
+public class LsmTree implements Closeable {
+    static final byte[] TOMBSTONE = new byte[0]; // Compared by identity
+    static final int LEVELS = 7;
+    private static final int L0_COMPACTION_TRIGGER = 4;
+    private static final int LEVEL_MULTIPLIER = 10;
+    private static final String MANIFEST = "MANIFEST";
+
+    private final File dir;
+    private final long memTableBytes;
+    private final long level1Bytes;
+    // Writers hold it shared while they add to the memtable; swapping the memtable holds it exclusively
+    private final ReentrantReadWriteLock memTableLock = new ReentrantReadWriteLock();
+    // Readers hold it shared while they use SSTables; replacing files holds it exclusively
+    private final ReentrantReadWriteLock filesLock = new ReentrantReadWriteLock();
+    private final ExecutorService background;
+    private volatile MemTable memTable = new MemTable();
+    private volatile MemTable flushing; // Immutable memtable being written to level 0, or null
+    private volatile List<List<SSTable>> levels; // Level 0 newest first, deeper levels by key; never modified
+    private final byte[][] compactPointers = new byte[LEVELS][]; // Largest key last compacted per level
+    private long nextFileNumber;
+    private volatile long flushedLsn = -1; // Every logged write up to it is in the files
+    private Throwable backgroundError;
+
+    /**
+     * Opens the tree kept in dir, creating it if there is none. Memtables are flushed at about
+     * memTableBytes, which also sets the size of the files compaction writes.
+     */
+    public LsmTree(File dir, long memTableBytes) throws IOException {
+        this.dir = dir;
+        this.memTableBytes = memTableBytes;
+        this.level1Bytes = LEVEL_MULTIPLIER * memTableBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        this.levels = readManifest();
+        this.background = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "minidb-lsm-" + dir.getName());
+            t.setDaemon(true);
+            return t;
+        });
+        if (levels.get(0).size() >= L0_COMPACTION_TRIGGER) {
+            background.execute(this::compactInBackground);
+        }
+    }
+
+    /**
+     * Appends a write's record to the WAL and returns its LSN.
+     */
+    public interface LogAppender {
+        long append() throws IOException;
+    }
+
+    public void put(byte[] key, byte[] value) throws IOException {
+        write(key, value, null);
+    }
+
+    /**
+     * Logs the put with log and then applies it, both before the memtable can be rotated.
+     */
+    public void put(byte[] key, byte[] value, LogAppender log) throws IOException {
+        write(key, value, log);
+    }
+
+    /**
+     * Redoes a put that the WAL record with the given lsn logged.
+     */
+    public void put(byte[] key, byte[] value, long lsn) throws IOException {
+        write(key, value, () -> lsn);
+    }
+
+    public void delete(byte[] key) throws IOException {
+        write(key, TOMBSTONE, null);
+    }
+
+    public void delete(byte[] key, LogAppender log) throws IOException {
+        write(key, TOMBSTONE, log);
+    }
+
+    public void delete(byte[] key, long lsn) throws IOException {
+        write(key, TOMBSTONE, () -> lsn);
+    }
+
+    /**
+     * LSN up to which every logged write is in the tree's files, or -1. Replaying the WAL from the
+     * record after it rebuilds the memtable.
+     */
+    public long getFlushedLsn() {
+        return flushedLsn;
+    }
+
+    private void write(byte[] key, byte[] value, LogAppender log) throws IOException {
+        MemTable table;
+        memTableLock.readLock().lock();
+        try {
+            table = memTable;
+            table.put(key, value, log == null ? -1 : log.append());
+        } finally {
+            memTableLock.readLock().unlock();
+        }
+        if (table.sizeBytes() >= memTableBytes) {
+            rotate(table);
+        }
+    }
+
+    /**
+     * The value for key, or null if it has none.
+     */
+    public byte[] get(byte[] key) throws IOException {
+        byte[] value = memTable.get(key);
+        if (value == null) {
+            MemTable immutable = flushing;
+            value = immutable == null ? null : immutable.get(key);
+        }
+        if (value == null) {
+            value = getFromFiles(key);
+        }
+        return value == TOMBSTONE ? null : value;
+    }
+
+    private byte[] getFromFiles(byte[] key) throws IOException {
+        filesLock.readLock().lock();
+        try {
+            List<List<SSTable>> current = levels;
+            for (SSTable table : current.get(0)) {
+                byte[] value = table.get(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+            for (int level = 1; level < LEVELS; level++) {
+                SSTable table = fileFor(current.get(level), key);
+                byte[] value = table == null ? null : table.get(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        } finally {
+            filesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Calls visitor with the entries with low <= key <= high in key order until it returns false. A
+     * null bound leaves that end open. Files stay in place until the scan ends, so a long scan holds
+     * back the end of a compaction.
+     */
+    public void scan(byte[] low, byte[] high, Visitor visitor) throws IOException {
+        filesLock.readLock().lock();
+        try {
+            List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<>();
+            sources.add(memTable.iterator(low));
+            MemTable immutable = flushing;
+            if (immutable != null) {
+                sources.add(immutable.iterator(low));
+            }
+            List<List<SSTable>> current = levels;
+            for (SSTable table : current.get(0)) {
+                sources.add(table.iterator(low));
+            }
+            for (int level = 1; level < LEVELS; level++) {
+                sources.add(levelIterator(current.get(level), low));
+            }
+            Iterator<Map.Entry<byte[], byte[]>> entries = new MergingIterator(sources, high, true);
+            while (entries.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = entries.next();
+                if (!visitor.visit(entry.getKey(), entry.getValue())) {
+                    return;
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            filesLock.readLock().unlock();
+        }
+    }
+
+    public interface Visitor {
+        boolean visit(byte[] key, byte[] value) throws IOException;
+    }
+
+    /**
+     * Flushes the memtable and waits until the background thread has no flush or compaction left.
+     */
+    public void flush() throws IOException {
+        MemTable table = memTable;
+        if (!table.isEmpty()) {
+            rotate(table);
+        }
+        awaitBackground();
+    }
+
+    /**
+     * Number of files in each level.
+     */
+    public int[] getFileCounts() {
+        List<List<SSTable>> current = levels;
+        int[] counts = new int[LEVELS];
+        for (int level = 0; level < LEVELS; level++) {
+            counts[level] = current.get(level).size();
+        }
+        return counts;
+    }
+
+    /**
+     * Bytes of SSTables in each level.
+     */
+    public long[] getLevelBytes() {
+        List<List<SSTable>> current = levels;
+        long[] bytes = new long[LEVELS];
+        for (int level = 0; level < LEVELS; level++) {
+            bytes[level] = levelBytes(current.get(level));
+        }
+        return bytes;
+    }
+
+    /**
+     * Flushes the memtable, so reopening does not depend on the WAL, and closes the files.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing " + dir);
+        }
+        filesLock.writeLock().lock();
+        try {
+            for (List<SSTable> level : levels) {
+                for (SSTable table : level) {
+                    table.close();
+                }
+            }
+        } finally {
+            filesLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes table immutable and hands it to the background thread, waiting first while the previous
+     * memtable is still being flushed. Does nothing if another writer already swapped table out.
+     */
+    private synchronized void rotate(MemTable table) throws IOException {
+        while (flushing != null) {
+            checkBackgroundError();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a memtable flush");
+            }
+        }
+        checkBackgroundError();
+        if (memTable != table) {
+            return;
+        }
+        memTableLock.writeLock().lock();
+        try {
+            flushing = table;
+            memTable = new MemTable();
+        } finally {
+            memTableLock.writeLock().unlock();
+        }
+        background.execute(this::flushInBackground);
+    }
+
+    private void checkBackgroundError() throws IOException {
+        if (backgroundError != null) {
+            throw new IOException("LSM tree background work failed in " + dir, backgroundError);
+        }
+    }
+
+    private void awaitBackground() throws IOException {
+        try {
+            background.submit(() -> {
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the LSM tree " + dir);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        synchronized (this) {
+            checkBackgroundError();
+        }
+    }
+
+    private void flushInBackground() {
+        try {
+            MemTable table = flushing;
+            List<SSTable> written = writeFiles(table.iterator(null), Long.MAX_VALUE);
+            List<List<SSTable>> next = copy(levels);
+            next.get(0).addAll(0, written);
+            install(next, Collections.emptyList(), Math.max(flushedLsn, table.highestLsn()));
+            synchronized (this) {
+                flushing = null;
+                notifyAll();
+            }
+            compact();
+        } catch (IOException | RuntimeException e) {
+            failed(e);
+        }
+    }
+
+    private void compactInBackground() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            failed(e);
+        }
+    }
+
+    private synchronized void failed(Throwable e) {
+        backgroundError = e;
+        notifyAll();
+    }
+
+    /**
+     * Compacts until level 0 is below its trigger and no level is over budget.
+     */
+    private void compact() throws IOException {
+        while (true) {
+            List<List<SSTable>> current = levels;
+            if (current.get(0).size() >= L0_COMPACTION_TRIGGER) {
+                compact(0, current.get(0));
+                continue;
+            }
+            int level = 1;
+            long budget = level1Bytes;
+            while (level < LEVELS - 1 && levelBytes(current.get(level)) <= budget) {
+                level++;
+                budget *= LEVEL_MULTIPLIER;
+            }
+            if (level == LEVELS - 1) {
+                return;
+            }
+            compact(level, List.of(pickFile(level, current.get(level))));
+        }
+    }
+
+    /**
+     * The first file after the one last compacted out of level, wrapping around to the start.
+     */
+    private SSTable pickFile(int level, List<SSTable> files) {
+        byte[] pointer = compactPointers[level];
+        if (pointer != null) {
+            for (SSTable table : files) {
+                if (Arrays.compareUnsigned(table.smallest(), pointer) > 0) {
+                    return table;
+                }
+            }
+        }
+        return files.get(0);
+    }
+
+    /**
+     * Merges inputs, files of level, with the files of the next level they overlap into new files of
+     * the next level.
+     */
+    private void compact(int level, List<SSTable> inputs) throws IOException {
+        List<List<SSTable>> current = levels;
+        byte[] low = inputs.get(0).smallest();
+        byte[] high = inputs.get(0).largest();
+        for (SSTable table : inputs) {
+            low = Arrays.compareUnsigned(table.smallest(), low) < 0 ? table.smallest() : low;
+            high = Arrays.compareUnsigned(table.largest(), high) > 0 ? table.largest() : high;
+        }
+        List<SSTable> overlapping = new ArrayList<>();
+        for (SSTable table : current.get(level + 1)) {
+            if (table.overlaps(low, high)) {
+                overlapping.add(table);
+            }
+        }
+        boolean deepest = true;
+        for (int deeper = level + 2; deeper < LEVELS; deeper++) {
+            deepest &= current.get(deeper).isEmpty();
+        }
+
+        // Inputs are newer than the next level; level 0 inputs are already newest first
+        List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<>();
+        for (SSTable table : inputs) {
+            sources.add(table.iterator(null));
+        }
+        for (SSTable table : overlapping) {
+            sources.add(table.iterator(null));
+        }
+        List<SSTable> written;
+        try {
+            written = writeFiles(new MergingIterator(sources, null, deepest), memTableBytes);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        List<List<SSTable>> next = copy(current);
+        next.get(level).removeAll(inputs);
+        next.get(level + 1).removeAll(overlapping);
+        next.get(level + 1).addAll(written);
+        next.get(level + 1).sort((a, b) -> Arrays.compareUnsigned(a.smallest(), b.smallest()));
+        List<SSTable> obsolete = new ArrayList<>(inputs);
+        obsolete.addAll(overlapping);
+        install(next, obsolete, flushedLsn);
+        compactPointers[level] = high;
+    }
+
+    private List<SSTable> writeFiles(Iterator<Map.Entry<byte[], byte[]>> entries, long maxBytes) throws IOException {
+        List<SSTable> written = new ArrayList<>();
+        while (entries.hasNext()) {
+            long number;
+            synchronized (this) {
+                number = nextFileNumber++;
+            }
+            written.add(SSTable.write(number, tableFile(number), entries, maxBytes));
+        }
+        return written;
+    }
+
+    /**
+     * Makes next the current set of files, records it and durableLsn in the manifest, and closes
+     * and deletes the obsolete files once no reader uses them.
+     */
+    private void install(List<List<SSTable>> next, List<SSTable> obsolete, long durableLsn) throws IOException {
+        filesLock.writeLock().lock();
+        try {
+            writeManifest(next, durableLsn);
+            levels = next;
+            flushedLsn = durableLsn;
+            for (SSTable table : obsolete) {
+                table.close();
+                Files.deleteIfExists(table.getFile().toPath());
+            }
+        } finally {
+            filesLock.writeLock().unlock();
+        }
+    }
+
+    private void writeManifest(List<List<SSTable>> next, long durableLsn) throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        synchronized (this) {
+            manifest.append("next-file ").append(nextFileNumber).append('\n');
+        }
+        manifest.append("flushed-lsn ").append(durableLsn).append('\n');
+        for (int level = 0; level < LEVELS; level++) {
+            for (SSTable table : next.get(level)) {
+                manifest.append(level).append(' ').append(table.getNumber()).append('\n');
+            }
+        }
+        File temp = new File(dir, MANIFEST + ".tmp");
+        Files.write(temp.toPath(), manifest.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), new File(dir, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<List<SSTable>> readManifest() throws IOException {
+        List<List<SSTable>> read = new ArrayList<>();
+        for (int level = 0; level < LEVELS; level++) {
+            read.add(new ArrayList<>());
+        }
+        Set<String> live = new HashSet<>();
+        File manifest = new File(dir, MANIFEST);
+        if (manifest.exists()) {
+            for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.trim().split(" ");
+                if (fields[0].equals("next-file")) {
+                    nextFileNumber = Long.parseLong(fields[1]);
+                } else if (fields[0].equals("flushed-lsn")) {
+                    flushedLsn = Long.parseLong(fields[1]);
+                } else if (fields.length == 2) {
+                    long number = Long.parseLong(fields[1]);
+                    File file = tableFile(number);
+                    read.get(Integer.parseInt(fields[0])).add(SSTable.open(number, file));
+                    live.add(file.getName());
+                }
+            }
+        }
+        read.get(0).sort(Comparator.comparingLong(SSTable::getNumber).reversed());
+        for (int level = 1; level < LEVELS; level++) {
+            read.get(level).sort((a, b) -> Arrays.compareUnsigned(a.smallest(), b.smallest()));
+        }
+        // Output of a flush or compaction that never made it into the manifest
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".sst") && !live.contains(name));
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        return read;
+    }
+
+    private File tableFile(long number) {
+        return new File(dir, String.format("%06d.sst", number));
+    }
+
+    /**
+     * The file of a level with disjoint, sorted files whose range holds key, or null.
+     */
+    private static SSTable fileFor(List<SSTable> files, byte[] key) {
+        int low = 0;
+        int high = files.size();
+        while (low < high) { // The first file whose largest key is at least key
+            int mid = (low + high) >>> 1;
+            if (Arrays.compareUnsigned(files.get(mid).largest(), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low == files.size() || Arrays.compareUnsigned(files.get(low).smallest(), key) > 0) {
+            return null;
+        }
+        return files.get(low);
+    }
+
+    /**
+     * Entries of a level with disjoint, sorted files from low on, opening one file at a time.
+     */
+    private static Iterator<Map.Entry<byte[], byte[]>> levelIterator(List<SSTable> files, byte[] low) {
+        int first = 0;
+        if (low != null) {
+            while (first < files.size() && Arrays.compareUnsigned(files.get(first).largest(), low) < 0) {
+                first++;
+            }
+        }
+        List<SSTable> remaining = files.subList(first, files.size());
+        return new Iterator<>() {
+            private int file;
+            private Iterator<Map.Entry<byte[], byte[]>> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && file < remaining.size()) {
+                    current = remaining.get(file++).iterator(file == 1 ? low : null);
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                hasNext();
+                return current.next();
+            }
+        };
+    }
+
+    private static long levelBytes(List<SSTable> files) {
+        long bytes = 0;
+        for (SSTable table : files) {
+            bytes += table.getSizeBytes();
+        }
+        return bytes;
+    }
+
+    private static List<List<SSTable>> copy(List<List<SSTable>> levels) {
+        List<List<SSTable>> copy = new ArrayList<>();
+        for (List<SSTable> level : levels) {
+            copy.add(new ArrayList<>(level));
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,62 @@
+package com.minidb.lsm;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The in-memory, writable part of an LsmTree: a concurrent skip list from serialized key to value
+ * (or LsmTree.TOMBSTONE), ordered like the keys' unsigned bytes. Writers and readers never block
+ * each other. Once it is full, the tree makes it immutable and flushes it into an SSTable.
+ */
+final class MemTable {
+    // Rough per-entry cost of a skip list node and its two arrays, on top of the bytes themselves
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final ConcurrentSkipListMap<byte[], byte[]> entries = new ConcurrentSkipListMap<>(Arrays::compareUnsigned);
+    private final AtomicLong sizeBytes = new AtomicLong();
+    private final AtomicLong highestLsn = new AtomicLong(-1);
+
+    /**
+     * Adds the entry; lsn is the WAL record that logged it, or -1 if it was not logged.
+     */
+    void put(byte[] key, byte[] value, long lsn) {
+        byte[] previous = entries.put(key, value);
+        sizeBytes.addAndGet(previous == null ? ENTRY_OVERHEAD + key.length + value.length : value.length - previous.length);
+        highestLsn.accumulateAndGet(lsn, Math::max);
+    }
+
+    /**
+     * The value for key, LsmTree.TOMBSTONE if it was deleted, or null if the table does not mention it.
+     */
+    byte[] get(byte[] key) {
+        return entries.get(key);
+    }
+
+    long sizeBytes() {
+        return sizeBytes.get();
+    }
+
+    /**
+     * The highest LSN of the logged entries, or -1 if none was logged.
+     */
+    long highestLsn() {
+        return highestLsn.get();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Entries with keys from low (the first one if null) in key order, weakly consistent with
+     * concurrent writes.
+     */
+    Iterator<Map.Entry<byte[], byte[]>> iterator(byte[] low) {
+        ConcurrentNavigableMap<byte[], byte[]> tail = low == null ? entries : entries.tailMap(low, true);
+        return tail.entrySet().iterator();
+    }
+}
@@ -0,0 +1,93 @@
+package com.minidb.lsm;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges sorted sources into one sorted stream with one entry per key. Sources come newest first:
+ * of the entries with the same key, the one from the source with the lowest index wins and the
+ * others are skipped. Tombstones are passed on unless dropTombstones is set, and the stream ends
+ * after high (null for no end).
+ */
+final class MergingIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+    private final PriorityQueue<Head> heads = new PriorityQueue<>();
+    private final byte[] high;
+    private final boolean dropTombstones;
+    private Map.Entry<byte[], byte[]> next;
+
+    MergingIterator(List<Iterator<Map.Entry<byte[], byte[]>>> sources, byte[] high, boolean dropTombstones) {
+        this.high = high;
+        this.dropTombstones = dropTombstones;
+        for (int i = 0; i < sources.size(); i++) {
+            Iterator<Map.Entry<byte[], byte[]>> source = sources.get(i);
+            if (source.hasNext()) {
+                heads.add(new Head(source, i, source.next()));
+            }
+        }
+        next = advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<byte[], byte[]> entry = next;
+        next = advance();
+        return entry;
+    }
+
+    private Map.Entry<byte[], byte[]> advance() {
+        while (!heads.isEmpty()) {
+            Head head = heads.poll();
+            Map.Entry<byte[], byte[]> entry = head.entry;
+            if (high != null && Arrays.compareUnsigned(entry.getKey(), high) > 0) {
+                heads.clear();
+                return null;
+            }
+            // Older versions of the same key
+            while (!heads.isEmpty() && Arrays.compareUnsigned(heads.peek().entry.getKey(), entry.getKey()) == 0) {
+                step(heads.poll());
+            }
+            step(head);
+            if (!dropTombstones || entry.getValue() != LsmTree.TOMBSTONE) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void step(Head head) {
+        if (head.source.hasNext()) {
+            head.entry = head.source.next();
+            heads.add(head);
+        }
+    }
+
+    private static final class Head implements Comparable<Head> {
+        final Iterator<Map.Entry<byte[], byte[]>> source;
+        final int priority;
+        Map.Entry<byte[], byte[]> entry;
+
+        Head(Iterator<Map.Entry<byte[], byte[]>> source, int priority, Map.Entry<byte[], byte[]> entry) {
+            this.source = source;
+            this.priority = priority;
+            this.entry = entry;
+        }
+
+        @Override
+        public int compareTo(Head other) {
+            int cmp = Arrays.compareUnsigned(entry.getKey(), other.entry.getKey());
+            return cmp != 0 ? cmp : Integer.compare(priority, other.priority);
+        }
+    }
+}
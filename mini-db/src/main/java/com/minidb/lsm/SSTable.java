@@ -0,0 +1,325 @@
+package com.minidb.lsm;
+
+import com.minidb.storage.BloomFilter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted file of an LsmTree. Entries are written in key order into data blocks of about
+ * BLOCK_SIZE bytes, each entry as key size (4), key, value size (4, -1 for a tombstone), value.
+ * After the blocks come the block index (the number of blocks, then per block its first key, offset
+ * and size, then the file's last key), a blocked Bloom filter over the keys (number of hashes,
+ * number of words, words) and a footer with the offsets of the index and the filter, the number of
+ * entries and MAGIC.
+ *
+ * Opening a table reads the index and the filter into memory, so a lookup reads at most one data
+ * block, and none for most keys the file does not hold.
+ */
+final class SSTable implements Closeable {
+    static final int BLOCK_SIZE = 4096;
+    private static final int MAGIC = 0x4d535354; // "MSST"
+    private static final int FOOTER_SIZE = 8 + 8 + 8 + 4;
+    private static final int BITS_PER_KEY = 10;
+
+    private final long number;
+    private final File file;
+    private final FileChannel channel;
+    private final byte[][] blockKeys; // First key of each block
+    private final long[] blockOffsets;
+    private final int[] blockSizes;
+    private final byte[] largest;
+    private final int hashes;
+    private final long[] filter;
+    private final long entries;
+    private final long sizeBytes;
+
+    private SSTable(long number, File file) throws IOException {
+        this.number = number;
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            this.sizeBytes = channel.size();
+            ByteBuffer footer = read(sizeBytes - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            long filterOffset = footer.getLong();
+            this.entries = footer.getLong();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException(file + " is not an SSTable");
+            }
+
+            ByteBuffer index = read(indexOffset, (int) (filterOffset - indexOffset));
+            int blocks = index.getInt();
+            blockKeys = new byte[blocks][];
+            blockOffsets = new long[blocks];
+            blockSizes = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockKeys[i] = readBytes(index);
+                blockOffsets[i] = index.getLong();
+                blockSizes[i] = index.getInt();
+            }
+            largest = readBytes(index);
+
+            ByteBuffer filterBuffer = read(filterOffset, (int) (sizeBytes - FOOTER_SIZE - filterOffset));
+            hashes = filterBuffer.getInt();
+            filter = new long[filterBuffer.getInt()];
+            filterBuffer.asLongBuffer().get(filter);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static SSTable open(long number, File file) throws IOException {
+        return new SSTable(number, file);
+    }
+
+    /**
+     * Writes entries, which come in increasing key order, until the file reaches maxBytes or the
+     * iterator ends, forces it to disk and opens it. An entry is only taken from the iterator once it
+     * is written, so the caller can continue into the next file. Returns null if there were none.
+     */
+    static SSTable write(long number, File file, Iterator<Map.Entry<byte[], byte[]>> entries, long maxBytes) throws IOException {
+        if (!entries.hasNext()) {
+            return null;
+        }
+        long[] keyHashes = new long[1024];
+        int count = 0;
+        ByteBuffer index = ByteBuffer.allocate(1024);
+        int blocks = 0;
+        byte[] lastKey = null;
+        try (FileOutputStream fileOut = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+            int blockStart = 0;
+            while (entries.hasNext() && out.size() < maxBytes) {
+                Map.Entry<byte[], byte[]> entry = entries.next();
+                byte[] key = entry.getKey();
+                byte[] value = entry.getValue();
+                if (lastKey == null || out.size() - blockStart >= BLOCK_SIZE) {
+                    if (lastKey != null) {
+                        index = ensure(index, 12);
+                        index.putLong(blockStart).putInt(out.size() - blockStart);
+                    }
+                    blockStart = out.size();
+                    index = ensure(index, 4 + key.length);
+                    index.putInt(key.length).put(key);
+                    blocks++;
+                }
+                out.writeInt(key.length);
+                out.write(key);
+                if (value == LsmTree.TOMBSTONE) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+                if (count == keyHashes.length) {
+                    keyHashes = Arrays.copyOf(keyHashes, 2 * count);
+                }
+                keyHashes[count++] = BloomFilter.hash(key);
+                lastKey = key;
+            }
+            index = ensure(index, 12 + 4 + lastKey.length);
+            index.putLong(blockStart).putInt(out.size() - blockStart);
+            index.putInt(lastKey.length).put(lastKey);
+
+            long indexOffset = out.size();
+            out.writeInt(blocks);
+            out.write(index.array(), 0, index.position());
+
+            long filterOffset = out.size();
+            int filterHashes = BloomFilter.hashesFor(BITS_PER_KEY);
+            long[] words = new long[BloomFilter.wordsFor(count, BITS_PER_KEY)];
+            for (int i = 0; i < count; i++) {
+                BloomFilter.set(words, filterHashes, keyHashes[i]);
+            }
+            out.writeInt(filterHashes);
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+
+            out.writeLong(indexOffset);
+            out.writeLong(filterOffset);
+            out.writeLong(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        return new SSTable(number, file);
+    }
+
+    long getNumber() {
+        return number;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    long getEntries() {
+        return entries;
+    }
+
+    byte[] smallest() {
+        return blockKeys[0];
+    }
+
+    byte[] largest() {
+        return largest;
+    }
+
+    boolean overlaps(byte[] low, byte[] high) {
+        return Arrays.compareUnsigned(largest, low) >= 0 && Arrays.compareUnsigned(blockKeys[0], high) <= 0;
+    }
+
+    /**
+     * The value stored for key, LsmTree.TOMBSTONE if it was deleted, or null if this file does not
+     * mention it.
+     */
+    byte[] get(byte[] key) throws IOException {
+        if (Arrays.compareUnsigned(key, blockKeys[0]) < 0 || Arrays.compareUnsigned(key, largest) > 0
+                || !BloomFilter.test(filter, hashes, BloomFilter.hash(key))) {
+            return null;
+        }
+        ByteBuffer block = readBlock(blockFor(key));
+        while (block.hasRemaining()) {
+            byte[] entryKey = readBytes(block);
+            int cmp = Arrays.compareUnsigned(entryKey, key);
+            if (cmp == 0) {
+                return readValue(block);
+            }
+            if (cmp > 0) {
+                return null;
+            }
+            int valueSize = block.getInt();
+            block.position(block.position() + Math.max(0, valueSize));
+        }
+        return null;
+    }
+
+    /**
+     * Entries with keys from low (the first one if null) in key order. Failed reads surface as
+     * UncheckedIOException.
+     */
+    Iterator<Map.Entry<byte[], byte[]>> iterator(byte[] low) {
+        return new Iterator<>() {
+            private int block = low == null ? 0 : blockFor(low);
+            private ByteBuffer buffer;
+            private Map.Entry<byte[], byte[]> next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<byte[], byte[]> entry = next;
+                next = advance();
+                return entry;
+            }
+
+            private Map.Entry<byte[], byte[]> advance() {
+                try {
+                    while (true) {
+                        if (buffer == null || !buffer.hasRemaining()) {
+                            if (block >= blockKeys.length) {
+                                return null;
+                            }
+                            buffer = readBlock(block++);
+                        }
+                        byte[] key = readBytes(buffer);
+                        byte[] value = readValue(buffer);
+                        if (low == null || Arrays.compareUnsigned(key, low) >= 0) {
+                            return new AbstractMap.SimpleImmutableEntry<>(key, value);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * The last block whose first key is at most key, or block 0.
+     */
+    private int blockFor(byte[] key) {
+        int low = 0;
+        int high = blockKeys.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (Arrays.compareUnsigned(blockKeys[mid], key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private ByteBuffer readBlock(int block) throws IOException {
+        return read(blockOffsets[block], blockSizes[block]);
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + file);
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] readValue(ByteBuffer buffer) {
+        int size = buffer.getInt();
+        if (size < 0) {
+            return LsmTree.TOMBSTONE;
+        }
+        byte[] value = new byte[size];
+        buffer.get(value);
+        return value;
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + bytes));
+        return larger.put(buffer.flip());
+    }
+}
@@ -0,0 +1,94 @@
+package com.minidb.serializers;
+
+import com.minidb.index.BinaryComparableSerializer;
+import com.minidb.index.CompositeKey;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Encodes each column with its own binary-comparable serializer and concatenates them. Every column
+ * has 0x00 escaped as 0x00 0xFF and ends with 0x00 0x01, which sorts below any continuation, so a
+ * shorter column orders first and the concatenation stays memcmp-comparable column by column.
+ */
+public class CompositeKeySerializer implements BinaryComparableSerializer<CompositeKey> {
+    private static final int ESCAPE = 0x00;
+    private static final int ESCAPED_ZERO = 0xFF;
+    private static final int TERMINATOR = 0x01;
+
+    private final BinaryComparableSerializer<?>[] columnSerializers;
+
+    public CompositeKeySerializer(BinaryComparableSerializer<?>... columnSerializers) {
+        this.columnSerializers = columnSerializers.clone();
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public byte[] serialize(CompositeKey obj) {
+        if (obj.size() > columnSerializers.length) {
+            throw new IllegalArgumentException("Key " + obj + " has more columns than the " + columnSerializers.length + " configured");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < obj.size(); i++) {
+            byte[] column = ((BinaryComparableSerializer) columnSerializers[i]).serialize(obj.get(i));
+            for (byte b : column) {
+                out.write(b);
+                if (b == ESCAPE) {
+                    out.write(ESCAPED_ZERO);
+                }
+            }
+            out.write(ESCAPE);
+            out.write(TERMINATOR);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public CompositeKey deserialize(byte[] data) {
+        Comparable<?>[] parts = new Comparable<?>[columnSerializers.length];
+        int count = 0;
+        ByteArrayOutputStream column = new ByteArrayOutputStream();
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != ESCAPE) {
+                column.write(data[i]);
+            } else if ((data[++i] & 0xFF) == ESCAPED_ZERO) {
+                column.write(ESCAPE);
+            } else {
+                parts[count] = (Comparable<?>) columnSerializers[count].deserialize(column.toByteArray());
+                count++;
+                column.reset();
+            }
+        }
+        return new CompositeKey(Arrays.copyOf(parts, count));
+    }
+
+    /**
+     * Keeps right's columns up to the first one that differs from left and truncates that column with
+     * its own serializer; a key with fewer columns sorts before its extensions, so the rest is dropped.
+     */
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public CompositeKey separator(CompositeKey left, CompositeKey right) {
+        int column = 0;
+        int limit = Math.min(left.size(), right.size());
+        while (column < limit && ((Comparable) left.get(column)).compareTo(right.get(column)) == 0) {
+            column++;
+        }
+        if (column >= right.size()) {
+            return right;
+        }
+        Comparable<?>[] parts = new Comparable<?>[column + 1];
+        for (int i = 0; i < column; i++) {
+            parts[i] = right.get(i);
+        }
+        parts[column] = column < left.size()
+                ? (Comparable<?>) ((BinaryComparableSerializer) columnSerializers[column]).separator(left.get(column), right.get(column))
+                : right.get(column);
+        return new CompositeKey(parts);
+    }
+
+    @Override
+    public int getSerializedSize(CompositeKey obj) {
+        return serialize(obj).length;
+    }
+}
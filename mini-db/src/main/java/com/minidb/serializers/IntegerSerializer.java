@@ -1,21 +1,34 @@
 package com.minidb.serializers;
 
-import com.minidb.index.Serializer;
+import com.minidb.index.BinaryComparableSerializer;
 
 import java.nio.ByteBuffer;
 
-public class IntegerSerializer implements Serializer<Integer> {
+/**
+ * Big-endian with the sign bit flipped, so negative values sort before positive ones bytewise.
+ */
+public class IntegerSerializer implements BinaryComparableSerializer<Integer> {
     @Override
     public byte[] serialize(Integer obj) {
         ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
-        buffer.putInt(obj);
+        buffer.putInt(obj ^ Integer.MIN_VALUE);
         return buffer.array();
     }
 
     @Override
     public Integer deserialize(byte[] bytes) {
         ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        return buffer.getInt();
+        return buffer.getInt() ^ Integer.MIN_VALUE;
+    }
+
+    @Override
+    public void write(Integer obj, ByteBuffer buffer) {
+        buffer.putInt(obj ^ Integer.MIN_VALUE);
+    }
+
+    @Override
+    public Integer read(ByteBuffer buffer) {
+        return buffer.getInt() ^ Integer.MIN_VALUE;
     }
 
     @Override
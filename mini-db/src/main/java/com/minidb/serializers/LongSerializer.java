@@ -0,0 +1,38 @@
+package com.minidb.serializers;
+
+import com.minidb.index.BinaryComparableSerializer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Big-endian with the sign bit flipped, so negative values sort before positive ones bytewise.
+ */
+public class LongSerializer implements BinaryComparableSerializer<Long> {
+    @Override
+    public byte[] serialize(Long obj) {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        buffer.putLong(obj ^ Long.MIN_VALUE);
+        return buffer.array();
+    }
+
+    @Override
+    public Long deserialize(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return buffer.getLong() ^ Long.MIN_VALUE;
+    }
+
+    @Override
+    public void write(Long obj, ByteBuffer buffer) {
+        buffer.putLong(obj ^ Long.MIN_VALUE);
+    }
+
+    @Override
+    public Long read(ByteBuffer buffer) {
+        return buffer.getLong() ^ Long.MIN_VALUE;
+    }
+
+    @Override
+    public int getSerializedSize(Long obj) {
+        return Long.BYTES;
+    }
+}
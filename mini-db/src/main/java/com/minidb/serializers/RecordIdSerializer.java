@@ -3,6 +3,8 @@ package com.minidb.serializers;
 import com.minidb.index.Serializer;
 import com.minidb.storage.RecordId;
 
+import java.nio.ByteBuffer;
+
 public class RecordIdSerializer implements Serializer<RecordId> {
     @Override
     public byte[] serialize(RecordId obj) {
@@ -14,6 +16,17 @@ public class RecordIdSerializer implements Serializer<RecordId> {
         return RecordId.deserialize(bytes);
     }
 
+    @Override
+    public void write(RecordId obj, ByteBuffer buffer) {
+        buffer.putInt(obj.getPageId());
+        buffer.putInt(obj.getSlotId());
+    }
+
+    @Override
+    public RecordId read(ByteBuffer buffer) {
+        return new RecordId(buffer.getInt(), buffer.getInt());
+    }
+
     @Override
     public int getSerializedSize(RecordId obj) {
         return RecordId.getSerializedSize();
@@ -0,0 +1,38 @@
+package com.minidb.serializers;
+
+import com.minidb.index.Serializer;
+import com.minidb.storage.RecordsSerializer;
+import com.minidb.storage.RecordsSerializer.Row;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Whole rows as B+ tree values, in the RecordsSerializer format that heap pages and the WAL use.
+ */
+public class RowSerializer implements Serializer<Row> {
+    private final RecordsSerializer recordsSerializer;
+
+    public RowSerializer(RecordsSerializer recordsSerializer) {
+        this.recordsSerializer = recordsSerializer;
+    }
+
+    @Override
+    public byte[] serialize(Row row) {
+        try {
+            return recordsSerializer.serialize(row);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Row deserialize(byte[] data) {
+        return recordsSerializer.deserialize(data);
+    }
+
+    @Override
+    public int getSerializedSize(Row row) {
+        return recordsSerializer.getSerializedSize(row);
+    }
+}
@@ -1,23 +1,74 @@
 package com.minidb.serializers;
 
-import com.minidb.index.Serializer;
+import com.minidb.index.BinaryComparableSerializer;
 
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-
-public class StringSerializer implements Serializer<String> {
+/**
+ * UTF-8 style encoding applied to each UTF-16 char separately (surrogates get three bytes each, as
+ * in CESU-8). For text without supplementary characters this is plain UTF-8; unlike UTF-8 its byte
+ * order matches String.compareTo, which compares chars rather than code points.
+ */
+public class StringSerializer implements BinaryComparableSerializer<String> {
     @Override
     public byte[] serialize(String obj) {
-        return obj.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[getSerializedSize(obj)];
+        int position = 0;
+        for (int i = 0; i < obj.length(); i++) {
+            char c = obj.charAt(i);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[position++] = (byte) (0xC0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[position++] = (byte) (0xE0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return bytes;
     }
 
     @Override
     public String deserialize(byte[] data) {
-        return new String(data, StandardCharsets.UTF_8);
+        StringBuilder builder = new StringBuilder(data.length);
+        int position = 0;
+        while (position < data.length) {
+            int b = data[position] & 0xFF;
+            if (b < 0x80) {
+                builder.append((char) b);
+                position += 1;
+            } else if (b < 0xE0) {
+                builder.append((char) (((b & 0x1F) << 6) | (data[position + 1] & 0x3F)));
+                position += 2;
+            } else {
+                builder.append((char) (((b & 0x0F) << 12) | ((data[position + 1] & 0x3F) << 6) | (data[position + 2] & 0x3F)));
+                position += 3;
+            }
+        }
+        return builder.toString();
     }
 
     @Override
     public int getSerializedSize(String obj) {
-        return obj.getBytes(StandardCharsets.UTF_8).length;
+        int size = 0;
+        for (int i = 0; i < obj.length(); i++) {
+            char c = obj.charAt(i);
+            size += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return size;
+    }
+
+    /**
+     * The shortest prefix of right that still sorts after left: right up to and including the first
+     * char where the two differ.
+     */
+    @Override
+    public String separator(String left, String right) {
+        int common = 0;
+        int limit = Math.min(left.length(), right.length());
+        while (common < limit && left.charAt(common) == right.charAt(common)) {
+            common++;
+        }
+        return common < right.length() ? right.substring(0, common + 1) : right;
     }
 }
@@ -9,15 +9,17 @@ import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class Executor {
     private TxnManager txnManager;
     private LockManager lockManager;
-    private com.minidb.storage.RecordStorage recordStorage;
+    private com.minidb.storage.TableStorage<?> recordStorage;
 
     private static final long LOCK_WAIT_MS = TimeUnit.SECONDS.toMillis(10);
 
@@ -25,7 +27,7 @@ public class Executor {
     private final Timer executionTimer = meterRegistry.timer("minidb.executor.execution.time");
     private final Counter queriesCounter = meterRegistry.counter("minidb.executor.queries.total");
 
-    public Executor(TxnManager txnManager, com.minidb.log.WALManager walManager, LockManager lockManager, com.minidb.storage.RecordStorage recordStorage) {
+    public Executor(TxnManager txnManager, com.minidb.log.WALManager walManager, LockManager lockManager, com.minidb.storage.TableStorage<?> recordStorage) {
         this.txnManager = txnManager;
         this.lockManager = lockManager;
         this.recordStorage = recordStorage;
@@ -41,6 +43,8 @@ public class Executor {
                     return executeSelect((SelectCommand) cmd);
                 } else if (cmd instanceof DeleteCommand) {
                     return executeDelete((DeleteCommand) cmd);
+                } else if (cmd instanceof AnalyzeCommand) {
+                    return executeAnalyze((AnalyzeCommand) cmd);
                 }
                 return Result.error("Unsupported command type");
             } catch (Exception e) {
@@ -57,11 +61,18 @@ public class Executor {
         Predicate pred = cmd.getPredicate();
         Transaction dummy = txnManager.begin();
         try {
-            if (pred instanceof EqualsPredicate) {
+            if (pred instanceof EqualsPredicate && recordStorage.getColumnIndex(pred.getColumn()) > 0) {
+                // A non-key column: served by its secondary index, without key locks like a range scan
+                List<Pair<String, String>> rows = new ArrayList<>();
+                for (com.minidb.storage.RecordsSerializer.Row row : recordStorage.fetchByColumn(pred.getColumn(), ((EqualsPredicate) pred).getValue())) {
+                    rows.add(new Pair<>(row.values[0].toString(), row.values[1].toString()));
+                }
+                return Result.ok(rows);
+            } else if (pred instanceof EqualsPredicate) {
                 String key = ((EqualsPredicate) pred).getValue();
                 ResourceId rid = ResourceId.key(cmd.getTableName(), key);
                 lockManager.acquireShared(dummy, rid, LOCK_WAIT_MS);
-                com.minidb.storage.RecordsSerializer.Row row = recordStorage.fetchRecord(Integer.parseInt(key));
+                com.minidb.storage.RecordsSerializer.Row row = fetchRecord(recordStorage, key);
                 if (row != null) {
                     return Result.ok(List.of(new Pair<>(row.values[0].toString(), row.values[1].toString())));
                 } else {
@@ -69,7 +80,12 @@ public class Executor {
                 }
 
             } else if (pred instanceof BetweenPredicate) {
-                return Result.error("Range scans not supported yet");
+                // No key locks: rows committed while the scan runs may or may not be seen
+                BetweenPredicate between = (BetweenPredicate) pred;
+                List<Pair<String, String>> rows = new ArrayList<>();
+                scanRecords(recordStorage, between.getLow(), between.getHigh(),
+                        row -> rows.add(new Pair<>(row.values[0].toString(), row.values[1].toString())));
+                return Result.ok(rows);
             } else {
                 return Result.error("Unsupported predicate type");
             }
@@ -94,7 +110,7 @@ public class Executor {
         try {
             lockManager.acquireExclusive(tx, rid, LOCK_WAIT_MS);
             com.minidb.storage.RecordsSerializer.Row row = new com.minidb.storage.RecordsSerializer.Row(2);
-            row.values[0] = Integer.parseInt(cmd.getKeyLiteral());
+            row.values[0] = recordStorage.getKeyType().toColumn(cmd.getKeyLiteral());
             row.values[1] = cmd.getValueLiteral();
             recordStorage.insertRecord(row, tx);
             txnManager.commit(tx);
@@ -121,7 +137,7 @@ public class Executor {
 
         try {
             lockManager.acquireExclusive(tx, rid, LOCK_WAIT_MS);
-            recordStorage.deleteRecord(Integer.parseInt(key), tx);
+            deleteRecord(recordStorage, key, tx);
             txnManager.commit(tx);
             return Result.ok();
 
@@ -133,6 +149,54 @@ public class Executor {
         }
     }
 
+    /**
+     * Recomputes the table's statistics and returns them as (statistic, value) rows, histogram
+     * buckets last.
+     */
+    private Result executeAnalyze(AnalyzeCommand cmd) {
+        if (!"kv".equalsIgnoreCase(cmd.getTableName())) {
+            return Result.error("Unknown table: " + cmd.getTableName());
+        }
+        try {
+            com.minidb.storage.TableStatistics stats = recordStorage.analyze(cmd.getSamplePercent() / 100.0);
+            List<Pair<String, String>> rows = new ArrayList<>();
+            rows.add(new Pair<>("rows", Long.toString(stats.getRows())));
+            rows.add(new Pair<>("sampled.rows", Long.toString(stats.getSampledRows())));
+            if (stats.getIndexHeight() > 0) {
+                rows.add(new Pair<>("index.height", Integer.toString(stats.getIndexHeight())));
+                rows.add(new Pair<>("index.leaf.pages", Integer.toString(stats.getIndexLeafPages())));
+                rows.add(new Pair<>("index.leaf.fill", String.format("%.2f", stats.getIndexLeafFill())));
+            }
+            stats.getDistinctValues().forEach((column, distinct) -> rows.add(new Pair<>("distinct." + column, Long.toString(distinct))));
+            com.minidb.index.Serializer<?> keySerializer = recordStorage.getKeyType().getSerializer();
+            List<byte[]> bounds = stats.getHistogramBounds();
+            long[] bucketRows = stats.getBucketRows();
+            for (int i = 0; i < bucketRows.length; i++) {
+                rows.add(new Pair<>("histogram." + i, keySerializer.deserialize(bounds.get(i)) + " .. "
+                        + keySerializer.deserialize(bounds.get(i + 1)) + ": " + bucketRows[i]));
+            }
+            return Result.ok(rows);
+        } catch (Exception e) {
+            return Result.error("Analyze failed: " + e.getMessage());
+        }
+    }
+
+    private static <K extends Comparable<K>> com.minidb.storage.RecordsSerializer.Row fetchRecord(
+            com.minidb.storage.TableStorage<K> storage, String keyLiteral) throws java.io.IOException {
+        return storage.fetchRecord(storage.getKeyType().parse(keyLiteral));
+    }
+
+    private static <K extends Comparable<K>> void scanRecords(com.minidb.storage.TableStorage<K> storage, String lowLiteral,
+            String highLiteral, Consumer<com.minidb.storage.RecordsSerializer.Row> consumer) throws java.io.IOException {
+        com.minidb.storage.KeyType<K> keyType = storage.getKeyType();
+        storage.scanRecords(keyType.parse(lowLiteral), keyType.parse(highLiteral), Long.MAX_VALUE, consumer);
+    }
+
+    private static <K extends Comparable<K>> void deleteRecord(
+            com.minidb.storage.TableStorage<K> storage, String keyLiteral, Transaction tx) throws java.io.IOException {
+        storage.deleteRecord(storage.getKeyType().parse(keyLiteral), tx);
+    }
+
     private void safeAbort(Transaction tx) {
         try {
             txnManager.abort(tx);
@@ -33,6 +33,8 @@ public class Parser {
                 return parseSelect();
             case "DELETE":
                 return parseDelete();
+            case "ANALYZE":
+                return parseAnalyze();
             default:
                 throw new ParseException("Unknown command: " + t.value);
         }
@@ -77,6 +79,27 @@ public class Parser {
         return new DeleteCommand(tableName, predicate);
     }
 
+    private AnalyzeCommand parseAnalyze() throws ParseException {
+        expectKeyword("ANALYZE");
+        String tableName = expectIdentifier();
+        int samplePercent = 100;
+        if (matchKeyword("SAMPLE")) {
+            Token t = consume();
+            if (t.type != TokenType.NUMERIC_LITERAL) {
+                throw new ParseException("Expected a sample percentage but got " + t.value);
+            }
+            try {
+                samplePercent = Integer.parseInt(t.value);
+            } catch (NumberFormatException e) {
+                throw new ParseException("Expected a whole sample percentage but got " + t.value);
+            }
+            if (samplePercent < 1 || samplePercent > 100) {
+                throw new ParseException("Sample percentage must be between 1 and 100 but got " + t.value);
+            }
+        }
+        return new AnalyzeCommand(tableName, samplePercent);
+    }
+
     private Predicate parsePredicate() throws ParseException {
         String column = expectIdentifier();
         if (matchKeyword("BETWEEN")) {
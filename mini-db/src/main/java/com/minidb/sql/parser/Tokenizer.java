@@ -16,7 +16,8 @@ public class Tokenizer {
     private static final Map<String, TokenType> KEYWORDS = Stream.of(new Object[][] {
         {"INSERT", TokenType.KEYWORD}, {"INTO", TokenType.KEYWORD}, {"VALUES", TokenType.KEYWORD},
         {"SELECT", TokenType.KEYWORD}, {"FROM", TokenType.KEYWORD}, {"WHERE", TokenType.KEYWORD},
-        {"DELETE", TokenType.KEYWORD}, {"BETWEEN", TokenType.KEYWORD}, {"AND", TokenType.KEYWORD}
+        {"DELETE", TokenType.KEYWORD}, {"BETWEEN", TokenType.KEYWORD}, {"AND", TokenType.KEYWORD},
+        {"ANALYZE", TokenType.KEYWORD}, {"SAMPLE", TokenType.KEYWORD}
     }).collect(Collectors.toMap(data -> (String)data[0], data -> (TokenType)data[1]));
 
     private static final Map<Character, TokenType> SYMBOLS = Stream.of(new Object[][] {
@@ -0,0 +1,30 @@
+package com.minidb.sql.parser.ast;
+
+public class AnalyzeCommand implements Command {
+    private final String tableName;
+    private final int samplePercent;
+
+    public AnalyzeCommand(String tableName, int samplePercent) {
+        this.tableName = tableName;
+        this.samplePercent = samplePercent;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * Share of the index leaves to read, 100 without a SAMPLE clause.
+     */
+    public int getSamplePercent() {
+        return samplePercent;
+    }
+
+    @Override
+    public String toString() {
+        return "AnalyzeCommand{"
+                + "tableName='" + tableName + "'" +
+                ", samplePercent=" + samplePercent +
+                '}';
+    }
+}
@@ -0,0 +1,436 @@
+package com.minidb.storage;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Blocked Bloom filter over the serialized primary keys of a table, so that a lookup for a key that
+ * was never inserted usually ends without descending the index. The bits are split into 512-bit
+ * blocks, one cache line each: a key's hash picks one block and sets or tests all its bits there, so
+ * a probe touches a single cache line and an insert dirties a single page.
+ *
+ * The bits are kept in memory and written through to pages whenever they change. The root page
+ * (FILTER_PAGE) holds the number of blocks, the bits per key it was built with, the number of adds and
+ * deletes since the filter was built, the number of block pages and their pageIds; each block page
+ * holds BLOCKS_PER_PAGE blocks after the page header.
+ *
+ * Bits are never cleared, so deleted keys keep answering "maybe" and a filter sized for fewer keys
+ * than it holds loses precision. rebuild() replaces the filter with one sized for the live keys;
+ * needsRebuild() tells when that is due. Adds made while a rebuild scans the keys are replayed into
+ * the new filter before it takes over, so no key that was added goes missing.
+ */
+public class BloomFilter {
+    public static final byte FILTER_PAGE = 9;
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final int BLOCK_WORDS = 8;
+    private static final int BLOCK_BITS = 64 * BLOCK_WORDS;
+    private static final int BLOCK_BYTES = 8 * BLOCK_WORDS;
+    private static final int BLOCKS_PER_PAGE = (Page.PAGE_SIZE - Page.HEADER_SIZE) / BLOCK_BYTES;
+
+    // Root page
+    private static final int NUM_BLOCKS = Page.HEADER_SIZE;
+    private static final int BITS_PER_KEY = NUM_BLOCKS + 4;
+    private static final int ADDS = BITS_PER_KEY + 4;
+    private static final int DELETES = ADDS + 8;
+    private static final int NUM_BLOCK_PAGES = DELETES + 8;
+    private static final int BLOCK_PAGES = NUM_BLOCK_PAGES + 4;
+    private static final int MAX_BLOCK_PAGES = (Page.PAGE_SIZE - BLOCK_PAGES) / 4;
+
+    // A filter is rebuilt once deletes reach this fraction of its adds
+    private static final double STALE_FRACTION = 0.25;
+    // A rebuilt filter has room for this many times the live keys, so it does not fill up at once
+    private static final double GROWTH = 1.5;
+    private static final int MIN_KEYS = 1024;
+
+    private final String rootName;
+    private final int bitsPerKey; // For the next rebuild
+    private final PageManager pageManager;
+    private final BufferPool bufferPool;
+    private int rootPageId = -1;
+    private int[] blockPageIds;
+    private int builtBitsPerKey;
+    private long adds;
+    private long deletes;
+    private volatile Bits bits; // Null until the filter is built
+    private long[] pendingHashes; // Adds made while a rebuild scans the keys, or null
+    private int pendingCount;
+
+    /**
+     * Opens the filter registered under rootName, if there is one. Otherwise the filter is not built
+     * and answers "maybe" for every key until rebuild() runs.
+     */
+    public BloomFilter(String rootName, int bitsPerKey, PageManager pageManager, BufferPool bufferPool) throws IOException {
+        if (bitsPerKey <= 0) {
+            throw new IllegalArgumentException("bitsPerKey must be positive, was " + bitsPerKey);
+        }
+        this.rootName = rootName;
+        this.bitsPerKey = bitsPerKey;
+        this.pageManager = pageManager;
+        this.bufferPool = bufferPool;
+
+        int pageId = pageManager.getNamedRoot(rootName);
+        if (pageId >= 0) {
+            read(pageId);
+        }
+    }
+
+    public boolean isBuilt() {
+        return bits != null;
+    }
+
+    /**
+     * False only if key was never added since the filter was built.
+     */
+    public boolean mightContain(byte[] key) {
+        Bits current = bits;
+        if (current == null) {
+            return true;
+        }
+        return test(current.words, current.hashes, hash(key));
+    }
+
+    public synchronized void add(byte[] key) throws IOException {
+        long hash = hash(key);
+        if (pendingHashes != null) {
+            if (pendingCount == pendingHashes.length) {
+                pendingHashes = Arrays.copyOf(pendingHashes, 2 * pendingCount);
+            }
+            pendingHashes[pendingCount++] = hash;
+        }
+        if (bits == null) {
+            return;
+        }
+        int block = set(bits.words, bits.hashes, hash);
+        adds++;
+        writeBlock(block);
+        writeCounts();
+    }
+
+    /**
+     * Counts a delete of a key that was added; the filter keeps its bits until the next rebuild.
+     */
+    public synchronized void recordDelete() throws IOException {
+        if (bits == null) {
+            return;
+        }
+        deletes++;
+        writeCounts();
+    }
+
+    /**
+     * Whether deletes have left many stale bits, or more keys were added than the filter was sized for.
+     */
+    public synchronized boolean needsRebuild() {
+        if (bits == null) {
+            return true;
+        }
+        return deletes >= STALE_FRACTION * adds || adds - deletes > capacity();
+    }
+
+    /**
+     * Replaces the filter with one sized for keys, the serialized keys of every live entry. The new
+     * filter is written and registered under the root name before it takes over, and the pages of
+     * the old one are freed afterwards. Concurrent adds and lookups carry on against the old filter:
+     * the lock is only held to swap the filters and fold in the adds made since the write began.
+     */
+    public void rebuild(Iterator<byte[]> keys) throws IOException {
+        synchronized (this) {
+            if (pendingHashes != null) {
+                throw new IllegalStateException("The Bloom filter " + rootName + " is already being rebuilt");
+            }
+            pendingHashes = new long[64];
+            pendingCount = 0;
+        }
+        long[] scanned = new long[1024];
+        int count = 0;
+        try {
+            while (keys.hasNext()) {
+                if (count == scanned.length) {
+                    scanned = Arrays.copyOf(scanned, 2 * count);
+                }
+                scanned[count++] = hash(keys.next());
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                pendingHashes = null;
+            }
+            throw e;
+        }
+
+        int drained;
+        long[] drainedHashes;
+        synchronized (this) {
+            drained = pendingCount;
+            drainedHashes = Arrays.copyOf(pendingHashes, drained);
+        }
+        boolean installed = false;
+        try {
+            // Build and write the new filter without the lock, so adds keep going to the old one
+            long expected = count + drained;
+            int numBlocks = (int) Math.min((long) MAX_BLOCK_PAGES * BLOCKS_PER_PAGE,
+                    Math.max(1, (long) Math.ceil(Math.max(MIN_KEYS, GROWTH * expected) * bitsPerKey / BLOCK_BITS)));
+            int newHashes = hashesFor(bitsPerKey);
+            long[] newWords = new long[numBlocks * BLOCK_WORDS];
+            for (int i = 0; i < count; i++) {
+                set(newWords, newHashes, scanned[i]);
+            }
+            for (long hash : drainedHashes) {
+                set(newWords, newHashes, hash);
+            }
+            int newRootPageId = pageManager.allocatePage();
+            int[] newBlockPageIds = new int[(numBlocks + BLOCKS_PER_PAGE - 1) / BLOCKS_PER_PAGE];
+            for (int i = 0; i < newBlockPageIds.length; i++) {
+                newBlockPageIds[i] = pageManager.allocatePage();
+            }
+            write(newRootPageId, newBlockPageIds, newWords, bitsPerKey, expected);
+            bufferPool.flushAllPages();
+            pageManager.registerRoot(rootName, newRootPageId);
+
+            int oldRootPageId;
+            int[] oldBlockPageIds;
+            synchronized (this) {
+                // Adds made since the pending hashes were drained go in before lookups see the new bits
+                int[] lateBlocks = new int[pendingCount - drained];
+                for (int i = 0; i < lateBlocks.length; i++) {
+                    lateBlocks[i] = set(newWords, newHashes, pendingHashes[drained + i]);
+                }
+                oldRootPageId = rootPageId;
+                oldBlockPageIds = blockPageIds;
+                rootPageId = newRootPageId;
+                blockPageIds = newBlockPageIds;
+                bits = new Bits(newWords, newHashes);
+                builtBitsPerKey = bitsPerKey;
+                adds = expected + lateBlocks.length;
+                deletes = 0;
+                pendingHashes = null;
+                installed = true;
+                for (int block : lateBlocks) {
+                    writeBlock(block);
+                }
+                writeCounts();
+            }
+            if (oldRootPageId >= 0) {
+                for (int pageId : oldBlockPageIds) {
+                    free(pageId);
+                }
+                free(oldRootPageId);
+            }
+        } finally {
+            if (!installed) {
+                synchronized (this) {
+                    pendingHashes = null;
+                }
+            }
+        }
+    }
+
+    public synchronized long getAdds() {
+        return adds;
+    }
+
+    public synchronized long getDeletes() {
+        return deletes;
+    }
+
+    public int getSizeBytes() {
+        Bits current = bits;
+        return current == null ? 0 : 8 * current.words.length;
+    }
+
+    /**
+     * Number of keys the filter was sized for.
+     */
+    private long capacity() {
+        return (long) bits.words.length * 64 / builtBitsPerKey;
+    }
+
+    /**
+     * The number of bits a key sets, which keeps false positives lowest for bitsPerKey.
+     */
+    public static int hashesFor(int bitsPerKey) {
+        return Math.max(1, Math.min(16, (int) Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    /**
+     * 64-bit FNV-1a over the serialized key, finished with MurmurHash3's fmix64 so that both halves
+     * are well mixed. Filters on disk depend on this function, so it must never change.
+     */
+    public static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Maps the high half of the hash onto [0, numBlocks) without a division; the low half picks the
+     * bits within the block.
+     */
+    private static int block(long hash, int numBlocks) {
+        return (int) (((hash >>> 32) * numBlocks) >>> 32);
+    }
+
+    /**
+     * Length of the words array of a filter with bitsPerKey bits for each of keys keys, in whole
+     * blocks. The static methods let other structures (such as SSTables) keep filters of their own.
+     */
+    public static int wordsFor(long keys, int bitsPerKey) {
+        return BLOCK_WORDS * (int) Math.max(1, (keys * bitsPerKey + BLOCK_BITS - 1) / BLOCK_BITS);
+    }
+
+    /**
+     * Whether all bits of the key with the given hash are set.
+     */
+    public static boolean test(long[] bits, int hashes, long hash) {
+        int block = block(hash, bits.length / BLOCK_WORDS);
+        int h1 = (int) hash;
+        int h2 = Integer.rotateLeft(h1, 16) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            if ((bits[block * BLOCK_WORDS + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the bits of the key with the given hash and returns the block they are in.
+     */
+    public static int set(long[] bits, int hashes, long hash) {
+        int block = block(hash, bits.length / BLOCK_WORDS);
+        int h1 = (int) hash;
+        int h2 = Integer.rotateLeft(h1, 16) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            bits[block * BLOCK_WORDS + (bit >>> 6)] |= 1L << bit;
+        }
+        return block;
+    }
+
+    private Page pin(int pageId) throws IOException {
+        Page page = bufferPool.getPage(pageId);
+        if (page == null) {
+            throw new IOException("Could not read Bloom filter page " + pageId);
+        }
+        return page;
+    }
+
+    private void read(int pageId) throws IOException {
+        Page root = pin(pageId);
+        try {
+            if (root.getPageType() != FILTER_PAGE) {
+                throw new IllegalStateException("Page " + pageId + " holds no Bloom filter (page type " + root.getPageType() + ")");
+            }
+            byte[] data = root.getData();
+            int numBlocks = (int) INT.get(data, NUM_BLOCKS);
+            builtBitsPerKey = (int) INT.get(data, BITS_PER_KEY);
+            adds = (long) LONG.get(data, ADDS);
+            deletes = (long) LONG.get(data, DELETES);
+            blockPageIds = new int[(int) INT.get(data, NUM_BLOCK_PAGES)];
+            for (int i = 0; i < blockPageIds.length; i++) {
+                blockPageIds[i] = (int) INT.get(data, BLOCK_PAGES + 4 * i);
+            }
+            long[] words = new long[numBlocks * BLOCK_WORDS];
+            for (int i = 0; i < blockPageIds.length; i++) {
+                pageManager.reservePage(blockPageIds[i]);
+                Page page = pin(blockPageIds[i]);
+                try {
+                    int blocks = Math.min(BLOCKS_PER_PAGE, numBlocks - i * BLOCKS_PER_PAGE);
+                    for (int w = 0; w < blocks * BLOCK_WORDS; w++) {
+                        words[i * BLOCKS_PER_PAGE * BLOCK_WORDS + w] = (long) LONG.get(page.getData(), Page.HEADER_SIZE + 8 * w);
+                    }
+                } finally {
+                    bufferPool.unpinPage(blockPageIds[i], false);
+                }
+            }
+            rootPageId = pageId;
+            bits = new Bits(words, hashesFor(builtBitsPerKey));
+        } finally {
+            bufferPool.unpinPage(pageId, false);
+        }
+    }
+
+    /**
+     * Writes a new filter, with no deletes yet, to pages that nothing else uses.
+     */
+    private void write(int rootPageId, int[] blockPageIds, long[] words, int builtBitsPerKey, long adds) throws IOException {
+        Page root = pin(rootPageId);
+        byte[] data = root.getData();
+        root.setPageType(FILTER_PAGE);
+        INT.set(data, NUM_BLOCKS, words.length / BLOCK_WORDS);
+        INT.set(data, BITS_PER_KEY, builtBitsPerKey);
+        LONG.set(data, ADDS, adds);
+        LONG.set(data, DELETES, 0L);
+        INT.set(data, NUM_BLOCK_PAGES, blockPageIds.length);
+        for (int i = 0; i < blockPageIds.length; i++) {
+            INT.set(data, BLOCK_PAGES + 4 * i, blockPageIds[i]);
+        }
+        bufferPool.unpinPage(rootPageId, true);
+
+        int numBlocks = words.length / BLOCK_WORDS;
+        for (int i = 0; i < blockPageIds.length; i++) {
+            Page page = pin(blockPageIds[i]);
+            page.setPageType(FILTER_PAGE);
+            int blocks = Math.min(BLOCKS_PER_PAGE, numBlocks - i * BLOCKS_PER_PAGE);
+            for (int w = 0; w < blocks * BLOCK_WORDS; w++) {
+                LONG.set(page.getData(), Page.HEADER_SIZE + 8 * w, words[i * BLOCKS_PER_PAGE * BLOCK_WORDS + w]);
+            }
+            bufferPool.unpinPage(blockPageIds[i], true);
+        }
+    }
+
+    /**
+     * Hands a page of a replaced filter back to the PageManager as an empty data page.
+     */
+    private void free(int pageId) throws IOException {
+        Page page = pin(pageId);
+        page.setPageType((byte) 0);
+        bufferPool.unpinPage(pageId, true);
+        pageManager.freePage(pageId);
+    }
+
+    private void writeBlock(int block) throws IOException {
+        int pageId = blockPageIds[block / BLOCKS_PER_PAGE];
+        Page page = pin(pageId);
+        int at = Page.HEADER_SIZE + (block % BLOCKS_PER_PAGE) * BLOCK_BYTES;
+        for (int w = 0; w < BLOCK_WORDS; w++) {
+            LONG.set(page.getData(), at + 8 * w, bits.words[block * BLOCK_WORDS + w]);
+        }
+        bufferPool.unpinPage(pageId, true);
+    }
+
+    private void writeCounts() throws IOException {
+        Page root = pin(rootPageId);
+        LONG.set(root.getData(), ADDS, adds);
+        LONG.set(root.getData(), DELETES, deletes);
+        bufferPool.unpinPage(rootPageId, true);
+    }
+
+    /**
+     * The bits together with the number of bits a key sets in them, swapped as one so that a lookup
+     * never tests one filter's bits with another's hash count.
+     */
+    private static final class Bits {
+        final long[] words;
+        final int hashes;
+
+        Bits(long[] words, int hashes) {
+            this.words = words;
+            this.hashes = hashes;
+        }
+    }
+}
@@ -4,7 +4,9 @@ import com.minidb.monitoring.MetricsRegistry;
 import io.micrometer.core.instrument.MeterRegistry;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -22,44 +24,28 @@ public class BufferPool {
         this.poolSize = poolSize;
         // Use LinkedHashMap for LRU cache behavior.
         // The 'true' in the constructor enables access-order, which is key for LRU.
-        this.pageCache = new LinkedHashMap<Integer, Page>(poolSize, 0.75f, true) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
-                // This condition is met when a new element is added and the map exceeds its capacity.
-                if (size() > poolSize) {
-                    // Before evicting, check if the page is dirty. If so, flush it.
-                    // Also, a real buffer pool would check if pin_count is 0.
-                    if (eldest.getValue().isDirty()) {
-                        try {
-                            pageManager.writePage(eldest.getKey(), eldest.getValue().toBytes());
-                        } catch (IOException e) {
-                            // In a real system, this is a critical error.
-                            e.printStackTrace();
-                        }
-                    }
-                    return true;
-                }
-                return false;
-            }
-        };
+        this.pageCache = new LinkedHashMap<Integer, Page>(poolSize, 0.75f, true);
 
         MeterRegistry meterRegistry = MetricsRegistry.getInstance();
         meterRegistry.gauge("minidb.bufferpool.hits", hitCount);
         meterRegistry.gauge("minidb.bufferpool.misses", missCount);
     }
 
-    public Page getPage(int pageId) {
-        if (pageCache.containsKey(pageId)) {
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public synchronized Page getPage(int pageId) {
+        Page cached = pageCache.get(pageId);
+        if (cached != null) {
             hitCount.incrementAndGet();
-            Page page = pageCache.get(pageId);
-            page.pin();
-            return page;
+            cached.pin();
+            return cached;
         }
 
         missCount.incrementAndGet();
         // Page not in cache, so read it from disk
-        // Eviction of an old page happens automatically here if the pool is full,
-        // thanks to the LinkedHashMap's removeEldestEntry override.
+        // Eviction of an old page happens after the new page is added, if the pool is full.
 
         byte[] pageBytes = new byte[pageManager.getPageSize()];
         try {
@@ -73,11 +59,38 @@ public class BufferPool {
         int maxSlots = (pageManager.getPageSize() - Page.HEADER_SIZE) / Page.SLOT_ENTRY_SIZE;
         Page page = new Page(pageId, pageBytes, maxSlots);
         pageCache.put(pageId, page);
+        evictIfNeeded();
         // The page is already pinned with a count of 1 upon creation/loading.
         return page;
     }
 
-    public void unpinPage(int pageId, boolean isDirty) {
+    /**
+     * Evicts least recently used pages until the pool is back to its size. Pinned pages are in use
+     * (and may be latched) so they are skipped; if everything is pinned the pool temporarily grows.
+     */
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<Integer, Page>> it = pageCache.entrySet().iterator();
+        while (pageCache.size() > poolSize && it.hasNext()) {
+            Map.Entry<Integer, Page> eldest = it.next();
+            Page page = eldest.getValue();
+            if (page.getPinCount() > 0) {
+                continue;
+            }
+            // Before evicting, check if the page is dirty. If so, flush it.
+            if (page.isDirty()) {
+                try {
+                    pageManager.writePage(eldest.getKey(), page.toBytes());
+                } catch (IOException e) {
+                    // In a real system, this is a critical error.
+                    e.printStackTrace();
+                    continue;
+                }
+            }
+            it.remove();
+        }
+    }
+
+    public synchronized void unpinPage(int pageId, boolean isDirty) {
         Page page = pageCache.get(pageId);
         if (page != null) {
             page.unpin();
@@ -89,16 +102,55 @@ public class BufferPool {
         }
     }
 
-    public void flushAllPages() {
+    /**
+     * Loads the given pages into the pool ahead of use. Missing pages are read as one batch,
+     * which the PageManager spreads over the I/O queues of the segments they live in.
+     */
+    public synchronized void prefetch(Collection<Integer> pageIds) {
+        Map<Integer, byte[]> toRead = new HashMap<>();
+        for (int pageId : pageIds) {
+            if (!pageCache.containsKey(pageId)) {
+                toRead.put(pageId, new byte[pageManager.getPageSize()]);
+            }
+        }
+        if (toRead.isEmpty()) {
+            return;
+        }
+        try {
+            pageManager.readPages(toRead);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        int maxSlots = (pageManager.getPageSize() - Page.HEADER_SIZE) / Page.SLOT_ENTRY_SIZE;
+        for (Map.Entry<Integer, byte[]> entry : toRead.entrySet()) {
+            if (!pageCache.containsKey(entry.getKey())) {
+                Page page = new Page(entry.getKey(), entry.getValue(), maxSlots);
+                page.unpin(); // Prefetched pages are cached but not pinned by anyone yet
+                pageCache.put(entry.getKey(), page);
+            }
+        }
+        evictIfNeeded();
+    }
+
+    public synchronized void flushAllPages() {
+        // Collect dirty pages first so they can be written as one batch, in parallel across segments.
+        Map<Integer, byte[]> dirtyPages = new HashMap<>();
         for (Map.Entry<Integer, Page> entry : pageCache.entrySet()) {
             if (entry.getValue().isDirty()) {
-                try {
-                    pageManager.writePage(entry.getKey(), entry.getValue().toBytes());
-                    entry.getValue().setDirty(false); // Mark as clean after flushing
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                dirtyPages.put(entry.getKey(), entry.getValue().toBytes());
+            }
+        }
+        if (dirtyPages.isEmpty()) {
+            return;
+        }
+        try {
+            pageManager.writePages(dirtyPages);
+            for (int pageId : dirtyPages.keySet()) {
+                pageCache.get(pageId).setDirty(false); // Mark as clean after flushing
             }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 }
@@ -0,0 +1,187 @@
+package com.minidb.storage;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.index.Cursor;
+import com.minidb.index.Node;
+import com.minidb.log.LogRecord;
+import com.minidb.log.WALManager;
+import com.minidb.storage.RecordsSerializer.Row;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Index-organized storage for the kv table: the B+ tree's leaf entries hold the whole serialized
+ * row instead of a RecordId, and there is no heap. A key lookup reads one leaf rather than a leaf
+ * and then an unrelated heap page, and a range scan reads rows in key order straight off the leaves
+ * it walks. Rows are limited to Node.MAX_VALUE_SIZE bytes, and the table has no secondary indexes,
+ * since without a heap there is no RecordId for them to point at.
+ *
+ * Writes are logged like RecordStorage's: a PUT record with the serialized row, or a DELETE record
+ * whose key field holds the serialized primary key, each followed by DONE once the tree is updated.
+ * TableStatistics are saved on a catalog page named kv.stats, as RecordStorage does.
+ */
+public class ClusteredStorage<K extends Comparable<K>> implements TableStorage<K> {
+    private static final String STATISTICS_ROOT = "kv.stats";
+
+    private final RecordsSerializer recordSerializer;
+    private final WALManager walManager;
+    private final BPlusTree<K, Row> tree;
+    private final KeyType<K> keyType;
+    private final PageManager pageManager;
+    private final BufferPool bufferPool;
+    private volatile TableStatistics statistics;
+    private volatile int scanPartitions = 1;
+    private volatile ForkJoinPool scanPool;
+
+    public ClusteredStorage(RecordsSerializer recordSerializer, WALManager walManager, BPlusTree<K, Row> tree, KeyType<K> keyType, PageManager pageManager, BufferPool bufferPool) {
+        this.recordSerializer = recordSerializer;
+        this.walManager = walManager;
+        this.tree = tree;
+        this.keyType = keyType;
+        this.pageManager = pageManager;
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public KeyType<K> getKeyType() {
+        return keyType;
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        return recordSerializer.getColumnIndex(columnName);
+    }
+
+    @Override
+    public void insertRecord(Row row, com.minidb.txn.Transaction txn) throws IOException {
+        byte[] recordBytes = recordSerializer.serialize(row);
+        if (recordBytes.length > Node.MAX_VALUE_SIZE) {
+            throw new IOException("Row of " + recordBytes.length + " bytes is longer than the " + Node.MAX_VALUE_SIZE + " bytes a clustered row may take");
+        }
+        K key = keyType.fromColumn(row.values[0]);
+
+        long lsn = walManager.appendAndFlush(new LogRecord(0, LogRecord.OP_PUT, txn.getTxnId(), null, recordBytes));
+        tree.insert(key, row);
+        TableStatistics current = statistics;
+        if (current != null) {
+            current.recordInsert(keyType.getSerializer().serialize(key));
+        }
+        logDone(lsn, txn);
+    }
+
+    @Override
+    public void deleteRecord(K key, com.minidb.txn.Transaction txn) throws IOException {
+        if (tree.search(key) == null) {
+            return; // Key not found
+        }
+        byte[] keyBytes = keyType.getSerializer().serialize(key);
+        long lsn = walManager.appendAndFlush(new LogRecord(0, LogRecord.OP_DELETE, txn.getTxnId(), keyBytes, null));
+        tree.delete(key);
+        TableStatistics current = statistics;
+        if (current != null) {
+            current.recordDelete(keyBytes);
+        }
+        logDone(lsn, txn);
+    }
+
+    private void logDone(long lsn, com.minidb.txn.Transaction txn) throws IOException {
+        byte[] lsnBytes = ByteBuffer.allocate(8).putLong(lsn).array();
+        walManager.appendAndFlush(new LogRecord(0, LogRecord.OP_DONE, txn.getTxnId(), lsnBytes, null));
+    }
+
+    @Override
+    public Row fetchRecord(K key) throws IOException {
+        return tree.search(key);
+    }
+
+    /**
+     * Splits unlimited scans into partitions subranges that are read at once on pool; 1 scans with
+     * a single cursor and needs no pool.
+     */
+    public void setScanPartitions(int partitions, ForkJoinPool pool) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be at least 1, got " + partitions);
+        }
+        if (partitions > 1 && pool == null) {
+            throw new IllegalArgumentException("Partitioned scans need a pool");
+        }
+        scanPool = pool;
+        scanPartitions = partitions;
+    }
+
+    /**
+     * Rows come straight from the cursor's leaf copies, one leaf in memory at a time. An unlimited
+     * scan with scan partitions set reads its subranges on several workers instead, which hand the
+     * rows over in key order and stay a bounded number of rows ahead of the consumer.
+     */
+    @Override
+    public void scanRecords(K low, K high, long limit, Consumer<Row> consumer) throws IOException {
+        if (scanPartitions > 1 && limit == Long.MAX_VALUE) {
+            tree.parallelRangeScan(low, high, scanPartitions, scanPool, Map.Entry::getValue, consumer);
+            return;
+        }
+        try (Cursor<K, Row> cursor = tree.cursor(high, limit)) {
+            cursor.seek(low);
+            while (cursor.hasNext()) {
+                consumer.accept(cursor.next().getValue());
+            }
+        }
+    }
+
+    @Override
+    public List<Row> fetchByColumn(String columnName, String literal) {
+        throw new IllegalArgumentException("No index on column " + columnName + " (clustered tables have no secondary indexes)");
+    }
+
+    @Override
+    public void openStatistics(double sampleRate) throws IOException {
+        TableStatistics saved = TableStatistics.load(STATISTICS_ROOT, pageManager, bufferPool);
+        if (saved == null) {
+            analyze(sampleRate);
+        } else {
+            statistics = saved;
+        }
+    }
+
+    @Override
+    public TableStatistics analyze(double sampleRate) throws IOException {
+        TableStatistics analyzed = TableStatistics.analyze(tree, keyType.getSerializer(), sampleRate, new Random(), new LinkedHashMap<>());
+        analyzed.save(STATISTICS_ROOT, pageManager, bufferPool);
+        statistics = analyzed;
+        return analyzed;
+    }
+
+    @Override
+    public TableStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public void saveStatistics() throws IOException {
+        TableStatistics current = statistics;
+        if (current != null) {
+            current.save(STATISTICS_ROOT, pageManager, bufferPool);
+        }
+    }
+
+    // This method is for recovery purposes and should not be logged. Recovery redoes records in LSN
+    // order, so a key ends up with its last logged write.
+    @Override
+    public void insertRecordForRecovery(long lsn, byte[] recordBytes) throws IOException {
+        Row row = recordSerializer.deserialize(recordBytes);
+        tree.insert(keyType.fromColumn(row.values[0]), row);
+    }
+
+    // This method is for recovery purposes and should not be logged. The log key is the primary key.
+    @Override
+    public void deleteRecordForRecovery(long lsn, byte[] logKey) throws IOException {
+        tree.delete(keyType.getSerializer().deserialize(logKey));
+    }
+}
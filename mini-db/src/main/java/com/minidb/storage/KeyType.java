@@ -0,0 +1,125 @@
+package com.minidb.storage;
+
+import com.minidb.index.BinaryComparableSerializer;
+import com.minidb.index.CompositeKey;
+import com.minidb.index.Serializer;
+import com.minidb.serializers.CompositeKeySerializer;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.LongSerializer;
+import com.minidb.serializers.StringSerializer;
+import com.minidb.storage.RecordsSerializer.ColumnType;
+
+import java.util.function.Function;
+
+/**
+ * Type of the kv table's primary key: how a SQL literal becomes an index key, which serializer the
+ * index uses, and what the row's key column holds. A composite key is written in SQL as one literal
+ * with its columns separated by ':' (for example 'eu-west:42') and kept in the row as that string.
+ */
+public final class KeyType<K extends Comparable<K>> {
+    public static final KeyType<Integer> INT = new KeyType<>("int", new IntegerSerializer(), ColumnType.INT, Integer::valueOf);
+    public static final KeyType<String> STRING = new KeyType<>("string", new StringSerializer(), ColumnType.STRING, literal -> literal);
+
+    private static final String COMPOSITE_SEPARATOR = ":";
+
+    private final String name;
+    private final Serializer<K> serializer;
+    private final ColumnType columnType;
+    private final Function<String, K> parser;
+
+    private KeyType(String name, Serializer<K> serializer, ColumnType columnType, Function<String, K> parser) {
+        this.name = name;
+        this.serializer = serializer;
+        this.columnType = columnType;
+        this.parser = parser;
+    }
+
+    /**
+     * Parses a minidb.keyType value: "int", "string", or a comma separated list of int, long and
+     * string for a composite key, such as "string,int".
+     */
+    public static KeyType<?> of(String spec) {
+        String[] columns = spec.trim().toLowerCase().split("\\s*,\\s*");
+        if (columns.length == 1 && columns[0].equals(INT.name)) {
+            return INT;
+        }
+        if (columns.length == 1 && columns[0].equals(STRING.name)) {
+            return STRING;
+        }
+        ColumnType[] types = new ColumnType[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            types[i] = ColumnType.valueOf(columns[i].toUpperCase());
+        }
+        return composite(types);
+    }
+
+    public static KeyType<CompositeKey> composite(ColumnType... columns) {
+        BinaryComparableSerializer<?>[] serializers = new BinaryComparableSerializer<?>[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            switch (columns[i]) {
+                case INT:
+                    serializers[i] = new IntegerSerializer();
+                    break;
+                case LONG:
+                    serializers[i] = new LongSerializer();
+                    break;
+                case STRING:
+                    serializers[i] = new StringSerializer();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported key column type: " + columns[i]);
+            }
+        }
+        ColumnType[] types = columns.clone();
+        Function<String, CompositeKey> parser = literal -> {
+            String[] parts = literal.split(COMPOSITE_SEPARATOR, types.length);
+            if (parts.length != types.length) {
+                throw new IllegalArgumentException("Key '" + literal + "' needs " + types.length + " columns separated by '" + COMPOSITE_SEPARATOR + "'");
+            }
+            Comparable<?>[] values = new Comparable<?>[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = types[i] == ColumnType.INT ? Integer.valueOf(parts[i])
+                        : types[i] == ColumnType.LONG ? (Comparable<?>) Long.valueOf(parts[i]) : parts[i];
+            }
+            return new CompositeKey(values);
+        };
+        return new KeyType<>("composite", new CompositeKeySerializer(serializers), ColumnType.STRING, parser);
+    }
+
+    public Serializer<K> getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * Type of the row column that holds the key.
+     */
+    public ColumnType getColumnType() {
+        return columnType;
+    }
+
+    public K parse(String literal) {
+        return parser.apply(literal);
+    }
+
+    /**
+     * Value to store in the row's key column for a SQL key literal. Throws if the literal is not a
+     * valid key.
+     */
+    public Object toColumn(String literal) {
+        K key = parse(literal);
+        return columnType == ColumnType.STRING ? literal : key;
+    }
+
+    /**
+     * The index key of a row, read from its key column.
+     */
+    @SuppressWarnings("unchecked")
+    public K fromColumn(Object value) {
+        return columnType == ColumnType.STRING ? parse((String) value) : (K) value;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
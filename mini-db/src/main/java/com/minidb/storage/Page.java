@@ -1,6 +1,8 @@
 package com.minidb.storage;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Page {
     public final static int PAGE_SIZE = 4096;
@@ -13,6 +15,8 @@ public class Page {
     private SlotDirectory slots;
     private boolean dirty;
     private int pinCount;
+    // Short-term latch protecting the frame contents; only taken while the page is pinned.
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
     public Page(int pageId, int maxSlots) {
         this.pageBuffer = new byte[PAGE_SIZE];
@@ -78,16 +82,24 @@ public class Page {
         header.setPageType(type);
     }
 
+    /**
+     * Slot ids in use run from 0 to getNumSlots() - 1; deleted slots among them return null from getRecord.
+     */
+    public int getNumSlots() {
+        return header.getNumSlots();
+    }
+
     public int insertRecord(byte[] record) {
         if (record == null) {
             throw new IllegalArgumentException("Record cannot be null");
         }
         int requiredSpace = record.length;
-        int availableSpace = (PAGE_SIZE - (header.getNumSlots() * SLOT_ENTRY_SIZE)) - header.getFreeSpacePtr();
+        // Leave room for one more slot entry, which the slot directory may need for this record
+        int availableSpace = (PAGE_SIZE - ((header.getNumSlots() + 1) * SLOT_ENTRY_SIZE)) - header.getFreeSpacePtr();
 
         if (requiredSpace > availableSpace) {
             compact();
-            availableSpace = (PAGE_SIZE - (header.getNumSlots() * SLOT_ENTRY_SIZE)) - header.getFreeSpacePtr();
+            availableSpace = (PAGE_SIZE - ((header.getNumSlots() + 1) * SLOT_ENTRY_SIZE)) - header.getFreeSpacePtr();
             if (requiredSpace > availableSpace) {
                 return -1; // Not enough space
             }
@@ -100,7 +112,7 @@ public class Page {
         int slotId = slots.addSlot(offset, record.length);
         if (slotId == -1) return -1; // Should not happen if space check is correct
 
-        header.incrementSlots();
+        header.setNumSlots(Math.max(header.getNumSlots(), slotId + 1)); // A reused slot id is already counted
         dirty = true;
         return slotId;
     }
@@ -134,7 +146,8 @@ public class Page {
         buffer.put(12, header.getPageType());
 
         if (header.getPageType() == 0) { // Only write slots for data pages
-            for (int i = 0; i < maxSlots; i++) {
+            // Only the slots in use: the space below them holds records
+            for (int i = 0; i < header.getNumSlots(); i++) {
                 int pos = PAGE_SIZE - ((i + 1) * SLOT_ENTRY_SIZE);
                 SlotEntry slot = slots.get(i);
                 if (slot != null && slot.isValid()) {
@@ -155,7 +168,6 @@ public class Page {
         int writePtr = HEADER_SIZE;
         byte[] tempBuffer = new byte[PAGE_SIZE];
         int currentNumSlots = header.getNumSlots();
-        int newNumSlots = 0;
 
         for (int i = 0; i < currentNumSlots; i++) {
             SlotEntry slot = slots.get(i);
@@ -164,15 +176,39 @@ public class Page {
                 System.arraycopy(record, 0, tempBuffer, writePtr, record.length);
                 slots.updateSlot(i, writePtr, record.length);
                 writePtr += record.length;
-                newNumSlots++;
             }
         }
-        System.arraycopy(tempBuffer, 0, pageBuffer, 0, writePtr);
+        // Slot ids stay stable, so numSlots is kept; freed slots are reused by insertRecord
+        System.arraycopy(tempBuffer, HEADER_SIZE, pageBuffer, HEADER_SIZE, writePtr - HEADER_SIZE);
         header.setFreeSpacePtr(writePtr);
-        header.setNumSlots(newNumSlots);
         dirty = true;
     }
 
+    /**
+     * Turns the frame into an empty data page, as a freed page must be before it is handed out again.
+     */
+    public void clear() {
+        int pageId = header.getPageId();
+        Arrays.fill(pageBuffer, (byte) 0);
+        header = new PageHeader(pageId, HEADER_SIZE);
+        header.setPageType((byte) 0);
+        slots = new SlotDirectory(maxSlots);
+        toBytes();
+        dirty = true;
+    }
+
+    /**
+     * Direct access to the page frame, without re-encoding the header or slot directory.
+     * Callers must hold the latch.
+     */
+    public byte[] getData() {
+        return pageBuffer;
+    }
+
+    public ReentrantReadWriteLock getLatch() {
+        return latch;
+    }
+
     public boolean isDirty() {
         return dirty;
     }
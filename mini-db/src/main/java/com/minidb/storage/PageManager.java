@@ -4,9 +4,22 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /** 
  * Create or open a database file
@@ -28,6 +41,11 @@ import java.util.Queue;
  * Close / flush
  *      Flush all pending writes to disk
  *      Release file handles.
+ * Segmented tablespace (optional)
+ *      Pages can be spread over several fixed-size segment files, possibly on
+ *      different mount points. pageId maps to (segment, offset) arithmetically,
+ *      each segment has its own I/O queue so batched reads/writes run in parallel,
+ *      and growing the database appends a new segment instead of extending one file.
  */
 public class PageManager {
 	private static final String FILE_SIGNATURE = "MINIDB";
@@ -36,12 +54,56 @@ public class PageManager {
 	private String dbFilePath;
 	private int pageSize;
 	private int numPages; // Total number of pages in the database file
-	private RandomAccessFile dbFile;
+	private int pagesPerSegment; // 0 means a single, unbounded file
+	private final List<File> segmentDirs;
+	private final List<Segment> segments = new ArrayList<>();
 	private Queue<Integer> freePageList;
+	private final Map<String, Integer> namedRoots = new LinkedHashMap<>(); // Root pages of named structures, kept in the metadata page
+
+	/**
+	 * One file of the tablespace. Segment 0 is the main database file and holds the metadata page.
+	 * Synchronous I/O uses positional channel reads/writes; batched I/O goes through the segment's
+	 * own single-threaded queue so that every file (device) is driven independently.
+	 */
+	private static final class Segment {
+		final File file;
+		final FileChannel channel;
+		final ExecutorService ioQueue;
+
+		Segment(File file, int index) throws IOException {
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.ioQueue = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "minidb-io-" + file.getName() + "-" + index);
+				t.setDaemon(true);
+				return t;
+			});
+		}
+
+		void close() throws IOException {
+			ioQueue.shutdown();
+			channel.close();
+		}
+	}
 
 	public PageManager(String dbFilePath, int pageSize) throws IOException {
+		this(dbFilePath, pageSize, 0, Collections.emptyList());
+	}
+
+	/**
+	 * Opens (or creates) a segmented tablespace.
+	 * @param pagesPerSegment Number of pages per segment file, or 0 for a single file.
+	 *                        For an existing database the value stored in its metadata wins.
+	 * @param segmentDirs Directories new segments are placed in round-robin. Segment 0 always
+	 *                    stays at dbFilePath; an empty list keeps every segment next to it. The
+	 *                    metadata page records where each segment went, so segments an existing
+	 *                    database already has are reopened from there whatever is passed here.
+	 */
+	public PageManager(String dbFilePath, int pageSize, int pagesPerSegment, List<File> segmentDirs) throws IOException {
 		this.dbFilePath = dbFilePath;
 		this.pageSize = pageSize;
+		this.pagesPerSegment = pagesPerSegment;
+		this.segmentDirs = new ArrayList<>(segmentDirs);
 		File file = new File(dbFilePath);
 
 		if (file.exists() && file.length() > 0) {
@@ -52,7 +114,7 @@ public class PageManager {
 	}
 
 	private void initializeNewDbFile(File file) throws IOException {
-		this.dbFile = new RandomAccessFile(file, "rw");
+		segments.add(new Segment(file, 0));
 		// A new file starts with just the metadata page (Page 0)
 		this.freePageList = new LinkedList<>();
 		this.numPages = 1;
@@ -64,8 +126,8 @@ public class PageManager {
 	}
 
 	private void loadExistingDbFile(File file) throws IOException {
-		this.dbFile = new RandomAccessFile(file, "rw");
-		if (dbFile.length() < pageSize) {
+		segments.add(new Segment(file, 0));
+		if (file.length() < pageSize) {
 			throw new IOException("Database file is corrupted or too small.");
 		}
 
@@ -73,19 +135,67 @@ public class PageManager {
 		byte[] metaPage = new byte[pageSize];
 		readPage(0, metaPage);
 		readMetadata(metaPage);
+
+		// Reopen the remaining segments where the metadata says they are. Files written before the
+		// locations were recorded have none, and their segments are looked for in segmentDirs.
+		if (pagesPerSegment > 0) {
+			List<File> recorded = readSegmentFiles(metaPage);
+			for (int i = 1; recorded.isEmpty() || i < recorded.size(); i++) {
+				File segmentFile = recorded.isEmpty() ? segmentFile(i) : recorded.get(i);
+				if (!segmentFile.exists()) {
+					if (recorded.isEmpty()) {
+						break;
+					}
+					throw new IOException("Segment " + i + " of " + dbFilePath + " is missing: " + segmentFile);
+				}
+				segments.add(new Segment(segmentFile, i));
+			}
+		}
+		// numPages in the metadata is only refreshed on close(); after a crash trust the files instead
+		// so that pages already in use are never handed out again.
+		this.numPages = Math.max(numPages, pagesOnDisk());
+		// Every allocated page has a segment (allocatePage creates them), so one not found is lost
+		if (segmentIndex(numPages - 1) >= segments.size()) {
+			throw new IOException(dbFilePath + " has " + numPages + " pages but only " + segments.size()
+					+ " of its segments were found; pass the segment directories it was created with");
+		}
 		// In a more robust system, the free page list would also be serialized here.
 		this.freePageList = new LinkedList<>();
 	}
 
+	private int pagesOnDisk() {
+		Segment last = segments.get(segments.size() - 1);
+		int fullSegments = pagesPerSegment > 0 ? (segments.size() - 1) * pagesPerSegment : 0;
+		return fullSegments + (int) ((last.file.length() + pageSize - 1) / pageSize);
+	}
+
 	/**
 	 * Writes metadata to the provided byte array (which should be Page 0).
 	 */
-	private void writeMetadata(byte[] metaPage) {
+	private void writeMetadata(byte[] metaPage) throws IOException {
 		ByteBuffer buffer = ByteBuffer.wrap(metaPage);
 		buffer.put(FILE_SIGNATURE.getBytes()); // 6 bytes
 		buffer.putShort((short) FILE_FORMAT_VERSION); // 2 bytes
 		buffer.putInt(this.pageSize); // 4 bytes
 		buffer.putInt(this.numPages); // 4 bytes
+		buffer.putInt(this.pagesPerSegment); // 4 bytes, 0 for single-file databases
+		buffer.putInt(namedRoots.size()); // 4 bytes, then per root: name length (2), name, pageId (4)
+		for (Map.Entry<String, Integer> root : namedRoots.entrySet()) {
+			byte[] name = root.getKey().getBytes(StandardCharsets.UTF_8);
+			buffer.putShort((short) name.length);
+			buffer.put(name);
+			buffer.putInt(root.getValue());
+		}
+		// 4 bytes, then per segment after segment 0: path length (2), absolute path
+		buffer.putInt(segments.size());
+		for (Segment segment : segments.subList(1, segments.size())) {
+			byte[] path = segment.file.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+			if (buffer.remaining() < 2 + path.length) {
+				throw new IOException("The metadata page has no room left for segment " + segment.file);
+			}
+			buffer.putShort((short) path.length);
+			buffer.put(path);
+		}
 		// We could serialize the freePageList here as well.
 	}
 
@@ -111,6 +221,76 @@ public class PageManager {
 		}
 
 		this.numPages = buffer.getInt();
+		this.pagesPerSegment = buffer.getInt();
+		int roots = buffer.getInt(); // Files written before named roots existed have 0 here
+		for (int i = 0; i < roots; i++) {
+			byte[] name = new byte[buffer.getShort()];
+			buffer.get(name);
+			namedRoots.put(new String(name, StandardCharsets.UTF_8), buffer.getInt());
+		}
+	}
+
+	/**
+	 * The segment files recorded in the metadata page, segment 0 first, or none for files written
+	 * before segment locations were recorded.
+	 */
+	private List<File> readSegmentFiles(byte[] metaPage) {
+		ByteBuffer buffer = ByteBuffer.wrap(metaPage);
+		buffer.position(FILE_SIGNATURE.length() + 2 + 4 + 4 + 4);
+		int roots = buffer.getInt();
+		for (int i = 0; i < roots; i++) {
+			buffer.position(buffer.position() + buffer.getShort() + 4);
+		}
+		int count = buffer.getInt();
+		List<File> files = new ArrayList<>();
+		if (count > 0) {
+			files.add(new File(dbFilePath));
+		}
+		for (int i = 1; i < count; i++) {
+			byte[] path = new byte[buffer.getShort()];
+			buffer.get(path);
+			files.add(new File(new String(path, StandardCharsets.UTF_8)));
+		}
+		return files;
+	}
+
+	private File segmentFile(int index) {
+		File main = new File(dbFilePath);
+		File dir = segmentDirs.isEmpty() ? main.getAbsoluteFile().getParentFile() : segmentDirs.get(index % segmentDirs.size());
+		return new File(dir, main.getName() + "." + index);
+	}
+
+	private int segmentIndex(int pageId) {
+		return pagesPerSegment > 0 ? pageId / pagesPerSegment : 0;
+	}
+
+	private long segmentOffset(int pageId) {
+		int pageInSegment = pagesPerSegment > 0 ? pageId % pagesPerSegment : pageId;
+		return (long) pageInSegment * pageSize;
+	}
+
+	/**
+	 * Returns the segment holding pageId, appending new segment files if the tablespace has to grow.
+	 * A new segment is recorded in the metadata page before any page is written to it.
+	 */
+	private synchronized Segment segmentForWrite(int pageId) throws IOException {
+		int index = segmentIndex(pageId);
+		if (segments.size() > index) {
+			return segments.get(index);
+		}
+		while (segments.size() <= index) {
+			int next = segments.size();
+			File file = segmentFile(next);
+			file.getParentFile().mkdirs();
+			segments.add(new Segment(file, next));
+		}
+		writeMetadataPage();
+		return segments.get(index);
+	}
+
+	private synchronized Segment segmentForRead(int pageId) {
+		int index = segmentIndex(pageId);
+		return index < segments.size() ? segments.get(index) : null;
 	}
 
 	/**
@@ -120,50 +300,196 @@ public class PageManager {
 	 * @throws IOException If an I/O error occurs.
 	 */
 	public void writePage(int pageId, byte[] data) throws IOException {
-        long offset = (long) pageId * pageSize;
-        dbFile.seek(offset);
-        dbFile.write(data);
-    }
+		Segment segment = segmentForWrite(pageId);
+		ByteBuffer src = ByteBuffer.wrap(data);
+		long offset = segmentOffset(pageId);
+		while (src.hasRemaining()) {
+			offset += segment.channel.write(src, offset);
+		}
+	}
 
 	/**
 	 * Reads a page from the database file into the provided buffer.
+	 * Pages that were never written (beyond the end of their segment) read as zeros.
 	 * @param pageId The ID of the page to read.
 	 * @param buffer The buffer to read the page data into.
-	 * @throws IOException If an I/O error occurs.
+	 * @throws IOException If an I/O error occurs, or if an allocated page has no segment.
 	 */
 	public void readPage(int pageId, byte[] buffer) throws IOException {
-        long offset = (long) pageId * pageSize;
-        dbFile.seek(offset);
-        dbFile.read(buffer);
-    }
+		Segment segment = segmentForRead(pageId);
+		if (segment == null) {
+			checkUnallocated(pageId);
+			return;
+		}
+		ByteBuffer dst = ByteBuffer.wrap(buffer);
+		long offset = segmentOffset(pageId);
+		while (dst.hasRemaining()) {
+			int read = segment.channel.read(dst, offset);
+			if (read < 0) {
+				break;
+			}
+			offset += read;
+		}
+	}
 
 	/**
-	 * Allocates a new page, either by reusing a free page or extending the file.
+	 * Writes a batch of pages. Pages are grouped by segment and each group is written on that
+	 * segment's I/O queue, so a batch spread over several files/devices is written in parallel.
+	 */
+	public void writePages(Map<Integer, byte[]> pages) throws IOException {
+		Map<Segment, List<Integer>> bySegment = new HashMap<>();
+		for (int pageId : pages.keySet()) {
+			bySegment.computeIfAbsent(segmentForWrite(pageId), s -> new ArrayList<>()).add(pageId);
+		}
+		List<Future<Void>> pending = new ArrayList<>();
+		for (Map.Entry<Segment, List<Integer>> entry : bySegment.entrySet()) {
+			pending.add(entry.getKey().ioQueue.submit(() -> {
+				for (int pageId : entry.getValue()) {
+					writePage(pageId, pages.get(pageId));
+				}
+				return null;
+			}));
+		}
+		awaitAll(pending);
+	}
+
+	/**
+	 * Reads a batch of pages into the supplied buffers, one I/O queue per segment.
+	 */
+	public void readPages(Map<Integer, byte[]> pages) throws IOException {
+		Map<Segment, List<Integer>> bySegment = new HashMap<>();
+		for (int pageId : pages.keySet()) {
+			Segment segment = segmentForRead(pageId);
+			if (segment != null) {
+				bySegment.computeIfAbsent(segment, s -> new ArrayList<>()).add(pageId);
+			} else {
+				checkUnallocated(pageId);
+			}
+		}
+		List<Future<Void>> pending = new ArrayList<>();
+		for (Map.Entry<Segment, List<Integer>> entry : bySegment.entrySet()) {
+			pending.add(entry.getKey().ioQueue.submit(() -> {
+				for (int pageId : entry.getValue()) {
+					readPage(pageId, pages.get(pageId));
+				}
+				return null;
+			}));
+		}
+		awaitAll(pending);
+	}
+
+	/**
+	 * Throws unless pageId is past the allocated pages, the only ones that may lack a segment.
+	 */
+	private synchronized void checkUnallocated(int pageId) throws IOException {
+		if (pageId < numPages) {
+			throw new IOException("Page " + pageId + " is allocated but segment " + segmentIndex(pageId) + " does not exist");
+		}
+	}
+
+	private static void awaitAll(List<Future<Void>> pending) throws IOException {
+		IOException failure = null;
+		for (Future<Void> future : pending) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for page I/O", e);
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Allocates a new page, either by reusing a free page or extending the file. Extending into a
+	 * new segment creates the segment file, so every allocated page has one.
 	 * @return The page ID of the newly allocated page.
 	 */
-    public int allocatePage() {
+    public synchronized int allocatePage() {
 		if (!freePageList.isEmpty()) {
 			return freePageList.poll();
-		} else {
-			return numPages++;
+		}
+		createSegmentFor(numPages);
+		return numPages++;
+	}
+
+	/**
+	 * Marks a fixed, well-known page (such as an index root) as in use so allocatePage() skips it.
+	 */
+	public synchronized void reservePage(int pageId) {
+		if (pageId >= numPages) {
+			createSegmentFor(pageId);
+			numPages = pageId + 1;
+		}
+	}
+
+	private void createSegmentFor(int pageId) {
+		try {
+			segmentForWrite(pageId);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
 	}
 
-	public void freePage(int pageId) {
+	public synchronized void freePage(int pageId) {
 		freePageList.add(pageId);
 	}
 
-	public void close() throws IOException {
-		// Flush metadata changes (like numPages) to disk before closing.
+	/**
+	 * Root pageId recorded under name with registerRoot, or -1 if there is none.
+	 */
+	public synchronized int getNamedRoot(String name) {
+		return namedRoots.getOrDefault(name, -1);
+	}
+
+	/**
+	 * Records pageId as the root of the structure called name (such as a secondary index) and writes
+	 * the metadata page right away. Register a structure only once its pages are on disk, so that a
+	 * crash never leaves a name pointing at a half-built structure.
+	 */
+	public synchronized void registerRoot(String name, int pageId) throws IOException {
+		namedRoots.put(name, pageId);
+		writeMetadataPage();
+	}
+
+	private synchronized void writeMetadataPage() throws IOException {
 		byte[] metaPage = new byte[pageSize];
 		// We need to read it first to not clobber other metadata if it existed
 		readPage(0, metaPage);
 		writeMetadata(metaPage);
 		writePage(0, metaPage);
-		dbFile.close();
+	}
+
+	public void close() throws IOException {
+		// Flush metadata changes (like numPages) to disk before closing.
+		writeMetadataPage();
+		for (Segment segment : segments) {
+			segment.close();
+		}
+	}
+
+	/**
+	 * Number of pages allocated so far, page 0 (the metadata page) included.
+	 */
+	public synchronized int getNumPages() {
+		return numPages;
 	}
 
 	public int getPageSize() {
 		return 4096;
 	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	public int getPagesPerSegment() {
+		return pagesPerSegment;
+	}
 }
\ No newline at end of file
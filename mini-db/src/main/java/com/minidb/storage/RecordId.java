@@ -36,4 +36,19 @@ public class RecordId {
     public static int getSerializedSize() {
         return 8;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RecordId && ((RecordId) o).pageId == pageId && ((RecordId) o).slotId == slotId;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * pageId + slotId;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + pageId + ", " + slotId + ")";
+    }
 }
@@ -1,64 +1,341 @@
 package com.minidb.storage;
 
+import com.minidb.index.AdaptiveRadixTree;
 import com.minidb.index.BPlusTree;
+import com.minidb.index.Index;
+import com.minidb.index.LearnedIndex;
+import com.minidb.index.Serializer;
 import com.minidb.log.LogRecord;
 import com.minidb.log.WALManager;
 import com.minidb.storage.RecordsSerializer.Row;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
-public class RecordStorage {
+/**
+ * Heap storage for the kv table's rows, indexed by primary key. The key type is configurable (see
+ * KeyType); the key is always the row's first column. The primary index is a BPlusTree, or an
+ * ExtendibleHashIndex for tables only read by key, which then cannot answer range scans. An
+ * AdaptiveRadixTree keeps the primary index in memory only; it is filled from the heap pages at
+ * startup with loadIndexFromHeap, so the heap then holds one record per key: a record replaced by a
+ * newer one for the same key is deleted from its page.
+ *
+ * Other columns can get a SecondaryIndex. Secondary entries are written and removed together with
+ * the heap record and the primary entry, between the operation's WAL record and its DONE record, and
+ * recovery redoes them from the same logged row.
+ *
+ * An optional BloomFilter over the primary keys answers lookups and deletes of keys that were never
+ * inserted without descending the index. Keys are added to it after the index entry, so a rebuild
+ * that scans the index sees every key or gets it replayed from the adds made meanwhile.
+ *
+ * TableStatistics are saved on a catalog page named kv.stats. ANALYZE samples the leaves of a B+
+ * tree primary index and of the secondary indexes; other primary indexes are scanned in full.
+ */
+public class RecordStorage<K extends Comparable<K>> implements TableStorage<K> {
+    private static final String STATISTICS_ROOT = "kv.stats";
+    private static final int HEAP_SCAN_PREFETCH = 64; // Pages read as one batch while rebuilding the index
 
     private final BufferPool bufferPool;
     private final RecordsSerializer recordSerializer;
     private final WALManager walManager;
-    private final BPlusTree<Integer, RecordId> index;
+    private final Index<K, RecordId> index;
     private final PageManager pageManager;
+    private final KeyType<K> keyType;
+    private final boolean inMemoryIndex; // Rebuilt from the heap, so superseded records must not stay there
+    private int currentHeapPageId = -1; // Last heap page that accepted a record
+    private final Map<String, SecondaryIndex> secondaryIndexes = new LinkedHashMap<>(); // By lower-case column name
+    private BloomFilter bloomFilter;
+    private ScheduledExecutorService bloomFilterMaintenance;
+    private volatile TableStatistics statistics;
+    private volatile int scanPartitions = 1;
+    private volatile ForkJoinPool scanPool;
 
-    public RecordStorage(BufferPool bufferPool, RecordsSerializer recordSerializer, WALManager walManager, BPlusTree<Integer, RecordId> index, PageManager pageManager) {
+    public RecordStorage(BufferPool bufferPool, RecordsSerializer recordSerializer, WALManager walManager, Index<K, RecordId> index, PageManager pageManager, KeyType<K> keyType) {
         this.bufferPool = bufferPool;
         this.recordSerializer = recordSerializer;
         this.walManager = walManager;
         this.index = index;
         this.pageManager = pageManager;
-        System.out.println("RecordStorage constructor: BPlusTree index hashcode: " + index.hashCode());
+        this.keyType = keyType;
+        this.inMemoryIndex = index instanceof AdaptiveRadixTree;
     }
 
-    public RecordId insertRecord(Row row, com.minidb.txn.Transaction txn) throws IOException {
+    @Override
+    public KeyType<K> getKeyType() {
+        return keyType;
+    }
+
+    /**
+     * Opens the secondary index on column, creating it if the database has none yet. A new index is
+     * filled from the existing rows and only registered in the PageManager once it is on disk. Call
+     * this at startup, before recovery and before any writes.
+     */
+    public SecondaryIndex addSecondaryIndex(String columnName, int order) throws IOException {
+        int column = recordSerializer.getColumnIndex(columnName);
+        if (column < 0) {
+            throw new IllegalArgumentException("Unknown column: " + columnName);
+        }
+        if (column == 0) {
+            throw new IllegalArgumentException("Column " + columnName + " is the primary key");
+        }
+        String rootName = "kv.index." + columnName.toLowerCase();
+        int rootPageId = pageManager.getNamedRoot(rootName);
+        boolean created = rootPageId < 0;
+        if (created) {
+            rootPageId = pageManager.allocatePage();
+        }
+        SecondaryIndex secondary = new SecondaryIndex(columnName, column, recordSerializer.getColumnType(column), order, pageManager, bufferPool, rootPageId);
+        if (created) {
+            Iterator<Map.Entry<K, RecordId>> entries = index.scan();
+            while (entries.hasNext()) {
+                RecordId rid = entries.next().getValue();
+                Row row = readRow(rid);
+                if (row != null) {
+                    secondary.insert(row, rid);
+                }
+            }
+            bufferPool.flushAllPages();
+            pageManager.registerRoot(rootName, rootPageId);
+        }
+        secondaryIndexes.put(columnName.toLowerCase(), secondary);
+        return secondary;
+    }
+
+    /**
+     * Fills an in-memory primary index with every record on the heap pages and returns how many
+     * there were. Call this at startup, before secondary indexes, recovery and any writes.
+     */
+    public int loadIndexFromHeap() throws IOException {
+        int loaded = 0;
+        int numPages = pageManager.getNumPages();
+        // Read the pages a window at a time, small enough that the pool keeps the window until it is used
+        int window = Math.max(1, Math.min(HEAP_SCAN_PREFETCH, bufferPool.getPoolSize() / 2));
+        for (int pageId = 1; pageId < numPages; pageId++) {
+            if ((pageId - 1) % window == 0) {
+                List<Integer> ahead = new ArrayList<>();
+                for (int next = pageId; next < Math.min(numPages, pageId + window); next++) {
+                    ahead.add(next);
+                }
+                bufferPool.prefetch(ahead);
+            }
+            Page page = bufferPool.getPage(pageId);
+            try {
+                if (page.getPageType() != 0) {
+                    continue; // Index or filter page
+                }
+                for (int slotId = 0; slotId < page.getNumSlots(); slotId++) {
+                    byte[] recordBytes = page.getRecord(slotId);
+                    if (recordBytes != null) {
+                        Row row = recordSerializer.deserialize(recordBytes);
+                        index.insert(keyType.fromColumn(row.values[0]), new RecordId(pageId, slotId));
+                        loaded++;
+                    }
+                }
+            } finally {
+                bufferPool.unpinPage(pageId, false);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Opens the Bloom filter over the primary keys, building it from the index if the database has
+     * none yet. Call this at startup, before recovery and before any writes.
+     */
+    public BloomFilter enableBloomFilter(int bitsPerKey) throws IOException {
+        BloomFilter filter = new BloomFilter("kv.bloom", bitsPerKey, pageManager, bufferPool);
+        if (!filter.isBuilt()) {
+            filter.rebuild(indexedKeys());
+        }
+        bloomFilter = filter;
+        return filter;
+    }
+
+    public BloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    /**
+     * Rebuilds the Bloom filter if deletes or inserts have made it imprecise. Returns whether it did.
+     */
+    public boolean maintainBloomFilter() throws IOException {
+        BloomFilter filter = bloomFilter;
+        if (filter == null || !filter.needsRebuild()) {
+            return false;
+        }
+        filter.rebuild(indexedKeys());
+        return true;
+    }
+
+    /**
+     * Runs maintainBloomFilter every periodMillis on a daemon thread until stopBloomFilterMaintenance.
+     */
+    public synchronized void startBloomFilterMaintenance(long periodMillis) {
+        if (bloomFilter == null) {
+            throw new IllegalStateException("The Bloom filter is not enabled");
+        }
+        if (bloomFilterMaintenance != null) {
+            return;
+        }
+        bloomFilterMaintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "minidb-bloom-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        bloomFilterMaintenance.scheduleWithFixedDelay(() -> {
+            try {
+                maintainBloomFilter();
+            } catch (IOException | RuntimeException e) {
+                // The old filter stays in use; the next run tries again
+                System.err.println("Bloom filter maintenance failed: " + e.getMessage());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the maintenance thread, waiting for a rebuild in progress to finish.
+     */
+    public synchronized void stopBloomFilterMaintenance() throws InterruptedException {
+        if (bloomFilterMaintenance != null) {
+            bloomFilterMaintenance.shutdown();
+            bloomFilterMaintenance.awaitTermination(1, TimeUnit.MINUTES);
+            bloomFilterMaintenance = null;
+        }
+    }
+
+    private Iterator<byte[]> indexedKeys() throws IOException {
+        Iterator<Map.Entry<K, RecordId>> entries = index.scan();
+        Serializer<K> serializer = keyType.getSerializer();
+        return new Iterator<byte[]>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public byte[] next() {
+                return serializer.serialize(entries.next().getKey());
+            }
+        };
+    }
+
+    @Override
+    public void openStatistics(double sampleRate) throws IOException {
+        TableStatistics saved = TableStatistics.load(STATISTICS_ROOT, pageManager, bufferPool);
+        if (saved == null) {
+            analyze(sampleRate);
+        } else {
+            statistics = saved;
+        }
+    }
+
+    @Override
+    public TableStatistics analyze(double sampleRate) throws IOException {
+        Random random = new Random();
+        Map<String, Long> distinctValues = new LinkedHashMap<>();
+        for (SecondaryIndex secondary : secondaryIndexes.values()) {
+            distinctValues.put(secondary.getColumnName(), secondary.estimateDistinctValues(sampleRate, random));
+        }
+        TableStatistics analyzed = index instanceof BPlusTree
+                ? TableStatistics.analyze((BPlusTree<K, RecordId>) index, keyType.getSerializer(), sampleRate, random, distinctValues)
+                : TableStatistics.analyze(action -> indexedKeys().forEachRemaining(action), random, distinctValues);
+        analyzed.save(STATISTICS_ROOT, pageManager, bufferPool);
+        statistics = analyzed;
+        return analyzed;
+    }
+
+    @Override
+    public TableStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public void saveStatistics() throws IOException {
+        TableStatistics current = statistics;
+        if (current != null) {
+            current.save(STATISTICS_ROOT, pageManager, bufferPool);
+        }
+    }
+
+    public Collection<SecondaryIndex> getSecondaryIndexes() {
+        return secondaryIndexes.values();
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        return recordSerializer.getColumnIndex(columnName);
+    }
+
+    @Override
+    public void insertRecord(Row row, com.minidb.txn.Transaction txn) throws IOException {
         byte[] recordBytes = recordSerializer.serialize(row);
-        Integer key = (Integer) row.values[0]; // Assuming PK is the first column
+        K key = keyType.fromColumn(row.values[0]);
+        for (SecondaryIndex secondary : secondaryIndexes.values()) {
+            secondary.checkIndexable(row);
+        }
 
         // 1. Log the operation
         LogRecord logRecord = new LogRecord(0, LogRecord.OP_PUT, txn.getTxnId(), null, recordBytes);
         long lsn = walManager.appendAndFlush(logRecord);
 
         // 2. Find a page with enough space and insert
-        int pageId = 2; // Start from page 2 (0: meta, 1: root)
-        Page page = bufferPool.getPage(pageId);
-        int slotId = -1;
-        while ((slotId = page.insertRecord(recordBytes)) == -1) {
-            bufferPool.unpinPage(pageId, false);
-            pageId++;
-            page = bufferPool.getPage(pageId);
-        }
-        bufferPool.unpinPage(pageId, true); // Mark page as dirty
-        RecordId rid = new RecordId(pageId, slotId);
+        RecordId rid = insertIntoHeap(recordBytes);
 
-        // 3. Update index
-        index.insert(key, rid);
+        // 3. Update indexes
+        indexRecord(key, row, rid);
+        TableStatistics current = statistics;
+        if (current != null) {
+            current.recordInsert(keyType.getSerializer().serialize(key));
+        }
 
         // 4. Log the DONE operation
         byte[] lsnBytes = ByteBuffer.allocate(8).putLong(lsn).array();
         LogRecord doneRecord = new LogRecord(0, LogRecord.OP_DONE, txn.getTxnId(), lsnBytes, null);
         walManager.appendAndFlush(doneRecord);
+    }
 
-        return rid;
+    /**
+     * Places a record on a heap page. Heap pages come from the PageManager like index pages do, so the
+     * two never collide; pages that are not data pages are skipped.
+     */
+    private RecordId insertIntoHeap(byte[] recordBytes) throws IOException {
+        if (recordBytes.length > Page.PAGE_SIZE - Page.HEADER_SIZE - Page.SLOT_ENTRY_SIZE) {
+            throw new IOException("Record of " + recordBytes.length + " bytes does not fit in a page");
+        }
+        int pageId = currentHeapPageId;
+        while (true) {
+            if (pageId < 0) {
+                pageId = pageManager.allocatePage();
+            }
+            Page page = bufferPool.getPage(pageId);
+            int slotId = page.getPageType() == 0 ? page.insertRecord(recordBytes) : -1;
+            if (slotId != -1) {
+                bufferPool.unpinPage(pageId, true); // Mark page as dirty
+                currentHeapPageId = pageId;
+                return new RecordId(pageId, slotId);
+            }
+            bufferPool.unpinPage(pageId, false);
+            pageId = -1;
+        }
     }
 
-    public void deleteRecord(Integer key, com.minidb.txn.Transaction txn) throws IOException {
-        RecordId rid = index.search(key);
+    @Override
+    public void deleteRecord(K key, com.minidb.txn.Transaction txn) throws IOException {
+        RecordId rid = lookup(key);
         if (rid == null) return; // Key not found
 
         // 1. Log the operation
@@ -66,11 +343,19 @@ public class RecordStorage {
         LogRecord logRecord = new LogRecord(0, LogRecord.OP_DELETE, txn.getTxnId(), keyBytes, null);
         long lsn = walManager.appendAndFlush(logRecord);
 
-        // 2. Delete from index and page
+        // 2. Delete from indexes and page
+        unindexSecondary(rid);
         index.delete(key);
+        if (bloomFilter != null) {
+            bloomFilter.recordDelete();
+        }
         Page page = bufferPool.getPage(rid.getPageId());
         page.deleteRecord(rid.getSlotId());
         bufferPool.unpinPage(rid.getPageId(), true); // Mark page as dirty
+        TableStatistics current = statistics;
+        if (current != null) {
+            current.recordDelete(keyType.getSerializer().serialize(key));
+        }
 
         // 3. Log the DONE operation
         byte[] lsnBytes = ByteBuffer.allocate(8).putLong(lsn).array();
@@ -78,11 +363,141 @@ public class RecordStorage {
         walManager.appendAndFlush(doneRecord);
     }
 
-    public Row fetchRecord(Integer key) throws IOException {
-        RecordId rid = index.search(key);
+    @Override
+    public Row fetchRecord(K key) throws IOException {
+        RecordId rid = lookup(key);
         if (rid == null) {
             return null;
         }
+        return readRow(rid);
+    }
+
+    /**
+     * The key's RecordId, or null. A key the Bloom filter rules out is not looked up in the index.
+     */
+    private RecordId lookup(K key) throws IOException {
+        if (bloomFilter != null && !bloomFilter.mightContain(keyType.getSerializer().serialize(key))) {
+            return null;
+        }
+        return index.search(key);
+    }
+
+    /**
+     * Splits unlimited scans of a B+ tree primary index into partitions subranges that are read at
+     * once on pool; 1 scans with a single cursor and needs no pool.
+     */
+    public void setScanPartitions(int partitions, ForkJoinPool pool) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be at least 1, got " + partitions);
+        }
+        if (partitions > 1 && pool == null) {
+            throw new IllegalArgumentException("Partitioned scans need a pool");
+        }
+        scanPool = pool;
+        scanPartitions = partitions;
+    }
+
+    /**
+     * Rows are read one at a time through an index cursor, so the scan does not hold them all in
+     * memory. Needs a B+ tree, learned or adaptive radix tree primary index; the radix tree scans a
+     * snapshot of the range's entries. An unlimited scan of a B+ tree with scan partitions set reads
+     * its subranges' rows on several workers instead, which hand them over in key order and stay a
+     * bounded number of rows ahead of the consumer (BPlusTree.parallelRangeScan).
+     */
+    @Override
+    public void scanRecords(K low, K high, long limit, Consumer<Row> consumer) throws IOException {
+        Iterator<Map.Entry<K, RecordId>> entries;
+        if (index instanceof BPlusTree && scanPartitions > 1 && limit == Long.MAX_VALUE) {
+            ((BPlusTree<K, RecordId>) index).parallelRangeScan(low, high, scanPartitions, scanPool, entry -> {
+                try {
+                    return readRow(entry.getValue());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, consumer);
+            return;
+        } else if (index instanceof BPlusTree) {
+            entries = ((BPlusTree<K, RecordId>) index).cursor(high, limit).seek(low);
+        } else if (index instanceof LearnedIndex) {
+            // A learned index only exists over int keys
+            entries = (Iterator<Map.Entry<K, RecordId>>) (Iterator<?>) ((LearnedIndex) index).scan((Integer) low, (Integer) high);
+        } else if (index instanceof AdaptiveRadixTree) {
+            entries = ((AdaptiveRadixTree<K, RecordId>) index).scan(low, high);
+        } else {
+            throw new UnsupportedOperationException("Range scans need a B+ tree, learned or adaptive radix tree primary index");
+        }
+        for (long scanned = 0; scanned < limit && entries.hasNext(); scanned++) {
+            Row row = readRow(entries.next().getValue());
+            if (row != null) {
+                consumer.accept(row);
+            }
+        }
+    }
+
+    @Override
+    public List<Row> fetchByColumn(String columnName, String literal) throws IOException {
+        SecondaryIndex secondary = secondaryIndexes.get(columnName.toLowerCase());
+        if (secondary == null) {
+            throw new IllegalArgumentException("No index on column " + columnName);
+        }
+        Comparable<?> value = secondary.parse(literal);
+        List<Row> rows = new ArrayList<>();
+        for (RecordId rid : secondary.lookup(value)) {
+            Row row = readRow(rid);
+            if (row != null && value.equals(row.values[secondary.getColumn()])) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Points the primary key at rid and adds the row to the secondary indexes. A row that the key
+     * pointed to before is dropped from the secondary indexes, or lookups by value would find it, and
+     * from the heap if the primary index is rebuilt from there.
+     */
+    private void indexRecord(K key, Row row, RecordId rid) throws IOException {
+        if (secondaryIndexes.isEmpty() && !inMemoryIndex) {
+            index.insert(key, rid);
+            addToBloomFilter(key);
+            return;
+        }
+        RecordId previous = index.search(key);
+        index.insert(key, rid);
+        addToBloomFilter(key);
+        if (previous != null && !previous.equals(rid)) {
+            unindexSecondary(previous);
+            if (inMemoryIndex) {
+                Page page = bufferPool.getPage(previous.getPageId());
+                page.deleteRecord(previous.getSlotId());
+                bufferPool.unpinPage(previous.getPageId(), true);
+            }
+        }
+        for (SecondaryIndex secondary : secondaryIndexes.values()) {
+            secondary.insert(row, rid);
+        }
+    }
+
+    private void addToBloomFilter(K key) throws IOException {
+        if (bloomFilter != null) {
+            bloomFilter.add(keyType.getSerializer().serialize(key));
+        }
+    }
+
+    private void unindexSecondary(RecordId rid) throws IOException {
+        if (secondaryIndexes.isEmpty()) {
+            return;
+        }
+        Row row = readRow(rid);
+        if (row == null) {
+            return;
+        }
+        for (SecondaryIndex secondary : secondaryIndexes.values()) {
+            secondary.delete(row, rid);
+        }
+    }
+
+    private Row readRow(RecordId rid) throws IOException {
         Page page = bufferPool.getPage(rid.getPageId());
         try {
             byte[] recordBytes = page.getRecord(rid.getSlotId());
@@ -96,25 +511,19 @@ public class RecordStorage {
     }
     
     // This method is for recovery purposes and should not be logged.
-    public void insertRecordForRecovery(byte[] recordBytes) throws IOException {
+    @Override
+    public void insertRecordForRecovery(long lsn, byte[] recordBytes) throws IOException {
         Row row = recordSerializer.deserialize(recordBytes);
-        Integer key = (Integer) row.values[0];
+        K key = keyType.fromColumn(row.values[0]);
 
-        int pageId = 2; // Start from page 2 (0: meta, 1: root)
-        Page page = bufferPool.getPage(pageId);
-        int slotId = -1;
-        while ((slotId = page.insertRecord(recordBytes)) == -1) {
-            bufferPool.unpinPage(pageId, false);
-            pageId++;
-            page = bufferPool.getPage(pageId);
-        }
-        bufferPool.unpinPage(pageId, true);
-        RecordId rid = new RecordId(pageId, slotId);
-        index.insert(key, rid);
+        RecordId rid = insertIntoHeap(recordBytes);
+        indexRecord(key, row, rid);
     }
 
-    // This method is for recovery purposes and should not be logged.
-    public void deleteRecordForRecovery(RecordId rid) throws IOException {
+    // This method is for recovery purposes and should not be logged. The log key is the RecordId.
+    @Override
+    public void deleteRecordForRecovery(long lsn, byte[] logKey) throws IOException {
+        RecordId rid = RecordId.deserialize(logKey);
         // Fetch the page once and perform all operations.
         Page page = bufferPool.getPage(rid.getPageId());
         byte[] recordBytes = page.getRecord(rid.getSlotId());
@@ -123,8 +532,14 @@ public class RecordStorage {
             return; // Record already deleted or never existed.
         }
         Row row = recordSerializer.deserialize(recordBytes);
-        Integer key = (Integer) row.values[0];
+        K key = keyType.fromColumn(row.values[0]);
+        for (SecondaryIndex secondary : secondaryIndexes.values()) {
+            secondary.delete(row, rid);
+        }
         index.delete(key);
+        if (bloomFilter != null) {
+            bloomFilter.recordDelete();
+        }
         page.deleteRecord(rid.getSlotId());
         bufferPool.unpinPage(rid.getPageId(), true);
     }
@@ -49,6 +49,52 @@ public class RecordsSerializer {
         this.nullBitmapSize = (this.numColumns + 7) / 8;
     }
 
+    /**
+     * Position of the column with the given name (case-insensitive), or -1.
+     */
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < numColumns; i++) {
+            if (columns[i].name.equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public ColumnType getColumnType(int index) {
+        return columns[index].type;
+    }
+
+    /**
+     * Length of serialize(row) without building it.
+     */
+    public int getSerializedSize(Row row) {
+        int size = nullBitmapSize;
+        for (int i = 0; i < numColumns; i++) {
+            Object value = row.values[i];
+            if (value == null) {
+                continue;
+            }
+            switch (columns[i].type) {
+                case INT:
+                    size += Integer.BYTES;
+                    break;
+                case LONG:
+                    size += Long.BYTES;
+                    break;
+                case STRING:
+                    size += Integer.BYTES + ((String) value).getBytes(StandardCharsets.UTF_8).length;
+                    break;
+                case BYTE_ARRAY:
+                    size += Integer.BYTES + ((byte[]) value).length;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown column type: " + columns[i].type);
+            }
+        }
+        return size;
+    }
+
     public byte[] serialize(Row row) throws IOException {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         byte[] nullBitMap = new byte[nullBitmapSize];
@@ -0,0 +1,139 @@
+package com.minidb.storage;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.index.CompositeKey;
+import com.minidb.index.Cursor;
+import com.minidb.index.Node;
+import com.minidb.index.Serializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.storage.RecordsSerializer.ColumnType;
+import com.minidb.storage.RecordsSerializer.Row;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * B+ tree over one non-key column of the kv table, kept up to date by RecordStorage. Column values
+ * repeat, so an entry's key is the value followed by the row's RecordId (pageId, slotId): every
+ * entry is unique and the rows sharing a value sit next to each other, so a lookup is one descent
+ * plus a short cursor scan. Null values are not indexed.
+ */
+public class SecondaryIndex {
+    private final String columnName;
+    private final int column;
+    private final ColumnType type;
+    private final Serializer<CompositeKey> keySerializer;
+    private final BPlusTree<CompositeKey, RecordId> tree;
+
+    SecondaryIndex(String columnName, int column, ColumnType type, int order, PageManager pageManager, BufferPool bufferPool, int rootPageId) {
+        this.columnName = columnName;
+        this.column = column;
+        this.type = type;
+        this.keySerializer = KeyType.composite(type, ColumnType.INT, ColumnType.INT).getSerializer();
+        this.tree = new BPlusTree<>(order, keySerializer, new RecordIdSerializer(), pageManager, bufferPool, rootPageId);
+    }
+
+    public String getColumnName() {
+        return columnName;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * Converts a SQL literal to a value of the indexed column.
+     */
+    public Comparable<?> parse(String literal) {
+        switch (type) {
+            case INT:
+                return Integer.valueOf(literal);
+            case LONG:
+                return Long.valueOf(literal);
+            case STRING:
+                return literal;
+            default:
+                throw new IllegalArgumentException("Unsupported index column type: " + type);
+        }
+    }
+
+    /**
+     * Throws if the row's value is too long to be an index key, before anything has been written.
+     */
+    void checkIndexable(Row row) {
+        Comparable<?> value = (Comparable<?>) row.values[column];
+        if (value != null && keySerializer.getSerializedSize(entryKey(value, 0, 0)) > Node.MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Value of column " + columnName + " is too long to be indexed");
+        }
+    }
+
+    void insert(Row row, RecordId rid) throws IOException {
+        Comparable<?> value = (Comparable<?>) row.values[column];
+        if (value != null) {
+            tree.insert(entryKey(value, rid.getPageId(), rid.getSlotId()), rid);
+        }
+    }
+
+    void delete(Row row, RecordId rid) throws IOException {
+        Comparable<?> value = (Comparable<?>) row.values[column];
+        if (value != null) {
+            tree.delete(entryKey(value, rid.getPageId(), rid.getSlotId()));
+        }
+    }
+
+    /**
+     * RecordIds of the rows whose column equals value, in RecordId order.
+     */
+    public List<RecordId> lookup(Comparable<?> value) throws IOException {
+        List<RecordId> rids = new ArrayList<>();
+        try (Cursor<CompositeKey, RecordId> cursor = tree.cursor(entryKey(value, Integer.MAX_VALUE, Integer.MAX_VALUE), Long.MAX_VALUE)) {
+            cursor.seek(entryKey(value, Integer.MIN_VALUE, Integer.MIN_VALUE));
+            while (cursor.hasNext()) {
+                rids.add(cursor.next().getValue());
+            }
+        }
+        return rids;
+    }
+
+    /**
+     * Estimated number of distinct non-null values in the column, from a sample of the index's
+     * leaves: the share of neighbouring entries whose values differ, times the entries in the index,
+     * plus one for the first value. Neighbours are the entries within a sampled leaf, and the last
+     * and first entries of two sampled leaves that are next to each other.
+     */
+    long estimateDistinctValues(double sampleRate, Random random) throws IOException {
+        long[] pairs = {0, 0}; // Neighbouring entries, and those with different values
+        Object[] previous = {-1, null}; // Position and last key of the previous sampled leaf
+        BPlusTree.Stats stats = tree.sampleStats(sampleRate, random, (position, keys) -> {
+            if (keys.isEmpty()) {
+                return;
+            }
+            if (previous[1] != null && (int) previous[0] == position - 1) {
+                countPair((CompositeKey) previous[1], keys.get(0), pairs);
+            }
+            for (int i = 1; i < keys.size(); i++) {
+                countPair(keys.get(i - 1), keys.get(i), pairs);
+            }
+            previous[0] = position;
+            previous[1] = keys.get(keys.size() - 1);
+        });
+        long entries = stats.getEntries();
+        if (pairs[0] == 0) {
+            return entries;
+        }
+        return Math.min(entries, 1 + Math.round((double) pairs[1] * (entries - 1) / pairs[0]));
+    }
+
+    private static void countPair(CompositeKey left, CompositeKey right, long[] pairs) {
+        pairs[0]++;
+        if (!left.get(0).equals(right.get(0))) {
+            pairs[1]++;
+        }
+    }
+
+    private static CompositeKey entryKey(Comparable<?> value, int pageId, int slotId) {
+        return new CompositeKey(value, pageId, slotId);
+    }
+}
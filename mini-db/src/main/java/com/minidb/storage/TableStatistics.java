@@ -0,0 +1,377 @@
+package com.minidb.storage;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.index.Serializer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * What the kv table holds, for choosing between access paths: the row count, an equi-depth
+ * histogram over the primary key, distinct value counts of indexed columns, and the shape of the
+ * primary B+ tree. ANALYZE (TableStorage.analyze) computes them, from a sample of the tree's leaves
+ * where there is a tree. In between, every insert and delete moves the row count and the count of
+ * its key's histogram bucket, so estimates follow the table until the next ANALYZE redraws the
+ * bucket bounds; an insert that overwrites a key counts as a new row until then.
+ *
+ * Keys are held in their memcmp-comparable encoding, which every KeyType uses. Heap and clustered
+ * tables keep their statistics on one catalog page registered by name in the PageManager.
+ */
+public class TableStatistics {
+    public static final byte STATS_PAGE = 10;
+    /** Most buckets a histogram gets; fewer if the sample is smaller or long keys fill the page. */
+    static final int MAX_BUCKETS = 32;
+    /** Keys an ANALYZE draws the histogram from, however many rows it reads. */
+    static final int SAMPLE_SIZE = 4096;
+    private static final int CAPACITY = Page.PAGE_SIZE - Page.HEADER_SIZE;
+
+    private long rows;
+    private long modifications; // Inserts and deletes since the ANALYZE
+    private final long sampledRows;
+    private final int indexHeight; // 0 where there is no B+ tree
+    private final int indexLeafPages;
+    private final double indexLeafFill;
+    private byte[][] bounds; // buckets + 1 keys: bucket i holds the keys from bounds[i] up to bounds[i + 1]
+    private long[] bucketRows;
+    private final Map<String, Long> distinctValues;
+
+    TableStatistics(long rows, long modifications, long sampledRows, int indexHeight, int indexLeafPages, double indexLeafFill,
+                    byte[][] bounds, long[] bucketRows, Map<String, Long> distinctValues) {
+        this.rows = rows;
+        this.modifications = modifications;
+        this.sampledRows = sampledRows;
+        this.indexHeight = indexHeight;
+        this.indexLeafPages = indexLeafPages;
+        this.indexLeafFill = indexLeafFill;
+        this.bounds = bounds;
+        this.bucketRows = bucketRows;
+        this.distinctValues = distinctValues;
+    }
+
+    /**
+     * Statistics of a B+ tree's keys from a sample of its leaves (BPlusTree.sampleStats). A walk
+     * broken by a concurrent merge is retried a couple of times.
+     */
+    static <K extends Comparable<K>> TableStatistics analyze(BPlusTree<K, ?> tree, Serializer<K> keySerializer, double sampleRate, Random random, Map<String, Long> distinctValues) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            KeySample sample = new KeySample(SAMPLE_SIZE, random);
+            try {
+                BPlusTree.Stats stats = tree.sampleStats(sampleRate, random, (position, keys) -> {
+                    for (K key : keys) {
+                        sample.add(keySerializer.serialize(key));
+                    }
+                });
+                return of(stats.getEntries(), sample, stats.getHeight(), stats.getLeafNodes(), stats.getLeafFill(), distinctValues);
+            } catch (IllegalStateException e) {
+                if (attempt == 3) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Statistics of every encoded key keys passes on, for tables whose index cannot be sampled by leaf.
+     */
+    public static TableStatistics analyze(KeySource keys, Random random, Map<String, Long> distinctValues) throws IOException {
+        KeySample sample = new KeySample(SAMPLE_SIZE, random);
+        keys.forEachKey(sample::add);
+        return of(sample.seen(), sample, 0, 0, 0, distinctValues);
+    }
+
+    /**
+     * Statistics of a table of rows rows, with histogram bounds drawn from a sample of its keys.
+     */
+    static TableStatistics of(long rows, KeySample sample, int indexHeight, int indexLeafPages, double indexLeafFill, Map<String, Long> distinctValues) {
+        List<byte[]> keys = sample.sorted();
+        int n = keys.size();
+        int buckets = Math.min(MAX_BUCKETS, n);
+        byte[][] bounds = new byte[buckets == 0 ? 0 : buckets + 1][];
+        long[] bucketRows = new long[buckets];
+        for (int i = 0; i < buckets; i++) {
+            int from = (int) ((long) i * n / buckets);
+            int to = (int) ((long) (i + 1) * n / buckets);
+            bounds[i] = keys.get(from);
+            bucketRows[i] = Math.round((double) rows * (to - from) / n);
+        }
+        if (buckets > 0) {
+            bounds[buckets] = keys.get(n - 1);
+        }
+        return new TableStatistics(rows, 0, n, indexHeight, indexLeafPages, indexLeafFill, bounds, bucketRows, distinctValues);
+    }
+
+    public synchronized long getRows() {
+        return rows;
+    }
+
+    public synchronized long getModifications() {
+        return modifications;
+    }
+
+    /** Keys the histogram was drawn from. */
+    public long getSampledRows() {
+        return sampledRows;
+    }
+
+    public int getIndexHeight() {
+        return indexHeight;
+    }
+
+    public int getIndexLeafPages() {
+        return indexLeafPages;
+    }
+
+    /** Share of the leaf pages' usable bytes in use (BPlusTree.Stats.getLeafFill). */
+    public double getIndexLeafFill() {
+        return indexLeafFill;
+    }
+
+    /** Estimated distinct values by indexed column name. */
+    public Map<String, Long> getDistinctValues() {
+        return Collections.unmodifiableMap(distinctValues);
+    }
+
+    /** The encoded histogram bounds: one more than there are buckets, or none for an empty table. */
+    public synchronized List<byte[]> getHistogramBounds() {
+        return List.of(bounds.clone());
+    }
+
+    public synchronized long[] getBucketRows() {
+        return bucketRows.clone();
+    }
+
+    /**
+     * Estimated rows with low <= key <= high, for encoded keys (null for an open end). Buckets
+     * inside the range count fully and buckets it cuts through count half.
+     */
+    public synchronized long estimateRows(byte[] low, byte[] high) {
+        long estimate = 0;
+        for (int i = 0; i < bucketRows.length; i++) {
+            boolean below = high != null && Arrays.compareUnsigned(bounds[i], high) > 0;
+            boolean above = low != null && Arrays.compareUnsigned(bounds[i + 1], low) < 0;
+            if (below || above) {
+                continue;
+            }
+            boolean inside = (low == null || Arrays.compareUnsigned(bounds[i], low) >= 0)
+                    && (high == null || Arrays.compareUnsigned(bounds[i + 1], high) <= 0);
+            estimate += inside ? bucketRows[i] : (bucketRows[i] + 1) / 2;
+        }
+        return estimate;
+    }
+
+    public synchronized void recordInsert(byte[] key) {
+        rows++;
+        modifications++;
+        if (bucketRows.length > 0) {
+            int bucket = bucketOf(key);
+            bucketRows[bucket]++;
+            // A key past either end widens the outer bucket
+            if (Arrays.compareUnsigned(key, bounds[0]) < 0) {
+                bounds[0] = key;
+            } else if (Arrays.compareUnsigned(key, bounds[bounds.length - 1]) > 0) {
+                bounds[bounds.length - 1] = key;
+            }
+        }
+    }
+
+    public synchronized void recordDelete(byte[] key) {
+        rows = Math.max(0, rows - 1);
+        modifications++;
+        if (bucketRows.length > 0) {
+            int bucket = bucketOf(key);
+            bucketRows[bucket] = Math.max(0, bucketRows[bucket] - 1);
+        }
+    }
+
+    /**
+     * The last bucket whose lower bound is at most key, or the first one.
+     */
+    private int bucketOf(byte[] key) {
+        int low = 1;
+        int high = bucketRows.length - 1;
+        int bucket = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (Arrays.compareUnsigned(bounds[mid], key) <= 0) {
+                bucket = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Writes the statistics to the catalog page registered as name, allocating and registering it
+     * the first time. A histogram too large for the page is merged down to fewer buckets first.
+     */
+    public synchronized void save(String name, PageManager pageManager, BufferPool bufferPool) throws IOException {
+        while (serializedSize() > CAPACITY && bucketRows.length > 1) {
+            halveBuckets();
+        }
+        if (serializedSize() > CAPACITY) {
+            throw new IOException("Statistics of " + serializedSize() + " bytes do not fit in a page");
+        }
+        int pageId = pageManager.getNamedRoot(name);
+        boolean created = pageId < 0;
+        if (created) {
+            pageId = pageManager.allocatePage();
+        }
+        Page page = bufferPool.getPage(pageId);
+        try {
+            page.setPageType(STATS_PAGE);
+            ByteBuffer buffer = ByteBuffer.wrap(page.getData(), Page.HEADER_SIZE, CAPACITY);
+            buffer.putLong(rows).putLong(modifications).putLong(sampledRows);
+            buffer.putInt(indexHeight).putInt(indexLeafPages).putDouble(indexLeafFill);
+            buffer.putInt(bucketRows.length);
+            for (byte[] bound : bounds) {
+                buffer.putInt(bound.length).put(bound);
+            }
+            for (long count : bucketRows) {
+                buffer.putLong(count);
+            }
+            buffer.putInt(distinctValues.size());
+            for (Map.Entry<String, Long> entry : distinctValues.entrySet()) {
+                byte[] column = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                buffer.putShort((short) column.length).put(column).putLong(entry.getValue());
+            }
+        } finally {
+            bufferPool.unpinPage(pageId, true);
+        }
+        if (created) {
+            bufferPool.flushAllPages();
+            pageManager.registerRoot(name, pageId);
+        }
+    }
+
+    /**
+     * The statistics saved as name, or null if there are none.
+     */
+    public static TableStatistics load(String name, PageManager pageManager, BufferPool bufferPool) {
+        int pageId = pageManager.getNamedRoot(name);
+        if (pageId < 0) {
+            return null;
+        }
+        Page page = bufferPool.getPage(pageId);
+        try {
+            if (page.getPageType() != STATS_PAGE) {
+                throw new IllegalStateException("Page " + pageId + " holds no table statistics (page type " + page.getPageType() + ")");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(page.getData(), Page.HEADER_SIZE, CAPACITY);
+            long rows = buffer.getLong();
+            long modifications = buffer.getLong();
+            long sampledRows = buffer.getLong();
+            int height = buffer.getInt();
+            int leafPages = buffer.getInt();
+            double leafFill = buffer.getDouble();
+            int buckets = buffer.getInt();
+            byte[][] bounds = new byte[buckets == 0 ? 0 : buckets + 1][];
+            for (int i = 0; i < bounds.length; i++) {
+                bounds[i] = new byte[buffer.getInt()];
+                buffer.get(bounds[i]);
+            }
+            long[] bucketRows = new long[buckets];
+            for (int i = 0; i < buckets; i++) {
+                bucketRows[i] = buffer.getLong();
+            }
+            Map<String, Long> distinctValues = new LinkedHashMap<>();
+            int columns = buffer.getInt();
+            for (int i = 0; i < columns; i++) {
+                byte[] column = new byte[buffer.getShort()];
+                buffer.get(column);
+                distinctValues.put(new String(column, StandardCharsets.UTF_8), buffer.getLong());
+            }
+            return new TableStatistics(rows, modifications, sampledRows, height, leafPages, leafFill, bounds, bucketRows, distinctValues);
+        } finally {
+            bufferPool.unpinPage(pageId, false);
+        }
+    }
+
+    private int serializedSize() {
+        int size = 8 + 8 + 8 + 4 + 4 + 8 + 4 + 8 * bucketRows.length + 4;
+        for (byte[] bound : bounds) {
+            size += 4 + bound.length;
+        }
+        for (String column : distinctValues.keySet()) {
+            size += 2 + column.getBytes(StandardCharsets.UTF_8).length + 8;
+        }
+        return size;
+    }
+
+    /**
+     * Merges neighbouring buckets pairwise; an odd last bucket stays as it is.
+     */
+    private void halveBuckets() {
+        int buckets = (bucketRows.length + 1) / 2;
+        byte[][] merged = new byte[buckets + 1][];
+        long[] mergedRows = new long[buckets];
+        for (int i = 0; i < buckets; i++) {
+            merged[i] = bounds[2 * i];
+            mergedRows[i] = bucketRows[2 * i] + (2 * i + 1 < bucketRows.length ? bucketRows[2 * i + 1] : 0);
+        }
+        merged[buckets] = bounds[bounds.length - 1];
+        bounds = merged;
+        bucketRows = mergedRows;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("rows=%d modifications=%d sampled=%d buckets=%d height=%d leaves=%d (%.0f%% full) distinct=%s",
+                rows, modifications, sampledRows, bucketRows.length, indexHeight, indexLeafPages, 100 * indexLeafFill, distinctValues);
+    }
+
+    /**
+     * A full pass over a table's encoded primary keys.
+     */
+    @FunctionalInterface
+    public interface KeySource {
+        void forEachKey(Consumer<byte[]> action) throws IOException;
+    }
+
+    /**
+     * Uniform sample of up to capacity keys from a stream of any length and order (reservoir sampling).
+     */
+    static final class KeySample {
+        private final List<byte[]> keys = new ArrayList<>();
+        private final int capacity;
+        private final Random random;
+        private long seen;
+
+        KeySample(int capacity, Random random) {
+            this.capacity = capacity;
+            this.random = random;
+        }
+
+        void add(byte[] key) {
+            seen++;
+            if (keys.size() < capacity) {
+                keys.add(key);
+            } else {
+                long slot = (long) (random.nextDouble() * seen);
+                if (slot < capacity) {
+                    keys.set((int) slot, key);
+                }
+            }
+        }
+
+        long seen() {
+            return seen;
+        }
+
+        List<byte[]> sorted() {
+            List<byte[]> sorted = new ArrayList<>(keys);
+            sorted.sort(Arrays::compareUnsigned);
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.minidb.storage;
+
+import com.minidb.storage.RecordsSerializer.Row;
+import com.minidb.txn.Transaction;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Storage of the kv table's rows as the executor and recovery see it. RecordStorage keeps rows in
+ * heap pages and points the primary index at them; ClusteredStorage keeps each row in its B+ tree
+ * leaf entry. Writes are logged to the WAL and redone through the ForRecovery methods. Each
+ * layout keeps TableStatistics on its rows for the executor and the metrics.
+ */
+public interface TableStorage<K extends Comparable<K>> {
+    KeyType<K> getKeyType();
+
+    /**
+     * Position of the named column in a row, or -1.
+     */
+    int getColumnIndex(String columnName);
+
+    void insertRecord(Row row, Transaction txn) throws IOException;
+
+    void deleteRecord(K key, Transaction txn) throws IOException;
+
+    Row fetchRecord(K key) throws IOException;
+
+    /**
+     * Passes the rows with low <= key <= high to consumer in key order, at most limit of them.
+     */
+    void scanRecords(K low, K high, long limit, Consumer<Row> consumer) throws IOException;
+
+    /**
+     * Rows whose column equals the literal, found through the column's secondary index.
+     */
+    List<Row> fetchByColumn(String columnName, String literal) throws IOException;
+
+    /**
+     * Redoes a logged insert; lsn is its WAL record's and recordBytes the serialized row. Recovery
+     * redoes records in LSN order.
+     */
+    void insertRecordForRecovery(long lsn, byte[] recordBytes) throws IOException;
+
+    /**
+     * Redoes a logged delete; logKey is the key field of the delete's WAL record.
+     */
+    void deleteRecordForRecovery(long lsn, byte[] logKey) throws IOException;
+
+    /**
+     * LSN up to which every logged write is durable without the WAL, so recovery redoes only later
+     * records; -1 if they all must be redone.
+     */
+    default long getDurableLsn() {
+        return -1;
+    }
+
+    /**
+     * Loads the saved statistics, or runs analyze(sampleRate) if there are none. Writes update the
+     * statistics only once they are open, so call this at startup after recovery.
+     */
+    void openStatistics(double sampleRate) throws IOException;
+
+    /**
+     * Recomputes the statistics (ANALYZE), reading a sampleRate share of the primary index's leaves
+     * where the layout allows, and saves them.
+     */
+    TableStatistics analyze(double sampleRate) throws IOException;
+
+    /**
+     * The current statistics, or null before openStatistics.
+     */
+    TableStatistics getStatistics();
+
+    /**
+     * Saves the statistics with the counts the writes since the last ANALYZE have moved.
+     */
+    void saveStatistics() throws IOException;
+}
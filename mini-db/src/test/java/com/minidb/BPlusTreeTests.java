@@ -0,0 +1,1231 @@
+package com.minidb;
+
+import com.minidb.index.AdaptiveRadixTree;
+import com.minidb.index.BLinkTree;
+import com.minidb.index.BPlusTree;
+import com.minidb.index.CompositeKey;
+import com.minidb.index.Cursor;
+import com.minidb.index.ExtendibleHashIndex;
+import com.minidb.index.IntBPlusTree;
+import com.minidb.index.IntKeySearch;
+import com.minidb.index.LearnedIndex;
+import com.minidb.index.Node;
+import com.minidb.index.Serializer;
+import com.minidb.monitoring.MetricsRegistry;
+import com.minidb.serializers.CompositeKeySerializer;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.LongSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.serializers.StringSerializer;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.Page;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+import io.micrometer.core.instrument.Counter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+public class BPlusTreeTests {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private String dbPath;
+    private PageManager pageManager;
+    private BufferPool bufferPool;
+
+    @Before
+    public void setup() throws IOException {
+        dbPath = new File(tempFolder.newFolder("btree"), "minidb.db").getPath();
+        open();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        close();
+    }
+
+    private void open() throws IOException {
+        pageManager = new PageManager(dbPath, 4096);
+        bufferPool = new BufferPool(pageManager, 10);
+    }
+
+    private void close() throws IOException {
+        bufferPool.flushAllPages();
+        pageManager.close();
+    }
+
+    private BPlusTree<Integer, RecordId> newTree(int order) {
+        return new BPlusTree<>(order, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+    }
+
+    private interface ThreadBody {
+        void run(int thread) throws Exception;
+    }
+
+    /**
+     * Runs body on threads threads at once, passing each its number, and fails if any of them threw.
+     */
+    private static void runConcurrently(int threads, ThreadBody body) throws InterruptedException {
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers.add(new Thread(() -> {
+                try {
+                    body.run(thread);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertTrue("worker failed: " + failures, failures.isEmpty());
+    }
+
+    private static final class CountingPageManager extends PageManager {
+        long writes;
+
+        CountingPageManager(String path) throws IOException {
+            super(path, 4096);
+        }
+
+        @Override
+        public void writePage(int pageId, byte[] data) throws IOException {
+            writes++; // writePages writes each page of a batch through here as well
+            super.writePage(pageId, data);
+        }
+    }
+
+    private static List<Integer> shuffledKeys(int count, long seed) {
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            keys.add(i);
+        }
+        Collections.shuffle(keys, new Random(seed));
+        return keys;
+    }
+
+    @Test
+    public void testTreeLargerThanBufferPoolSurvivesReopen() throws Exception {
+        BPlusTree<Integer, RecordId> tree = newTree(5);
+        List<Integer> keys = shuffledKeys(2000, 42);
+        for (int key : keys) {
+            tree.insert(key, new RecordId(key, key % 7));
+        }
+        for (int key : keys) {
+            assertEquals(key, tree.search(key).getPageId());
+        }
+
+        close();
+        open();
+        BPlusTree<Integer, RecordId> reopened = newTree(5);
+        for (int key = 0; key < 2000; key++) {
+            RecordId rid = reopened.search(key);
+            assertNotNull("missing key " + key, rid);
+            assertEquals(key % 7, rid.getSlotId());
+        }
+        assertNull(reopened.search(2000));
+
+        List<Map.Entry<Integer, RecordId>> range = reopened.rangeSearch(100, 199);
+        assertEquals(100, range.size());
+        assertEquals(Integer.valueOf(100), range.get(0).getKey());
+        assertEquals(Integer.valueOf(199), range.get(99).getKey());
+    }
+
+    @Test
+    public void testDeleteRebalancesAndKeepsRemainingKeys() throws Exception {
+        BPlusTree<Integer, RecordId> tree = newTree(5);
+        List<Integer> keys = shuffledKeys(1000, 7);
+        for (int key : keys) {
+            tree.insert(key, new RecordId(key, 0));
+        }
+        for (int key : keys) {
+            if (key % 3 != 0) {
+                tree.delete(key);
+            }
+        }
+        for (int key = 0; key < 1000; key++) {
+            if (key % 3 == 0) {
+                assertNotNull("missing key " + key, tree.search(key));
+            } else {
+                assertNull("deleted key " + key, tree.search(key));
+            }
+        }
+        assertEquals(334, tree.rangeSearch(0, 999).size());
+
+        for (int key = 0; key < 1000; key += 3) {
+            tree.delete(key);
+        }
+        assertTrue(tree.rangeSearch(0, 999).isEmpty());
+    }
+
+    @Test
+    public void testEachChangedNodeIsWrittenOncePerOperation() throws Exception {
+        CountingPageManager counting = new CountingPageManager(new File(tempFolder.newFolder("writes"), "minidb.db").getPath());
+        BufferPool pool = new BufferPool(counting, 1000); // Nothing is evicted, so only flushes write pages
+        BPlusTree<Integer, RecordId> tree = new BPlusTree<>(5, new IntegerSerializer(), new RecordIdSerializer(), counting, pool);
+        List<Integer> keys = shuffledKeys(2000, 17);
+        for (int key : keys.subList(0, 200)) {
+            tree.insert(key, new RecordId(key, 0));
+        }
+        pool.flushAllPages();
+
+        int plainInserts = 0;
+        int innerLeafSplits = 0;
+        List<Integer> newKeys = new ArrayList<>(keys.subList(200, 2000));
+        for (int key = 2000; key < 2200; key++) {
+            newKeys.add(key); // Ascending keys split the last leaf, which has no right neighbour
+        }
+        for (int key : newKeys) {
+            BPlusTree.Stats before = tree.stats();
+            long writes = tree.getNodeWrites();
+            counting.writes = 0;
+            tree.insert(key, new RecordId(key, 0));
+            pool.flushAllPages();
+            BPlusTree.Stats after = tree.stats();
+            long nodeWrites = tree.getNodeWrites() - writes;
+            assertEquals("pages written for key " + key, nodeWrites, counting.writes); // No node serialized twice
+            if (after.getLeafNodes() == before.getLeafNodes()) {
+                assertEquals("insert of " + key + " without a split", 1, nodeWrites); // The leaf only
+                plainInserts++;
+            } else if (after.getInternalNodes() == before.getInternalNodes()) {
+                // Left, right and parent, and the right neighbour's link back if there is one
+                if (key >= 2000) {
+                    assertEquals("insert of " + key + " splitting the last leaf", 3, nodeWrites);
+                } else if (nodeWrites == 4) {
+                    innerLeafSplits++;
+                } else {
+                    assertEquals("insert of " + key + " splitting its leaf", 3, nodeWrites);
+                }
+            }
+        }
+        assertTrue(plainInserts > 0 && innerLeafSplits > 0);
+
+        // Pages freed by merges are written too, cleared rather than serialized
+        for (int key : keys.subList(0, 1000)) {
+            BPlusTree.Stats before = tree.stats();
+            long writes = tree.getNodeWrites();
+            counting.writes = 0;
+            tree.delete(key);
+            pool.flushAllPages();
+            BPlusTree.Stats after = tree.stats();
+            int freed = before.getLeafNodes() + before.getInternalNodes() - after.getLeafNodes() - after.getInternalNodes();
+            assertEquals("pages written for delete of " + key, tree.getNodeWrites() - writes + freed, counting.writes);
+        }
+        counting.close();
+    }
+
+    @Test
+    public void testMergedAwayNodesAreFreedAsEmptyDataPages() throws Exception {
+        BPlusTree<Integer, RecordId> tree = newTree(5);
+        for (int key = 0; key < 1000; key++) {
+            tree.insert(key, new RecordId(key, 0));
+        }
+        for (int key = 0; key < 1000; key++) {
+            tree.delete(key);
+        }
+        bufferPool.flushAllPages();
+
+        int numPages = pageManager.getNumPages();
+        int recycled = 0;
+        for (int pageId = pageManager.allocatePage(); pageId < numPages; pageId = pageManager.allocatePage()) {
+            Page page = bufferPool.getPage(pageId);
+            assertEquals("type of freed page " + pageId, 0, page.getPageType());
+            assertEquals(0, page.getNumSlots());
+            assertTrue(page.insertRecord(new byte[100]) >= 0); // The heap can use it
+            bufferPool.unpinPage(pageId, true);
+            recycled++;
+        }
+        assertTrue(recycled > 100);
+    }
+
+    @Test
+    public void testConcurrentInsertsDeletesAndSearches() throws Exception {
+        BPlusTree<Integer, RecordId> tree = newTree(5);
+        int threads = 8;
+        int perThread = 500;
+        runConcurrently(threads, thread -> {
+            int base = thread * perThread;
+            for (int i = 0; i < perThread; i++) {
+                tree.insert(base + i, new RecordId(base + i, 0));
+                assertNotNull(tree.search(base + i));
+            }
+            // Delete every other key so merges run while other threads still split
+            for (int i = 0; i < perThread; i += 2) {
+                tree.delete(base + i);
+            }
+        });
+
+        for (int key = 0; key < threads * perThread; key++) {
+            if (key % 2 == 0) {
+                assertNull("deleted key " + key, tree.search(key));
+            } else {
+                assertNotNull("missing key " + key, tree.search(key));
+            }
+        }
+        assertEquals(threads * perThread / 2, tree.rangeSearch(0, threads * perThread).size());
+    }
+
+    @Test
+    public void testInsertAllAndSearchAllMatchSingleKeyCalls() throws Exception {
+        BPlusTree<Integer, RecordId> tree = newTree(5);
+        for (int key = 0; key < 3000; key += 3) {
+            tree.insert(key, new RecordId(key, 0));
+        }
+        // Fill the gaps and overwrite some existing keys in one batch, splitting most leaves on the way
+        TreeMap<Integer, RecordId> batch = new TreeMap<>();
+        for (int key = 0; key < 3000; key++) {
+            if (key % 3 != 0 || key % 30 == 0) {
+                batch.put(key, new RecordId(key, 1));
+            }
+        }
+        tree.insertAll(batch);
+        tree.insertAll(new TreeMap<>());
+
+        List<Integer> keys = new ArrayList<>();
+        for (int key = -10; key < 3010; key += 2) {
+            keys.add(key);
+        }
+        List<RecordId> found = tree.searchAll(keys);
+        assertEquals(keys.size(), found.size());
+        for (int i = 0; i < keys.size(); i++) {
+            int key = keys.get(i);
+            RecordId expected = key < 0 || key >= 3000 ? null : new RecordId(key, key % 3 != 0 || key % 30 == 0 ? 1 : 0);
+            assertEquals("key " + key, expected, found.get(i));
+            assertEquals("key " + key, expected, tree.search(key));
+        }
+        assertEquals(3000, tree.rangeSearch(0, 3000).size());
+        assertEquals(Arrays.asList(new RecordId(7, 1), new RecordId(7, 1), null), tree.searchAll(Arrays.asList(7, 7, 5000)));
+        assertTrue(tree.searchAll(Collections.emptyList()).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSearchAllRejectsUnsortedKeys() throws Exception {
+        newTree(5).searchAll(Arrays.asList(1, 3, 2));
+    }
+
+    @Test
+    public void testConcurrentInsertAllBatches() throws Exception {
+        BPlusTree<Integer, RecordId> tree = newTree(6);
+        int threads = 8;
+        int batches = 10;
+        int batchSize = 100;
+        runConcurrently(threads, thread -> {
+            // Threads interleave their keys so their batches keep landing in the same leaves
+            for (int b = 0; b < batches; b++) {
+                TreeMap<Integer, RecordId> batch = new TreeMap<>();
+                List<Integer> keys = new ArrayList<>();
+                for (int i = 0; i < batchSize; i++) {
+                    int key = ((b * batchSize + i) * threads + thread) * (b % 2 == 0 ? 1 : -1);
+                    batch.put(key, new RecordId(key, 0));
+                }
+                tree.insertAll(batch);
+                keys.addAll(batch.keySet());
+                for (RecordId rid : tree.searchAll(keys)) {
+                    assertNotNull(rid);
+                }
+            }
+        });
+        assertEquals(threads * batches * batchSize, tree.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE).size());
+    }
+
+    @Test
+    public void testBLinkTreeConcurrentSplitsKeepEveryKeyReachable() throws Exception {
+        BLinkTree<Integer, RecordId> tree = new BLinkTree<>(5, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool, 1);
+        int threads = 8;
+        int perThread = 500;
+        runConcurrently(threads, thread -> {
+            // Interleaved keys make every thread split the same leaves and internal nodes
+            for (int i = 0; i < perThread; i++) {
+                int key = i * threads + thread;
+                tree.insert(key, new RecordId(key, 0));
+                assertEquals(key, tree.search(key).getPageId());
+            }
+        });
+
+        int total = threads * perThread;
+        List<Map.Entry<Integer, RecordId>> all = tree.rangeSearch(0, total);
+        assertEquals(total, all.size());
+        for (int i = 0; i < total; i++) {
+            assertEquals(Integer.valueOf(i), all.get(i).getKey());
+        }
+
+        for (int key = 0; key < total; key += 2) {
+            tree.delete(key);
+        }
+        close();
+        open();
+        BLinkTree<Integer, RecordId> reopened = new BLinkTree<>(5, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool, 1);
+        for (int key = 0; key < total; key++) {
+            if (key % 2 == 0) {
+                assertNull("deleted key " + key, reopened.search(key));
+            } else {
+                assertNotNull("missing key " + key, reopened.search(key));
+            }
+        }
+    }
+
+    @Test
+    public void testBulkLoadBuildsSearchableTree() throws Exception {
+        for (int count : new int[]{0, 1, 4, 7, 2000}) {
+            cleanup();
+            dbPath = new File(tempFolder.newFolder(), "minidb.db").getPath();
+            open();
+
+            Map<Integer, RecordId> entries = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                entries.put(i * 2, new RecordId(i, 0));
+            }
+            BPlusTree<Integer, RecordId> tree = newTree(5);
+            tree.bulkLoad(entries.entrySet().iterator(), 0.75);
+
+            assertEquals(count, tree.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE).size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(i, tree.search(i * 2).getPageId());
+                assertNull(tree.search(i * 2 + 1));
+            }
+
+            // The loaded tree must keep working as a regular B+ tree
+            for (int i = 0; i < count; i++) {
+                tree.insert(i * 2 + 1, new RecordId(i, 1));
+            }
+            for (int i = 0; i < count; i += 2) {
+                tree.delete(i * 2);
+            }
+            close();
+            open();
+            BPlusTree<Integer, RecordId> reopened = newTree(5);
+            assertEquals(count + count / 2, reopened.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE).size());
+        }
+    }
+
+    @Test
+    public void testBulkLoadTailFitsInPage() throws Exception {
+        // At this order a full page holds fewer keys than order - 1, so merging the short last leaf
+        // into its neighbour by key count alone would overflow the page
+        BPlusTree<Integer, RecordId> tree = newTree(256);
+        List<Map.Entry<Integer, RecordId>> entries = new ArrayList<>();
+        for (int key = 0; key < 200; key++) {
+            entries.add(new AbstractMap.SimpleEntry<>(key, new RecordId(key, 0)));
+        }
+        tree.bulkLoad(entries.iterator(), 1.0);
+        assertEquals(200, tree.rangeSearch(0, 200).size());
+        assertEquals(new RecordId(199, 0), tree.search(199));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBulkLoadRejectsUnsortedInput() throws Exception {
+        List<Map.Entry<Integer, RecordId>> entries = new ArrayList<>();
+        entries.add(new AbstractMap.SimpleEntry<>(2, new RecordId(2, 0)));
+        entries.add(new AbstractMap.SimpleEntry<>(1, new RecordId(1, 0)));
+        newTree(5).bulkLoad(entries.iterator(), 1.0);
+    }
+
+    @Test
+    public void testIntTreeMatchesGenericTreeBehaviour() throws Exception {
+        IntBPlusTree tree = new IntBPlusTree(5, pageManager, bufferPool, 1);
+        List<Integer> keys = shuffledKeys(3000, 11);
+        for (int key : keys) {
+            tree.insert(key, IntBPlusTree.pack(key, key % 7));
+        }
+        for (int key = 0; key < 3000; key += 2) {
+            assertTrue(tree.delete(key));
+        }
+        assertFalse(tree.delete(0));
+
+        close();
+        open();
+        IntBPlusTree reopened = new IntBPlusTree(5, pageManager, bufferPool, 1);
+        for (int key = 0; key < 3000; key++) {
+            long value = reopened.search(key);
+            if (key % 2 == 0) {
+                assertEquals(IntBPlusTree.NOT_FOUND, value);
+            } else {
+                assertEquals(key, IntBPlusTree.pageIdOf(value));
+                assertEquals(key % 7, IntBPlusTree.slotIdOf(value));
+            }
+        }
+        List<Integer> scanned = new ArrayList<>();
+        assertEquals(50, reopened.scan(1000, 1099, (key, value) -> scanned.add(key)));
+        assertEquals(Integer.valueOf(1001), scanned.get(0));
+        assertEquals(Integer.valueOf(1099), scanned.get(49));
+    }
+
+    @Test
+    public void testIntKeySearchMatchesBinarySearch() {
+        // Surefire adds the Vector API module, so find takes the vectorized path here
+        Random random = new Random(11);
+        for (int count = 0; count <= 300; count++) {
+            int[] keys = random.ints(count, -1000, 1000).distinct().sorted().toArray();
+            byte[] data = new byte[3 + 4 * keys.length];
+            ByteBuffer buffer = ByteBuffer.wrap(data, 3, 4 * keys.length);
+            for (int key : keys) {
+                buffer.putInt(key);
+            }
+            for (int probe : new int[]{Integer.MIN_VALUE, -1001, -1000, -1, 0, 1, 999, 1000, Integer.MAX_VALUE}) {
+                assertEquals(IntKeySearch.binarySearch(data, 3, keys.length, probe), IntKeySearch.find(data, 3, keys.length, probe));
+            }
+            for (int i = 0; i < keys.length; i++) {
+                assertEquals(i, IntKeySearch.find(data, 3, keys.length, keys[i]));
+                assertEquals(Arrays.binarySearch(keys, keys[i] + 1), IntKeySearch.find(data, 3, keys.length, keys[i] + 1));
+            }
+        }
+    }
+
+    @Test
+    public void testLearnedIndexOverSealedTreeAndDelta() throws Exception {
+        BPlusTree<Integer, RecordId> sealed = newTree(16);
+        TreeMap<Integer, RecordId> expected = new TreeMap<>();
+        Random random = new Random(5);
+        int key = -5000;
+        for (int i = 0; i < 5000; i++) {
+            // Dense runs with an irregular stride, broken by occasional large gaps
+            key += i % 1000 == 999 ? 100_000 : 1 + random.nextInt(3);
+            sealed.insert(key, new RecordId(i, i % 7));
+            expected.put(key, new RecordId(i, i % 7));
+        }
+        int deltaRoot = pageManager.allocatePage();
+        LearnedIndex index = new LearnedIndex(sealed, new BPlusTree<>(16, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool, deltaRoot), 4);
+        assertEquals(5000, index.getSealedEntries());
+        assertTrue("segments: " + index.getSegmentCount(), index.getSegmentCount() > 1 && index.getSegmentCount() < 500);
+
+        List<Integer> sealedKeys = new ArrayList<>(expected.keySet());
+        for (int i = 0; i < 1000; i++) {
+            int existing = sealedKeys.get(random.nextInt(sealedKeys.size()));
+            if (i % 3 == 0) {
+                index.delete(existing);
+                expected.remove(existing);
+            } else if (i % 3 == 1) {
+                index.insert(existing + 1, new RecordId(-2, i)); // Lands in a gap, or replaces a sealed key
+                expected.put(existing + 1, new RecordId(-2, i));
+            } else {
+                index.insert(existing, new RecordId(-3, i));
+                expected.put(existing, new RecordId(-3, i));
+            }
+        }
+        index.delete(Integer.MAX_VALUE); // Neither sealed nor in the delta
+
+        for (LearnedIndex reopened : Arrays.asList(index, new LearnedIndex(sealed,
+                new BPlusTree<>(16, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool, deltaRoot), 4))) {
+            for (int probe = sealedKeys.get(0) - 10; probe <= sealedKeys.get(sealedKeys.size() - 1) + 10; probe++) {
+                if (probe == sealedKeys.get(0) || expected.containsKey(probe) || random.nextInt(50) == 0) {
+                    assertEquals("key " + probe, expected.get(probe), reopened.search(probe));
+                }
+            }
+            assertEquals(new ArrayList<>(expected.entrySet()), drain(reopened.scan()));
+            int low = sealedKeys.get(1200);
+            int high = sealedKeys.get(2100);
+            assertEquals(new ArrayList<>(expected.subMap(low, true, high, true).entrySet()), drain(reopened.scan(low, high)));
+        }
+
+        // Going back to a plain B+ tree index folds the delta into the sealed tree
+        BPlusTree<Integer, RecordId> delta = new BPlusTree<>(16, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool, deltaRoot);
+        assertTrue(LearnedIndex.foldDelta(sealed, delta, bufferPool) > 0);
+        assertEquals(new ArrayList<>(expected.entrySet()), drain(sealed.scan()));
+        assertFalse(delta.scan().hasNext());
+        assertEquals(0, LearnedIndex.foldDelta(sealed, delta, bufferPool));
+    }
+
+    private static <K, V> List<Map.Entry<K, V>> drain(Iterator<Map.Entry<K, V>> entries) {
+        List<Map.Entry<K, V>> list = new ArrayList<>();
+        while (entries.hasNext()) {
+            Map.Entry<K, V> entry = entries.next();
+            list.add(new AbstractMap.SimpleEntry<>(entry.getKey(), entry.getValue()));
+        }
+        return list;
+    }
+
+    @Test
+    public void testIntTreeConcurrentInserts() throws Exception {
+        IntBPlusTree tree = new IntBPlusTree(8, pageManager, bufferPool, 1);
+        int threads = 8;
+        int perThread = 1000;
+        runConcurrently(threads, thread -> {
+            for (int i = 0; i < perThread; i++) {
+                int key = i * threads + thread;
+                tree.insert(key, IntBPlusTree.pack(key, 0));
+                assertEquals(key, IntBPlusTree.pageIdOf(tree.search(key)));
+            }
+        });
+        assertEquals(threads * perThread, tree.scan(Integer.MIN_VALUE, Integer.MAX_VALUE, (key, value) -> { }));
+    }
+
+    private static <T extends Comparable<T>> void assertEncodingOrder(Serializer<T> serializer, List<T> values) {
+        for (T a : values) {
+            assertEquals(a, serializer.deserialize(serializer.serialize(a)));
+            for (T b : values) {
+                int expected = Integer.signum(a.compareTo(b));
+                int actual = Integer.signum(Arrays.compareUnsigned(serializer.serialize(a), serializer.serialize(b)));
+                assertEquals(a + " vs " + b, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryComparableEncodingsPreserveOrder() {
+        assertEncodingOrder(new IntegerSerializer(), Arrays.asList(Integer.MIN_VALUE, -70000, -1, 0, 1, 255, 256, Integer.MAX_VALUE));
+        assertEncodingOrder(new LongSerializer(), Arrays.asList(Long.MIN_VALUE, -1L << 40, -1L, 0L, 1L, 1L << 40, Long.MAX_VALUE));
+        assertEncodingOrder(new StringSerializer(), Arrays.asList("", "a", "a\u0000", "ab", "b", "\u00e9", "\uffff", "\ud83d\ude00", "z"));
+        assertEncodingOrder(new CompositeKeySerializer(new StringSerializer(), new IntegerSerializer()), Arrays.asList(
+                new CompositeKey("a"), new CompositeKey("a", -5), new CompositeKey("a", 7),
+                new CompositeKey("a\u0000", 1), new CompositeKey("ab", Integer.MIN_VALUE), new CompositeKey("b", 0)));
+    }
+
+    @Test
+    public void testBufferWritesMatchSerializedBytes() {
+        assertBufferRoundTrip(new IntegerSerializer(), Arrays.asList(Integer.MIN_VALUE, -1, 0, 256, Integer.MAX_VALUE));
+        assertBufferRoundTrip(new LongSerializer(), Arrays.asList(Long.MIN_VALUE, -1L, 0L, 1L << 40, Long.MAX_VALUE));
+        assertBufferRoundTrip(new RecordIdSerializer(), Arrays.asList(new RecordId(0, 0), new RecordId(7, 3), new RecordId(Integer.MAX_VALUE, -1)));
+        assertBufferRoundTrip(new StringSerializer(), Arrays.asList("", "a", "\u00e9\ud83d\ude00"));
+    }
+
+    private static <T> void assertBufferRoundTrip(Serializer<T> serializer, List<T> values) {
+        for (T value : values) {
+            ByteBuffer buffer = ByteBuffer.allocate(3 + serializer.getSerializedSize(value) + 5);
+            buffer.position(3);
+            serializer.write(value, buffer);
+            assertEquals(3 + serializer.getSerializedSize(value), buffer.position());
+            assertArrayEquals(serializer.serialize(value), Arrays.copyOfRange(buffer.array(), 3, buffer.position()));
+            buffer.limit(buffer.position()).position(3);
+            assertEquals(value, serializer.read(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    public void testCompositeKeysAreSearchedInPlace() throws Exception {
+        BPlusTree<CompositeKey, RecordId> tree = new BPlusTree<>(5, new CompositeKeySerializer(new StringSerializer(), new IntegerSerializer()),
+                new RecordIdSerializer(), pageManager, bufferPool);
+        List<Integer> ids = shuffledKeys(600, 5);
+        for (int id : ids) {
+            tree.insert(new CompositeKey("user-" + (id % 20), id - 300), new RecordId(id, 0));
+        }
+        for (int id : ids) {
+            assertEquals(id, tree.search(new CompositeKey("user-" + (id % 20), id - 300)).getPageId());
+        }
+        assertNull(tree.search(new CompositeKey("user-1", 0)));
+
+        // All rows of one prefix, in (name, number) order, including negative numbers
+        List<Map.Entry<CompositeKey, RecordId>> user7 = tree.rangeSearch(new CompositeKey("user-7"), new CompositeKey("user-7", Integer.MAX_VALUE));
+        assertEquals(30, user7.size());
+        assertEquals(new CompositeKey("user-7", 7 - 300), user7.get(0).getKey());
+    }
+
+    @Test
+    public void testSeparatorsAreTruncated() {
+        StringSerializer strings = new StringSerializer();
+        assertEquals("apr", strings.separator("apple", "apricot"));
+        assertEquals("appl", strings.separator("app", "apple"));
+        assertEquals("b", strings.separator("azzzz", "bcd"));
+
+        CompositeKeySerializer composite = new CompositeKeySerializer(new StringSerializer(), new IntegerSerializer());
+        assertEquals(new CompositeKey("u"), composite.separator(new CompositeKey("eu-west", 1), new CompositeKey("us-east", 0)));
+        assertEquals(new CompositeKey("eu", 9), composite.separator(new CompositeKey("eu", 5), new CompositeKey("eu", 9)));
+        assertEquals(new CompositeKey("eu", 1), composite.separator(new CompositeKey("eu"), new CompositeKey("eu", 1)));
+    }
+
+    @Test
+    public void testStringKeysWithTruncatedSeparators() throws Exception {
+        BPlusTree<String, RecordId> tree = new BPlusTree<>(8, new StringSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+        TreeMap<String, Integer> expected = new TreeMap<>();
+        for (int id : shuffledKeys(3000, 11)) {
+            String key = "https://example.com/" + (id % 7) + "/product/" + id;
+            tree.insert(key, new RecordId(id, 0));
+            expected.put(key, id);
+        }
+        for (int id : shuffledKeys(3000, 12).subList(0, 2000)) {
+            String key = "https://example.com/" + (id % 7) + "/product/" + id;
+            tree.delete(key);
+            expected.remove(key);
+        }
+
+        close();
+        open();
+        BPlusTree<String, RecordId> reopened = new BPlusTree<>(8, new StringSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getKey(), (int) entry.getValue(), reopened.search(entry.getKey()).getPageId());
+        }
+        assertNull(reopened.search("https://example.com/3/product/"));
+        List<Map.Entry<String, RecordId>> range = reopened.rangeSearch("https://example.com/3", "https://example.com/4");
+        assertEquals(expected.subMap("https://example.com/3", true, "https://example.com/4", true).size(), range.size());
+    }
+
+    @Test
+    public void testLongKeysSplitByPageSize() throws Exception {
+        // An order far above what fits in a page: nodes split and merge by bytes
+        BPlusTree<String, RecordId> tree = new BPlusTree<>(1000, new StringSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+        Random random = new Random(21);
+        String[] hosts = {"a.io", "shop.example.com", "static.cdn.example-content-delivery.net", "z"};
+        TreeMap<String, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 20000; i++) {
+            String key = "https://" + hosts[random.nextInt(hosts.length)] + "/p/" + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                tree.delete(key);
+                expected.remove(key);
+            } else {
+                tree.insert(key, new RecordId(i, 0));
+                expected.put(key, i);
+            }
+        }
+
+        close();
+        open();
+        BPlusTree<String, RecordId> reopened = new BPlusTree<>(1000, new StringSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getKey(), (int) entry.getValue(), reopened.search(entry.getKey()).getPageId());
+        }
+        assertNull(reopened.search("https://shop.example.com/p/"));
+        assertEquals(expected.size(), reopened.rangeSearch("", "~").size());
+
+        BPlusTree.Stats stats = reopened.stats();
+        assertEquals(expected.size(), stats.getEntries());
+        assertTrue(stats.toString(), stats.getHeight() > 1 && stats.getLeafFill() > 0.4);
+
+        try {
+            reopened.insert(new String(new char[Node.MAX_KEY_SIZE + 1]).replace('\0', 'x'), new RecordId(0, 0));
+            fail("Oversized key accepted");
+        } catch (IllegalArgumentException expectedError) {
+            // Keys are capped so that several always fit in a node
+        }
+    }
+
+    @Test
+    public void testCursorSurvivesSplitsAndMergesBetweenCalls() throws Exception {
+        BPlusTree<Integer, RecordId> tree = newTree(5);
+        for (int key = 0; key < 2000; key++) {
+            tree.insert(key, new RecordId(key, 0));
+        }
+
+        try (Cursor<Integer, RecordId> cursor = tree.cursor(1500, 5)) {
+            cursor.seek(1001);
+            List<Integer> keys = new ArrayList<>();
+            cursor.forEachRemaining(entry -> keys.add(entry.getKey()));
+            assertEquals(Arrays.asList(1001, 1002, 1003, 1004, 1005), keys);
+        }
+
+        // Between next() calls the odd keys around the cursor are deleted and put back, which
+        // merges, borrows between and splits the leaves it is walking; every even key stays in the
+        // tree and must come back exactly once, in order
+        List<Integer> seen = new ArrayList<>();
+        try (Cursor<Integer, RecordId> cursor = tree.cursor()) {
+            cursor.seekFirst();
+            while (cursor.hasNext()) {
+                int current = cursor.next().getKey();
+                seen.add(current);
+                for (int key = current | 1; key < current + 40; key += 2) {
+                    if (seen.size() % 2 == 0) {
+                        tree.insert(key, new RecordId(key, 0));
+                    } else {
+                        tree.delete(key);
+                    }
+                }
+            }
+        }
+        List<Integer> evens = new ArrayList<>();
+        for (int i = 0; i < seen.size(); i++) {
+            assertTrue("out of order at " + seen.get(i), i == 0 || seen.get(i - 1) < seen.get(i));
+            if (seen.get(i) % 2 == 0 && seen.get(i) < 2000) {
+                evens.add(seen.get(i));
+            }
+        }
+        assertEquals(1000, evens.size());
+    }
+
+    @Test
+    public void testDescendingCursorFollowsBackLinks() throws Exception {
+        BPlusTree<Integer, RecordId> tree = newTree(5);
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        Random random = new Random(5);
+        for (int i = 0; i < 5000; i++) { // Splits and merges relink the leaves in both directions
+            int key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                tree.delete(key);
+                expected.remove(key);
+            } else {
+                tree.insert(key, new RecordId(key, 0));
+                expected.put(key, key);
+            }
+        }
+
+        close();
+        open();
+        BPlusTree<Integer, RecordId> reopened = newTree(5);
+        List<Integer> all = new ArrayList<>();
+        try (Cursor<Integer, RecordId> cursor = reopened.descendingCursor(null, Long.MAX_VALUE)) {
+            cursor.seekFirst().forEachRemaining(entry -> all.add(entry.getKey()));
+        }
+        assertEquals(new ArrayList<>(expected.descendingKeySet()), all);
+
+        List<Integer> latest = new ArrayList<>();
+        try (Cursor<Integer, RecordId> cursor = reopened.descendingCursor(500, 20)) {
+            cursor.seek(1000).forEachRemaining(entry -> latest.add(entry.getKey()));
+        }
+        assertEquals(new ArrayList<>(expected.headMap(1000, true).descendingKeySet()).subList(0, 20), latest);
+
+        BPlusTree<Integer, RecordId> loaded = new BPlusTree<>(5, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool, pageManager.allocatePage());
+        List<Map.Entry<Integer, RecordId>> sorted = new ArrayList<>();
+        for (int key = 0; key < 1000; key++) {
+            sorted.add(new AbstractMap.SimpleEntry<>(key, new RecordId(key, 0)));
+        }
+        loaded.bulkLoad(sorted.iterator(), 1.0);
+
+        // Odd keys are deleted and put back around the cursor while it walks backwards
+        List<Integer> seen = new ArrayList<>();
+        try (Cursor<Integer, RecordId> cursor = loaded.descendingCursor(null, Long.MAX_VALUE)) {
+            cursor.seek(998);
+            while (cursor.hasNext()) {
+                int current = cursor.next().getKey();
+                seen.add(current);
+                for (int key = (current - 40) | 1; key < current; key += 2) {
+                    if (key < 0) {
+                        continue;
+                    }
+                    if (seen.size() % 2 == 0) {
+                        loaded.insert(key, new RecordId(key, 0));
+                    } else {
+                        loaded.delete(key);
+                    }
+                }
+            }
+        }
+        List<Integer> evens = new ArrayList<>();
+        for (int i = 0; i < seen.size(); i++) {
+            assertTrue("out of order at " + seen.get(i), i == 0 || seen.get(i - 1) > seen.get(i));
+            if (seen.get(i) % 2 == 0) {
+                evens.add(seen.get(i));
+            }
+        }
+        assertEquals(500, evens.size());
+    }
+
+    private ExtendibleHashIndex<String, RecordId> newHashIndex() throws IOException {
+        return new ExtendibleHashIndex<>(new StringSerializer(), new RecordIdSerializer(), pageManager, bufferPool, BPlusTree.DEFAULT_ROOT_PAGE_ID);
+    }
+
+    @Test
+    public void testHashIndexSplitsBucketsAndSurvivesReopen() throws Exception {
+        ExtendibleHashIndex<String, RecordId> index = newHashIndex();
+        Map<String, RecordId> expected = new HashMap<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 20000; i++) { // Far more entries than the buffer pool holds pages
+            String key = "user:" + random.nextInt(8000);
+            if (random.nextInt(4) == 0) {
+                index.delete(key);
+                expected.remove(key);
+            } else {
+                RecordId rid = new RecordId(i, i % 13);
+                index.insert(key, rid);
+                expected.put(key, rid);
+            }
+        }
+        assertTrue(index.getGlobalDepth() > 4);
+
+        close();
+        open();
+        ExtendibleHashIndex<String, RecordId> reopened = newHashIndex();
+        for (int i = 0; i < 8000; i++) {
+            assertEquals("key user:" + i, expected.get("user:" + i), reopened.search("user:" + i));
+        }
+        Map<String, RecordId> scanned = new HashMap<>();
+        for (Iterator<Map.Entry<String, RecordId>> it = reopened.scan(); it.hasNext(); ) {
+            Map.Entry<String, RecordId> entry = it.next();
+            assertNull("scanned twice: " + entry.getKey(), scanned.put(entry.getKey(), entry.getValue()));
+        }
+        assertEquals(expected, scanned);
+
+        try {
+            new BPlusTree<>(5, new StringSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+            fail("opened a hash directory as a B+ tree root");
+        } catch (IllegalStateException expectedFailure) {
+            // The page type tells the two primary indexes apart
+        }
+    }
+
+    @Test
+    public void testHashIndexFreesEmptiedOverflowPagesAsEmptyDataPages() throws Exception {
+        ExtendibleHashIndex<String, RecordId> index = newHashIndex();
+        // "Aa" and "BB" hash alike, so these keys share one bucket at MAX_DEPTH and its overflow pages
+        String padding = String.join("", Collections.nCopies(300, "x"));
+        List<String> keys = new ArrayList<>();
+        for (int bits = 0; bits < 64; bits++) {
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < 6; i++) {
+                key.append((bits >>> i & 1) == 0 ? "Aa" : "BB");
+            }
+            keys.add(key.append(padding).toString());
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            index.insert(keys.get(i), new RecordId(i, 0));
+        }
+        assertEquals(ExtendibleHashIndex.MAX_DEPTH, index.getGlobalDepth());
+        int numPages = pageManager.getNumPages();
+        for (String key : keys) {
+            index.delete(key);
+        }
+        bufferPool.flushAllPages();
+
+        int recycled = 0;
+        for (int pageId = pageManager.allocatePage(); pageId < numPages; pageId = pageManager.allocatePage()) {
+            Page page = bufferPool.getPage(pageId);
+            assertEquals("type of freed page " + pageId, 0, page.getPageType());
+            assertEquals(0, page.getNumSlots());
+            assertTrue(page.insertRecord(new byte[100]) >= 0); // The heap can use it
+            bufferPool.unpinPage(pageId, true);
+            recycled++;
+        }
+        assertTrue(recycled >= 4);
+        for (String key : keys) {
+            assertNull(index.search(key));
+        }
+    }
+
+    @Test
+    public void testHashIndexConcurrentInsertsDeletesAndSearches() throws Exception {
+        ExtendibleHashIndex<String, RecordId> index = newHashIndex();
+        int threads = 8;
+        int perThread = 2000;
+        runConcurrently(threads, thread -> {
+            int base = thread * perThread;
+            for (int i = 0; i < perThread; i++) {
+                index.insert("k" + (base + i), new RecordId(base + i, 0));
+                assertEquals(base + i, index.search("k" + (base + i)).getPageId());
+            }
+            // Deletes run while other threads still split buckets and grow the directory
+            for (int i = 0; i < perThread; i += 2) {
+                index.delete("k" + (base + i));
+            }
+        });
+
+        for (int key = 0; key < threads * perThread; key++) {
+            if (key % 2 == 0) {
+                assertNull("deleted key " + key, index.search("k" + key));
+            } else {
+                assertEquals(key, index.search("k" + key).getPageId());
+            }
+        }
+    }
+
+    @Test
+    public void testBackgroundRebalanceFailuresAreCounted() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean();
+        IllegalStateException failure = new IllegalStateException("page read failed");
+        bufferPool = new BufferPool(pageManager, 10) {
+            @Override
+            public synchronized Page getPage(int pageId) {
+                if (failing.get()) {
+                    throw failure;
+                }
+                return super.getPage(pageId);
+            }
+        };
+        BPlusTree<Integer, RecordId> tree = newTree(17);
+        tree.setMergeThreshold(0.25);
+        for (int key = 0; key < 2000; key++) {
+            tree.insert(key, new RecordId(key, 0));
+        }
+        for (int key = 1; key < 2000; key += 2) {
+            tree.delete(key);
+        }
+        assertTrue(tree.getDeferredUnderflows() > 0);
+        Counter failures = MetricsRegistry.getInstance().counter("minidb.btree.rebalance.failures");
+        double before = failures.count();
+
+        failing.set(true);
+        tree.startBackgroundRebalance(10);
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (failures.count() == before && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            tree.stopBackgroundRebalance();
+            failing.set(false);
+        }
+        assertTrue(failures.count() > before);
+        assertSame(failure, tree.getLastRebalanceFailure());
+    }
+
+    @Test
+    public void testLazyMergeLeavesUnderfullLeavesToRebalance() throws Exception {
+        BPlusTree<Integer, RecordId> tree = newTree(17);
+        tree.setMergeThreshold(0.25);
+        for (int key = 0; key < 2000; key++) {
+            tree.insert(key, new RecordId(key, 0));
+        }
+        int leaves = tree.stats().getLeafNodes();
+
+        // Leaves split at 16 keys hold 8 or 9; losing every odd key leaves them at or above a quarter
+        for (int key = 1; key < 2000; key += 2) {
+            tree.delete(key);
+        }
+        assertEquals(leaves, tree.stats().getLeafNodes());
+        assertTrue(tree.getDeferredUnderflows() > 0);
+
+        int merged = tree.rebalance();
+        assertTrue(merged > leaves / 3);
+        assertEquals(leaves - merged, tree.stats().getLeafNodes());
+        assertEquals(0, tree.getDeferredUnderflows());
+        assertEquals(1000, tree.stats().getEntries());
+        for (int key = 0; key < 2000; key++) {
+            RecordId rid = tree.search(key);
+            if (key % 2 == 0) {
+                assertEquals(key, rid.getPageId());
+            } else {
+                assertNull(rid);
+            }
+        }
+        List<Map.Entry<Integer, RecordId>> all = tree.rangeSearch(0, 1999);
+        assertEquals(1000, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(Integer.valueOf(2 * i), all.get(i).getKey());
+        }
+
+        try {
+            tree.setMergeThreshold(0.75);
+            fail("Thresholds above half full are rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testParallelRangeScansMatchRangeSearch() throws Exception {
+        BPlusTree<Integer, RecordId> tree = newTree(16);
+        for (int key : shuffledKeys(20000, 5)) {
+            tree.insert(2 * key, new RecordId(key, 0)); // Even keys only, so odd bounds fall between keys
+        }
+        List<Integer> splits = tree.splitRange(null, null, 8);
+        assertEquals(7, splits.size());
+        for (int i = 1; i < splits.size(); i++) {
+            assertTrue(splits.get(i - 1) < splits.get(i));
+        }
+        List<Integer> narrow = tree.splitRange(101, 141, 8);
+        for (int split : narrow) {
+            assertTrue(split > 101 && split <= 141);
+        }
+        assertTrue(tree.splitRange(0, 39999, 1).isEmpty());
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            int[][] ranges = {{0, 39998}, {-50, 100000}, {101, 141}, {7777, 7777}, {7778, 7778}, {30001, 29999}, {12345, 31111}};
+            for (int[] range : ranges) {
+                for (int parts : new int[]{1, 3, 8, 64}) {
+                    List<Map.Entry<Integer, RecordId>> expected = tree.rangeSearch(range[0], range[1]);
+                    assertEquals(expected, tree.parallelRangeSearch(range[0], range[1], parts, pool, entry -> entry));
+                    LongAdder sum = new LongAdder();
+                    LongAdder count = new LongAdder();
+                    tree.parallelForEach(range[0], range[1], parts, pool, entry -> {
+                        sum.add(entry.getKey());
+                        count.increment();
+                    });
+                    assertEquals(expected.size(), count.intValue());
+                    assertEquals(expected.stream().mapToLong(Map.Entry::getKey).sum(), sum.longValue());
+                }
+            }
+            List<Integer> everything = tree.parallelRangeSearch(null, null, 8, pool, Map.Entry::getKey);
+            assertEquals(20000, everything.size());
+            assertEquals(Integer.valueOf(39998), everything.get(everything.size() - 1));
+
+            // Splits elsewhere in the tree while the scans run do not change what they see
+            List<Map.Entry<Integer, RecordId>> expected = tree.rangeSearch(0, 39998);
+            AtomicBoolean written = new AtomicBoolean();
+            runConcurrently(2, thread -> {
+                if (thread == 0) {
+                    try {
+                        for (int key = 100000; key < 110000; key++) {
+                            tree.insert(key, new RecordId(key, 1));
+                        }
+                    } finally {
+                        written.set(true);
+                    }
+                    return;
+                }
+                while (!written.get()) {
+                    assertEquals(expected, tree.parallelRangeSearch(0, 39998, 8, pool, entry -> entry));
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelRangeScanStreamsInKeyOrder() throws Exception {
+        BPlusTree<Integer, RecordId> tree = newTree(16);
+        for (int key : shuffledKeys(20000, 9)) {
+            tree.insert(key, new RecordId(key, 0));
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            AtomicInteger mapped = new AtomicInteger();
+            int[] consumed = {0};
+            tree.parallelRangeScan(null, null, 8, pool, entry -> {
+                mapped.incrementAndGet();
+                return entry.getKey();
+            }, key -> {
+                assertEquals(consumed[0]++, key.intValue());
+                // Workers run at most a full queue (and the result in hand) ahead of a slow consumer
+                assertTrue(mapped.get() - consumed[0] <= 8 * 257);
+                if (key % 1000 == 0) {
+                    LockSupport.parkNanos(2_000_000);
+                }
+            });
+            assertEquals(20000, consumed[0]);
+
+            // A consumer that gives up stops the workers instead of letting them read the rest
+            mapped.set(0);
+            try {
+                tree.parallelRangeScan(null, null, 8, pool, entry -> {
+                    mapped.incrementAndGet();
+                    return entry.getKey();
+                }, key -> {
+                    if (key == 100) {
+                        throw new IllegalStateException("enough");
+                    }
+                });
+                fail("Expected the consumer's exception");
+            } catch (IllegalStateException e) {
+                assertEquals("enough", e.getMessage());
+            }
+            assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+            assertTrue(mapped.get() <= 8 * 257 + 101);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testAdaptiveRadixTreeMatchesTreeMap() throws Exception {
+        AdaptiveRadixTree<String, Integer> tree = new AdaptiveRadixTree<>(new StringSerializer());
+        TreeMap<String, Integer> expected = new TreeMap<>();
+        Random random = new Random(11);
+        String[] stems = {"", "a", "ab", "abc", "abcdefgh", "b", "ba", "zzzzzzzzzz"};
+        for (int i = 0; i < 20000; i++) {
+            // Keys that are prefixes of one another, long shared prefixes, and up to 300 distinct next bytes
+            String key = stems[random.nextInt(stems.length)] + (random.nextBoolean() ? "" : String.valueOf((char) (32 + random.nextInt(300))))
+                    + (random.nextInt(4) == 0 ? "" : Integer.toString(random.nextInt(500)));
+            if (random.nextInt(4) == 0) {
+                tree.delete(key);
+                expected.remove(key);
+            } else {
+                tree.insert(key, i);
+                expected.put(key, i);
+            }
+        }
+        for (String stem : stems) {
+            assertEquals(expected.get(stem), tree.search(stem));
+            assertEquals(expected.get(stem + "q"), tree.search(stem + "q"));
+        }
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), tree.search(entry.getKey()));
+        }
+        assertEquals(new ArrayList<>(expected.entrySet()), drain(tree.scan()));
+        assertEquals(new ArrayList<>(expected.subMap("ab", true, "abd", true).entrySet()), drain(tree.scan("ab", "abd")));
+        assertEquals(new ArrayList<>(expected.headMap("b", true).entrySet()), drain(tree.scan(null, "b")));
+        assertEquals(new ArrayList<>(expected.tailMap("abcdefgh5", true).entrySet()), drain(tree.scan("abcdefgh5", null)));
+
+        AdaptiveRadixTree<Integer, Integer> ints = new AdaptiveRadixTree<>(new IntegerSerializer());
+        for (int key = -5000; key < 5000; key += 3) {
+            ints.insert(key, key * 2);
+        }
+        assertEquals(Integer.valueOf(-4), ints.search(-2));
+        assertNull(ints.search(0));
+        List<Map.Entry<Integer, Integer>> range = drain(ints.scan(-10, 10));
+        assertEquals(7, range.size()); // -8, -5, -2, 1, 4, 7, 10
+        assertEquals(Integer.valueOf(-8), range.get(0).getKey());
+        assertEquals(Integer.valueOf(10), range.get(6).getKey());
+    }
+
+    @Test
+    public void testAdaptiveRadixTreeConcurrentInsertsDeletesAndSearches() throws Exception {
+        AdaptiveRadixTree<Integer, Integer> tree = new AdaptiveRadixTree<>(new IntegerSerializer());
+        int threads = 8;
+        int perThread = 20000;
+        runConcurrently(threads, thread -> {
+            // Interleaved keys, so threads grow, split and extend the same nodes
+            for (int i = 0; i < perThread; i++) {
+                int key = i * threads + thread;
+                tree.insert(key, key);
+                assertEquals(Integer.valueOf(key), tree.search(key));
+            }
+            for (int i = 0; i < perThread; i += 2) {
+                tree.delete(i * threads + thread);
+            }
+        });
+
+        for (int key = 0; key < threads * perThread; key++) {
+            if ((key / threads) % 2 == 0) {
+                assertNull("deleted key " + key, tree.search(key));
+            } else {
+                assertEquals(Integer.valueOf(key), tree.search(key));
+            }
+        }
+        assertEquals(threads * perThread / 2, drain(tree.scan()).size());
+    }
+
+    @Test
+    public void testAdaptiveRadixTreeScanResumesUnderConcurrentInserts() throws Exception {
+        AdaptiveRadixTree<Integer, Integer> tree = new AdaptiveRadixTree<>(new IntegerSerializer());
+        for (int key = 0; key < 40000; key += 2) {
+            tree.insert(key, key);
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        runConcurrently(2, thread -> {
+            if (thread == 0) {
+                // Odd keys land in the nodes the scans read, forcing them to restart
+                for (int key = 1; !done.get(); key = (key + 2) % 40000) {
+                    tree.insert(key, key);
+                }
+                return;
+            }
+            try {
+                for (int round = 0; round < 20; round++) {
+                    int expectedEven = 1000;
+                    int previous = Integer.MIN_VALUE;
+                    for (Map.Entry<Integer, Integer> entry : drain(tree.scan(1000, 30000))) {
+                        int key = entry.getKey();
+                        assertTrue("out of order: " + key + " after " + previous, key > previous);
+                        if (key % 2 == 0) {
+                            assertEquals("missed even key", expectedEven, key);
+                            expectedEven += 2;
+                        }
+                        previous = key;
+                    }
+                    assertEquals(30002, expectedEven);
+                }
+            } finally {
+                done.set(true);
+            }
+        });
+    }
+}
@@ -1,12 +1,19 @@
 package com.minidb;
 
 import com.minidb.index.BPlusTree;
+import com.minidb.index.LearnedIndex;
 import com.minidb.index.Serializer;
+import com.minidb.log.RecoveryManager;
 import com.minidb.log.WALManager;
+import com.minidb.lsm.LsmStorage;
+import com.minidb.lsm.LsmTree;
 import com.minidb.serializers.IntegerSerializer;
 import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.serializers.RowSerializer;
 import com.minidb.sql.executor.Executor;
+import com.minidb.sql.executor.Pair;
 import com.minidb.sql.executor.Result;
+import com.minidb.sql.parser.ParseException;
 import com.minidb.sql.parser.Parser;
 import com.minidb.sql.parser.Token;
 import com.minidb.sql.parser.Tokenizer;
@@ -20,7 +27,11 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.*;
 
@@ -30,24 +41,44 @@ public class SqlTests {
     private File dbDir = new File("minidb_test_data");
     private BufferPool bufferPool;
 
+    private PageManager pageManager;
+    private WALManager walManager;
+
     @Before
     public void setup() throws IOException {
         deleteDirectory(dbDir);
         dbDir.mkdir();
-        PageManager pageManager = new PageManager(new File(dbDir, "minidb.db").getPath(), 4096);
+        pageManager = new PageManager(new File(dbDir, "minidb.db").getPath(), 4096);
         bufferPool = new BufferPool(pageManager, 10);
-        WALManager walManager = new WALManager(dbDir);
-        Serializer<Integer> keySerializer = new IntegerSerializer();
+        walManager = new WALManager(dbDir);
+        executor = newExecutor(KeyType.INT);
+    }
+
+    private <K extends Comparable<K>> Executor newExecutor(KeyType<K> keyType, String... secondaryIndexes) throws IOException {
+        Serializer<K> keySerializer = keyType.getSerializer();
         Serializer<RecordId> valueSerializer = new RecordIdSerializer();
-        BPlusTree<Integer, RecordId> index = new BPlusTree<>(5, keySerializer, valueSerializer, pageManager, bufferPool);
+        BPlusTree<K, RecordId> index = new BPlusTree<>(5, keySerializer, valueSerializer, pageManager, bufferPool);
         LockManager lockManager = new LockManager();
         TxnManager txnManager = new TxnManager(lockManager, walManager);
-        RecordsSerializer recordsSerializer = new RecordsSerializer(new RecordsSerializer.Column[]{
-                new RecordsSerializer.Column("id", RecordsSerializer.ColumnType.INT),
+        RecordsSerializer recordsSerializer = kvSerializer(keyType);
+        RecordStorage<K> recordStorage = new RecordStorage<>(bufferPool, recordsSerializer, walManager, index, pageManager, keyType);
+        for (String column : secondaryIndexes) {
+            recordStorage.addSecondaryIndex(column, 5);
+        }
+        return new Executor(txnManager, walManager, lockManager, recordStorage);
+    }
+
+    private static RecordsSerializer kvSerializer(KeyType<?> keyType) {
+        return new RecordsSerializer(new RecordsSerializer.Column[]{
+                new RecordsSerializer.Column("id", keyType.getColumnType()),
                 new RecordsSerializer.Column("value", RecordsSerializer.ColumnType.STRING)
         });
-        RecordStorage recordStorage = new RecordStorage(bufferPool, recordsSerializer, walManager, index, pageManager);
-        executor = new Executor(txnManager, walManager, lockManager, recordStorage);
+    }
+
+    private <K extends Comparable<K>> ClusteredStorage<K> newClusteredStorage(KeyType<K> keyType, PageManager pageManager, BufferPool bufferPool) {
+        RecordsSerializer recordsSerializer = kvSerializer(keyType);
+        BPlusTree<K, RecordsSerializer.Row> tree = new BPlusTree<>(64, keyType.getSerializer(), new RowSerializer(recordsSerializer), pageManager, bufferPool);
+        return new ClusteredStorage<>(recordsSerializer, walManager, tree, keyType, pageManager, bufferPool);
     }
 
     @After
@@ -90,15 +121,300 @@ public class SqlTests {
         assertTrue(result.rows.isEmpty());
     }
 
-    // @Test
-    // public void testBetween() throws Exception {
-    //     executeSql("INSERT INTO kv (id, value) VALUES (1, '1')");
-    //     executeSql("INSERT INTO kv (id, value) VALUES (2, '2')");
-    //     executeSql("INSERT INTO kv (id, value) VALUES (3, '3')");
-    //     Result result = executeSql("SELECT * FROM kv WHERE id BETWEEN 1 AND 2");
-    //     assertTrue(result.ok);
-    //     assertEquals(2, result.rows.size());
-    // }
+    @Test
+    public void testStringKeys() throws Exception {
+        executor = newExecutor(KeyType.STRING);
+        // Long keys sharing most of their prefix, so leaves split many times with short separators
+        for (int i = 0; i < 200; i++) {
+            executeSql(String.format("INSERT INTO kv (id, value) VALUES ('https://example.com/catalog/items/%05d', 'v%d')", i, i));
+        }
+        executeSql("INSERT INTO kv (id, value) VALUES ('hello', 'world')");
+        executeSql("DELETE FROM kv WHERE id = 'https://example.com/catalog/items/00042'");
+
+        Result result = executeSql("SELECT * FROM kv WHERE id = 'hello'");
+        assertTrue(result.ok);
+        assertEquals("world", result.rows.get(0).value);
+        for (int i = 0; i < 200; i++) {
+            result = executeSql(String.format("SELECT * FROM kv WHERE id = 'https://example.com/catalog/items/%05d'", i));
+            assertEquals(i == 42 ? 0 : 1, result.rows.size());
+        }
+    }
+
+    @Test
+    public void testCompositeKeys() throws Exception {
+        executor = newExecutor(KeyType.of("string,int"));
+        executeSql("INSERT INTO kv (id, value) VALUES ('eu-west:7', 'a')");
+        executeSql("INSERT INTO kv (id, value) VALUES ('eu-west:42', 'b')");
+        executeSql("INSERT INTO kv (id, value) VALUES ('us-east:7', 'c')");
+
+        Result result = executeSql("SELECT * FROM kv WHERE id = 'eu-west:42'");
+        assertTrue(result.ok);
+        assertEquals("eu-west:42", result.rows.get(0).key);
+        assertEquals("b", result.rows.get(0).value);
+        assertFalse(executeSql("INSERT INTO kv (id, value) VALUES ('eu-west', 'd')").ok);
+    }
+
+    @Test
+    public void testBetween() throws Exception {
+        executeSql("INSERT INTO kv (id, value) VALUES (1, '1')");
+        executeSql("INSERT INTO kv (id, value) VALUES (2, '2')");
+        executeSql("INSERT INTO kv (id, value) VALUES (3, '3')");
+        Result result = executeSql("SELECT * FROM kv WHERE id BETWEEN 1 AND 2");
+        assertTrue(result.ok);
+        assertEquals(2, result.rows.size());
+        assertEquals("1", result.rows.get(0).key);
+        assertEquals("2", result.rows.get(1).key);
+    }
+
+    @Test
+    public void testSelectBySecondaryIndex() throws Exception {
+        executor = newExecutor(KeyType.INT, "value");
+        executeSql("INSERT INTO kv (id, value) VALUES (1, 'red')");
+        executeSql("INSERT INTO kv (id, value) VALUES (2, 'blue')");
+        executeSql("INSERT INTO kv (id, value) VALUES (3, 'red')");
+
+        Result result = executeSql("SELECT * FROM kv WHERE value = 'red'");
+        assertTrue(result.ok);
+        assertEquals(2, result.rows.size());
+
+        executeSql("DELETE FROM kv WHERE id = 3");
+        result = executeSql("SELECT * FROM kv WHERE value = 'red'");
+        assertEquals(1, result.rows.size());
+        assertEquals("1", result.rows.get(0).key);
+    }
+
+    @Test
+    public void testClusteredTable() throws Exception {
+        LockManager lockManager = new LockManager();
+        executor = new Executor(new TxnManager(lockManager, walManager), walManager, lockManager, newClusteredStorage(KeyType.STRING, pageManager, bufferPool));
+        for (int i = 0; i < 300; i++) { // Rows fill leaves by bytes, so this splits them many times
+            executeSql(String.format("INSERT INTO kv (id, value) VALUES ('order-%03d', 'customer %d, %s')", i, i % 17, "x".repeat(i % 40)));
+        }
+        executeSql("INSERT INTO kv (id, value) VALUES ('order-007', 'rewritten')");
+        executeSql("DELETE FROM kv WHERE id = 'order-008'");
+
+        Result result = executeSql("SELECT * FROM kv WHERE id = 'order-007'");
+        assertEquals(1, result.rows.size());
+        assertEquals("rewritten", result.rows.get(0).value);
+        assertTrue(executeSql("SELECT * FROM kv WHERE id = 'order-008'").rows.isEmpty());
+
+        result = executeSql("SELECT * FROM kv WHERE id BETWEEN 'order-005' AND 'order-010'");
+        assertTrue(result.ok);
+        assertEquals(5, result.rows.size());
+        assertEquals("order-005", result.rows.get(0).key);
+        assertEquals("customer 10, xxxxxxxxxx", result.rows.get(4).value);
+        assertFalse(executeSql("SELECT * FROM kv WHERE value = 'rewritten'").ok);
+    }
+
+    @Test
+    public void testClusteredTableIsRedoneFromWal() throws Exception {
+        LockManager lockManager = new LockManager();
+        executor = new Executor(new TxnManager(lockManager, walManager), walManager, lockManager, newClusteredStorage(KeyType.INT, pageManager, bufferPool));
+        Map<Integer, String> expected = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            executeSql(String.format("INSERT INTO kv (id, value) VALUES (%d, 'v%d')", i, i));
+            expected.put(i, "v" + i);
+        }
+        // Overwrite and delete the same keys again and again, so only replaying in log order ends
+        // with each key's last write
+        for (int i = 200; i < 1400; i++) {
+            int key = i % 50;
+            if (i % 7 == 0) {
+                executeSql("DELETE FROM kv WHERE id = " + key);
+                expected.remove(key);
+            } else {
+                executeSql(String.format("INSERT INTO kv (id, value) VALUES (%d, 'v%d')", key, i));
+                expected.put(key, "v" + i);
+            }
+        }
+
+        // Replay the log into an empty database file, as recovery after losing every page would
+        PageManager replayPages = new PageManager(new File(dbDir, "replay.db").getPath(), 4096);
+        ClusteredStorage<Integer> replayed = newClusteredStorage(KeyType.INT, replayPages, new BufferPool(replayPages, 10));
+        new RecoveryManager(walManager, replayed).recover();
+        for (int i = 0; i < 200; i++) {
+            assertEquals("key " + i, expected.get(i), value(replayed.fetchRecord(i)));
+        }
+        replayPages.close();
+    }
+
+    @Test
+    public void testLearnedPrimaryIndex() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            executeSql(String.format("INSERT INTO kv (id, value) VALUES (%d, 'v%d')", 2 * i, i));
+        }
+        // Seal the primary tree loaded so far, as minidb.primaryIndex=learned does
+        BPlusTree<Integer, RecordId> sealed = new BPlusTree<>(5, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+        BPlusTree<Integer, RecordId> delta = new BPlusTree<>(5, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool, pageManager.allocatePage());
+        LearnedIndex index = new LearnedIndex(sealed, delta, 2);
+        LockManager lockManager = new LockManager();
+        RecordStorage<Integer> storage = new RecordStorage<>(bufferPool, kvSerializer(KeyType.INT), walManager, index, pageManager, KeyType.INT);
+        executor = new Executor(new TxnManager(lockManager, walManager), walManager, lockManager, storage);
+
+        executeSql("INSERT INTO kv (id, value) VALUES (51, 'new')");
+        executeSql("INSERT INTO kv (id, value) VALUES (44, 'rewritten')");
+        executeSql("DELETE FROM kv WHERE id = 40");
+        assertEquals("v19", executeSql("SELECT * FROM kv WHERE id = 38").rows.get(0).value);
+        assertEquals("new", executeSql("SELECT * FROM kv WHERE id = 51").rows.get(0).value);
+        assertTrue(executeSql("SELECT * FROM kv WHERE id = 40").rows.isEmpty());
+
+        Result result = executeSql("SELECT * FROM kv WHERE id BETWEEN 36 AND 52");
+        assertTrue(result.ok);
+        StringBuilder keys = new StringBuilder();
+        for (int i = 0; i < result.rows.size(); i++) {
+            keys.append(result.rows.get(i).key).append(' ');
+        }
+        assertEquals("36 38 42 44 46 48 50 51 52 ", keys.toString());
+        assertEquals("rewritten", result.rows.get(3).value);
+    }
+
+    @Test
+    public void testPartitionedBetweenScans() throws Exception {
+        LockManager lockManager = new LockManager();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        RecordStorage<Integer> heap = new RecordStorage<>(bufferPool, kvSerializer(KeyType.INT), walManager,
+                new BPlusTree<>(5, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool), pageManager, KeyType.INT);
+        heap.setScanPartitions(4, pool);
+        ClusteredStorage<Integer> clustered = new ClusteredStorage<>(kvSerializer(KeyType.INT), walManager,
+                new BPlusTree<>(5, KeyType.INT.getSerializer(), new RowSerializer(kvSerializer(KeyType.INT)), pageManager, bufferPool, pageManager.allocatePage()),
+                KeyType.INT, pageManager, bufferPool);
+        clustered.setScanPartitions(4, pool);
+        for (TableStorage<Integer> storage : List.of(heap, clustered)) {
+            executor = new Executor(new TxnManager(lockManager, walManager), walManager, lockManager, storage);
+            for (int i = 0; i < 200; i++) {
+                executeSql(String.format("INSERT INTO kv (id, value) VALUES (%d, 'v%d')", 3 * i, i));
+            }
+            Result result = executeSql("SELECT * FROM kv WHERE id BETWEEN 31 AND 500");
+            assertTrue(result.ok);
+            assertEquals(156, result.rows.size()); // 33, 36, ..., 498
+            for (int i = 0; i < result.rows.size(); i++) {
+                assertEquals(Integer.toString(33 + 3 * i), result.rows.get(i).key);
+                assertEquals("v" + (11 + i), result.rows.get(i).value);
+            }
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testLsmTable() throws Exception {
+        LockManager lockManager = new LockManager();
+        LsmStorage<String> storage = new LsmStorage<>(kvSerializer(KeyType.STRING), walManager, new LsmTree(new File(dbDir, "lsm"), 4096), KeyType.STRING);
+        executor = new Executor(new TxnManager(lockManager, walManager), walManager, lockManager, storage);
+        for (int i = 0; i < 300; i++) { // Enough rows to flush several memtables
+            executeSql(String.format("INSERT INTO kv (id, value) VALUES ('order-%03d', 'customer %d')", i, i % 17));
+        }
+        executeSql("INSERT INTO kv (id, value) VALUES ('order-007', 'rewritten')");
+        executeSql("DELETE FROM kv WHERE id = 'order-008'");
+        assertTrue(storage.getTree().getFileCounts()[0] > 0 || storage.getTree().getFileCounts()[1] > 0);
+
+        assertEquals("rewritten", executeSql("SELECT * FROM kv WHERE id = 'order-007'").rows.get(0).value);
+        assertTrue(executeSql("SELECT * FROM kv WHERE id = 'order-008'").rows.isEmpty());
+        Result result = executeSql("SELECT * FROM kv WHERE id BETWEEN 'order-005' AND 'order-010'");
+        assertTrue(result.ok);
+        assertEquals(5, result.rows.size());
+        assertEquals("order-005", result.rows.get(0).key);
+        assertEquals("customer 10", result.rows.get(4).value);
+        assertFalse(executeSql("SELECT * FROM kv WHERE value = 'rewritten'").ok);
+
+        // Redo the WAL into an empty tree, as recovery after losing the LSM directory would
+        LsmStorage<String> replayed = new LsmStorage<>(kvSerializer(KeyType.STRING), walManager, new LsmTree(new File(dbDir, "lsm-replay"), 4096), KeyType.STRING);
+        new RecoveryManager(walManager, replayed).recover();
+        assertEquals("rewritten", replayed.fetchRecord("order-007").values[1]);
+        assertNull(replayed.fetchRecord("order-008"));
+        assertEquals("customer 10", replayed.fetchRecord("order-299").values[1]);
+        replayed.close();
+        storage.close();
+    }
+
+    @Test
+    public void testLsmTableIsRedoneInLogOrder() throws Exception {
+        LockManager lockManager = new LockManager();
+        File dir = new File(dbDir, "lsm");
+        LsmStorage<Integer> storage = new LsmStorage<>(kvSerializer(KeyType.INT), walManager, new LsmTree(dir, 4096), KeyType.INT);
+        executor = new Executor(new TxnManager(lockManager, walManager), walManager, lockManager, storage);
+        for (int i = 0; i < 1500; i++) { // Overwrites the same 10 keys
+            executeSql("INSERT INTO kv (id, value) VALUES (" + i % 10 + ", 'v" + i + "')");
+        }
+        // Copy the tree as a crash would leave it: every write so far flushed, later ones in the WAL only
+        storage.getTree().flush();
+        long flushedLsn = storage.getDurableLsn();
+        assertTrue(flushedLsn > 0);
+        File crashed = new File(dbDir, "lsm-crashed");
+        assertTrue(crashed.mkdir());
+        for (File file : dir.listFiles()) {
+            Files.copy(file.toPath(), new File(crashed, file.getName()).toPath());
+        }
+        for (int i = 1500; i < 3000; i++) {
+            executeSql("INSERT INTO kv (id, value) VALUES (" + i % 10 + ", 'v" + i + "')");
+        }
+        executeSql("DELETE FROM kv WHERE id = 3");
+
+        // Redo the whole WAL into an empty tree
+        LsmStorage<Integer> replayed = new LsmStorage<>(kvSerializer(KeyType.INT), walManager, new LsmTree(new File(dbDir, "lsm-replay"), 4096), KeyType.INT);
+        assertEquals(-1, replayed.getDurableLsn());
+        new RecoveryManager(walManager, replayed).recover();
+        for (int key = 0; key < 10; key++) {
+            assertEquals(key == 3 ? null : "v" + (2990 + key), value(replayed.fetchRecord(key)));
+        }
+        replayed.close();
+
+        // Redo into the crashed copy, which only needs the writes after its flushed LSN
+        int[] redone = {0};
+        LsmStorage<Integer> reopened = new LsmStorage<Integer>(kvSerializer(KeyType.INT), walManager, new LsmTree(crashed, 4096), KeyType.INT) {
+            @Override
+            public void insertRecordForRecovery(long lsn, byte[] recordBytes) throws IOException {
+                assertTrue(lsn > flushedLsn);
+                redone[0]++;
+                super.insertRecordForRecovery(lsn, recordBytes);
+            }
+        };
+        assertEquals(flushedLsn, reopened.getDurableLsn());
+        new RecoveryManager(walManager, reopened).recover();
+        assertEquals(1500, redone[0]);
+        for (int key = 0; key < 10; key++) {
+            assertEquals(key == 3 ? null : "v" + (2990 + key), value(reopened.fetchRecord(key)));
+        }
+        reopened.close();
+        storage.close();
+
+        // Closing flushed everything, so reopening has nothing to redo
+        LsmStorage<Integer> closed = new LsmStorage<>(kvSerializer(KeyType.INT), walManager, new LsmTree(crashed, 4096), KeyType.INT);
+        assertEquals(storage.getDurableLsn(), closed.getDurableLsn());
+        closed.close();
+    }
+
+    private static Object value(RecordsSerializer.Row row) {
+        return row == null ? null : row.values[1];
+    }
+
+    @Test
+    public void testAnalyzeReportsStatistics() throws Exception {
+        executor = newExecutor(KeyType.INT, "value");
+        for (int key = 1; key <= 40; key++) {
+            executeSql("INSERT INTO kv (id, value) VALUES (" + key + ", '" + (key % 2 == 0 ? "even" : "odd") + "')");
+        }
+
+        Result result = executeSql("ANALYZE kv");
+        assertTrue(result.errorMessage, result.ok);
+        Map<String, String> stats = new HashMap<>();
+        for (Pair<String, String> row : result.rows) {
+            stats.put(row.key, row.value);
+        }
+        assertEquals("40", stats.get("rows"));
+        assertEquals("40", stats.get("sampled.rows"));
+        assertNotNull(stats.get("index.height"));
+        assertNotNull(stats.get("distinct.value"));
+        assertTrue(stats.get("histogram.0").startsWith("1 .. "));
+        assertTrue(stats.get("histogram.31").endsWith(" .. 40: 1") || stats.get("histogram.31").endsWith(" .. 40: 2"));
+
+        assertTrue(executeSql("ANALYZE kv SAMPLE 50").ok);
+        assertFalse(executeSql("ANALYZE orders").ok);
+        try {
+            executeSql("ANALYZE kv SAMPLE 0");
+            fail("A sample of 0 percent was accepted");
+        } catch (ParseException expected) {
+        }
+    }
 
     private Result executeSql(String sql) throws Exception {
         Tokenizer tokenizer = new Tokenizer(sql);
@@ -0,0 +1,604 @@
+package com.minidb;
+
+import com.minidb.index.AdaptiveRadixTree;
+import com.minidb.index.BPlusTree;
+import com.minidb.index.Index;
+import com.minidb.log.WALManager;
+import com.minidb.lsm.LsmTree;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.storage.BloomFilter;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.KeyType;
+import com.minidb.storage.Page;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+import com.minidb.storage.RecordStorage;
+import com.minidb.storage.RecordsSerializer;
+import com.minidb.storage.RecordsSerializer.Row;
+import com.minidb.storage.TableStatistics;
+import com.minidb.txn.LockManager;
+import com.minidb.txn.Transaction;
+import com.minidb.txn.TxnManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class StorageTests {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testSegmentedTablespaceGrowsAndReopens() throws Exception {
+        File dir = tempFolder.newFolder("segments");
+        File otherDir = tempFolder.newFolder("segments_other");
+        String dbPath = new File(dir, "minidb.db").getPath();
+
+        PageManager pageManager = new PageManager(dbPath, 4096, 4, Arrays.asList(dir, otherDir));
+        Map<Integer, byte[]> batch = new HashMap<>();
+        for (int i = 0; i < 9; i++) {
+            int pageId = pageManager.allocatePage();
+            byte[] data = new byte[4096];
+            Arrays.fill(data, (byte) pageId);
+            batch.put(pageId, data);
+        }
+        pageManager.writePages(batch);
+        assertEquals(3, pageManager.getSegmentCount());
+        pageManager.close();
+
+        // Segments are placed round-robin over the configured directories
+        assertTrue(new File(otherDir, "minidb.db.1").exists());
+        assertTrue(new File(dir, "minidb.db.2").exists());
+
+        // The layout is fixed in the metadata page, so reopening without segment options still works
+        PageManager reopened = new PageManager(dbPath, 4096, 0, Arrays.asList(dir, otherDir));
+        assertEquals(4, reopened.getPagesPerSegment());
+        assertEquals(3, reopened.getSegmentCount());
+        byte[] page = new byte[4096];
+        reopened.readPage(7, page);
+        assertEquals(7, page[0]);
+        assertEquals(7, page[4095]);
+        assertEquals(10, reopened.allocatePage());
+        reopened.close();
+    }
+
+    @Test
+    public void testSegmentLocationsAreRecordedInMetadata() throws Exception {
+        File dirA = tempFolder.newFolder("segments_a");
+        File dirB = tempFolder.newFolder("segments_b");
+        String dbPath = new File(dirA, "minidb.db").getPath();
+
+        PageManager pageManager = new PageManager(dbPath, 4096, 4, Arrays.asList(dirA, dirB));
+        Map<Integer, byte[]> batch = new HashMap<>();
+        for (int i = 0; i < 19; i++) {
+            int pageId = pageManager.allocatePage();
+            byte[] data = new byte[4096];
+            Arrays.fill(data, (byte) pageId);
+            batch.put(pageId, data);
+        }
+        pageManager.writePages(batch);
+        pageManager.close();
+        assertTrue(new File(dirB, "minidb.db.1").exists());
+
+        // Reopening with the default directories still finds the segments that went to dirB
+        PageManager reopened = new PageManager(dbPath, 4096);
+        assertEquals(5, reopened.getSegmentCount());
+        byte[] page = new byte[4096];
+        reopened.readPage(10, page);
+        assertEquals(10, page[0]);
+        assertEquals(10, page[4095]);
+        reopened.close();
+
+        // A segment that is gone fails the open instead of reading as zeros
+        assertTrue(new File(dirA, "minidb.db.2").delete());
+        try {
+            new PageManager(dbPath, 4096, 0, Arrays.asList(dirA, dirB));
+            fail("Expected the missing segment to be reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("minidb.db.2"));
+        }
+    }
+
+    @Test
+    public void testSegmentsAreCreatedWhenPagesAreAllocated() throws Exception {
+        File dir = tempFolder.newFolder("segments_eager");
+        String dbPath = new File(dir, "minidb.db").getPath();
+
+        PageManager pageManager = new PageManager(dbPath, 4096, 4, Arrays.asList(dir));
+        for (int i = 0; i < 9; i++) {
+            pageManager.allocatePage();
+        }
+        assertEquals(3, pageManager.getSegmentCount());
+        assertTrue(new File(dir, "minidb.db.2").exists());
+        // Allocated but never written pages read as zeros; pages past the end have no segment yet
+        byte[] page = new byte[4096];
+        pageManager.readPage(9, page);
+        assertEquals(0, page[0]);
+        pageManager.readPage(40, page);
+        pageManager.close();
+    }
+
+    @Test
+    public void testFullHeapPageSurvivesEviction() throws Exception {
+        String dbPath = new File(tempFolder.newFolder("heap"), "minidb.db").getPath();
+        PageManager pageManager = new PageManager(dbPath, 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, 2);
+
+        int pageId = pageManager.allocatePage();
+        Page page = bufferPool.getPage(pageId);
+        int records = 0;
+        byte[] record = new byte[50];
+        while (true) {
+            Arrays.fill(record, (byte) records);
+            int slotId = page.insertRecord(record);
+            if (slotId == -1) {
+                break;
+            }
+            assertEquals(records++, slotId);
+        }
+        assertTrue(page.deleteRecord(3));
+        Arrays.fill(record, (byte) 99);
+        assertEquals(3, page.insertRecord(record));
+        bufferPool.unpinPage(pageId, true);
+
+        // Push the page out of the pool and read it back from disk
+        for (int i = 0; i < 3; i++) {
+            int other = pageManager.allocatePage();
+            bufferPool.getPage(other);
+            bufferPool.unpinPage(other, true);
+        }
+        bufferPool.flushAllPages();
+        page = bufferPool.getPage(pageId);
+        for (int slotId = 0; slotId < records; slotId++) {
+            byte expected = (byte) (slotId == 3 ? 99 : slotId);
+            assertEquals("slot " + slotId, expected, page.getRecord(slotId)[49]);
+        }
+        bufferPool.unpinPage(pageId, false);
+        pageManager.close();
+    }
+
+    @Test
+    public void testSecondaryIndexBackfillsAndFollowsWrites() throws Exception {
+        File dir = tempFolder.newFolder("secondary");
+        String dbPath = new File(dir, "minidb.db").getPath();
+        PageManager pageManager = new PageManager(dbPath, 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, 10);
+        WALManager walManager = new WALManager(dir);
+        TxnManager txnManager = new TxnManager(new LockManager(), walManager);
+        RecordStorage<Integer> storage = newKvStorage(pageManager, bufferPool, walManager);
+
+        Transaction txn = txnManager.begin();
+        for (int key = 0; key < 300; key++) {
+            storage.insertRecord(kvRow(key, "color-" + key % 3), txn);
+        }
+        storage.addSecondaryIndex("value", 5); // Built from the rows already there
+        assertEquals(100, storage.fetchByColumn("value", "color-1").size());
+
+        storage.insertRecord(kvRow(1, "color-0"), txn); // Overwrites key 1, moving it to another value
+        storage.deleteRecord(4, txn);
+        storage.insertRecord(kvRow(300, "color-1"), txn);
+        List<Row> rows = storage.fetchByColumn("value", "color-1");
+        assertEquals(99, rows.size());
+        for (Row row : rows) {
+            assertEquals("color-1", row.values[1]);
+            assertTrue((int) row.values[0] != 1 && (int) row.values[0] != 4);
+        }
+        assertEquals(101, storage.fetchByColumn("value", "color-0").size());
+        assertTrue(storage.fetchByColumn("value", "color-9").isEmpty());
+
+        bufferPool.flushAllPages();
+        walManager.close();
+        pageManager.close();
+
+        // The index is found again through its named root instead of being rebuilt
+        pageManager = new PageManager(dbPath, 4096);
+        bufferPool = new BufferPool(pageManager, 10);
+        walManager = new WALManager(dir);
+        storage = newKvStorage(pageManager, bufferPool, walManager);
+        int root = pageManager.getNamedRoot("kv.index.value");
+        assertTrue(root > 0);
+        storage.addSecondaryIndex("value", 5);
+        assertEquals(root, pageManager.getNamedRoot("kv.index.value"));
+        assertEquals(99, storage.fetchByColumn("value", "color-1").size());
+        walManager.close();
+        pageManager.close();
+    }
+
+    @Test
+    public void testTableStatisticsFollowWritesAndPersist() throws Exception {
+        File dir = tempFolder.newFolder("statistics");
+        String dbPath = new File(dir, "minidb.db").getPath();
+        PageManager pageManager = new PageManager(dbPath, 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, 100);
+        WALManager walManager = new WALManager(dir);
+        TxnManager txnManager = new TxnManager(new LockManager(), walManager);
+        RecordStorage<Integer> storage = newKvStorage(pageManager, bufferPool, walManager);
+
+        Transaction txn = txnManager.begin();
+        for (int key = 0; key < 1000; key++) {
+            storage.insertRecord(kvRow(key, "color-" + key % 10), txn);
+        }
+        storage.addSecondaryIndex("value", 5);
+        assertNull(storage.getStatistics());
+        storage.openStatistics(1.0); // Nothing saved yet, so a full ANALYZE
+        TableStatistics stats = storage.getStatistics();
+        assertEquals(1000, stats.getRows());
+        assertEquals(1000, stats.getSampledRows());
+        assertTrue(stats.getIndexHeight() > 1);
+        assertTrue(stats.getIndexLeafPages() > 100);
+        long distinct = stats.getDistinctValues().get("value");
+        assertTrue("distinct " + distinct, distinct >= 8 && distinct <= 20);
+        assertEquals(33, stats.getHistogramBounds().size());
+        long estimate = stats.estimateRows(KeyType.INT.getSerializer().serialize(0), KeyType.INT.getSerializer().serialize(99));
+        assertTrue("estimate " + estimate, estimate >= 60 && estimate <= 140);
+
+        for (int key = 1000; key < 1200; key++) {
+            storage.insertRecord(kvRow(key, "color-" + key % 10), txn);
+        }
+        for (int key = 0; key < 10; key++) {
+            storage.deleteRecord(key, txn);
+        }
+        storage.deleteRecord(5000, txn); // Not there: no change
+        assertEquals(1190, stats.getRows());
+        assertEquals(210, stats.getModifications());
+        assertEquals(1190, Arrays.stream(stats.getBucketRows()).sum());
+
+        stats = storage.analyze(0.2);
+        assertEquals(0, stats.getModifications());
+        assertTrue(stats.getSampledRows() < 1190);
+        assertTrue("rows " + stats.getRows(), stats.getRows() > 800 && stats.getRows() < 1600);
+        storage.insertRecord(kvRow(2000, "color-0"), txn);
+        storage.saveStatistics();
+        bufferPool.flushAllPages();
+        walManager.close();
+        pageManager.close();
+
+        // The saved statistics are loaded instead of recomputed
+        pageManager = new PageManager(dbPath, 4096);
+        bufferPool = new BufferPool(pageManager, 100);
+        walManager = new WALManager(dir);
+        storage = newKvStorage(pageManager, bufferPool, walManager);
+        storage.openStatistics(1.0);
+        TableStatistics loaded = storage.getStatistics();
+        assertEquals(stats.getRows(), loaded.getRows());
+        assertEquals(1, loaded.getModifications());
+        assertEquals(stats.getDistinctValues(), loaded.getDistinctValues());
+        assertArrayEquals(stats.getBucketRows(), loaded.getBucketRows());
+        walManager.close();
+        pageManager.close();
+    }
+
+    @Test
+    public void testRadixTreeIndexIsRebuiltFromHeap() throws Exception {
+        File dir = tempFolder.newFolder("art");
+        String dbPath = new File(dir, "minidb.db").getPath();
+        PageManager pageManager = new PageManager(dbPath, 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, 10);
+        WALManager walManager = new WALManager(dir);
+        TxnManager txnManager = new TxnManager(new LockManager(), walManager);
+        RecordStorage<Integer> storage = newKvStorage(pageManager, bufferPool, walManager, new AdaptiveRadixTree<>(new IntegerSerializer()));
+
+        Transaction txn = txnManager.begin();
+        for (int key = 0; key < 1000; key++) {
+            storage.insertRecord(kvRow(key, "v" + key), txn);
+        }
+        for (int key = 0; key < 1000; key += 10) {
+            storage.insertRecord(kvRow(key, "new" + key), txn); // The old record leaves the heap
+        }
+        for (int key = 5; key < 1000; key += 10) {
+            storage.deleteRecord(key, txn);
+        }
+        List<Row> range = new ArrayList<>();
+        storage.scanRecords(95, 110, Long.MAX_VALUE, range::add);
+        assertEquals(14, range.size());
+        assertEquals("new100", range.get(4).values[1]);
+
+        bufferPool.flushAllPages();
+        walManager.close();
+        pageManager.close();
+
+        CountingPageManager countingPageManager = new CountingPageManager(dbPath);
+        pageManager = countingPageManager;
+        bufferPool = new BufferPool(pageManager, 10);
+        walManager = new WALManager(dir);
+        storage = newKvStorage(pageManager, bufferPool, walManager, new AdaptiveRadixTree<>(new IntegerSerializer()));
+        countingPageManager.reset();
+        assertEquals(900, storage.loadIndexFromHeap());
+        // The rebuild prefetches the heap in batches instead of reading it a page at a time
+        assertEquals(0, countingPageManager.directReads);
+        assertEquals((pageManager.getNumPages() - 1 + 4) / 5, countingPageManager.batchReads);
+        for (int key = 0; key < 1000; key++) {
+            Row row = storage.fetchRecord(key);
+            if (key % 10 == 5) {
+                assertNull(row);
+            } else {
+                assertEquals(key % 10 == 0 ? "new" + key : "v" + key, row.values[1]);
+            }
+        }
+        walManager.close();
+        pageManager.close();
+    }
+
+    @Test
+    public void testBloomFilterSkipsMissingKeysAndRebuildsAfterDeletes() throws Exception {
+        File dir = tempFolder.newFolder("bloom");
+        String dbPath = new File(dir, "minidb.db").getPath();
+        PageManager pageManager = new PageManager(dbPath, 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, 50);
+        WALManager walManager = new WALManager(dir);
+        TxnManager txnManager = new TxnManager(new LockManager(), walManager);
+        RecordStorage<Integer> storage = newKvStorage(pageManager, bufferPool, walManager);
+        IntegerSerializer keys = new IntegerSerializer();
+
+        // Even keys only; half are there before the filter is built from the index, half are added to it
+        Transaction txn = txnManager.begin();
+        for (int key = 0; key < 4000; key += 2) {
+            storage.insertRecord(kvRow(key, "v" + key), txn);
+        }
+        BloomFilter filter = storage.enableBloomFilter(10);
+        for (int key = 4000; key < 8000; key += 2) {
+            storage.insertRecord(kvRow(key, "v" + key), txn);
+        }
+        for (int key = 0; key < 8000; key += 2) {
+            assertEquals("v" + key, storage.fetchRecord(key).values[1]);
+        }
+        assertTrue(filter.needsRebuild()); // Sized for the first 2000 keys, so maintenance grows it
+        assertTrue(storage.maintainBloomFilter());
+        assertFalse(storage.maintainBloomFilter());
+        int falsePositives = 0;
+        for (int key = 1; key < 8000; key += 2) {
+            assertNull(storage.fetchRecord(key));
+            if (filter.mightContain(keys.serialize(key))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positives: " + falsePositives, falsePositives < 4000 * 0.02);
+
+        // Deleted keys keep their bits until enough deletes make maintenance rebuild the filter
+        for (int key = 0; key < 4000; key += 2) {
+            storage.deleteRecord(key, txn);
+        }
+        assertTrue(filter.mightContain(keys.serialize(0)));
+        assertTrue(filter.needsRebuild());
+        int oldRoot = pageManager.getNamedRoot("kv.bloom");
+        assertTrue(storage.maintainBloomFilter());
+        assertNotEquals(oldRoot, pageManager.getNamedRoot("kv.bloom"));
+        assertEquals(2000, filter.getAdds());
+        assertEquals(0, filter.getDeletes());
+        int staleHits = 0;
+        for (int key = 0; key < 4000; key += 2) {
+            assertNull(storage.fetchRecord(key));
+            if (filter.mightContain(keys.serialize(key))) {
+                staleHits++;
+            }
+        }
+        assertTrue("Deleted keys still in the filter: " + staleHits, staleHits < 2000 * 0.02);
+        for (int key = 4000; key < 8000; key += 2) {
+            assertEquals("v" + key, storage.fetchRecord(key).values[1]);
+        }
+
+        // A key added while a rebuild scans the index is not lost
+        filter.rebuild(new Iterator<byte[]>() {
+            private int key = 4000;
+
+            @Override
+            public boolean hasNext() {
+                return key < 8000;
+            }
+
+            @Override
+            public byte[] next() {
+                if (key == 4000) {
+                    try {
+                        filter.add(keys.serialize(9001));
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                byte[] next = keys.serialize(key);
+                key += 2;
+                return next;
+            }
+        });
+        assertTrue(filter.mightContain(keys.serialize(9001)));
+
+        bufferPool.flushAllPages();
+        walManager.close();
+        pageManager.close();
+
+        // The filter is read back from its named root instead of being rebuilt
+        pageManager = new PageManager(dbPath, 4096);
+        bufferPool = new BufferPool(pageManager, 50);
+        walManager = new WALManager(dir);
+        storage = newKvStorage(pageManager, bufferPool, walManager);
+        int root = pageManager.getNamedRoot("kv.bloom");
+        BloomFilter reopened = storage.enableBloomFilter(10);
+        assertEquals(root, pageManager.getNamedRoot("kv.bloom"));
+        assertEquals(2001, reopened.getAdds());
+        for (int key = 4000; key < 8000; key += 2) {
+            assertTrue(reopened.mightContain(keys.serialize(key)));
+        }
+        assertTrue(reopened.mightContain(keys.serialize(9001)));
+        walManager.close();
+        pageManager.close();
+    }
+
+    @Test
+    public void testBloomFilterAddsRunWhileARebuildWritesItsPages() throws Exception {
+        File dir = tempFolder.newFolder("bloom-rebuild");
+        PageManager pageManager = new PageManager(new File(dir, "minidb.db").getPath(), 4096);
+        IntegerSerializer keys = new IntegerSerializer();
+        BloomFilter[] filter = new BloomFilter[1];
+        boolean[] addedDuringFlush = {false};
+        BufferPool bufferPool = new BufferPool(pageManager, 50) {
+            @Override
+            public void flushAllPages() {
+                if (filter[0] != null && !addedDuringFlush[0]) {
+                    // An add from another thread must not wait for the rebuild to finish writing
+                    Thread adder = new Thread(() -> {
+                        try {
+                            filter[0].add(keys.serialize(9001));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    });
+                    adder.start();
+                    try {
+                        adder.join(10000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    addedDuringFlush[0] = !adder.isAlive();
+                }
+                super.flushAllPages();
+            }
+        };
+        filter[0] = new BloomFilter("kv.bloom", 10, pageManager, bufferPool);
+        List<byte[]> live = new ArrayList<>();
+        for (int key = 0; key < 2000; key += 2) {
+            live.add(keys.serialize(key));
+        }
+        filter[0].rebuild(live.iterator());
+
+        assertTrue("an add blocked behind the rebuild's flush", addedDuringFlush[0]);
+        // Added after the new filter was written, so it is folded in when the filter takes over
+        assertTrue(filter[0].mightContain(keys.serialize(9001)));
+        assertEquals(1001, filter[0].getAdds());
+        for (byte[] key : live) {
+            assertTrue(filter[0].mightContain(key));
+        }
+        bufferPool.flushAllPages();
+        BloomFilter reopened = new BloomFilter("kv.bloom", 10, pageManager, bufferPool);
+        assertTrue(reopened.mightContain(keys.serialize(9001)));
+        assertEquals(1001, reopened.getAdds());
+        pageManager.close();
+    }
+
+    @Test
+    public void testLsmTreeFlushesCompactsAndReopens() throws Exception {
+        File dir = tempFolder.newFolder("lsm");
+        IntegerSerializer keys = new IntegerSerializer();
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        LsmTree tree = new LsmTree(dir, 8 * 1024); // Small memtables, so 30k writes flush and compact often
+
+        Random random = new Random(42);
+        for (int i = 0; i < 30000; i++) {
+            int key = random.nextInt(5000) - 2500; // Negative keys check the sign-flipped encoding's order
+            if (random.nextInt(10) < 3) {
+                tree.delete(keys.serialize(key));
+                expected.remove(key);
+            } else {
+                String value = "value-" + key + "-" + i;
+                tree.put(keys.serialize(key), value.getBytes(StandardCharsets.UTF_8));
+                expected.put(key, value);
+            }
+        }
+        tree.flush();
+        int[] files = tree.getFileCounts();
+        assertTrue(files[0] < 4);
+        assertTrue(files[1] > 0 && files[2] > 0); // Level 1 outgrew its budget and spilled into level 2
+        assertLsmMatches(expected, tree, keys);
+
+        List<Integer> range = new ArrayList<>();
+        tree.scan(keys.serialize(-100), keys.serialize(100), (key, value) -> {
+            range.add(keys.deserialize(key));
+            return range.size() < 20;
+        });
+        assertEquals(new ArrayList<>(expected.subMap(-100, true, 100, true).keySet()).subList(0, 20), range);
+
+        // Reopening reads the manifest; close flushes the memtable into one more level 0 file
+        tree.put(keys.serialize(9999), "last".getBytes(StandardCharsets.UTF_8));
+        expected.put(9999, "last");
+        tree.close();
+        files[0]++;
+        tree = new LsmTree(dir, 8 * 1024);
+        assertArrayEquals(files, tree.getFileCounts());
+        assertLsmMatches(expected, tree, keys);
+        int live = 0;
+        for (int count : tree.getFileCounts()) {
+            live += count;
+        }
+        assertEquals(live, dir.listFiles((d, name) -> name.endsWith(".sst")).length);
+        tree.close();
+    }
+
+    private static void assertLsmMatches(TreeMap<Integer, String> expected, LsmTree tree, IntegerSerializer keys) throws Exception {
+        for (int key = -2500; key < 2500; key++) {
+            byte[] value = tree.get(keys.serialize(key));
+            assertEquals("key " + key, expected.get(key), value == null ? null : new String(value, StandardCharsets.UTF_8));
+        }
+        TreeMap<Integer, String> scanned = new TreeMap<>();
+        List<Integer> order = new ArrayList<>();
+        tree.scan(null, null, (key, value) -> {
+            order.add(keys.deserialize(key));
+            scanned.put(keys.deserialize(key), new String(value, StandardCharsets.UTF_8));
+            return true;
+        });
+        assertEquals(expected, scanned);
+        assertEquals(new ArrayList<>(expected.keySet()), order);
+    }
+
+    private static final class CountingPageManager extends PageManager {
+        Thread caller;
+        int directReads;
+        int batchReads;
+
+        CountingPageManager(String path) throws IOException {
+            super(path, 4096);
+        }
+
+        void reset() {
+            caller = Thread.currentThread();
+            directReads = 0;
+            batchReads = 0;
+        }
+
+        @Override
+        public void readPage(int pageId, byte[] buffer) throws IOException {
+            if (Thread.currentThread() == caller) {
+                directReads++; // Batches are read by readPage calls on the segment I/O queues
+            }
+            super.readPage(pageId, buffer);
+        }
+
+        @Override
+        public void readPages(Map<Integer, byte[]> pages) throws IOException {
+            batchReads++;
+            super.readPages(pages);
+        }
+    }
+
+    private static RecordStorage<Integer> newKvStorage(PageManager pageManager, BufferPool bufferPool, WALManager walManager) {
+        return newKvStorage(pageManager, bufferPool, walManager, new BPlusTree<>(5, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool));
+    }
+
+    private static RecordStorage<Integer> newKvStorage(PageManager pageManager, BufferPool bufferPool, WALManager walManager, Index<Integer, RecordId> index) {
+        RecordsSerializer recordsSerializer = new RecordsSerializer(new RecordsSerializer.Column[]{
+                new RecordsSerializer.Column("id", RecordsSerializer.ColumnType.INT),
+                new RecordsSerializer.Column("value", RecordsSerializer.ColumnType.STRING)
+        });
+        return new RecordStorage<>(bufferPool, recordsSerializer, walManager, index, pageManager, KeyType.INT);
+    }
+
+    private static Row kvRow(int key, String value) {
+        Row row = new Row(2);
+        row.values[0] = key;
+        row.values[1] = value;
+        return row;
+    }
+}
@@ -0,0 +1,83 @@
+package com.minidb.bench;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.log.WALManager;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.KeyType;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+import com.minidb.storage.RecordStorage;
+import com.minidb.storage.RecordsSerializer;
+import com.minidb.storage.RecordsSerializer.Row;
+import com.minidb.storage.TableStatistics;
+import com.minidb.txn.LockManager;
+import com.minidb.txn.Transaction;
+import com.minidb.txn.TxnManager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * ANALYZE of a heap table with random int keys and a secondary index on a column with a known
+ * number of distinct values, reading 1, 10 and 100 percent of the index leaves. Reports the time
+ * taken and how far the row count, distinct values and a range estimate are from the truth.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.AnalyzeBenchmark [-Dexec.args="rows distinctValues"]
+ */
+public class AnalyzeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int distinctValues = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        File dir = Files.createTempDirectory("analyze-bench").toFile();
+        PageManager pageManager = new PageManager(new File(dir, "bench.db").getPath(), 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, 100_000);
+        WALManager walManager = new WALManager(dir);
+        RecordsSerializer recordsSerializer = new RecordsSerializer(new RecordsSerializer.Column[]{
+                new RecordsSerializer.Column("id", RecordsSerializer.ColumnType.INT),
+                new RecordsSerializer.Column("value", RecordsSerializer.ColumnType.STRING)
+        });
+        BPlusTree<Integer, RecordId> index = new BPlusTree<>(128, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+        RecordStorage<Integer> storage = new RecordStorage<>(bufferPool, recordsSerializer, walManager, index, pageManager, KeyType.INT);
+        storage.addSecondaryIndex("value", 128);
+
+        Transaction txn = new TxnManager(new LockManager(), walManager).begin();
+        Random random = new Random(42);
+        int inRange = 0; // Keys in [0, Integer.MAX_VALUE / 4]
+        for (int i = 0; i < rows; i++) {
+            Row row = new Row(2);
+            int key = random.nextInt(Integer.MAX_VALUE);
+            row.values[0] = key;
+            row.values[1] = "value-" + random.nextInt(distinctValues);
+            storage.insertRecord(row, txn);
+            if (key <= Integer.MAX_VALUE / 4) {
+                inRange++;
+            }
+        }
+        // Random keys can repeat; an overwrite does not add a row
+        long actualRows = index.stats().getEntries();
+        System.out.printf("%,d rows, %d distinct values, %,d keys in the first quarter%n", actualRows, distinctValues, inRange);
+
+        byte[] low = KeyType.INT.getSerializer().serialize(0);
+        byte[] high = KeyType.INT.getSerializer().serialize(Integer.MAX_VALUE / 4);
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            for (int percent : new int[]{1, 10, 100}) {
+                long start = System.nanoTime();
+                TableStatistics stats = storage.analyze(percent / 100.0);
+                double millis = (System.nanoTime() - start) / 1e6;
+                System.out.printf("sample %3d%%: %7.1f ms  rows %,9d  distinct %5d  first quarter %,8d  (%s)%n", percent, millis,
+                        stats.getRows(), stats.getDistinctValues().get("value"), stats.estimateRows(low, high), stats);
+            }
+        }
+        walManager.close();
+        pageManager.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,73 @@
+package com.minidb.bench;
+
+import com.minidb.index.AdaptiveRadixTree;
+import com.minidb.index.BPlusTree;
+import com.minidb.index.Index;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.serializers.StringSerializer;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Inserts of random keys and point lookups of present keys, in random order, in a B+ tree whose
+ * pages all fit in the buffer pool and in an AdaptiveRadixTree, for int keys and for string keys
+ * with a shared prefix.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.ArtBenchmark [-Dexec.args="keys lookups"]
+ */
+public class ArtBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        Random random = new Random(42);
+        Integer[] intKeys = new Integer[keys];
+        String[] stringKeys = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            intKeys[i] = random.nextInt();
+            stringKeys[i] = "customer-" + random.nextInt(10 * keys);
+        }
+
+        System.out.printf("%,d keys, %,d lookups%n", keys, lookups);
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            File dir = Files.createTempDirectory("art-bench").toFile();
+            PageManager pageManager = new PageManager(new File(dir, "bench.db").getPath(), 4096);
+            BufferPool bufferPool = new BufferPool(pageManager, 100_000);
+            run("btree int", new BPlusTree<>(256, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool), intKeys, lookups);
+            run("art int", new AdaptiveRadixTree<>(new IntegerSerializer()), intKeys, lookups);
+            run("btree string", new BPlusTree<>(128, new StringSerializer(), new RecordIdSerializer(), pageManager, bufferPool, pageManager.allocatePage()), stringKeys, lookups);
+            run("art string", new AdaptiveRadixTree<>(new StringSerializer()), stringKeys, lookups);
+            pageManager.close();
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static <K> void run(String name, Index<K, RecordId> index, K[] keys, int lookups) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < keys.length; i++) {
+            index.insert(keys[i], new RecordId(i, 0));
+        }
+        double insertNanos = (double) (System.nanoTime() - start) / keys.length;
+
+        Random random = new Random(7);
+        start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < lookups; i++) {
+            if (index.search(keys[random.nextInt(keys.length)]) != null) {
+                found++;
+            }
+        }
+        double lookupNanos = (double) (System.nanoTime() - start) / lookups;
+        System.out.printf("%-12s insert: %6.0f ns  lookup: %6.0f ns  (%,d found)%n", name, insertNanos, lookupNanos, found);
+    }
+}
@@ -0,0 +1,130 @@
+package com.minidb.bench;
+
+import com.minidb.index.BLinkTree;
+import com.minidb.index.BPlusTree;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Mixed insert/search throughput of the B+ tree for 1 to 32 threads.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.BPlusTreeConcurrencyBenchmark [-Dexec.args="coarse|blink"]
+ *
+ * With "coarse" every operation additionally takes one tree-wide read/write lock, which is how the
+ * tree was synchronized before latch crabbing, so the two runs show the scaling difference. With
+ * "blink" the same workload runs against the BLinkTree.
+ */
+public class BPlusTreeConcurrencyBenchmark {
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32};
+    private static final int PRELOAD_KEYS = 100_000;
+    private static final int KEY_SPACE = 1_000_000;
+    private static final long RUN_MILLIS = 3_000;
+    private static final int WRITE_PERCENT = 20;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "crabbing";
+        System.out.println("mode=" + mode + ", writes=" + WRITE_PERCENT + "%");
+        for (int threads : THREAD_COUNTS) {
+            double opsPerSec = run(threads, mode);
+            System.out.printf("threads=%2d  %,12.0f ops/s%n", threads, opsPerSec);
+        }
+    }
+
+    /**
+     * The operations the workload needs, so both tree implementations run the same loop.
+     */
+    private interface TreeOps {
+        void insert(int key) throws Exception;
+
+        Object search(int key) throws Exception;
+    }
+
+    private static double run(int threads, String mode) throws Exception {
+        File dir = Files.createTempDirectory("btree-bench").toFile();
+        File dbFile = new File(dir, "bench.db");
+        PageManager pageManager = new PageManager(dbFile.getPath(), 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, 50_000);
+        TreeOps tree;
+        if (mode.equals("blink")) {
+            BLinkTree<Integer, RecordId> bLinkTree = new BLinkTree<>(64, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool, 1);
+            tree = new TreeOps() {
+                public void insert(int key) throws Exception { bLinkTree.insert(key, new RecordId(key, 0)); }
+                public Object search(int key) throws Exception { return bLinkTree.search(key); }
+            };
+        } else {
+            BPlusTree<Integer, RecordId> bPlusTree = new BPlusTree<>(64, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+            tree = new TreeOps() {
+                public void insert(int key) throws Exception { bPlusTree.insert(key, new RecordId(key, 0)); }
+                public Object search(int key) throws Exception { return bPlusTree.search(key); }
+            };
+        }
+        boolean coarse = mode.equals("coarse");
+        ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
+
+        for (int i = 0; i < PRELOAD_KEYS; i++) {
+            tree.insert(ThreadLocalRandom.current().nextInt(KEY_SPACE));
+        }
+
+        AtomicLong operations = new AtomicLong();
+        long deadline = System.currentTimeMillis() + RUN_MILLIS;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        int key = random.nextInt(KEY_SPACE);
+                        boolean write = random.nextInt(100) < WRITE_PERCENT;
+                        if (coarse) {
+                            (write ? treeLock.writeLock() : treeLock.readLock()).lock();
+                        }
+                        try {
+                            if (write) {
+                                tree.insert(key);
+                            } else {
+                                tree.search(key);
+                            }
+                        } finally {
+                            if (coarse) {
+                                (write ? treeLock.writeLock() : treeLock.readLock()).unlock();
+                            }
+                        }
+                        done++;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                operations.addAndGet(done);
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        pageManager.close();
+        dbFile.delete();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+        return operations.get() / seconds;
+    }
+}
@@ -0,0 +1,91 @@
+package com.minidb.bench;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Key-at-a-time insert and search against insertAll and searchAll, loading a tree in sorted
+ * batches of random keys and then looking keys up in sorted batches. A batch pays one descent per
+ * leaf it touches, so the denser the batch the fewer descents per key.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.BatchOperationsBenchmark [-Dexec.args="keys batchSize"]
+ */
+public class BatchOperationsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+
+        System.out.printf("%,d keys in sorted batches of %,d%n", keys, batchSize);
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            run(false, keys, batchSize);
+            run(true, keys, batchSize);
+        }
+    }
+
+    private static void run(boolean batched, int keys, int batchSize) throws Exception {
+        File dir = Files.createTempDirectory("batch-bench").toFile();
+        PageManager pageManager = new PageManager(new File(dir, "bench.db").getPath(), 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, 100_000);
+        BPlusTree<Integer, RecordId> tree = new BPlusTree<>(1000, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (int done = 0; done < keys; done += batchSize) {
+            TreeMap<Integer, RecordId> batch = new TreeMap<>();
+            for (int i = 0; i < batchSize; i++) {
+                batch.put(random.nextInt(keys * 4), new RecordId(done + i, 0));
+            }
+            if (batched) {
+                tree.insertAll(batch);
+            } else {
+                for (var entry : batch.entrySet()) {
+                    tree.insert(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        double insertNanos = (System.nanoTime() - start) / (double) keys;
+
+        start = System.nanoTime();
+        long found = 0;
+        for (int done = 0; done < keys; done += batchSize) {
+            TreeSet<Integer> sorted = new TreeSet<>();
+            for (int i = 0; i < batchSize; i++) {
+                sorted.add(random.nextInt(keys * 4));
+            }
+            List<Integer> batch = new ArrayList<>(sorted);
+            if (batched) {
+                for (RecordId rid : tree.searchAll(batch)) {
+                    found += rid != null ? 1 : 0;
+                }
+            } else {
+                for (int key : batch) {
+                    found += tree.search(key) != null ? 1 : 0;
+                }
+            }
+        }
+        double searchNanos = (System.nanoTime() - start) / (double) keys;
+
+        System.out.printf("%-13s insert: %.0f ns/key  search: %.0f ns/key  (%,d hits)%n",
+                batched ? "batched" : "key-at-a-time", insertNanos, searchNanos, found);
+
+        pageManager.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+}
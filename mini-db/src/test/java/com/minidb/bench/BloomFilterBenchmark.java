@@ -0,0 +1,84 @@
+package com.minidb.bench;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.log.WALManager;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.storage.BloomFilter;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.KeyType;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+import com.minidb.storage.RecordStorage;
+import com.minidb.storage.RecordsSerializer;
+import com.minidb.storage.RecordsSerializer.Row;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * RecordStorage.fetchRecord for keys that exist and keys that do not, with and without the Bloom
+ * filter. Both storages share one heap and one B+ tree; the buffer pool holds only part of them, so
+ * a miss that descends the tree can fault pages in.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.BloomFilterBenchmark [-Dexec.args="keys lookups poolPages"]
+ */
+public class BloomFilterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        int poolPages = args.length > 2 ? Integer.parseInt(args[2]) : 2_000;
+
+        File dir = Files.createTempDirectory("bloom-filter-bench").toFile();
+        PageManager pageManager = new PageManager(new File(dir, "bench.db").getPath(), 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, poolPages);
+        WALManager walManager = new WALManager(dir);
+        BPlusTree<Integer, RecordId> index = new BPlusTree<>(128, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+        RecordsSerializer recordsSerializer = new RecordsSerializer(new RecordsSerializer.Column[]{
+                new RecordsSerializer.Column("id", RecordsSerializer.ColumnType.INT),
+                new RecordsSerializer.Column("value", RecordsSerializer.ColumnType.STRING)
+        });
+        RecordStorage<Integer> plain = new RecordStorage<>(bufferPool, recordsSerializer, walManager, index, pageManager, KeyType.INT);
+        RecordStorage<Integer> filtered = new RecordStorage<>(bufferPool, recordsSerializer, walManager, index, pageManager, KeyType.INT);
+
+        // Even keys exist, odd keys do not
+        for (int key = 0; key < keys; key++) {
+            Row row = new Row(2);
+            row.values[0] = 2 * key;
+            row.values[1] = "value-" + key;
+            plain.insertRecordForRecovery(-1, recordsSerializer.serialize(row));
+        }
+        BloomFilter filter = filtered.enableBloomFilter(10);
+
+        System.out.printf("%,d keys, %,d lookups, %,d buffer pool pages, filter of %,d bytes%n",
+                keys, lookups, poolPages, filter.getSizeBytes());
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            System.out.printf("no filter  miss: %6.0f ns  hit: %6.0f ns%n",
+                    lookupNanos(plain, keys, lookups, 1), lookupNanos(plain, keys, lookups, 0));
+            System.out.printf("filter     miss: %6.0f ns  hit: %6.0f ns%n",
+                    lookupNanos(filtered, keys, lookups, 1), lookupNanos(filtered, keys, lookups, 0));
+        }
+
+        walManager.close();
+        pageManager.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static double lookupNanos(RecordStorage<Integer> storage, int keys, int lookups, int parity) throws Exception {
+        Random random = new Random(7);
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            boolean found = storage.fetchRecord(2 * random.nextInt(keys) + parity) != null;
+            if (found != (parity == 0)) {
+                throw new IllegalStateException("Wrong answer for a key of parity " + parity);
+            }
+        }
+        return (System.nanoTime() - start) / (double) lookups;
+    }
+}
@@ -0,0 +1,75 @@
+package com.minidb.bench;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Time to build an index of N sorted keys with BPlusTree.bulkLoad versus repeated insert.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.BulkLoadBenchmark [-Dexec.args="keys fillFactor"]
+ */
+public class BulkLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        double fillFactor = args.length > 1 ? Double.parseDouble(args[1]) : 0.9;
+
+        long insertMillis = build(keys, fillFactor, false);
+        long bulkMillis = build(keys, fillFactor, true);
+        System.out.printf("keys=%,d  insert: %,d ms  bulkLoad(%.2f): %,d ms%n", keys, insertMillis, fillFactor, bulkMillis);
+    }
+
+    private static long build(int keys, double fillFactor, boolean bulk) throws Exception {
+        File dir = Files.createTempDirectory("bulk-bench").toFile();
+        File dbFile = new File(dir, "bench.db");
+        PageManager pageManager = new PageManager(dbFile.getPath(), 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, 1_000);
+        BPlusTree<Integer, RecordId> tree = new BPlusTree<>(128, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+
+        long start = System.nanoTime();
+        if (bulk) {
+            tree.bulkLoad(sortedEntries(keys), fillFactor);
+        } else {
+            for (int key = 0; key < keys; key++) {
+                tree.insert(key, new RecordId(key, 0));
+            }
+        }
+        bufferPool.flushAllPages();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        pageManager.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+        return millis;
+    }
+
+    private static Iterator<Map.Entry<Integer, RecordId>> sortedEntries(int keys) {
+        return new Iterator<Map.Entry<Integer, RecordId>>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < keys;
+            }
+
+            @Override
+            public Map.Entry<Integer, RecordId> next() {
+                int key = next++;
+                return new AbstractMap.SimpleEntry<>(key, new RecordId(key, 0));
+            }
+        };
+    }
+}
@@ -0,0 +1,77 @@
+package com.minidb.bench;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.index.ExtendibleHashIndex;
+import com.minidb.index.Index;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Point lookup latency of the two primary indexes over the same int keys, with a buffer pool that
+ * holds the whole index and with one that holds only a small part of it. A hash lookup reads one
+ * bucket page; a B+ tree lookup reads one page per level.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.HashIndexBenchmark [-Dexec.args="keys lookups"]
+ */
+public class HashIndexBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        System.out.printf("%,d keys, %,d lookups%n", keys, lookups);
+        for (int poolPages : new int[]{100_000, 256}) {
+            run("btree", poolPages, keys, lookups);
+            run("hash", poolPages, keys, lookups);
+        }
+    }
+
+    private static void run(String kind, int poolPages, int keys, int lookups) throws Exception {
+        File dir = Files.createTempDirectory("hash-index-bench").toFile();
+        PageManager pageManager = new PageManager(new File(dir, "bench.db").getPath(), 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, poolPages);
+        Index<Integer, RecordId> index = kind.equals("hash")
+                ? new ExtendibleHashIndex<>(new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool, BPlusTree.DEFAULT_ROOT_PAGE_ID)
+                : new BPlusTree<>(1000, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            int key = random.nextInt();
+            index.insert(key, new RecordId(i, 0));
+        }
+        long insertMillis = (System.nanoTime() - start) / 1_000_000;
+
+        random = new Random(42);
+        int[] present = new int[keys];
+        for (int i = 0; i < keys; i++) {
+            present[i] = random.nextInt();
+        }
+        for (int i = 0; i < lookups / 10; i++) { // Warm-up
+            index.search(present[random.nextInt(keys)]);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (index.search(present[random.nextInt(keys)]) == null) {
+                throw new IllegalStateException("Lost a key");
+            }
+        }
+        double lookupNanos = (System.nanoTime() - start) / (double) lookups;
+
+        System.out.printf("%-5s pool=%-6d insert: %,d ms  lookup: %.0f ns%n", kind, poolPages, insertMillis, lookupNanos);
+
+        pageManager.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+}
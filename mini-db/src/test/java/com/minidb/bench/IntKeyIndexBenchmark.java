@@ -0,0 +1,109 @@
+package com.minidb.bench;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.index.IntBPlusTree;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH comparison of the generic BPlusTree<Integer, RecordId> against IntBPlusTree for point
+ * lookups and inserts. The GC profiler reports the allocation rate (gc.alloc.rate.norm is bytes
+ * per operation) next to the throughput.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.IntKeyIndexBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IntKeyIndexBenchmark {
+    private static final int KEYS = 200_000;
+    private static final int ORDER = 128;
+
+    private File dir;
+    private PageManager pageManager;
+    private BufferPool bufferPool;
+    private BPlusTree<Integer, RecordId> genericTree;
+    private IntBPlusTree intTree;
+    private int nextInsertKey;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("int-index-bench").toFile();
+        pageManager = new PageManager(new File(dir, "bench.db").getPath(), 4096);
+        bufferPool = new BufferPool(pageManager, 100_000);
+        genericTree = new BPlusTree<>(ORDER, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool, pageManager.allocatePage());
+        intTree = new IntBPlusTree(ORDER, pageManager, bufferPool, pageManager.allocatePage());
+        for (int key = 0; key < KEYS; key++) {
+            genericTree.insert(key * 2, new RecordId(key, 0));
+            intTree.insert(key * 2, IntBPlusTree.pack(key, 0));
+        }
+        nextInsertKey = KEYS * 2;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pageManager.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public RecordId genericSearch() throws Exception {
+        return genericTree.search(ThreadLocalRandom.current().nextInt(KEYS) * 2);
+    }
+
+    @Benchmark
+    public long intSearch() throws Exception {
+        return intTree.search(ThreadLocalRandom.current().nextInt(KEYS) * 2);
+    }
+
+    @Benchmark
+    public void genericInsert() throws Exception {
+        int key = nextInsertKey++;
+        genericTree.insert(key, new RecordId(key, 0));
+    }
+
+    @Benchmark
+    public void intInsert() throws Exception {
+        int key = nextInsertKey++;
+        intTree.insert(key, IntBPlusTree.pack(key, 0));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(IntKeyIndexBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,93 @@
+package com.minidb.bench;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.index.LearnedIndex;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Point lookups on a sealed B+ tree of dense, slightly irregular int keys against a LearnedIndex
+ * built from it for a few error bounds, with an empty delta tree. The LearnedIndex numbers include
+ * the delta lookup every search makes first.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.LearnedIndexBenchmark [-Dexec.args="keys lookups"]
+ */
+public class LearnedIndexBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+
+        File dir = Files.createTempDirectory("learned-index-bench").toFile();
+        PageManager pageManager = new PageManager(new File(dir, "bench.db").getPath(), 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, 100_000);
+        BPlusTree<Integer, RecordId> sealed = new BPlusTree<>(256, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+        BPlusTree<Integer, RecordId> delta = new BPlusTree<>(256, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool, pageManager.allocatePage());
+
+        Random random = new Random(42);
+        int[] present = new int[keys];
+        int key = 0;
+        for (int i = 0; i < keys; i++) {
+            key += 1 + random.nextInt(4);
+            present[i] = key;
+        }
+        sealed.bulkLoad(new Iterator<Map.Entry<Integer, RecordId>>() {
+            private int i;
+
+            @Override
+            public boolean hasNext() {
+                return i < keys;
+            }
+
+            @Override
+            public Map.Entry<Integer, RecordId> next() {
+                int next = i++;
+                return new AbstractMap.SimpleEntry<>(present[next], new RecordId(next, 0));
+            }
+        }, 1.0);
+
+        System.out.printf("%,d keys, %,d lookups%n", keys, lookups);
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            System.out.printf("btree                lookup: %.0f ns%n", lookupNanos(sealed::search, present, lookups));
+            for (int maxError : new int[]{4, 16, 64}) {
+                long start = System.nanoTime();
+                LearnedIndex index = new LearnedIndex(sealed, delta, maxError);
+                long buildMillis = (System.nanoTime() - start) / 1_000_000;
+                System.out.printf("learned maxError=%-3d lookup: %.0f ns  segments: %,d  build: %,d ms%n",
+                        maxError, lookupNanos(index::search, present, lookups), index.getSegmentCount(), buildMillis);
+            }
+        }
+
+        pageManager.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private interface Lookup {
+        RecordId search(Integer key) throws Exception;
+    }
+
+    private static double lookupNanos(Lookup lookup, int[] present, int lookups) throws Exception {
+        Random random = new Random(7);
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (lookup.search(present[random.nextInt(present.length)]) == null) {
+                throw new IllegalStateException("Lost a key");
+            }
+        }
+        return (System.nanoTime() - start) / (double) lookups;
+    }
+}
@@ -0,0 +1,100 @@
+package com.minidb.bench;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.log.WALManager;
+import com.minidb.lsm.LsmStorage;
+import com.minidb.lsm.LsmTree;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.KeyType;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+import com.minidb.storage.RecordStorage;
+import com.minidb.storage.RecordsSerializer;
+import com.minidb.storage.RecordsSerializer.Row;
+import com.minidb.storage.TableStorage;
+import com.minidb.txn.LockManager;
+import com.minidb.txn.Transaction;
+import com.minidb.txn.TxnManager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Inserts rows with random int keys through TableStorage.insertRecord, WAL included, into a heap
+ * table with a B+ tree primary index and into an LSM table, then looks up random keys in both. The
+ * heap table's buffer pool holds only part of its pages, as it would for a table larger than memory.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.LsmIngestBenchmark [-Dexec.args="rows lookups poolPages"]
+ */
+public class LsmIngestBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int poolPages = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+        RecordsSerializer recordsSerializer = new RecordsSerializer(new RecordsSerializer.Column[]{
+                new RecordsSerializer.Column("id", RecordsSerializer.ColumnType.INT),
+                new RecordsSerializer.Column("value", RecordsSerializer.ColumnType.STRING)
+        });
+        System.out.printf("%,d rows, %,d lookups, %,d buffer pool pages%n", rows, lookups, poolPages);
+
+        File heapDir = Files.createTempDirectory("lsm-bench-heap").toFile();
+        PageManager pageManager = new PageManager(new File(heapDir, "bench.db").getPath(), 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, poolPages);
+        WALManager heapWal = new WALManager(heapDir);
+        BPlusTree<Integer, RecordId> index = new BPlusTree<>(128, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+        run("heap + btree", new RecordStorage<>(bufferPool, recordsSerializer, heapWal, index, pageManager, KeyType.INT), heapWal, recordsSerializer, rows, lookups);
+        heapWal.close();
+        pageManager.close();
+        delete(heapDir);
+
+        File lsmDir = Files.createTempDirectory("lsm-bench-lsm").toFile();
+        WALManager lsmWal = new WALManager(lsmDir);
+        LsmStorage<Integer> lsm = new LsmStorage<>(recordsSerializer, lsmWal, new LsmTree(new File(lsmDir, "lsm"), 4L * 1024 * 1024), KeyType.INT);
+        run("lsm", lsm, lsmWal, recordsSerializer, rows, lookups);
+        System.out.println("lsm files per level: " + Arrays.toString(lsm.getTree().getFileCounts()));
+        lsm.close();
+        lsmWal.close();
+        delete(lsmDir);
+    }
+
+    private static void run(String name, TableStorage<Integer> storage, WALManager walManager, RecordsSerializer recordsSerializer, int rows, int lookups) throws Exception {
+        Transaction txn = new TxnManager(new LockManager(), walManager).begin();
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            Row row = new Row(2);
+            row.values[0] = random.nextInt(4 * rows);
+            row.values[1] = "value-" + i;
+            storage.insertRecord(row, txn);
+        }
+        double insertMicros = (System.nanoTime() - start) / 1000.0 / rows;
+
+        random = new Random(7);
+        start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < lookups; i++) {
+            if (storage.fetchRecord(random.nextInt(4 * rows)) != null) {
+                found++;
+            }
+        }
+        double lookupMicros = (System.nanoTime() - start) / 1000.0 / lookups;
+        System.out.printf("%-13s insert: %7.1f us  lookup: %6.1f us  (%,d found)%n", name, insertMicros, lookupMicros, found);
+    }
+
+    private static void delete(File dir) {
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                delete(file);
+            } else {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
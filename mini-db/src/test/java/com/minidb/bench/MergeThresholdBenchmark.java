@@ -0,0 +1,94 @@
+package com.minidb.bench;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Churns a B+ tree the way a queue-like table does: runs of neighbouring keys are deleted and
+ * inserted again, so leaves keep dipping below half full and filling up. Compares merging at half
+ * full with merging at a quarter full plus a rebalance pass at the end, by page writes reaching the
+ * PageManager through a buffer pool smaller than the tree, time per operation and final leaf fill.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.MergeThresholdBenchmark [-Dexec.args="keys rounds run"]
+ */
+public class MergeThresholdBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int run = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+        System.out.printf("%,d keys, %,d rounds of deleting and re-inserting %d neighbouring keys%n", keys, rounds, run);
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            churn(0.5, keys, rounds, run);
+            churn(0.25, keys, rounds, run);
+        }
+    }
+
+    private static void churn(double mergeThreshold, int keys, int rounds, int run) throws Exception {
+        File dir = Files.createTempDirectory("merge-threshold-bench").toFile();
+        CountingPageManager pageManager = new CountingPageManager(new File(dir, "bench.db").getPath());
+        BufferPool bufferPool = new BufferPool(pageManager, 200);
+        BPlusTree<Integer, RecordId> tree = new BPlusTree<>(64, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+        tree.setMergeThreshold(mergeThreshold);
+        for (int key = 0; key < keys; key++) {
+            tree.insert(key, new RecordId(key, 0));
+        }
+        bufferPool.flushAllPages();
+        pageManager.writes = 0;
+
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            int first = random.nextInt(keys - run);
+            for (int key = first; key < first + run; key++) {
+                tree.delete(key);
+            }
+            for (int key = first; key < first + run; key++) {
+                tree.insert(key, new RecordId(key, 1));
+            }
+        }
+        bufferPool.flushAllPages();
+        double opMicros = (System.nanoTime() - start) / 1000.0 / (2L * rounds * run);
+        long churnWrites = pageManager.writes;
+        BPlusTree.Stats before = tree.stats();
+        int merged = tree.rebalance();
+        System.out.printf("merge below %2.0f%%: %6.2f us/op  page writes: %,9d  %s  (rebalance merged %d leaves: %s)%n",
+                100 * mergeThreshold, opMicros, churnWrites, before, merged, tree.stats());
+        pageManager.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static final class CountingPageManager extends PageManager {
+        long writes;
+
+        CountingPageManager(String path) throws IOException {
+            super(path, 4096);
+        }
+
+        @Override
+        public void writePage(int pageId, byte[] data) throws IOException {
+            writes++;
+            super.writePage(pageId, data);
+        }
+
+        @Override
+        public void writePages(Map<Integer, byte[]> pages) throws IOException {
+            writes += pages.size();
+            super.writePages(pages);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.minidb.bench;
+
+import com.minidb.index.IntKeySearch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH comparison of the scalar binary search and the Vector API search over one IntBPlusTree node
+ * of `order` keys, probing present and absent keys in random order. The fork adds the incubator
+ * module, so IntKeySearch.find takes the vectorized path; that needs a JDK from 17 to 19, where
+ * the vector-search profile builds VectorIntKeySearch.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.NodeSearchBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class NodeSearchBenchmark {
+    private static final int OFFSET = 24; // Where IntBPlusTree's key slots start in a page
+    private static final int PROBES = 1024;
+
+    @Param({"16", "32", "64", "128", "256"})
+    private int order;
+
+    private byte[] page;
+    private int[] probes;
+    private int next;
+
+    @Setup
+    public void setup() {
+        if (!IntKeySearch.isVectorized()) {
+            throw new IllegalStateException("The Vector API search is not available in the benchmark JVM (it is only built on JDK 17 to 19)");
+        }
+        page = new byte[4096];
+        ByteBuffer buffer = ByteBuffer.wrap(page, OFFSET, 4 * order);
+        for (int i = 0; i < order; i++) {
+            buffer.putInt(i * 2);
+        }
+        Random random = new Random(42);
+        probes = new int[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            probes[i] = random.nextInt(2 * order + 1) - 1;
+        }
+    }
+
+    private int nextProbe() {
+        next = (next + 1) & (PROBES - 1);
+        return probes[next];
+    }
+
+    @Benchmark
+    public int scalar() {
+        return IntKeySearch.binarySearch(page, OFFSET, order, nextProbe());
+    }
+
+    @Benchmark
+    public int vector() {
+        return IntKeySearch.find(page, OFFSET, order, nextProbe());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(NodeSearchBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
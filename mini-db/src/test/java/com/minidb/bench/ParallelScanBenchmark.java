@@ -0,0 +1,67 @@
+package com.minidb.bench;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.serializers.IntegerSerializer;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scans most of a B+ tree whose pages all fit in the buffer pool, split into 1 to 8 subranges
+ * read at once on a ForkJoinPool: parallelRangeScan streaming the entries to a consumer in key
+ * order, as BETWEEN scans do, and parallelForEach summing a value field as an aggregate would.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.ParallelScanBenchmark [-Dexec.args="keys scans"]
+ */
+public class ParallelScanBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int scans = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        File dir = Files.createTempDirectory("parallel-scan-bench").toFile();
+        PageManager pageManager = new PageManager(new File(dir, "bench.db").getPath(), 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, 100_000);
+        BPlusTree<Integer, RecordId> tree = new BPlusTree<>(256, new IntegerSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+        for (int key = 0; key < keys; key++) {
+            tree.insert(key, new RecordId(key, key % 7));
+        }
+        int low = keys / 20;
+        int high = keys - keys / 20;
+        System.out.printf("%,d keys, scans of %,d keys, %d cores%n", keys, high - low + 1, Runtime.getRuntime().availableProcessors());
+
+        ForkJoinPool pool = new ForkJoinPool(8);
+        for (int round = 0; round < 2; round++) { // The first round warms up the JIT
+            for (int parts : new int[]{1, 2, 4, 8}) {
+                long start = System.nanoTime();
+                long[] found = {0};
+                for (int i = 0; i < scans; i++) {
+                    found[0] = 0;
+                    tree.parallelRangeScan(low, high, parts, pool, Map.Entry::getValue, rid -> found[0]++);
+                }
+                double orderedMillis = (System.nanoTime() - start) / 1e6 / scans;
+
+                start = System.nanoTime();
+                LongAdder sum = new LongAdder();
+                for (int i = 0; i < scans; i++) {
+                    tree.parallelForEach(low, high, parts, pool, entry -> sum.add(entry.getValue().getSlotId()));
+                }
+                double unorderedMillis = (System.nanoTime() - start) / 1e6 / scans;
+                System.out.printf("%d partitions: ordered %7.1f ms  unordered sum %7.1f ms  (%,d entries)%n", parts, orderedMillis, unorderedMillis, found[0]);
+            }
+        }
+        pool.shutdown();
+        pageManager.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+}
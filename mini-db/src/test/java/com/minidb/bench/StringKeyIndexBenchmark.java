@@ -0,0 +1,82 @@
+package com.minidb.bench;
+
+import com.minidb.index.BPlusTree;
+import com.minidb.serializers.RecordIdSerializer;
+import com.minidb.serializers.StringSerializer;
+import com.minidb.storage.BufferPool;
+import com.minidb.storage.PageManager;
+import com.minidb.storage.RecordId;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Node fill, tree height and point lookup latency for URL-like keys of 20-60 bytes. The tree is
+ * built once with an order small enough for whole keys to fit in a page, and once with an order so
+ * high that nodes fill up by bytes, where prefix compression and truncated separators set the fan-out.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.minidb.bench.StringKeyIndexBenchmark [-Dexec.args="keys lookups"]
+ */
+public class StringKeyIndexBenchmark {
+    private static final String[] HOSTS = {"example.com", "shop.example.com", "static.example-cdn.net", "docs.minidb.dev"};
+    private static final String[] SECTIONS = {"products", "blog/2024", "users", "api/v2/items"};
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        List<String> urls = urls(keys, 42);
+        System.out.printf("%,d keys, average %.1f bytes%n", keys, urls.stream().mapToInt(String::length).average().orElse(0));
+        for (int order : new int[]{40, 1000}) {
+            run(urls, order, lookups);
+        }
+    }
+
+    private static void run(List<String> urls, int order, int lookups) throws Exception {
+        File dir = Files.createTempDirectory("string-key-bench").toFile();
+        PageManager pageManager = new PageManager(new File(dir, "bench.db").getPath(), 4096);
+        BufferPool bufferPool = new BufferPool(pageManager, 100_000);
+        BPlusTree<String, RecordId> tree = new BPlusTree<>(order, new StringSerializer(), new RecordIdSerializer(), pageManager, bufferPool);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < urls.size(); i++) {
+            tree.insert(urls.get(i), new RecordId(i, 0));
+        }
+        long insertMillis = (System.nanoTime() - start) / 1_000_000;
+
+        Random random = new Random(7);
+        for (int i = 0; i < lookups / 10; i++) { // Warm-up
+            tree.search(urls.get(random.nextInt(urls.size())));
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (tree.search(urls.get(random.nextInt(urls.size()))) == null) {
+                throw new IllegalStateException("Lost a key");
+            }
+        }
+        double lookupNanos = (System.nanoTime() - start) / (double) lookups;
+
+        System.out.printf("order=%-5d %s  insert: %,d ms  lookup: %.0f ns%n", order, tree.stats(), insertMillis, lookupNanos);
+
+        pageManager.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static List<String> urls(int count, long seed) {
+        Random random = new Random(seed);
+        List<String> urls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            urls.add("https://" + HOSTS[random.nextInt(HOSTS.length)] + "/" + SECTIONS[random.nextInt(SECTIONS.length)] + "/" + i);
+        }
+        Collections.shuffle(urls, random);
+        return urls;
+    }
+}